@@ -0,0 +1,206 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import fr.ens.biologie.genomique.eoulsan.data.DataFile;
+
+/**
+ * This class define JMH benchmarks of the annotation parsing path. Features
+ * are gathered with GFFReader entries, the comparison baseline, or with the
+ * annotation scanner, in parallel chunks when several threads are used.
+ * Without annotation file, a GTF of 20000 genes of 10 transcripts of 8 exons
+ * (about 1.8M lines) is generated.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec
+ * -Djmh.args="AnnotationParserBenchmark -prof gc". Other annotations are
+ * given with -p file=... -p format=gff -p genomicType=... -p attributeId=...
+ * GFFReader parsing is sequential, its results do not depend on the thread
+ * count. Scores are parsings per second, the inputBytes counter gives bytes
+ * parsed per second and the GC profiler the allocation rate.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnnotationParserBenchmark {
+
+    private static final String MT_TAG = "MT";
+    private static final String SPIKE_TAG = "ERCC";
+
+    /**
+     * Annotation file, generated if empty
+     */
+    @Param({""})
+    public String file;
+
+    @Param({"gtf"})
+    public String format;
+
+    @Param({"exon"})
+    public String genomicType;
+
+    @Param({"transcript_id"})
+    public String attributeId;
+
+    @Param({"reader", "scanner"})
+    public String parser;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private File directory;
+    private File annotationFile;
+    private DataFile annotations;
+    private boolean gtfFormat;
+
+    /**
+     * This class define the counter of input bytes parsed, reported per second
+     * as the benchmark mode is throughput
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class InputCounter {
+
+        public long inputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.inputBytes = 0;
+        }
+    }
+
+    //
+    // Setup
+    //
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException, EoulsanException {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+
+        this.gtfFormat = "gtf".equals(this.format.toLowerCase());
+
+        if (this.file.isEmpty()) {
+            this.directory =
+                Files.createTempDirectory("annotationbench").toFile();
+            this.annotationFile = new File(this.directory, "annotations.gtf");
+            generate(this.annotationFile);
+            this.gtfFormat = true;
+        } else {
+            this.annotationFile = new File(this.file);
+        }
+
+        this.annotations = new DataFile(this.annotationFile);
+    }
+
+    /**
+     * Write a GTF of genes of several transcripts of several exons
+     */
+    private static void generate(final File file) throws IOException {
+
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8))) {
+
+            for (int g = 0; g < 20000; g++) {
+
+                final String chromosome =
+                    g % 100 == 0 ? "MT" : Integer.toString(1 + g % 19);
+                final String gene =
+                    "gene_id \"ENSG" + g + "\"; gene_version \"1\";";
+                final int start = 1000 + 100000 * g;
+                out.write(chromosome + "\thavana\tgene\t" + start + "\t"
+                    + (start + 90000) + "\t.\t+\t.\t" + gene
+                    + " gene_type \"protein_coding\";\n");
+
+                for (int t = 0; t < 10; t++) {
+
+                    final String transcript = gene + " transcript_id \"ENST"
+                        + g + "_" + t
+                        + "\"; transcript_type \"protein_coding\";";
+                    out.write(chromosome + "\thavana\ttranscript\t" + start
+                        + "\t" + (start + 90000) + "\t.\t+\t.\t" + transcript
+                        + "\n");
+
+                    for (int e = 0; e < 8; e++) {
+                        final int exonStart = start + 10000 * e + 100 * t;
+                        out.write(chromosome + "\thavana\texon\t" + exonStart
+                            + "\t" + (exonStart + 150) + "\t.\t+\t.\t"
+                            + transcript + " exon_number " + (e + 1)
+                            + "; exon_id \"ENSE" + g + "_" + t + "_" + e
+                            + "\"; tag \"basic\";\n");
+                    }
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+
+        if (this.directory != null) {
+            Files.deleteIfExists(this.annotationFile.toPath());
+            Files.deleteIfExists(this.directory.toPath());
+        }
+    }
+
+    //
+    // Benchmarks
+    //
+
+    @Benchmark
+    public int parse(final InputCounter counter)
+        throws IOException, EoulsanException {
+
+        final FeatureTable features = new FeatureTable();
+        final Map<String, String> parents = new HashMap<>();
+
+        if ("reader".equals(this.parser)) {
+            FeaturesMetadataExtractorModule.readFeatures(this.annotations,
+                MT_TAG, SPIKE_TAG, this.genomicType, this.attributeId,
+                this.gtfFormat, features, parents);
+        } else if (this.threads == 1) {
+            FeaturesMetadataExtractorModule.scanFeatures(this.annotations,
+                MT_TAG, SPIKE_TAG, this.genomicType, this.attributeId,
+                this.gtfFormat, features, parents);
+        } else {
+            new ParallelAnnotationParser(MT_TAG, SPIKE_TAG, this.genomicType,
+                this.attributeId, this.gtfFormat, this.threads)
+                .parse(this.annotationFile, features, parents);
+        }
+        counter.inputBytes += this.annotationFile.length();
+
+        return features.size() + parents.size();
+    }
+}
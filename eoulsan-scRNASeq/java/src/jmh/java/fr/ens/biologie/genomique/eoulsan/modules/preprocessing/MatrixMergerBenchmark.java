@@ -0,0 +1,242 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.MatrixCreatorModule.MatrixFormat;
+
+/**
+ * This class define JMH benchmarks of the matrix building path. Synthetic
+ * expression files are generated for each combination of gene count, cell
+ * count, sparsity and input compression, then merged by each engine.
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec. The input throughput is
+ * reported by the inputBytes counter and the allocation rate by the GC
+ * profiler.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatrixMergerBenchmark {
+
+    private static final long SEED = 42;
+    private static final int THREADS = 4;
+    private static final long MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    @Param({"5000", "30000"})
+    public int geneCount;
+
+    @Param({"100", "1000"})
+    public int cellCount;
+
+    /**
+     * Fraction of zero counts in each cell
+     */
+    @Param({"0.8", "0.95"})
+    public double sparsity;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private File directory;
+    private List<File> files;
+    private File output;
+    private long inputBytes;
+
+    /**
+     * This class define the counter of input bytes merged, reported as a rate
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class InputCounter {
+
+        public long inputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.inputBytes = 0;
+        }
+    }
+
+    //
+    // Setup
+    //
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+
+        this.directory = Files.createTempDirectory("matrixbench").toFile();
+        this.output = new File(this.directory, "merged");
+        this.files = new ArrayList<>(this.cellCount);
+
+        final Random random = new Random(SEED);
+        for (int j = 0; j < this.cellCount; j++) {
+
+            final File file = new File(this.directory,
+                "expressionstep_output_expression_cell" + j + ".tsv"
+                    + (this.compressed ? ".gz" : ""));
+
+            try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                open(file), StandardCharsets.UTF_8))) {
+
+                out.write("Id\tCount");
+                out.newLine();
+                for (int i = 0; i < this.geneCount; i++) {
+                    out.write(String.format("ENSMUSG%011d", i));
+                    out.write('\t');
+                    out.write(Integer.toString(randomCount(random)));
+                    out.newLine();
+                }
+            }
+
+            this.files.add(file);
+            this.inputBytes += file.length();
+        }
+    }
+
+    private OutputStream open(final File file) throws IOException {
+
+        final OutputStream out = new FileOutputStream(file);
+
+        return this.compressed ? new GZIPOutputStream(out) : out;
+    }
+
+    /**
+     * Draw a count, zero with the configured probability, otherwise following
+     * a geometric distribution
+     */
+    private int randomCount(final Random random) {
+
+        if (random.nextDouble() < this.sparsity) {
+            return 0;
+        }
+
+        int count = 1;
+        while (random.nextDouble() < 0.7) {
+            count++;
+        }
+
+        return count;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+
+        final File[] content = this.directory.listFiles();
+        if (content != null) {
+            for (File file : content) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(this.directory.toPath());
+    }
+
+    //
+    // Benchmarks
+    //
+
+    private MatrixMerger newMerger(final MatrixFormat format,
+        final int threads) {
+
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setFormat(format);
+        merger.setThreadCount(threads);
+        merger.setTempDirectory(this.directory);
+
+        return merger;
+    }
+
+    @Benchmark
+    public long mergeModule(final InputCounter counter) throws IOException {
+
+        MatrixCreatorModule.merge(this.files, this.output);
+        counter.inputBytes += this.inputBytes;
+
+        return this.output.length();
+    }
+
+    @Benchmark
+    public long mergeParallel(final InputCounter counter) throws IOException {
+
+        newMerger(MatrixFormat.TSV, THREADS).merge(this.files, this.output);
+        counter.inputBytes += this.inputBytes;
+
+        return this.output.length();
+    }
+
+    @Benchmark
+    public long mergeMatrixMarket(final InputCounter counter)
+        throws IOException {
+
+        newMerger(MatrixFormat.MTX, THREADS).merge(this.files, this.output);
+        counter.inputBytes += this.inputBytes;
+
+        return this.output.length();
+    }
+
+    @Benchmark
+    public long mergeChunked(final InputCounter counter) throws IOException {
+
+        newMerger(MatrixFormat.CHUNKED, THREADS)
+            .merge(this.files, this.output);
+        counter.inputBytes += this.inputBytes;
+
+        return this.output.length();
+    }
+
+    @Benchmark
+    public long mergeExternal(final InputCounter counter) throws IOException {
+
+        final MatrixMerger merger = newMerger(MatrixFormat.TSV, THREADS);
+        merger.setMemoryBudget(MEMORY_BUDGET);
+        merger.merge(this.files, this.output);
+        counter.inputBytes += this.inputBytes;
+
+        return this.output.length();
+    }
+
+    @Benchmark
+    public long mergeCompressedOutput(final InputCounter counter)
+        throws IOException {
+
+        final MatrixMerger merger = newMerger(MatrixFormat.TSV, THREADS);
+        merger.setCompressed(true);
+        merger.merge(this.files, this.output);
+        counter.inputBytes += this.inputBytes;
+
+        return this.output.length();
+    }
+}
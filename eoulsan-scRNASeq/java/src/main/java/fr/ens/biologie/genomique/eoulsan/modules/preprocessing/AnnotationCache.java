@@ -0,0 +1,358 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.ens.biologie.genomique.eoulsan.data.DataFile;
+
+/**
+ * This class define an on-disk cache of the files extracted from an
+ * annotation file, a metadata file, a gene index and an interval index,
+ * shared by several runs. Entries are keyed by the content hash of the
+ * annotation file and the extraction parameters.
+ * <p>
+ * Entries are written in temporary files then renamed, so a partial entry is
+ * never seen. Publishing, restoring and evicting entries is done under a lock
+ * on a file of the cache directory, so several processes can share a cache.
+ * When the cache exceeds its maximum size, the least recently used entries
+ * are evicted, each restored entry being touched.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class AnnotationCache {
+
+    private static final String VERSION = "2";
+    private static final String METADATA_EXTENSION = ".tsv";
+
+    // Metadata, gene index and interval index, the metadata file first
+    private static final String[] EXTENSIONS =
+        {METADATA_EXTENSION, ".idx", ".fix"};
+    private static final String LOCK_FILE = ".lock";
+    private static final String TMP_PREFIX = ".tmp.";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    /**
+     * Age of the temporary files left by a dead writer before their deletion
+     */
+    private static final long STALE_TMP_AGE = 24L * 60 * 60 * 1000;
+
+    // File locks are held by the JVM, threads take a monitor first
+    private static final Object MONITOR = new Object();
+
+    private final File directory;
+    private final long maxSize;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the cache directory
+     *
+     * @return the cache directory
+     */
+    public final File getDirectory() {
+        return this.directory;
+    }
+
+    /**
+     * Get the maximum size of the cache
+     *
+     * @return the maximum size in bytes
+     */
+    public final long getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * Get the size of the cache entries
+     *
+     * @return the size in bytes
+     */
+    public final long getSize() {
+
+        long result = 0;
+        for (List<File> files : entries().values()) {
+            for (File f : files) {
+                result += f.length();
+            }
+        }
+
+        return result;
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Compute the key of an annotation file and its extraction parameters
+     *
+     * @param annotations the annotation file, hashed as stored
+     * @param parameters  the extraction parameters
+     * @return hexadecimal key
+     * @throws IOException if an error occurs while reading annotation file
+     */
+    public static String key(final DataFile annotations,
+        final String... parameters) throws IOException {
+
+        final StringBuilder sb = new StringBuilder(VERSION);
+        try (InputStream in = annotations.rawOpen()) {
+            sb.append('\t').append(MatrixManifest.hash(in));
+        }
+        // Parameters are prefixed by their length to keep them apart
+        for (String parameter : parameters) {
+            sb.append('\t').append(parameter.length()).append(':')
+                .append(parameter);
+        }
+
+        return MatrixManifest.hash(new ByteArrayInputStream(
+            sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Restore the files of an entry
+     *
+     * @param key           key of the entry
+     * @param metadataFile  file to write metadata
+     * @param indexFile     file to write gene index, may be null
+     * @param intervalsFile file to write interval index, may be null
+     * @return true if the entry was in the cache, false otherwise
+     * @throws IOException if an error occurs while copying files
+     */
+    public final boolean restore(final String key, final File metadataFile,
+        final File indexFile, final File intervalsFile) throws IOException {
+
+        final File[] targets = {metadataFile, indexFile, intervalsFile};
+        final File[] entry = entryFiles(key);
+
+        synchronized (MONITOR) {
+            try (FileChannel channel = lockChannel();
+                FileLock lock = channel.lock()) {
+
+                for (int i = 0; i < entry.length; i++) {
+                    if (targets[i] != null && !entry[i].isFile()) {
+                        return false;
+                    }
+                }
+
+                for (int i = 0; i < entry.length; i++) {
+                    if (targets[i] != null) {
+                        Files.copy(entry[i].toPath(), targets[i].toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+
+                // Entry is now the most recently used
+                entry[0].setLastModified(System.currentTimeMillis());
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Save files in an entry, then evict the least recently used entries if
+     * the cache is too large
+     *
+     * @param key           key of the entry
+     * @param metadataFile  metadata file
+     * @param indexFile     gene index file, may be null
+     * @param intervalsFile interval index file, may be null
+     * @throws IOException if an error occurs while copying files
+     */
+    public final void store(final String key, final File metadataFile,
+        final File indexFile, final File intervalsFile) throws IOException {
+
+        final File[] sources = {metadataFile, indexFile, intervalsFile};
+        final File[] entry = entryFiles(key);
+        final File[] tmps = new File[sources.length];
+
+        try {
+            // Copy files out of the lock, in temporary files of the cache
+            for (int i = 0; i < sources.length; i++) {
+                if (sources[i] != null) {
+                    tmps[i] = File.createTempFile(TMP_PREFIX + key,
+                        TMP_EXTENSION, this.directory);
+                    Files.copy(sources[i].toPath(), tmps[i].toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            synchronized (MONITOR) {
+                try (FileChannel channel = lockChannel();
+                    FileLock lock = channel.lock()) {
+
+                    // The metadata file is moved last, an entry being complete
+                    // once it exists
+                    for (int i = tmps.length - 1; i >= 0; i--) {
+                        if (tmps[i] != null) {
+                            Files.move(tmps[i].toPath(), entry[i].toPath(),
+                                StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                        }
+                    }
+
+                    evict();
+                }
+            }
+        } finally {
+            for (File tmp : tmps) {
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the files of an entry, in the order of the extensions
+     */
+    private File[] entryFiles(final String key) {
+
+        final File[] result = new File[EXTENSIONS.length];
+        for (int i = 0; i < EXTENSIONS.length; i++) {
+            result[i] = new File(this.directory, key + EXTENSIONS[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits its maximum
+     * size, and delete stale temporary files. Must be called under the lock.
+     */
+    private void evict() throws IOException {
+
+        final Map<String, List<File>> entries = entries();
+
+        long size = 0;
+        final List<String> keys = new ArrayList<>(entries.keySet());
+        final Map<String, Long> used = new LinkedHashMap<>();
+        for (String key : keys) {
+            long lastUsed = 0;
+            for (File f : entries.get(key)) {
+                size += f.length();
+                if (f.getName().endsWith(METADATA_EXTENSION)) {
+                    lastUsed = f.lastModified();
+                }
+            }
+            used.put(key, lastUsed);
+        }
+
+        // Least recently used first
+        Collections.sort(keys, new Comparator<String>() {
+
+            @Override
+            public int compare(final String key1, final String key2) {
+                return Long.compare(used.get(key1), used.get(key2));
+            }
+        });
+
+        for (String key : keys) {
+
+            if (size <= this.maxSize) {
+                break;
+            }
+
+            for (File f : entries.get(key)) {
+                size -= f.length();
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+
+        // Temporary files of dead writers
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            final long now = System.currentTimeMillis();
+            for (File f : files) {
+                if (f.getName().endsWith(TMP_EXTENSION)
+                    && now - f.lastModified() > STALE_TMP_AGE) {
+                    Files.deleteIfExists(f.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the files of the entries of the cache, by key
+     */
+    private Map<String, List<File>> entries() {
+
+        final Map<String, List<File>> result = new LinkedHashMap<>();
+        final File[] files = this.directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+
+        for (File f : files) {
+
+            final String name = f.getName();
+            final int dot = name.lastIndexOf('.');
+            if (name.startsWith(".") || !f.isFile() || dot < 0
+                || !Arrays.asList(EXTENSIONS).contains(name.substring(dot))) {
+                continue;
+            }
+
+            final String key = name.substring(0, dot);
+            List<File> entry = result.get(key);
+            if (entry == null) {
+                entry = new ArrayList<>(EXTENSIONS.length);
+                result.put(key, entry);
+            }
+            entry.add(f);
+        }
+
+        return result;
+    }
+
+    private FileChannel lockChannel() throws IOException {
+
+        return FileChannel.open(new File(this.directory, LOCK_FILE).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Public constructor
+     *
+     * @param directory the cache directory, created if needed
+     * @param maxSize   the maximum size of the cache in bytes
+     * @throws IOException if the cache directory cannot be created
+     */
+    public AnnotationCache(final File directory, final long maxSize)
+        throws IOException {
+
+        if (directory == null) {
+            throw new NullPointerException("directory argument cannot be null");
+        }
+        if (maxSize < 0) {
+            throw new IllegalArgumentException(
+                "The maximum size of the cache cannot be negative");
+        }
+
+        Files.createDirectories(directory.toPath());
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+}
@@ -0,0 +1,534 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class define a scanner of the lines of a GFF3 or GTF annotation file,
+ * working on the bytes of the file. Lines are only split on tabs; the type
+ * column is matched first, and lines that are neither features of the
+ * requested genomic type nor transcripts are skipped without reading their
+ * attributes. Attributes are looked up by key on demand, so only the
+ * requested values are decoded as Strings.
+ * <p>
+ * Transcripts are recognized as GFFReader entries were: types containing
+ * "transcript", ending with "RNA", or gene segments.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+class AnnotationScanner implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int COLUMN_COUNT = 9;
+
+    private static final int SEQID_COLUMN = 0;
+    private static final int TYPE_COLUMN = 2;
+    private static final int START_COLUMN = 3;
+    private static final int END_COLUMN = 4;
+    private static final int ATTRIBUTES_COLUMN = 8;
+
+    private static final byte[] TRANSCRIPT = bytes("transcript");
+    private static final byte[] RNA = bytes("RNA");
+    private static final byte[] GENE_SEGMENT = bytes("gene_segment");
+    private static final byte[] FASTA_DIRECTIVE = bytes("##FASTA");
+
+    private final InputStream in;
+    private final boolean gtfFormat;
+    private final byte[] genomicType;
+    private final boolean parentScan;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int limit;
+    private int position;
+    private boolean eof;
+    private long lineNumber;
+
+    // Stream offset of the first byte of the buffer and of the current line
+    private long bufferOffset;
+    private long lineOffset;
+    private long maxLineOffset = Long.MAX_VALUE;
+    private boolean fastaReached;
+
+    // Columns of the current line
+    private final int[] starts = new int[COLUMN_COUNT];
+    private final int[] ends = new int[COLUMN_COUNT];
+    private boolean feature;
+    private boolean parent;
+
+    // Last decoded values, reused while they do not change
+    private byte[] seqIdBytes = new byte[0];
+    private String seqId;
+    private byte[] typeBytes = new byte[0];
+    private String type;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Test if the current line is a feature of the requested genomic type
+     *
+     * @return true if the line is a feature
+     */
+    final boolean isFeature() {
+        return this.feature;
+    }
+
+    /**
+     * Test if the current line is a transcript, linking a transcript to its
+     * gene
+     *
+     * @return true if the line is a transcript
+     */
+    final boolean isParent() {
+        return this.parent;
+    }
+
+    /**
+     * Get the number of the current line
+     *
+     * @return the line number, from 1
+     */
+    final long getLineNumber() {
+        return this.lineNumber;
+    }
+
+    /**
+     * Test if the scan has stopped on the sequences at the end of a GFF3 file
+     *
+     * @return true if the FASTA directive has been reached
+     */
+    final boolean isFastaReached() {
+        return this.fastaReached;
+    }
+
+    /**
+     * Get the sequence Id of the current line
+     *
+     * @return the sequence Id
+     */
+    final String getSeqId() {
+
+        if (!columnEquals(SEQID_COLUMN, this.seqIdBytes)) {
+            this.seqIdBytes = columnBytes(SEQID_COLUMN);
+            this.seqId = new String(this.seqIdBytes, StandardCharsets.UTF_8);
+        }
+
+        return this.seqId;
+    }
+
+    /**
+     * Get the type of the current line
+     *
+     * @return the type
+     */
+    final String getType() {
+
+        if (!columnEquals(TYPE_COLUMN, this.typeBytes)) {
+            this.typeBytes = columnBytes(TYPE_COLUMN);
+            this.type = new String(this.typeBytes, StandardCharsets.UTF_8);
+        }
+
+        return this.type;
+    }
+
+    /**
+     * Get the start position of the current line
+     *
+     * @return the start position
+     * @throws IOException if the position is not a number
+     */
+    final int getStart() throws IOException {
+        return parseInt(START_COLUMN);
+    }
+
+    /**
+     * Get the end position of the current line
+     *
+     * @return the end position
+     * @throws IOException if the position is not a number
+     */
+    final int getEnd() throws IOException {
+        return parseInt(END_COLUMN);
+    }
+
+    /**
+     * Get the value of an attribute of the current line
+     *
+     * @param key the key of the attribute, as bytes
+     * @return the value of the attribute or null if the line has no such
+     * attribute
+     */
+    final String getAttributeValue(final byte[] key) {
+
+        final byte[] b = this.buffer;
+        final int end = this.ends[ATTRIBUTES_COLUMN];
+        int start = this.starts[ATTRIBUTES_COLUMN];
+
+        while (start < end) {
+
+            int fieldEnd = start;
+            while (fieldEnd < end && b[fieldEnd] != ';') {
+                fieldEnd++;
+            }
+
+            // Key ends with '=' in GFF3, with a space in GTF
+            int keyStart = start;
+            while (keyStart < fieldEnd && b[keyStart] == ' ') {
+                keyStart++;
+            }
+            int keyEnd = keyStart;
+            while (keyEnd < fieldEnd && (this.gtfFormat ? b[keyEnd] != ' ' :
+                b[keyEnd] != '=')) {
+                keyEnd++;
+            }
+
+            if (keyEnd < fieldEnd && equals(b, keyStart, keyEnd, key)) {
+
+                int valueStart = keyEnd + 1;
+                int valueEnd = fieldEnd;
+                while (valueStart < valueEnd && b[valueStart] == ' ') {
+                    valueStart++;
+                }
+                while (valueEnd > valueStart && b[valueEnd - 1] == ' ') {
+                    valueEnd--;
+                }
+                if (this.gtfFormat && valueEnd - valueStart >= 2
+                    && b[valueStart] == '"' && b[valueEnd - 1] == '"') {
+                    valueStart++;
+                    valueEnd--;
+                }
+
+                return new String(b, valueStart, valueEnd - valueStart,
+                    StandardCharsets.UTF_8);
+            }
+
+            start = fieldEnd + 1;
+        }
+
+        return null;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Stop the scan before the lines starting at or after an offset of the
+     * stream, to scan a chunk of a file
+     *
+     * @param maxLineOffset offset of the end of the chunk
+     */
+    final void setMaxLineOffset(final long maxLineOffset) {
+        this.maxLineOffset = maxLineOffset;
+    }
+
+    /**
+     * Set the number of the current line, the following lines being numbered
+     * from it, to number the lines of a chunk as in the whole file
+     *
+     * @param lineNumber number of the current line, 0 before the first line
+     */
+    final void setLineNumber(final long lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
+    //
+    // Scanning methods
+    //
+
+    /**
+     * Skip the current partial line, up to its line feed included
+     *
+     * @throws IOException if an error occurs while reading
+     */
+    final void skipLine() throws IOException {
+        nextLine();
+    }
+
+    /**
+     * Move to the next feature or transcript line
+     *
+     * @return false if the end of the annotations is reached
+     * @throws IOException if an error occurs while reading or if a line has
+     *                     not enough columns
+     */
+    final boolean next() throws IOException {
+
+        while (nextLine()) {
+
+            if (this.lineOffset >= this.maxLineOffset) {
+                // The line is out of the chunk, the last line is kept current
+                this.lineNumber--;
+                this.eof = true;
+                this.position = this.limit;
+                return false;
+            }
+
+            final int lineStart = this.starts[0];
+            final int lineEnd = this.ends[0];
+
+            // Skip empty lines and comments, annotations end with sequences
+            if (lineEnd == lineStart) {
+                continue;
+            }
+            if (this.buffer[lineStart] == '#') {
+                if (startsWith(lineStart, lineEnd, FASTA_DIRECTIVE)) {
+                    this.fastaReached = true;
+                    this.eof = true;
+                    this.position = this.limit;
+                    return false;
+                }
+                continue;
+            }
+
+            splitColumns(lineStart, lineEnd);
+
+            this.feature = equalsIgnoreCase(TYPE_COLUMN, this.genomicType);
+            this.parent = this.parentScan && isTranscript();
+            if (this.feature || this.parent) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Read the next line, its bounds being stored as the bounds of the first
+     * column
+     */
+    private boolean nextLine() throws IOException {
+
+        while (true) {
+
+            for (int i = this.position; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    setLine(this.position, i);
+                    this.position = i + 1;
+                    return true;
+                }
+            }
+
+            if (this.eof) {
+                if (this.position < this.limit) {
+                    setLine(this.position, this.limit);
+                    this.position = this.limit;
+                    return true;
+                }
+                return false;
+            }
+
+            // Keep the partial line at the start of the buffer and fill it
+            final int remaining = this.limit - this.position;
+            if (remaining == this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, 2 * this.buffer.length);
+            } else {
+                System.arraycopy(this.buffer, this.position, this.buffer, 0,
+                    remaining);
+            }
+            this.bufferOffset += this.position;
+            this.position = 0;
+            this.limit = remaining;
+
+            final int read =
+                this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (read < 0) {
+                this.eof = true;
+            } else {
+                this.limit += read;
+            }
+        }
+    }
+
+    private void setLine(final int start, final int end) {
+
+        this.lineNumber++;
+        this.lineOffset = this.bufferOffset + start;
+        this.starts[0] = start;
+        this.ends[0] = end > start && this.buffer[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    private void splitColumns(final int lineStart, final int lineEnd)
+        throws IOException {
+
+        int column = 0;
+        this.starts[0] = lineStart;
+        for (int i = lineStart; i < lineEnd && column < COLUMN_COUNT - 1; i++) {
+            if (this.buffer[i] == '\t') {
+                this.ends[column++] = i;
+                this.starts[column] = i + 1;
+            }
+        }
+        this.ends[column] = lineEnd;
+
+        if (column != COLUMN_COUNT - 1) {
+            throw new IOException("Invalid annotation line " + this.lineNumber
+                + ": " + COLUMN_COUNT + " columns expected");
+        }
+    }
+
+    //
+    // Matching methods
+    //
+
+    /**
+     * Test if the type of the current line is a transcript type
+     */
+    private boolean isTranscript() {
+
+        final byte[] b = this.buffer;
+        final int start = this.starts[TYPE_COLUMN];
+        final int end = this.ends[TYPE_COLUMN];
+        final int length = end - start;
+
+        // ([VDJC]_)?gene_segment
+        if (length == GENE_SEGMENT.length + 2 && b[start + 1] == '_'
+            && (b[start] == 'V' || b[start] == 'D' || b[start] == 'J'
+            || b[start] == 'C')) {
+            return equals(b, start + 2, end, GENE_SEGMENT);
+        }
+        if (equals(b, start, end, GENE_SEGMENT)) {
+            return true;
+        }
+
+        // (.)*RNA
+        if (length >= RNA.length && equals(b, end - RNA.length, end, RNA)) {
+            return true;
+        }
+
+        // (.)*transcript(.)*
+        for (int i = start; i <= end - TRANSCRIPT.length; i++) {
+            if (equals(b, i, i + TRANSCRIPT.length, TRANSCRIPT)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean columnEquals(final int column, final byte[] value) {
+        return equals(this.buffer, this.starts[column], this.ends[column],
+            value);
+    }
+
+    private boolean equalsIgnoreCase(final int column, final byte[] lower) {
+
+        final int start = this.starts[column];
+        if (this.ends[column] - start != lower.length) {
+            return false;
+        }
+
+        for (int i = 0; i < lower.length; i++) {
+            final byte c = this.buffer[start + i];
+            if ((c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c) != lower[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean startsWith(final int start, final int end,
+        final byte[] prefix) {
+        return end - start >= prefix.length
+            && equals(this.buffer, start, start + prefix.length, prefix);
+    }
+
+    private static boolean equals(final byte[] b, final int start,
+        final int end, final byte[] value) {
+
+        if (end - start != value.length) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length; i++) {
+            if (b[start + i] != value[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private byte[] columnBytes(final int column) {
+        return Arrays.copyOfRange(this.buffer, this.starts[column],
+            this.ends[column]);
+    }
+
+    private int parseInt(final int column) throws IOException {
+
+        final int start = this.starts[column];
+        final int end = this.ends[column];
+        if (start == end) {
+            throw invalidPosition(column);
+        }
+
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = this.buffer[i] - '0';
+            if (digit < 0 || digit > 9 || result > Integer.MAX_VALUE) {
+                throw invalidPosition(column);
+            }
+            result = result * 10 + digit;
+        }
+        if (result > Integer.MAX_VALUE) {
+            throw invalidPosition(column);
+        }
+
+        return (int) result;
+    }
+
+    private IOException invalidPosition(final int column) {
+        return new IOException("Invalid position at line " + this.lineNumber
+            + ": " + new String(columnBytes(column), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get the bytes of a key or type
+     *
+     * @param s the String
+     * @return the bytes of the String
+     */
+    static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Constructor
+     *
+     * @param in          the annotations
+     * @param gtfFormat   true if annotations are in GTF format
+     * @param genomicType genomic type of the features, case insensitive
+     * @param parentScan  true to also stop on transcript lines
+     */
+    AnnotationScanner(final InputStream in, final boolean gtfFormat,
+        final String genomicType, final boolean parentScan) {
+
+        if (in == null) {
+            throw new NullPointerException("The input stream is null");
+        }
+        if (genomicType == null) {
+            throw new NullPointerException("The genomic type is null");
+        }
+
+        this.in = in;
+        this.gtfFormat = gtfFormat;
+        this.genomicType = bytes(genomicType.toLowerCase());
+        this.parentScan = parentScan;
+    }
+}
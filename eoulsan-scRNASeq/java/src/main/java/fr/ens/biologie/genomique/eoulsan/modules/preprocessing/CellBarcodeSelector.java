@@ -0,0 +1,892 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * This class define the engine that builds the whitelist of cell barcodes of
+ * a R1 FASTQ file, as "umi_tools whitelist" does. Cell barcodes are read at
+ * the positions of the barcode pattern, counted, and the barcodes above the
+ * knee of the count distribution are kept. The knee is the local minimum of
+ * the density of log10 counts chosen by the heuristics of umi_tools. Barcodes
+ * at one mismatch of a single kept barcode are reported as its corrected
+ * barcodes.
+ * <p>
+ * The file is read by chunks of whole lines, which are decoded on a pool of
+ * threads. Barcodes are encoded on 2 bits per base, with a mask of N bases,
+ * and counted in primitive hash tables, one per thread, merged at the end.
+ * The density is computed on distinct counts only, grid points being split
+ * between threads.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class CellBarcodeSelector {
+
+    private static final int CHUNK_SIZE = 1 << 22;
+
+    /**
+     * Longest cell barcode, 2 bits per base and 1 bit of N mask per base
+     * fitting in a non negative long
+     */
+    static final int MAX_BARCODE_LENGTH = 21;
+
+    /**
+     * Density grid and bandwidth factor, as in umi_tools
+     */
+    private static final int GRID_SIZE = 10000;
+    private static final int GRID_BLOCK_SIZE = 500;
+    private static final double BANDWIDTH_FACTOR = 0.1;
+
+    private static final String BASES = "ACGTN";
+    private static final int[] CODES = new int[256];
+
+    static {
+        Arrays.fill(CODES, -1);
+        CODES['A'] = CODES['a'] = 0;
+        CODES['C'] = CODES['c'] = 1;
+        CODES['G'] = CODES['g'] = 2;
+        CODES['T'] = CODES['t'] = 3;
+    }
+
+    private String barcodePattern = "CCCCCCCCCCCCCCCCNNNNNNNNNN";
+    private int cellNumber = 0;
+    private int expectCells = 0;
+    private int threadCount = 1;
+
+    private int[] cellPositions = cellPositions(this.barcodePattern);
+
+    // Statistics of the last selection
+    private long readCount;
+    private int barcodeCount;
+    private int cellCount;
+
+    /**
+     * This class define the counts of the chunks decoded by a thread
+     */
+    private static final class Counts {
+
+        private final LongCountMap barcodes = new LongCountMap();
+        private long reads;
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the barcode pattern, C being cell barcode bases, N UMI bases and X
+     * sample bases
+     *
+     * @return the barcode pattern
+     */
+    public final String getBarcodePattern() {
+        return this.barcodePattern;
+    }
+
+    /**
+     * Get the number of cells to keep, 0 to find the knee
+     *
+     * @return the number of cells to keep
+     */
+    public final int getCellNumber() {
+        return this.cellNumber;
+    }
+
+    /**
+     * Get the upper limit of the expected number of cells, 0 if unknown
+     *
+     * @return the expected number of cells
+     */
+    public final int getExpectCells() {
+        return this.expectCells;
+    }
+
+    /**
+     * Get the number of threads
+     *
+     * @return the number of threads
+     */
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Get the number of reads with a cell barcode in the last selection
+     *
+     * @return the number of reads
+     */
+    public final long getReadCount() {
+        return this.readCount;
+    }
+
+    /**
+     * Get the number of distinct cell barcodes of the last selection
+     *
+     * @return the number of barcodes
+     */
+    public final int getBarcodeCount() {
+        return this.barcodeCount;
+    }
+
+    /**
+     * Get the number of cell barcodes kept by the last selection
+     *
+     * @return the number of kept barcodes
+     */
+    public final int getCellCount() {
+        return this.cellCount;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the barcode pattern
+     *
+     * @param barcodePattern pattern of C (cell barcode), N (UMI) and X
+     *                       (sample) bases
+     */
+    public final void setBarcodePattern(final String barcodePattern) {
+
+        if (barcodePattern == null) {
+            throw new NullPointerException("The barcode pattern is null");
+        }
+
+        this.cellPositions = cellPositions(barcodePattern);
+        this.barcodePattern = barcodePattern;
+    }
+
+    /**
+     * Set the number of cells to keep
+     *
+     * @param cellNumber number of cells, 0 to find the knee
+     */
+    public final void setCellNumber(final int cellNumber) {
+
+        if (cellNumber < 0) {
+            throw new IllegalArgumentException(
+                "The number of cells must be positive or 0");
+        }
+
+        this.cellNumber = cellNumber;
+    }
+
+    /**
+     * Set the upper limit of the expected number of cells
+     *
+     * @param expectCells expected number of cells, 0 if unknown
+     */
+    public final void setExpectCells(final int expectCells) {
+
+        if (expectCells < 0) {
+            throw new IllegalArgumentException(
+                "The expected number of cells must be positive or 0");
+        }
+
+        this.expectCells = expectCells;
+    }
+
+    /**
+     * Set the number of threads
+     *
+     * @param threadCount number of threads
+     */
+    public final void setThreadCount(final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of threads must be greater than 0");
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    //
+    // Selection methods
+    //
+
+    /**
+     * Select the cell barcodes of a R1 FASTQ file
+     *
+     * @param readsFile      R1 FASTQ file, possibly gzip compressed
+     * @param whitelistFile  output whitelist, one kept barcode per line with
+     *                       its corrected barcodes and their counts
+     * @param thresholdsFile output table of the numbers of cells at each
+     *                       local minimum of the density
+     * @return the number of kept barcodes
+     * @throws IOException if an error occurs while reading or writing files
+     *                     or if no knee is found
+     */
+    public int select(final File readsFile, final File whitelistFile,
+        final File thresholdsFile) throws IOException {
+
+        final LongCountMap barcodes;
+        final List<String> thresholds = new ArrayList<>();
+        final double threshold;
+
+        final ForkJoinPool pool =
+            this.threadCount > 1 ? new ForkJoinPool(this.threadCount) : null;
+        try {
+            barcodes = count(pool, readsFile);
+            threshold = findThreshold(pool, barcodes, thresholds);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+
+        if (Double.isNaN(threshold)) {
+            throw new IOException(
+                "No knee found in the cell barcode counts of " + readsFile);
+        }
+
+        try (BufferedWriter out = MatrixFiles.createWriter(thresholdsFile)) {
+            out.write("count\taction\n");
+            for (String line : thresholds) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+
+        writeWhitelist(barcodes, threshold, whitelistFile);
+
+        return this.cellCount;
+    }
+
+    /**
+     * Count the cell barcodes of a FASTQ file, chunks of whole lines being
+     * decoded by the threads of a pool
+     *
+     * @param pool      the pool of threads, null to decode in current thread
+     * @param readsFile the FASTQ file
+     * @return the counts of encoded barcodes
+     * @throws IOException if an error occurs while reading the file
+     */
+    private LongCountMap count(final ForkJoinPool pool, final File readsFile)
+        throws IOException {
+
+        // One table per thread, taken by a task for the time of its chunk
+        final BlockingQueue<Counts> tables =
+            new ArrayBlockingQueue<>(this.threadCount);
+        for (int t = 0; t < this.threadCount; t++) {
+            tables.add(new Counts());
+        }
+
+        final Deque<Future<Void>> pending = new ArrayDeque<>();
+        try (InputStream in = GzipUtils.open(readsFile)) {
+
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int length = 0;
+            int phase = 0;
+
+            while (true) {
+
+                final int read = in.read(buffer, length, buffer.length - length);
+                if (read > 0) {
+                    length += read;
+                    if (length < buffer.length) {
+                        continue;
+                    }
+                }
+
+                // Cut the chunk after its last line feed, or at end of file
+                int end = length;
+                if (read >= 0) {
+                    end = lastLineFeed(buffer, length) + 1;
+                    if (end == 0) {
+                        buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                        continue;
+                    }
+                }
+
+                if (end > 0) {
+                    final Callable<Void> task =
+                        decodeTask(tables, buffer, end, phase);
+                    if (pool == null) {
+                        call(task);
+                    } else {
+                        pending.add(pool.submit(task));
+                        while (pending.size() > 2 * this.threadCount) {
+                            await(pending.poll());
+                        }
+                    }
+                    phase = (phase + countLineFeeds(buffer, end)) & 3;
+                }
+
+                if (read < 0) {
+                    break;
+                }
+
+                final byte[] next =
+                    new byte[Math.max(CHUNK_SIZE, 2 * (length - end))];
+                System.arraycopy(buffer, end, next, 0, length - end);
+                buffer = next;
+                length -= end;
+            }
+
+            while (!pending.isEmpty()) {
+                await(pending.poll());
+            }
+        } finally {
+            for (Future<Void> future : pending) {
+                future.cancel(true);
+            }
+        }
+
+        // Merge the tables of the threads
+        final LongCountMap result = new LongCountMap();
+        this.readCount = 0;
+        for (Counts counts : tables) {
+            result.addAll(counts.barcodes);
+            this.readCount += counts.reads;
+        }
+        this.barcodeCount = result.size();
+
+        return result;
+    }
+
+    /**
+     * Create the task decoding a chunk of lines
+     *
+     * @param tables the tables of the threads
+     * @param chunk  the chunk
+     * @param length length of the chunk
+     * @param phase  position in its record of the first line of the chunk
+     * @return the task
+     */
+    private Callable<Void> decodeTask(final BlockingQueue<Counts> tables,
+        final byte[] chunk, final int length, final int phase) {
+
+        final int[] positions = this.cellPositions;
+        final int patternLength = this.barcodePattern.length();
+
+        return new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException, InterruptedException {
+
+                final Counts counts = tables.take();
+                try {
+                    countBarcodes(chunk, length, phase, positions,
+                        patternLength, counts);
+                } finally {
+                    tables.put(counts);
+                }
+
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Count the cell barcodes of the sequence lines of a chunk
+     */
+    private static void countBarcodes(final byte[] chunk, final int length,
+        final int firstPhase, final int[] positions, final int patternLength,
+        final Counts counts) throws IOException {
+
+        final LongCountMap barcodes = counts.barcodes;
+        final int nShift = 2 * positions.length;
+        int phase = firstPhase;
+        int start = 0;
+
+        while (start < length) {
+
+            int end = start;
+            while (end < length && chunk[end] != '\n') {
+                end++;
+            }
+            final int lineEnd =
+                end > start && chunk[end - 1] == '\r' ? end - 1 : end;
+
+            if (phase == 0 && (lineEnd == start || chunk[start] != '@')) {
+                throw new IOException("Invalid FASTQ record header: "
+                    + new String(chunk, start, lineEnd - start,
+                    StandardCharsets.UTF_8));
+            }
+
+            // Reads shorter than the pattern have no barcode
+            if (phase == 1 && lineEnd - start >= patternLength) {
+
+                long bases = 0;
+                long mask = 0;
+                for (int position : positions) {
+                    final int code = CODES[chunk[start + position] & 0xff];
+                    bases <<= 2;
+                    mask <<= 1;
+                    if (code < 0) {
+                        mask |= 1;
+                    } else {
+                        bases |= code;
+                    }
+                }
+
+                barcodes.add(bases | mask << nShift, 1);
+                counts.reads++;
+            }
+
+            phase = (phase + 1) & 3;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Find the count threshold of kept barcodes
+     *
+     * @param pool       the pool of threads, null to compute in current thread
+     * @param barcodes   the counts of the barcodes
+     * @param thresholds lines of the threshold table, filled by the method
+     * @return the threshold, barcodes of greater counts being kept, or NaN if
+     * no knee is found
+     * @throws IOException if a task has failed
+     */
+    private double findThreshold(final ForkJoinPool pool,
+        final LongCountMap barcodes, final List<String> thresholds)
+        throws IOException {
+
+        final int n = barcodes.size();
+        final int[] sorted = new int[n];
+        int size = 0;
+        for (int slot = 0; slot < barcodes.capacity(); slot++) {
+            if (barcodes.keyAt(slot) != LongCountMap.EMPTY) {
+                sorted[size++] = barcodes.countAt(slot);
+            }
+        }
+        Arrays.sort(sorted);
+
+        // Explicit number of cells, the threshold being the next count
+        if (this.cellNumber > 0) {
+            final double threshold =
+                this.cellNumber < n ? sorted[n - 1 - this.cellNumber] : 0;
+            thresholds.add(passing(sorted, threshold) + "\tSelected");
+            return threshold;
+        }
+
+        if (n < 2) {
+            return Double.NaN;
+        }
+
+        // Distinct log10 counts and their weights
+        final double[] logs = new double[n];
+        final int[] weights = new int[n];
+        int distinct = 0;
+        double mean = 0;
+        for (int i = 0; i < n; i++) {
+            final double log = Math.log10(sorted[i]);
+            mean += log / n;
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                logs[distinct++] = log;
+            }
+            weights[distinct - 1]++;
+        }
+        double variance = 0;
+        for (int i = 0; i < distinct; i++) {
+            variance += weights[i] * (logs[i] - mean) * (logs[i] - mean);
+        }
+        variance /= n - 1;
+
+        final double min = logs[0];
+        final double max = logs[distinct - 1];
+        if (!(variance > 0)) {
+            return Double.NaN;
+        }
+
+        final double[] grid = new double[GRID_SIZE];
+        for (int i = 0; i < GRID_SIZE; i++) {
+            grid[i] = min + (max - min) * i / (GRID_SIZE - 1);
+        }
+        final double[] density = density(pool, grid,
+            Arrays.copyOf(logs, distinct), Arrays.copyOf(weights, distinct),
+            BANDWIDTH_FACTOR * Math.sqrt(variance));
+
+        // Local minima from the greatest count, the first passing the
+        // heuristics of umi_tools being selected
+        int selected = -1;
+        for (int i = GRID_SIZE - 2; i > 0; i--) {
+
+            if (!(density[i] < density[i - 1] && density[i] < density[i + 1])) {
+                continue;
+            }
+
+            final int passing = passing(sorted, Math.pow(10, grid[i]));
+            boolean select = false;
+            if (selected < 0) {
+                if (this.expectCells > 0) {
+                    select = passing > this.expectCells * 0.1
+                        && passing <= this.expectCells;
+                } else {
+                    select = i >= 0.2 * GRID_SIZE
+                        && (max - grid[i] > 0.5 || grid[i] < max / 2);
+                }
+            }
+            if (select) {
+                selected = i;
+            }
+
+            thresholds.add(passing + "\t" + (select ? "Selected" : "Rejected"));
+        }
+
+        return selected < 0 ? Double.NaN : Math.pow(10, grid[selected]);
+    }
+
+    /**
+     * Compute the Gaussian kernel density of weighted values at the points of
+     * a grid, blocks of points being computed in parallel
+     */
+    private static double[] density(final ForkJoinPool pool,
+        final double[] grid, final double[] values, final int[] weights,
+        final double bandwidth) throws IOException {
+
+        final double[] result = new double[grid.length];
+        final double factor = -0.5 / (bandwidth * bandwidth);
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int block = 0; block < grid.length; block += GRID_BLOCK_SIZE) {
+
+            final int start = block;
+            final int end = Math.min(grid.length, block + GRID_BLOCK_SIZE);
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+
+                    for (int i = start; i < end; i++) {
+                        double sum = 0;
+                        for (int k = 0; k < values.length; k++) {
+                            final double d = grid[i] - values[k];
+                            sum += weights[k] * Math.exp(factor * d * d);
+                        }
+                        result[i] = sum;
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        run(pool, tasks);
+
+        return result;
+    }
+
+    /**
+     * Get the number of counts greater than a threshold in sorted counts
+     */
+    private static int passing(final int[] sorted, final double threshold) {
+
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle] > threshold) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return sorted.length - low;
+    }
+
+    /**
+     * Write the kept barcodes, sorted, with the barcodes at one mismatch of
+     * no other kept barcode
+     *
+     * @param barcodes      the counts of the barcodes
+     * @param threshold     the count threshold of kept barcodes
+     * @param whitelistFile the output file
+     * @throws IOException if an error occurs while writing the file
+     */
+    private void writeWhitelist(final LongCountMap barcodes,
+        final double threshold, final File whitelistFile) throws IOException {
+
+        final int length = this.cellPositions.length;
+
+        final LongCountMap kept = new LongCountMap();
+        final List<Long> whitelist = new ArrayList<>();
+        for (int slot = 0; slot < barcodes.capacity(); slot++) {
+            final long key = barcodes.keyAt(slot);
+            if (key != LongCountMap.EMPTY && barcodes.countAt(slot) > threshold) {
+                whitelist.add(key);
+                kept.add(key, 1);
+            }
+        }
+        this.cellCount = whitelist.size();
+
+        // Counted barcodes at one mismatch of each kept barcode
+        final List<long[]> variants = new ArrayList<>(whitelist.size());
+        final long[] all = new long[whitelist.size() * length * 4];
+        int size = 0;
+        for (long key : whitelist) {
+            final char[] chars = decode(key, length).toCharArray();
+            final long[] keyVariants = new long[length * 4];
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                final char base = chars[i];
+                for (int b = 0; b < BASES.length(); b++) {
+                    if (BASES.charAt(b) != base) {
+                        chars[i] = BASES.charAt(b);
+                        keyVariants[count++] = encode(chars);
+                    }
+                }
+                chars[i] = base;
+            }
+            System.arraycopy(keyVariants, 0, all, size, count);
+            size += count;
+            variants.add(Arrays.copyOf(keyVariants, count));
+        }
+        Arrays.sort(all, 0, size);
+
+        final List<String[]> lines = new ArrayList<>(whitelist.size());
+        for (int w = 0; w < whitelist.size(); w++) {
+
+            final List<String> corrected = new ArrayList<>();
+            for (long variant : variants.get(w)) {
+                if (barcodes.get(variant) > 0 && kept.get(variant) == 0
+                    && occurrences(all, size, variant) == 1) {
+                    corrected.add(decode(variant, length));
+                }
+            }
+            Collections.sort(corrected);
+
+            final StringBuilder counts = new StringBuilder();
+            for (String barcode : corrected) {
+                if (counts.length() > 0) {
+                    counts.append(',');
+                }
+                counts.append(barcodes.get(encode(barcode.toCharArray())));
+            }
+
+            final long key = whitelist.get(w);
+            lines.add(new String[]{decode(key, length),
+                String.join(",", corrected),
+                Integer.toString(barcodes.get(key)), counts.toString()});
+        }
+
+        Collections.sort(lines, new Comparator<String[]>() {
+
+            @Override
+            public int compare(final String[] line1, final String[] line2) {
+                return line1[0].compareTo(line2[0]);
+            }
+        });
+
+        try (BufferedWriter out = MatrixFiles.createWriter(whitelistFile)) {
+            for (String[] line : lines) {
+                out.write(String.join("\t", line));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Get the number of occurrences of a value in a sorted array
+     */
+    private static int occurrences(final long[] sorted, final int size,
+        final long value) {
+
+        int index = Arrays.binarySearch(sorted, 0, size, value);
+        if (index < 0) {
+            return 0;
+        }
+        while (index > 0 && sorted[index - 1] == value) {
+            index--;
+        }
+
+        int result = 0;
+        while (index + result < size && sorted[index + result] == value) {
+            result++;
+        }
+
+        return result;
+    }
+
+    //
+    // Encoding methods
+    //
+
+    /**
+     * Encode a barcode, bases on 2 bits from the first base in high bits,
+     * followed by the mask of N bases
+     *
+     * @param barcode the barcode
+     * @return the encoded barcode
+     */
+    static long encode(final char[] barcode) {
+
+        long bases = 0;
+        long mask = 0;
+        for (char c : barcode) {
+            final int code = c < CODES.length ? CODES[c] : -1;
+            bases <<= 2;
+            mask <<= 1;
+            if (code < 0) {
+                mask |= 1;
+            } else {
+                bases |= code;
+            }
+        }
+
+        return bases | mask << (2 * barcode.length);
+    }
+
+    /**
+     * Decode a barcode
+     *
+     * @param key    the encoded barcode
+     * @param length length of the barcode
+     * @return the barcode, unknown bases being N
+     */
+    static String decode(final long key, final int length) {
+
+        final char[] result = new char[length];
+        for (int i = 0; i < length; i++) {
+            final int shift = length - 1 - i;
+            result[i] = (key >>> (2 * length + shift) & 1) != 0 ? 'N' :
+                BASES.charAt((int) (key >>> (2 * shift) & 3));
+        }
+
+        return new String(result);
+    }
+
+    /**
+     * Get the positions of the cell barcode bases of a pattern
+     */
+    private static int[] cellPositions(final String pattern) {
+
+        final int[] result = new int[pattern.length()];
+        int size = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            switch (pattern.charAt(i)) {
+
+                case 'C':
+                    result[size++] = i;
+                    break;
+
+                case 'N':
+                case 'X':
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(
+                        "Invalid barcode pattern character: " + pattern.charAt(i));
+            }
+        }
+
+        if (size == 0) {
+            throw new IllegalArgumentException(
+                "The barcode pattern has no cell barcode base");
+        }
+        if (size > MAX_BARCODE_LENGTH) {
+            throw new IllegalArgumentException(
+                "The cell barcode is longer than " + MAX_BARCODE_LENGTH
+                    + " bases");
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
+    //
+    // Chunk methods
+    //
+
+    private static int lastLineFeed(final byte[] buffer, final int length) {
+
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int countLineFeeds(final byte[] buffer, final int length) {
+
+        int result = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                result++;
+            }
+        }
+
+        return result;
+    }
+
+    //
+    // Task methods
+    //
+
+    private static void call(final Callable<Void> task) throws IOException {
+
+        try {
+            task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error while counting cell barcodes: "
+                + e.getMessage(), e);
+        }
+    }
+
+    private static void await(final Future<Void> future) throws IOException {
+
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while counting cell barcodes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while counting cell barcodes: "
+                + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Run tasks on a pool if any
+     *
+     * @param pool  the pool of threads, null to run in current thread
+     * @param tasks the tasks
+     * @throws IOException if a task has failed
+     */
+    private static void run(final ForkJoinPool pool,
+        final List<Callable<Void>> tasks) throws IOException {
+
+        if (pool == null) {
+            for (Callable<Void> task : tasks) {
+                call(task);
+            }
+            return;
+        }
+
+        final List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        for (Future<Void> future : futures) {
+            await(future);
+        }
+    }
+}
@@ -0,0 +1,859 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.ClusteringModule.ClusteringAlgorithm;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.ClusteringModule.NeighborMethod;
+
+/**
+ * This class define the engine that clusters the cells of an embedding as
+ * the Seurat clustering does: a k-nearest neighbour graph is built on the
+ * principal components, weighted by the Jaccard index of the neighbourhoods
+ * to give a shared nearest neighbour (SNN) graph, whose modularity is
+ * optimized with the Louvain or the Leiden algorithm.
+ * <p>
+ * Nearest neighbours are approximated by NN-descent (Dong, Moses and Li,
+ * 2011): each cell repeatedly pulls closer cells from the neighbours of its
+ * neighbours. Each iteration reads a snapshot of the previous graph and each
+ * task only updates the neighbours of its own cells, so the kNN and the SNN
+ * graphs are computed in parallel and do not depend on the number of threads.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class CellClusterer {
+
+    /**
+     * Number of cells processed by a task
+     */
+    private static final int CELLS_PER_BLOCK = 256;
+
+    /**
+     * NN-descent stops when less than this proportion of neighbours change
+     */
+    private static final double DESCENT_DELTA = 0.001;
+    private static final int MAX_DESCENT_ITERATIONS = 30;
+
+    private ClusteringAlgorithm algorithm = ClusteringAlgorithm.LOUVAIN;
+    private NeighborMethod neighborMethod = NeighborMethod.NNDESCENT;
+    private int neighborCount = 30;
+    private double prune = 1.0 / 15;
+    private double resolution = 0.6;
+    private int dimensionCount = 0;
+    private int iterations = 2;
+    private int threadCount = 1;
+    private long seed = 1;
+
+    private int clusterCount;
+    private double modularity = Double.NaN;
+
+    /**
+     * This interface define an operation on a range of cells
+     */
+    private interface CellOperation {
+
+        void apply(int start, int end);
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the modularity optimization algorithm
+     *
+     * @return the algorithm
+     */
+    public final ClusteringAlgorithm getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * Get the nearest neighbours search method
+     *
+     * @return the search method
+     */
+    public final NeighborMethod getNeighborMethod() {
+        return this.neighborMethod;
+    }
+
+    /**
+     * Get the size of the neighbourhood of each cell, the cell included
+     *
+     * @return the number of neighbours
+     */
+    public final int getNeighborCount() {
+        return this.neighborCount;
+    }
+
+    /**
+     * Get the Jaccard index under which SNN edges are removed
+     *
+     * @return the pruning threshold
+     */
+    public final double getPrune() {
+        return this.prune;
+    }
+
+    /**
+     * Get the resolution of the modularity
+     *
+     * @return the resolution
+     */
+    public final double getResolution() {
+        return this.resolution;
+    }
+
+    /**
+     * Get the number of dimensions of the embedding used
+     *
+     * @return the number of dimensions, 0 for all
+     */
+    public final int getDimensionCount() {
+        return this.dimensionCount;
+    }
+
+    /**
+     * Get the number of iterations of the Leiden algorithm
+     *
+     * @return the number of iterations
+     */
+    public final int getIterations() {
+        return this.iterations;
+    }
+
+    /**
+     * Get the number of threads
+     *
+     * @return number of threads
+     */
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Get the seed of the random initializations and node orders
+     *
+     * @return the seed
+     */
+    public final long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Get the number of clusters found by last clustering
+     *
+     * @return the number of clusters
+     */
+    public final int getClusterCount() {
+        return this.clusterCount;
+    }
+
+    /**
+     * Get the modularity of last clustering
+     *
+     * @return the modularity
+     */
+    public final double getModularity() {
+        return this.modularity;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the modularity optimization algorithm
+     *
+     * @param algorithm the algorithm
+     */
+    public final void setAlgorithm(final ClusteringAlgorithm algorithm) {
+
+        if (algorithm == null) {
+            throw new NullPointerException("algorithm argument cannot be null");
+        }
+
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Set the nearest neighbours search method
+     *
+     * @param neighborMethod the search method
+     */
+    public final void setNeighborMethod(final NeighborMethod neighborMethod) {
+
+        if (neighborMethod == null) {
+            throw new NullPointerException(
+                "neighborMethod argument cannot be null");
+        }
+
+        this.neighborMethod = neighborMethod;
+    }
+
+    /**
+     * Set the size of the neighbourhood of each cell, the cell included
+     *
+     * @param neighborCount the number of neighbours
+     */
+    public final void setNeighborCount(final int neighborCount) {
+
+        if (neighborCount < 2) {
+            throw new IllegalArgumentException(
+                "The number of neighbours must be greater than 1");
+        }
+
+        this.neighborCount = neighborCount;
+    }
+
+    /**
+     * Set the Jaccard index under which SNN edges are removed
+     *
+     * @param prune the pruning threshold
+     */
+    public final void setPrune(final double prune) {
+
+        if (prune < 0 || prune > 1) {
+            throw new IllegalArgumentException(
+                "The pruning threshold must be between 0 and 1");
+        }
+
+        this.prune = prune;
+    }
+
+    /**
+     * Set the resolution of the modularity
+     *
+     * @param resolution the resolution
+     */
+    public final void setResolution(final double resolution) {
+
+        if (!(resolution > 0)) {
+            throw new IllegalArgumentException(
+                "The resolution must be greater than 0");
+        }
+
+        this.resolution = resolution;
+    }
+
+    /**
+     * Set the number of dimensions of the embedding used
+     *
+     * @param dimensionCount the number of dimensions, 0 for all
+     */
+    public final void setDimensionCount(final int dimensionCount) {
+
+        if (dimensionCount < 0) {
+            throw new IllegalArgumentException(
+                "The number of dimensions cannot be negative");
+        }
+
+        this.dimensionCount = dimensionCount;
+    }
+
+    /**
+     * Set the number of iterations of the Leiden algorithm
+     *
+     * @param iterations the number of iterations
+     */
+    public final void setIterations(final int iterations) {
+
+        if (iterations < 1) {
+            throw new IllegalArgumentException(
+                "The number of iterations must be greater than 0");
+        }
+
+        this.iterations = iterations;
+    }
+
+    /**
+     * Set the number of threads
+     *
+     * @param threadCount number of threads
+     */
+    public final void setThreadCount(final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of threads must be greater than 0");
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Set the seed of the random initializations and node orders
+     *
+     * @param seed the seed
+     */
+    public final void setSeed(final long seed) {
+        this.seed = seed;
+    }
+
+    //
+    // Clustering methods
+    //
+
+    /**
+     * Cluster the cells of an embedding file and add their cluster to a cells
+     * metadata file
+     *
+     * @param embeddingFile binary embedding of the cells
+     * @param cellsFile     cells metadata
+     * @param outputFile    output cells metadata with a cluster column, NA
+     *                      for the cells missing from the embedding
+     * @return number of clusters
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    public int cluster(final File embeddingFile, final File cellsFile,
+        final File outputFile) throws IOException {
+
+        if (embeddingFile == null) {
+            throw new NullPointerException(
+                "embeddingFile argument cannot be null");
+        }
+
+        if (cellsFile == null) {
+            throw new NullPointerException("cellsFile argument cannot be null");
+        }
+
+        if (outputFile == null) {
+            throw new NullPointerException(
+                "outputFile argument cannot be null");
+        }
+
+        final CellEmbedding embedding = CellEmbedding.load(embeddingFile);
+        final int[] clusters = cluster(embedding);
+
+        final Map<String, Integer> clusterByCell = new HashMap<>();
+        for (int i = 0; i < clusters.length; i++) {
+            clusterByCell.put(embedding.getCellName(i), clusters[i]);
+        }
+        writeCells(cellsFile, outputFile, clusterByCell);
+
+        return this.clusterCount;
+    }
+
+    /**
+     * Cluster the cells of an embedding
+     *
+     * @param embedding the embedding
+     * @return the cluster of each cell, numbered from 0 by decreasing size
+     * @throws IOException if a task has failed
+     */
+    public int[] cluster(final CellEmbedding embedding) throws IOException {
+
+        if (embedding == null) {
+            throw new NullPointerException("embedding argument cannot be null");
+        }
+
+        final int n = embedding.getCellCount();
+        if (n == 0) {
+            this.clusterCount = 0;
+            this.modularity = Double.NaN;
+            return new int[0];
+        }
+
+        final ForkJoinPool pool =
+            this.threadCount > 1 ? new ForkJoinPool(this.threadCount) : null;
+
+        try {
+            final int[][] neighbors =
+                this.neighborMethod == NeighborMethod.EXACT ?
+                    exactNeighbors(pool, embedding) :
+                    descentNeighbors(pool, embedding);
+
+            final ModularityOptimizer.Graph graph = snnGraph(pool, neighbors);
+            final ModularityOptimizer optimizer =
+                new ModularityOptimizer(this.resolution, this.seed);
+            final int[] result =
+                this.algorithm == ClusteringAlgorithm.LEIDEN ?
+                    optimizer.leiden(graph, this.iterations) :
+                    optimizer.louvain(graph);
+
+            this.modularity = optimizer.modularity(graph, result);
+            this.clusterCount = sortBySize(result);
+
+            return result;
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    //
+    // Nearest neighbours
+    //
+
+    /**
+     * Get the number of dimensions used for distances
+     */
+    private int dimensions(final CellEmbedding embedding) {
+
+        return this.dimensionCount == 0 ? embedding.getDimension() :
+            Math.min(this.dimensionCount, embedding.getDimension());
+    }
+
+    /**
+     * Compute the squared euclidean distance between two cells
+     */
+    private static float distance(final float[] values, final int dimension,
+        final int used, final int i, final int j) {
+
+        float result = 0;
+        final int oi = i * dimension;
+        final int oj = j * dimension;
+        for (int d = 0; d < used; d++) {
+            final float diff = values[oi + d] - values[oj + d];
+            result += diff * diff;
+        }
+
+        return result;
+    }
+
+    /**
+     * Insert a neighbour in a list sorted by increasing distance, then by
+     * index, if it is closer than the last neighbour and not already there
+     *
+     * @param ids       indexes of the neighbours
+     * @param distances distances of the neighbours
+     * @param flags     true for neighbours inserted since last iteration, may
+     *                  be null
+     * @param id        index of the new neighbour
+     * @param distance  distance of the new neighbour
+     * @return true if the neighbour has been inserted
+     */
+    private static boolean insert(final int[] ids, final float[] distances,
+        final boolean[] flags, final int id, final float distance) {
+
+        final int k = ids.length;
+        if (k == 0 || distance > distances[k - 1]
+            || (distance == distances[k - 1] && id >= ids[k - 1])) {
+            return false;
+        }
+
+        for (int p = 0; p < k; p++) {
+            if (ids[p] == id) {
+                return false;
+            }
+        }
+
+        int p = k - 1;
+        while (p > 0 && (distances[p - 1] > distance
+            || (distances[p - 1] == distance && ids[p - 1] > id))) {
+            ids[p] = ids[p - 1];
+            distances[p] = distances[p - 1];
+            if (flags != null) {
+                flags[p] = flags[p - 1];
+            }
+            p--;
+        }
+        ids[p] = id;
+        distances[p] = distance;
+        if (flags != null) {
+            flags[p] = true;
+        }
+
+        return true;
+    }
+
+    /**
+     * Compute the exact nearest neighbours of each cell
+     *
+     * @param pool      the pool of threads, null to compute in current thread
+     * @param embedding the embedding
+     * @return the neighbours of each cell, the cell excluded
+     * @throws IOException if a task has failed
+     */
+    private int[][] exactNeighbors(final ForkJoinPool pool,
+        final CellEmbedding embedding) throws IOException {
+
+        final int n = embedding.getCellCount();
+        final int k = Math.min(this.neighborCount - 1, n - 1);
+        final int dimension = embedding.getDimension();
+        final int used = dimensions(embedding);
+        final float[] values = embedding.getValues();
+        final int[][] result = new int[n][];
+
+        forEachBlock(pool, n, new CellOperation() {
+
+            @Override
+            public void apply(final int start, final int end) {
+
+                final int[] ids = new int[k];
+                final float[] distances = new float[k];
+                for (int i = start; i < end; i++) {
+                    Arrays.fill(ids, -1);
+                    Arrays.fill(distances, Float.POSITIVE_INFINITY);
+                    for (int j = 0; j < n; j++) {
+                        if (j != i) {
+                            insert(ids, distances, null, j,
+                                distance(values, dimension, used, i, j));
+                        }
+                    }
+                    result[i] = Arrays.copyOf(ids, k);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Approximate the nearest neighbours of each cell with NN-descent
+     *
+     * @param pool      the pool of threads, null to compute in current thread
+     * @param embedding the embedding
+     * @return the neighbours of each cell, the cell excluded
+     * @throws IOException if a task has failed
+     */
+    private int[][] descentNeighbors(final ForkJoinPool pool,
+        final CellEmbedding embedding) throws IOException {
+
+        final int n = embedding.getCellCount();
+        final int k = Math.min(this.neighborCount - 1, n - 1);
+        final int dimension = embedding.getDimension();
+        final int used = dimensions(embedding);
+        final float[] values = embedding.getValues();
+
+        final int[][] ids = new int[n][k];
+        final float[][] distances = new float[n][k];
+        final boolean[][] flags = new boolean[n][k];
+
+        // Random initial neighbours, from a stream split for each cell
+        final SplittableRandom random = new SplittableRandom(this.seed);
+        for (int i = 0; i < n; i++) {
+            final SplittableRandom cellRandom = random.split();
+            Arrays.fill(ids[i], -1);
+            Arrays.fill(distances[i], Float.POSITIVE_INFINITY);
+            int inserted = 0;
+            while (inserted < k) {
+                final int j = cellRandom.nextInt(n);
+                if (j != i && insert(ids[i], distances[i], flags[i], j,
+                    distance(values, dimension, used, i, j))) {
+                    inserted++;
+                }
+            }
+        }
+
+        for (int iteration = 0; iteration < MAX_DESCENT_ITERATIONS;
+             iteration++) {
+
+            // Snapshot of the graph: forward and reverse neighbours, with
+            // their new flag, the flags being reset for next iteration
+            final int[][] candidates = new int[n][];
+            final boolean[][] newCandidates = new boolean[n][];
+            final int[] reverseCounts = new int[n];
+            for (int i = 0; i < n; i++) {
+                for (int j : ids[i]) {
+                    if (reverseCounts[j] < k) {
+                        reverseCounts[j]++;
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                candidates[i] = new int[k + reverseCounts[i]];
+                newCandidates[i] = new boolean[k + reverseCounts[i]];
+                System.arraycopy(ids[i], 0, candidates[i], 0, k);
+                System.arraycopy(flags[i], 0, newCandidates[i], 0, k);
+            }
+            final int[] fill = new int[n];
+            for (int i = 0; i < n; i++) {
+                for (int p = 0; p < k; p++) {
+                    final int j = ids[i][p];
+                    if (fill[j] < reverseCounts[j]) {
+                        candidates[j][k + fill[j]] = i;
+                        newCandidates[j][k + fill[j]++] = flags[i][p];
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                Arrays.fill(flags[i], false);
+            }
+
+            final int[] updates = new int[n];
+            forEachBlock(pool, n, new CellOperation() {
+
+                @Override
+                public void apply(final int start, final int end) {
+
+                    final int[] visited = new int[n];
+                    Arrays.fill(visited, -1);
+                    for (int i = start; i < end; i++) {
+                        visited[i] = i;
+                        for (int a = 0; a < candidates[i].length; a++) {
+                            final int j = candidates[i][a];
+                            final boolean newEdge = newCandidates[i][a];
+                            for (int b = 0; b < candidates[j].length; b++) {
+                                final int m = candidates[j][b];
+                                if (visited[m] == i
+                                    || !(newEdge || newCandidates[j][b])) {
+                                    continue;
+                                }
+                                visited[m] = i;
+                                if (insert(ids[i], distances[i], flags[i], m,
+                                    distance(values, dimension, used, i, m))) {
+                                    updates[i]++;
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+
+            long total = 0;
+            for (int u : updates) {
+                total += u;
+            }
+            if (total <= DESCENT_DELTA * n * k) {
+                break;
+            }
+        }
+
+        return ids;
+    }
+
+    //
+    // Shared nearest neighbours graph
+    //
+
+    /**
+     * Build the shared nearest neighbour graph of cells: two cells are linked
+     * by the Jaccard index of their neighbourhoods, each cell being in its
+     * own neighbourhood, when it is not lower than the pruning threshold
+     *
+     * @param pool      the pool of threads, null to compute in current thread
+     * @param neighbors the neighbours of each cell, the cell excluded
+     * @return the graph
+     * @throws IOException if a task has failed
+     */
+    private ModularityOptimizer.Graph snnGraph(final ForkJoinPool pool,
+        final int[][] neighbors) throws IOException {
+
+        final int n = neighbors.length;
+
+        // Cells having each cell in their neighbourhood
+        final int[] reverseStarts = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            reverseStarts[i + 1]++;
+            for (int j : neighbors[i]) {
+                reverseStarts[j + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            reverseStarts[i + 1] += reverseStarts[i];
+        }
+        final int[] reverse = new int[reverseStarts[n]];
+        final int[] next = Arrays.copyOf(reverseStarts, n);
+        for (int i = 0; i < n; i++) {
+            reverse[next[i]++] = i;
+            for (int j : neighbors[i]) {
+                reverse[next[j]++] = i;
+            }
+        }
+
+        final int[][] rowTargets = new int[n][];
+        final double[][] rowWeights = new double[n][];
+
+        forEachBlock(pool, n, new CellOperation() {
+
+            @Override
+            public void apply(final int start, final int end) {
+
+                final int[] shared = new int[n];
+                final int[] touched = new int[n];
+                for (int i = start; i < end; i++) {
+
+                    int count = 0;
+                    for (int a = -1; a < neighbors[i].length; a++) {
+                        final int m = a < 0 ? i : neighbors[i][a];
+                        for (int p = reverseStarts[m];
+                             p < reverseStarts[m + 1]; p++) {
+                            final int j = reverse[p];
+                            if (shared[j]++ == 0) {
+                                touched[count++] = j;
+                            }
+                        }
+                    }
+
+                    Arrays.sort(touched, 0, count);
+                    final int[] targets = new int[count];
+                    final double[] weights = new double[count];
+                    int size = 0;
+                    for (int t = 0; t < count; t++) {
+                        final int j = touched[t];
+                        final int s = shared[j];
+                        shared[j] = 0;
+                        if (j == i) {
+                            continue;
+                        }
+                        final double jaccard = (double) s
+                            / (neighbors[i].length + neighbors[j].length + 2
+                            - s);
+                        if (jaccard >= CellClusterer.this.prune) {
+                            targets[size] = j;
+                            weights[size++] = jaccard;
+                        }
+                    }
+                    rowTargets[i] = Arrays.copyOf(targets, size);
+                    rowWeights[i] = Arrays.copyOf(weights, size);
+                }
+            }
+        });
+
+        final int[] starts = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            starts[i + 1] = starts[i] + rowTargets[i].length;
+        }
+        final int[] targets = new int[starts[n]];
+        final double[] weights = new double[starts[n]];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(rowTargets[i], 0, targets, starts[i],
+                rowTargets[i].length);
+            System.arraycopy(rowWeights[i], 0, weights, starts[i],
+                rowWeights[i].length);
+        }
+
+        return new ModularityOptimizer.Graph(starts, targets, weights);
+    }
+
+    /**
+     * Apply an operation on blocks of cells, on a pool if any
+     *
+     * @param pool      the pool of threads, null to compute in current thread
+     * @param cellCount number of cells
+     * @param operation the operation
+     * @throws IOException if a task has failed
+     */
+    private static void forEachBlock(final ForkJoinPool pool,
+        final int cellCount, final CellOperation operation)
+        throws IOException {
+
+        if (pool == null) {
+            operation.apply(0, cellCount);
+            return;
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < cellCount; start += CELLS_PER_BLOCK) {
+
+            final int blockStart = start;
+            final int blockEnd = Math.min(cellCount, start + CELLS_PER_BLOCK);
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    operation.apply(blockStart, blockEnd);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while clustering cells", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while clustering cells: "
+                + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Renumber clusters by decreasing size, then by first cell
+     *
+     * @param clusters cluster of each cell, numbered from 0, renumbered
+     * @return number of clusters
+     */
+    private static int sortBySize(final int[] clusters) {
+
+        int count = 0;
+        for (int c : clusters) {
+            count = Math.max(count, c + 1);
+        }
+
+        final int[] sizes = new int[count];
+        final int[] firstCells = new int[count];
+        for (int i = clusters.length - 1; i >= 0; i--) {
+            sizes[clusters[i]]++;
+            firstCells[clusters[i]] = i;
+        }
+
+        final Integer[] order = new Integer[count];
+        for (int c = 0; c < count; c++) {
+            order[c] = c;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer c1, final Integer c2) {
+                return sizes[c1] != sizes[c2] ?
+                    Integer.compare(sizes[c2], sizes[c1]) :
+                    Integer.compare(firstCells[c1], firstCells[c2]);
+            }
+        });
+
+        final int[] ranks = new int[count];
+        for (int r = 0; r < count; r++) {
+            ranks[order[r]] = r;
+        }
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i] = ranks[clusters[i]];
+        }
+
+        return count;
+    }
+
+    //
+    // Output methods
+    //
+
+    /**
+     * Copy a cells metadata file adding a cluster column
+     */
+    private static void writeCells(final File cellsFile, final File outputFile,
+        final Map<String, Integer> clusters) throws IOException {
+
+        try (BufferedReader in = MatrixFiles.openMatrix(cellsFile);
+            BufferedWriter out = MatrixFiles.createWriter(outputFile)) {
+
+            final String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Empty cells metadata file: " + cellsFile);
+            }
+            out.write(header.isEmpty() ? "Cluster" : header + "\tCluster");
+            out.newLine();
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final int idEnd = line.indexOf('\t');
+                final Integer cluster =
+                    clusters.get(idEnd < 0 ? line : line.substring(0, idEnd));
+                out.write(line + "\t" + (cluster == null ? "NA" : cluster));
+                out.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class define the coordinates of cells in a reduced space, such as the
+ * principal components of an expression matrix, with the standard deviation
+ * of each dimension.
+ * <p>
+ * An embedding can be saved in a compact binary file holding coordinates as
+ * floats in cell-major order, and loaded back from a memory mapping, so the
+ * clustering tools do not parse a tabulated file.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class CellEmbedding {
+
+    /**
+     * Embedding file header
+     */
+    private static final int MAGIC = 0x50434145; // "PCAE"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    private final String[] cells;
+    private final int dimension;
+    // Coordinates, cell i being values[i * dimension, (i + 1) * dimension)
+    private final float[] values;
+    private final double[] standardDeviations;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of cells of the embedding
+     *
+     * @return number of cells
+     */
+    public final int getCellCount() {
+        return this.cells.length;
+    }
+
+    /**
+     * Get the number of dimensions of the embedding
+     *
+     * @return number of dimensions
+     */
+    public final int getDimension() {
+        return this.dimension;
+    }
+
+    /**
+     * Get the name of a cell
+     *
+     * @param cell index of the cell
+     * @return the name of the cell
+     */
+    public final String getCellName(final int cell) {
+        return this.cells[cell];
+    }
+
+    /**
+     * Get a coordinate of a cell
+     *
+     * @param cell      index of the cell
+     * @param component index of the dimension
+     * @return the coordinate
+     */
+    public final float getValue(final int cell, final int component) {
+
+        if (component < 0 || component >= this.dimension) {
+            throw new IndexOutOfBoundsException(
+                "Invalid dimension: " + component);
+        }
+
+        return this.values[cell * this.dimension + component];
+    }
+
+    /**
+     * Get the standard deviation of a dimension
+     *
+     * @param component index of the dimension
+     * @return the standard deviation
+     */
+    public final double getStandardDeviation(final int component) {
+        return this.standardDeviations[component];
+    }
+
+    /**
+     * Get the coordinates of all the cells, in cell-major order. The returned
+     * array is shared with the embedding and must not be modified.
+     *
+     * @return the coordinates
+     */
+    final float[] getValues() {
+        return this.values;
+    }
+
+    //
+    // Save and load methods
+    //
+
+    /**
+     * Write the embedding in a binary file. The file is replaced atomically.
+     *
+     * @param file the embedding file
+     * @throws IOException if an error occurs while writing file
+     */
+    public final void write(final File file) throws IOException {
+
+        final byte[][] names = new byte[this.cells.length][];
+        long namesSize = 0;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = this.cells[i].getBytes(StandardCharsets.UTF_8);
+            namesSize += names[i].length;
+        }
+
+        final long size = HEADER_SIZE + Double.BYTES * (long) this.dimension
+            + Float.BYTES * (long) this.values.length
+            + Integer.BYTES * (names.length + 1L) + namesSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Embedding too large to be saved: " + file);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(this.cells.length)
+            .putInt(this.dimension);
+        buffer.asDoubleBuffer().put(this.standardDeviations);
+        buffer.position(buffer.position() + Double.BYTES * this.dimension);
+        buffer.asFloatBuffer().put(this.values);
+        buffer.position(buffer.position() + Float.BYTES * this.values.length);
+
+        int offset = 0;
+        buffer.putInt(offset);
+        for (byte[] name : names) {
+            offset += name.length;
+            buffer.putInt(offset);
+        }
+        for (byte[] name : names) {
+            buffer.put(name);
+        }
+        buffer.flip();
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel
+            .open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Load an embedding from a binary file. The file is memory mapped and its
+     * coordinates are bulk copied.
+     *
+     * @param file the embedding file
+     * @return an embedding
+     * @throws IOException if an error occurs while reading file or if the file
+     * is not a valid embedding
+     */
+    public static CellEmbedding load(final File file) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel()) {
+
+            final long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid embedding file: " + file);
+            }
+
+            final MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Invalid embedding file: " + file);
+            }
+
+            final int n = buffer.getInt();
+            final int dimension = buffer.getInt();
+            final long namesStart = HEADER_SIZE + Double.BYTES * (long) dimension
+                + Float.BYTES * (long) n * dimension;
+            if (n < 0 || dimension < 0
+                || namesStart + Integer.BYTES * (n + 1L) > fileSize) {
+                throw new IOException("Invalid embedding file: " + file);
+            }
+
+            final double[] standardDeviations = new double[dimension];
+            buffer.asDoubleBuffer().get(standardDeviations);
+            buffer.position(buffer.position() + Double.BYTES * dimension);
+
+            final float[] values = new float[n * dimension];
+            buffer.asFloatBuffer().get(values);
+            buffer.position((int) namesStart);
+
+            final int[] offsets = new int[n + 1];
+            buffer.asIntBuffer().get(offsets);
+            final int dataStart = (int) namesStart + Integer.BYTES * (n + 1);
+            if (dataStart + (long) offsets[n] != fileSize) {
+                throw new IOException("Invalid embedding file: " + file);
+            }
+
+            final byte[] data = new byte[offsets[n]];
+            buffer.position(dataStart);
+            buffer.get(data);
+
+            final String[] cells = new String[n];
+            for (int i = 0; i < n; i++) {
+                if (offsets[i + 1] < offsets[i]) {
+                    throw new IOException("Invalid embedding file: " + file);
+                }
+                cells[i] = new String(data, offsets[i],
+                    offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+            }
+
+            return new CellEmbedding(cells, dimension, values,
+                standardDeviations);
+        }
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Public constructor
+     *
+     * @param cells              names of the cells
+     * @param dimension          number of dimensions
+     * @param values             coordinates of the cells, in cell-major order
+     * @param standardDeviations standard deviation of each dimension
+     */
+    public CellEmbedding(final String[] cells, final int dimension,
+        final float[] values, final double[] standardDeviations) {
+
+        if (cells == null) {
+            throw new NullPointerException("cells argument cannot be null");
+        }
+
+        if (values == null) {
+            throw new NullPointerException("values argument cannot be null");
+        }
+
+        if (standardDeviations == null) {
+            throw new NullPointerException(
+                "standardDeviations argument cannot be null");
+        }
+
+        if (dimension < 0 || standardDeviations.length != dimension
+            || values.length != (long) cells.length * dimension) {
+            throw new IllegalArgumentException(
+                "Invalid dimensions of the embedding");
+        }
+
+        this.cells = Arrays.copyOf(cells, cells.length);
+        this.dimension = dimension;
+        this.values = values;
+        this.standardDeviations =
+            Arrays.copyOf(standardDeviations, standardDeviations.length);
+    }
+}
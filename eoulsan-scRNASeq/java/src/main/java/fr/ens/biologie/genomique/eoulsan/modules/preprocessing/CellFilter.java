@@ -0,0 +1,508 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.Direction;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.FilterMode;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.GeneSelection;
+
+/**
+ * This class define the engine that filters low quality cells of a tabulated
+ * expression matrix, as the quality checking scripts do. Each cell is tested
+ * on library size and detected genes, either against median absolute
+ * deviation or against fixed thresholds, and on maximal mitochondrial and
+ * spike-in proportions. A cell is removed when it fails enough filters.
+ * <p>
+ * Metrics are computed in a single pass over matrix rows, keeping only a few
+ * values per cell, then the matrix is read again to write the kept columns.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class CellFilter {
+
+    /**
+     * Scale factor making MAD a consistent estimator of standard deviation
+     */
+    private static final double MAD_CONSTANT = 1.4826;
+
+    private FilterMode mode = FilterMode.MAD;
+    private GeneSelection geneSelection = GeneSelection.ENDOGENOUS;
+    private Direction direction = Direction.BOTH;
+    private int detectionThreshold = 10;
+    private double madCount = 5;
+    private long featuresThreshold = 3000;
+    private long readsThreshold = 500000;
+    private double maxMitochondrialProportion = 0.1;
+    private double maxSpikeProportion = 0.5;
+    private int filterCount = 1;
+    private File genesMetadataFile;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the filtering mode of library size and detected genes
+     *
+     * @return the filtering mode
+     */
+    public final FilterMode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * Get the genes used for library size and detected genes
+     *
+     * @return the gene selection
+     */
+    public final GeneSelection getGeneSelection() {
+        return this.geneSelection;
+    }
+
+    /**
+     * Get the direction of deviation detected by median absolute deviation
+     *
+     * @return the direction
+     */
+    public final Direction getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Get the count above which a gene is detected in a cell
+     *
+     * @return the detection threshold
+     */
+    public final int getDetectionThreshold() {
+        return this.detectionThreshold;
+    }
+
+    /**
+     * Get the allowed number of median absolute deviations
+     *
+     * @return number of median absolute deviations
+     */
+    public final double getMadCount() {
+        return this.madCount;
+    }
+
+    /**
+     * Get the minimal number of detected genes in threshold mode
+     *
+     * @return the threshold, 0 if disabled
+     */
+    public final long getFeaturesThreshold() {
+        return this.featuresThreshold;
+    }
+
+    /**
+     * Get the minimal library size in threshold mode
+     *
+     * @return the threshold, 0 if disabled
+     */
+    public final long getReadsThreshold() {
+        return this.readsThreshold;
+    }
+
+    /**
+     * Get the maximal proportion of mitochondrial counts
+     *
+     * @return the maximal proportion, 0 if disabled
+     */
+    public final double getMaxMitochondrialProportion() {
+        return this.maxMitochondrialProportion;
+    }
+
+    /**
+     * Get the maximal proportion of spike-in counts
+     *
+     * @return the maximal proportion, 0 if disabled
+     */
+    public final double getMaxSpikeProportion() {
+        return this.maxSpikeProportion;
+    }
+
+    /**
+     * Get the number of failed filters triggering removal of a cell
+     *
+     * @return number of filters
+     */
+    public final int getFilterCount() {
+        return this.filterCount;
+    }
+
+    /**
+     * Get the genes metadata file giving mitochondrial and spike-in genes
+     *
+     * @return the genes metadata file or null if all genes are endogenous
+     */
+    public final File getGenesMetadataFile() {
+        return this.genesMetadataFile;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the filtering mode of library size and detected genes
+     *
+     * @param mode the filtering mode
+     */
+    public final void setMode(final FilterMode mode) {
+
+        if (mode == null) {
+            throw new NullPointerException("mode argument cannot be null");
+        }
+
+        this.mode = mode;
+    }
+
+    /**
+     * Set the genes used for library size and detected genes
+     *
+     * @param geneSelection the gene selection
+     */
+    public final void setGeneSelection(final GeneSelection geneSelection) {
+
+        if (geneSelection == null) {
+            throw new NullPointerException(
+                "geneSelection argument cannot be null");
+        }
+
+        this.geneSelection = geneSelection;
+    }
+
+    /**
+     * Set the direction of deviation detected by median absolute deviation
+     *
+     * @param direction the direction
+     */
+    public final void setDirection(final Direction direction) {
+
+        if (direction == null) {
+            throw new NullPointerException("direction argument cannot be null");
+        }
+
+        this.direction = direction;
+    }
+
+    /**
+     * Set the count above which a gene is detected in a cell
+     *
+     * @param detectionThreshold the detection threshold
+     */
+    public final void setDetectionThreshold(final int detectionThreshold) {
+
+        if (detectionThreshold < 0) {
+            throw new IllegalArgumentException(
+                "detectionThreshold cannot be negative: " + detectionThreshold);
+        }
+
+        this.detectionThreshold = detectionThreshold;
+    }
+
+    /**
+     * Set the allowed number of median absolute deviations
+     *
+     * @param madCount number of median absolute deviations
+     */
+    public final void setMadCount(final double madCount) {
+
+        if (!(madCount > 0)) {
+            throw new IllegalArgumentException(
+                "madCount must be greater than 0: " + madCount);
+        }
+
+        this.madCount = madCount;
+    }
+
+    /**
+     * Set the minimal number of detected genes in threshold mode
+     *
+     * @param featuresThreshold the threshold, 0 to disable the filter
+     */
+    public final void setFeaturesThreshold(final long featuresThreshold) {
+
+        if (featuresThreshold < 0) {
+            throw new IllegalArgumentException(
+                "featuresThreshold cannot be negative: " + featuresThreshold);
+        }
+
+        this.featuresThreshold = featuresThreshold;
+    }
+
+    /**
+     * Set the minimal library size in threshold mode
+     *
+     * @param readsThreshold the threshold, 0 to disable the filter
+     */
+    public final void setReadsThreshold(final long readsThreshold) {
+
+        if (readsThreshold < 0) {
+            throw new IllegalArgumentException(
+                "readsThreshold cannot be negative: " + readsThreshold);
+        }
+
+        this.readsThreshold = readsThreshold;
+    }
+
+    /**
+     * Set the maximal proportion of mitochondrial counts
+     *
+     * @param proportion the maximal proportion, 0 to disable the filter
+     */
+    public final void setMaxMitochondrialProportion(final double proportion) {
+        checkProportion(proportion);
+        this.maxMitochondrialProportion = proportion;
+    }
+
+    /**
+     * Set the maximal proportion of spike-in counts
+     *
+     * @param proportion the maximal proportion, 0 to disable the filter
+     */
+    public final void setMaxSpikeProportion(final double proportion) {
+        checkProportion(proportion);
+        this.maxSpikeProportion = proportion;
+    }
+
+    private static void checkProportion(final double proportion) {
+
+        if (!(proportion >= 0 && proportion <= 1)) {
+            throw new IllegalArgumentException(
+                "proportion must be between 0 and 1: " + proportion);
+        }
+    }
+
+    /**
+     * Set the number of failed filters triggering removal of a cell
+     *
+     * @param filterCount number of filters, between 1 and 4
+     */
+    public final void setFilterCount(final int filterCount) {
+
+        if (filterCount < 1 || filterCount > 4) {
+            throw new IllegalArgumentException(
+                "filterCount must be between 1 and 4: " + filterCount);
+        }
+
+        this.filterCount = filterCount;
+    }
+
+    /**
+     * Set the genes metadata file giving mitochondrial and spike-in genes
+     *
+     * @param genesMetadataFile the genes metadata file, null if all genes are
+     *                          endogenous
+     */
+    public final void setGenesMetadataFile(final File genesMetadataFile) {
+        this.genesMetadataFile = genesMetadataFile;
+    }
+
+    //
+    // Filtering methods
+    //
+
+    /**
+     * Filter the cells of a tabulated matrix
+     *
+     * @param matrixFile         tabulated expression matrix, may be gzip
+     *                           compressed
+     * @param filteredMatrixFile output matrix of kept cells
+     * @param filteredCellsFile  output metrics of kept cells
+     * @return number of kept cells
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    public int filter(final File matrixFile, final File filteredMatrixFile,
+        final File filteredCellsFile) throws IOException {
+
+        if (matrixFile == null) {
+            throw new NullPointerException(
+                "matrixFile argument cannot be null");
+        }
+
+        if (filteredMatrixFile == null) {
+            throw new NullPointerException(
+                "filteredMatrixFile argument cannot be null");
+        }
+
+        if (filteredCellsFile == null) {
+            throw new NullPointerException(
+                "filteredCellsFile argument cannot be null");
+        }
+
+        final CellMetrics metrics = computeMetrics(matrixFile);
+        final boolean[] kept = selectCells(metrics);
+
+        MatrixFiles.writeMatrix(matrixFile, filteredMatrixFile, kept);
+        metrics.write(filteredCellsFile, kept);
+
+        int result = 0;
+        for (boolean k : kept) {
+            result += k ? 1 : 0;
+        }
+
+        return result;
+    }
+
+    /**
+     * Compute per-cell metrics in one pass over matrix rows
+     *
+     * @param matrixFile tabulated expression matrix
+     * @return metrics of all cells
+     * @throws IOException if an error occurs while reading file
+     */
+    private CellMetrics computeMetrics(final File matrixFile)
+        throws IOException {
+
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile)) {
+
+            final List<String> cells = MatrixFiles.readHeader(in, matrixFile);
+            final CellMetrics result = new CellMetrics(cells,
+                this.genesMetadataFile, this.detectionThreshold);
+
+            final int[] counts = new int[cells.size()];
+            String line;
+            while ((line = in.readLine()) != null) {
+                final int idEnd = MatrixFiles.parseRow(line, counts);
+                result.addRow(line.substring(0, idEnd), counts);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Select the cells failing less filters than required for removal
+     *
+     * @param metrics metrics of all cells
+     * @return for each cell, true if the cell is kept
+     */
+    boolean[] selectCells(final CellMetrics metrics) {
+
+        final int nCells = metrics.getCellCount();
+        final double[] reads = new double[nCells];
+        final double[] features = new double[nCells];
+        for (int j = 0; j < nCells; j++) {
+            switch (this.geneSelection) {
+
+            case NUCLEAR:
+                reads[j] = metrics.getNuclearReads(j);
+                features[j] = metrics.getNuclearFeatures(j);
+                break;
+
+            case ENDOGENOUS:
+                reads[j] = metrics.getEndogenousReads(j);
+                features[j] = metrics.getEndogenousFeatures(j);
+                break;
+
+            default:
+                reads[j] = metrics.getReads(j);
+                features[j] = metrics.getFeatures(j);
+                break;
+            }
+        }
+
+        final int[] failures = new int[nCells];
+        if (this.mode == FilterMode.MAD) {
+            madFilter(features, failures);
+            madFilter(reads, failures);
+        } else {
+            thresholdFilter(features, this.featuresThreshold, failures);
+            thresholdFilter(reads, this.readsThreshold, failures);
+        }
+
+        // Cells without counts have no proportion and never fail these filters
+        for (int j = 0; j < nCells; j++) {
+            if (this.maxMitochondrialProportion > 0 && metrics
+                .getMitochondrialProportion(j) > this.maxMitochondrialProportion) {
+                failures[j]++;
+            }
+            if (this.maxSpikeProportion > 0 && metrics
+                .getSpikeProportion(j) > this.maxSpikeProportion) {
+                failures[j]++;
+            }
+        }
+
+        final boolean[] result = new boolean[nCells];
+        for (int j = 0; j < nCells; j++) {
+            result[j] = failures[j] < this.filterCount;
+        }
+
+        return result;
+    }
+
+    /**
+     * Count a failure for each outlier of a metric
+     *
+     * @param metric   the metric of each cell
+     * @param failures failures of each cell
+     */
+    private void madFilter(final double[] metric, final int[] failures) {
+
+        final double median = median(metric.clone());
+        final double[] deviations = new double[metric.length];
+        for (int j = 0; j < metric.length; j++) {
+            deviations[j] = Math.abs(metric[j] - median);
+        }
+        final double mad = MAD_CONSTANT * median(deviations);
+
+        final double upper = this.direction == Direction.LOWER ?
+            Double.POSITIVE_INFINITY : median + this.madCount * mad;
+        final double lower = this.direction == Direction.UPPER ?
+            0 : median - this.madCount * mad;
+
+        for (int j = 0; j < metric.length; j++) {
+            if (metric[j] < lower || metric[j] > upper) {
+                failures[j]++;
+            }
+        }
+    }
+
+    /**
+     * Count a failure for each cell under a threshold
+     *
+     * @param metric    the metric of each cell
+     * @param threshold the threshold, 0 if disabled
+     * @param failures  failures of each cell
+     */
+    private static void thresholdFilter(final double[] metric,
+        final long threshold, final int[] failures) {
+
+        if (threshold == 0) {
+            return;
+        }
+
+        for (int j = 0; j < metric.length; j++) {
+            if (metric[j] < threshold) {
+                failures[j]++;
+            }
+        }
+    }
+
+    /**
+     * Compute the median of values, sorting them
+     *
+     * @param values the values, sorted in place
+     * @return the median, NaN if there are no values
+     */
+    private static double median(final double[] values) {
+
+        if (values.length == 0) {
+            return Double.NaN;
+        }
+
+        Arrays.sort(values);
+        final int middle = values.length / 2;
+
+        return values.length % 2 == 1 ?
+            values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+}
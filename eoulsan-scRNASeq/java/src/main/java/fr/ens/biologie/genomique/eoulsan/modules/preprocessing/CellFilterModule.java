@@ -0,0 +1,280 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.Globals;
+import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
+import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
+import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
+import fr.ens.biologie.genomique.eoulsan.core.Version;
+import fr.ens.biologie.genomique.eoulsan.data.Data;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormat;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
+import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define a module that filters low quality cells of an expression
+ * matrix, using median absolute deviation or fixed thresholds on library
+ * size, detected genes and mitochondrial and spike-in proportions.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@LocalOnly
+public class CellFilterModule extends AbstractModule {
+    /**
+     * Module Name
+     */
+    private static final String MODULE_NAME = "cellfilter";
+
+    /**
+     * Filtering modes
+     */
+    protected enum FilterMode {
+        MAD, THRESHOLD
+    }
+
+    /**
+     * Genes used for library size and detected genes
+     */
+    protected enum GeneSelection {
+        ALL, ENDOGENOUS, NUCLEAR
+    }
+
+    /**
+     * Directions of deviation detected by median absolute deviation
+     */
+    protected enum Direction {
+        BOTH, UPPER, LOWER
+    }
+
+    /**
+     * Parameters Names
+     */
+    private static final String MODE_PARAMETER_NAME = "filter.mode";
+    private static final String DETECTION_THRESHOLD_PARAMETER_NAME = "detection.threshold";
+    private static final String EXPRESSION_OPTION_PARAMETER_NAME = "expression.option";
+    private static final String N_MAD_PARAMETER_NAME = "n.mad";
+    private static final String DIRECTION_PARAMETER_NAME = "direction";
+    private static final String EXPRESSION_THRESHOLD_PARAMETER_NAME = "expression.threshold";
+    private static final String READS_THRESHOLD_PARAMETER_NAME = "reads.threshold";
+    private static final String PROP_MT_PARAMETER_NAME = "prop.mt";
+    private static final String PROP_SP_PARAMETER_NAME = "prop.sp";
+    private static final String NB_FILTERS_PARAMETER_NAME = "nb.filters";
+
+    private final CellFilter filter = new CellFilter();
+
+    // DataFormat
+    private static DataFormat EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("expression_matrix_tsv");
+    private static DataFormat GENES_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("genes_metadata_tsv");
+    private static DataFormat FILTERED_EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("filtered_expression_matrix_tsv");
+    private static DataFormat FILTERED_CELLS_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("filtered_cells_metadata_tsv");
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the filter configured by step parameters
+     *
+     * @return the cell filter
+     */
+    protected CellFilter getFilter() {
+        return this.filter;
+    }
+
+    //
+    // Module Methods
+    //
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public Version getVersion() {
+        return Globals.APP_VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "This module filters low quality cells of an expression matrix";
+    }
+
+    @Override
+    public InputPorts getInputPorts() {
+        return new InputPortsBuilder()
+                .addPort("matrix", EXPRESSION_MATRIX_TSV)
+                .addPort("genes", GENES_METADATA_TSV).create();
+    }
+
+    @Override
+    public OutputPorts getOutputPorts() {
+        return new OutputPortsBuilder()
+                .addPort("matrixoutput", FILTERED_EXPRESSION_MATRIX_TSV)
+                .addPort("cellsoutput", FILTERED_CELLS_METADATA_TSV).create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            try {
+                switch (p.getName()) {
+
+                    case MODE_PARAMETER_NAME:
+                        switch (p.getLowerStringValue()) {
+
+                            case "mad":
+                                this.filter.setMode(FilterMode.MAD);
+                                break;
+
+                            case "threshold":
+                                this.filter.setMode(FilterMode.THRESHOLD);
+                                break;
+
+                            default:
+                                Modules.badParameterValue(context, p,
+                                        "Unknown filtering mode");
+                                break;
+                        }
+                        break;
+
+                    case EXPRESSION_OPTION_PARAMETER_NAME:
+                        switch (p.getLowerStringValue()) {
+
+                            case "all":
+                                this.filter.setGeneSelection(GeneSelection.ALL);
+                                break;
+
+                            case "endogenous":
+                                this.filter.setGeneSelection(GeneSelection.ENDOGENOUS);
+                                break;
+
+                            case "nuclear":
+                                this.filter.setGeneSelection(GeneSelection.NUCLEAR);
+                                break;
+
+                            default:
+                                Modules.badParameterValue(context, p,
+                                        "Unknown type of detected genes");
+                                break;
+                        }
+                        break;
+
+                    case DIRECTION_PARAMETER_NAME:
+                        switch (p.getLowerStringValue()) {
+
+                            case "both":
+                                this.filter.setDirection(Direction.BOTH);
+                                break;
+
+                            case "upper":
+                                this.filter.setDirection(Direction.UPPER);
+                                break;
+
+                            case "lower":
+                                this.filter.setDirection(Direction.LOWER);
+                                break;
+
+                            default:
+                                Modules.badParameterValue(context, p,
+                                        "Unknown filtering direction");
+                                break;
+                        }
+                        break;
+
+                    case DETECTION_THRESHOLD_PARAMETER_NAME:
+                        this.filter.setDetectionThreshold(p.getIntValue());
+                        break;
+
+                    case N_MAD_PARAMETER_NAME:
+                        this.filter.setMadCount(p.getDoubleValue());
+                        break;
+
+                    case EXPRESSION_THRESHOLD_PARAMETER_NAME:
+                        this.filter.setFeaturesThreshold(p.getLongValue());
+                        break;
+
+                    case READS_THRESHOLD_PARAMETER_NAME:
+                        this.filter.setReadsThreshold(p.getLongValue());
+                        break;
+
+                    case PROP_MT_PARAMETER_NAME:
+                        this.filter.setMaxMitochondrialProportion(p.getDoubleValue());
+                        break;
+
+                    case PROP_SP_PARAMETER_NAME:
+                        this.filter.setMaxSpikeProportion(p.getDoubleValue());
+                        break;
+
+                    case NB_FILTERS_PARAMETER_NAME:
+                        this.filter.setFilterCount(p.getIntValue());
+                        break;
+
+                    default:
+                        Modules.unknownParameter(context, p);
+                }
+            } catch (IllegalArgumentException e) {
+                Modules.badParameterValue(context, p, e.getMessage());
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", filter.mode="
+                + this.filter.getMode().name().toLowerCase() + ", detection.threshold="
+                + this.filter.getDetectionThreshold() + ", expression.option="
+                + this.filter.getGeneSelection().name().toLowerCase() + ", nb.filters="
+                + this.filter.getFilterCount());
+        getLogger().info("In " + getName() + ", n.mad=" + this.filter.getMadCount()
+                + ", direction=" + this.filter.getDirection().name().toLowerCase()
+                + ", expression.threshold=" + this.filter.getFeaturesThreshold()
+                + ", reads.threshold=" + this.filter.getReadsThreshold()
+                + ", prop.mt=" + this.filter.getMaxMitochondrialProportion()
+                + ", prop.sp=" + this.filter.getMaxSpikeProportion());
+    }
+
+    @Override
+    public TaskResult execute(TaskContext context, TaskStatus status) {
+
+        // Get input and output files
+        final Data matrixData = context.getInputData(EXPRESSION_MATRIX_TSV);
+        final File matrix = matrixData.getDataFile().toFile();
+        final File genes = context.getInputData(GENES_METADATA_TSV).getDataFile().toFile();
+        final File filteredMatrix = context.getOutputData(
+                FILTERED_EXPRESSION_MATRIX_TSV, matrixData).getDataFile().toFile();
+        final File filteredCells = context.getOutputData(
+                FILTERED_CELLS_METADATA_TSV, matrixData).getDataFile().toFile();
+
+        // Filter cells
+        try {
+            this.filter.setGenesMetadataFile(genes);
+            final int kept = this.filter.filter(matrix, filteredMatrix, filteredCells);
+            getLogger().info("In " + getName() + ", " + kept + " cells kept");
+            return status.createTaskResult();
+        } catch (IOException e) {
+            return status.createTaskResult(e, "Error with file :" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class define per-cell quality metrics: library size and number of
+ * detected genes, overall and for mitochondrial and spike-in genes, and the
+ * proportions of mitochondrial and spike-in counts. Metrics are computed
+ * either from the sparse columns of the matrix while it is filled, or from
+ * the rows of a tabulated matrix while it is read.
+ * <p>
+ * Gene types are taken from the Type column of the genes metadata written by
+ * the features metadata step. Metrics are written in the cells metadata
+ * format, with the columns used by the quality checking scripts.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class CellMetrics {
+
+    private static final byte OTHER = 0;
+    static final byte MITOCHONDRIAL = 1;
+    static final byte SPIKE = 2;
+
+    // Metrics of a cell, in output order
+    private static final int READS = 0;
+    private static final int FEATURES = 1;
+    private static final int MT_READS = 2;
+    private static final int MT_FEATURES = 3;
+    private static final int SPIKE_READS = 4;
+    private static final int SPIKE_FEATURES = 5;
+
+    private static final String HEADER = "Nb_reads\tNb_features\tNb_reads_MT"
+        + "\tNb_features_MT\tNb_reads_Sp\tNb_features_Sp\tProp_MT\tProp_Sp";
+
+    private final GeneDictionary genes;
+    private final byte[] types;
+    private final int detectionThreshold;
+
+    private final List<String> cells = new ArrayList<>();
+    private final List<long[]> metrics = new ArrayList<>();
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of cells
+     *
+     * @return number of cells
+     */
+    public final int getCellCount() {
+        return this.cells.size();
+    }
+
+    /**
+     * Get the library size of a cell
+     *
+     * @param cell index of the cell
+     * @return sum of the counts of the cell
+     */
+    public final long getReads(final int cell) {
+        return this.metrics.get(cell)[READS];
+    }
+
+    /**
+     * Get the number of detected genes of a cell
+     *
+     * @param cell index of the cell
+     * @return number of genes with a count above the detection threshold
+     */
+    public final long getFeatures(final int cell) {
+        return this.metrics.get(cell)[FEATURES];
+    }
+
+    /**
+     * Get the library size of a cell, excluding spike-in genes
+     *
+     * @param cell index of the cell
+     * @return sum of the counts of endogenous genes
+     */
+    public final long getEndogenousReads(final int cell) {
+        final long[] values = this.metrics.get(cell);
+        return values[READS] - values[SPIKE_READS];
+    }
+
+    /**
+     * Get the number of detected genes of a cell, excluding spike-in genes
+     *
+     * @param cell index of the cell
+     * @return number of detected endogenous genes
+     */
+    public final long getEndogenousFeatures(final int cell) {
+        final long[] values = this.metrics.get(cell);
+        return values[FEATURES] - values[SPIKE_FEATURES];
+    }
+
+    /**
+     * Get the library size of a cell, excluding spike-in and mitochondrial
+     * genes
+     *
+     * @param cell index of the cell
+     * @return sum of the counts of nuclear genes
+     */
+    public final long getNuclearReads(final int cell) {
+        final long[] values = this.metrics.get(cell);
+        return values[READS] - values[SPIKE_READS] - values[MT_READS];
+    }
+
+    /**
+     * Get the number of detected genes of a cell, excluding spike-in and
+     * mitochondrial genes
+     *
+     * @param cell index of the cell
+     * @return number of detected nuclear genes
+     */
+    public final long getNuclearFeatures(final int cell) {
+        final long[] values = this.metrics.get(cell);
+        return values[FEATURES] - values[SPIKE_FEATURES] - values[MT_FEATURES];
+    }
+
+    /**
+     * Get the proportion of mitochondrial counts of a cell
+     *
+     * @param cell index of the cell
+     * @return proportion of counts, NaN if the cell has no counts
+     */
+    public final double getMitochondrialProportion(final int cell) {
+        return proportion(this.metrics.get(cell), MT_READS);
+    }
+
+    /**
+     * Get the proportion of spike-in counts of a cell
+     *
+     * @param cell index of the cell
+     * @return proportion of counts, NaN if the cell has no counts
+     */
+    public final double getSpikeProportion(final int cell) {
+        return proportion(this.metrics.get(cell), SPIKE_READS);
+    }
+
+    private static double proportion(final long[] values, final int reads) {
+        return values[READS] == 0 ?
+            Double.NaN : (double) values[reads] / values[READS];
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Add the metrics of a cell from its non-zero counts
+     *
+     * @param cell   name of the cell
+     * @param rows   row indexes of the non-zero counts
+     * @param values non-zero counts
+     */
+    public final void addCell(final String cell, final int[] rows,
+        final int[] values) {
+
+        final long[] result = new long[SPIKE_FEATURES + 1];
+
+        for (int k = 0; k < rows.length; k++) {
+
+            final int detected = values[k] > this.detectionThreshold ? 1 : 0;
+            result[READS] += values[k];
+            result[FEATURES] += detected;
+
+            switch (this.types[rows[k]]) {
+
+            case MITOCHONDRIAL:
+                result[MT_READS] += values[k];
+                result[MT_FEATURES] += detected;
+                break;
+
+            case SPIKE:
+                result[SPIKE_READS] += values[k];
+                result[SPIKE_FEATURES] += detected;
+                break;
+
+            default:
+                break;
+            }
+        }
+
+        this.cells.add(cell);
+        this.metrics.add(result);
+    }
+
+    /**
+     * Add the counts of a gene to the metrics of the cells given at
+     * construction
+     *
+     * @param gene   gene Id
+     * @param counts counts of the gene, indexed by cell
+     */
+    public final void addRow(final String gene, final int[] counts) {
+
+        final int index = this.genes.getIndex(gene);
+        final byte type = index < 0 ? OTHER : this.types[index];
+
+        final int reads;
+        final int features;
+        switch (type) {
+
+        case MITOCHONDRIAL:
+            reads = MT_READS;
+            features = MT_FEATURES;
+            break;
+
+        case SPIKE:
+            reads = SPIKE_READS;
+            features = SPIKE_FEATURES;
+            break;
+
+        default:
+            reads = -1;
+            features = -1;
+            break;
+        }
+
+        for (int j = 0; j < counts.length; j++) {
+
+            final int count = counts[j];
+            if (count == 0) {
+                continue;
+            }
+
+            final long[] values = this.metrics.get(j);
+            final int detected = count > this.detectionThreshold ? 1 : 0;
+            values[READS] += count;
+            values[FEATURES] += detected;
+            if (reads >= 0) {
+                values[reads] += count;
+                values[features] += detected;
+            }
+        }
+    }
+
+    /**
+     * Write metrics, one line per cell
+     *
+     * @param file the output file
+     * @throws IOException if an error occurs while writing file
+     */
+    public void write(final File file) throws IOException {
+        write(file, null);
+    }
+
+    /**
+     * Write metrics of selected cells, one line per cell
+     *
+     * @param file     the output file
+     * @param selected cells to write, indexed by cell, null to write all cells
+     * @throws IOException if an error occurs while writing file
+     */
+    public void write(final File file, final boolean[] selected)
+        throws IOException {
+
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8))) {
+
+            out.write(HEADER);
+            out.newLine();
+
+            final StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < this.cells.size(); j++) {
+
+                if (selected != null && !selected[j]) {
+                    continue;
+                }
+
+                sb.setLength(0);
+                sb.append(this.cells.get(j));
+                for (long value : this.metrics.get(j)) {
+                    sb.append('\t').append(value);
+                }
+                appendProportion(sb, getMitochondrialProportion(j));
+                appendProportion(sb, getSpikeProportion(j));
+
+                out.append(sb);
+                out.newLine();
+            }
+        }
+    }
+
+    private static void appendProportion(final StringBuilder sb,
+        final double value) {
+        sb.append('\t');
+        if (Double.isNaN(value)) {
+            sb.append("NA");
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * Read the types of mitochondrial and spike-in genes from a genes
+     * metadata file. Other genes are considered as endogenous nuclear genes.
+     *
+     * @param file the genes metadata file, may be null
+     * @return a map of gene types, in file order
+     * @throws IOException if an error occurs while reading file
+     */
+    static Map<String, Byte> readTypes(final File file)
+        throws IOException {
+
+        final Map<String, Byte> result = new LinkedHashMap<>();
+
+        if (file == null) {
+            return result;
+        }
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+            // Skip headers
+            String line = in.readLine();
+
+            while ((line = in.readLine()) != null) {
+
+                final int idEnd = line.indexOf('\t');
+                if (idEnd < 0) {
+                    continue;
+                }
+
+                int typeEnd = line.indexOf('\t', idEnd + 1);
+                if (typeEnd < 0) {
+                    typeEnd = line.length();
+                }
+
+                switch (line.substring(idEnd + 1, typeEnd)) {
+
+                case "mitochondrial":
+                    result.put(line.substring(0, idEnd), MITOCHONDRIAL);
+                    break;
+
+                case "spike":
+                    result.put(line.substring(0, idEnd), SPIKE);
+                    break;
+
+                default:
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Public constructor, for metrics computed from sparse columns
+     *
+     * @param genes              dictionary giving gene rows
+     * @param genesMetadata      genes metadata file giving gene types, may be
+     *                           null if all genes are endogenous nuclear genes
+     * @param detectionThreshold count above which a gene is detected
+     * @throws IOException if an error occurs while reading genes metadata
+     */
+    public CellMetrics(final GeneDictionary genes, final File genesMetadata,
+        final int detectionThreshold) throws IOException {
+
+        if (genes == null) {
+            throw new NullPointerException("genes argument cannot be null");
+        }
+
+        checkDetectionThreshold(detectionThreshold);
+
+        this.genes = genes;
+        this.types = new byte[genes.size()];
+        this.detectionThreshold = detectionThreshold;
+
+        for (Map.Entry<String, Byte> e : readTypes(genesMetadata).entrySet()) {
+            final int row = genes.getIndex(e.getKey());
+            if (row >= 0) {
+                this.types[row] = e.getValue();
+            }
+        }
+    }
+
+    /**
+     * Public constructor, for metrics computed from matrix rows
+     *
+     * @param cells              names of the cells, in column order
+     * @param genesMetadata      genes metadata file giving gene types, may be
+     *                           null if all genes are endogenous nuclear genes
+     * @param detectionThreshold count above which a gene is detected
+     * @throws IOException if an error occurs while reading genes metadata
+     */
+    public CellMetrics(final List<String> cells, final File genesMetadata,
+        final int detectionThreshold) throws IOException {
+
+        if (cells == null) {
+            throw new NullPointerException("cells argument cannot be null");
+        }
+
+        checkDetectionThreshold(detectionThreshold);
+
+        final Map<String, Byte> types = readTypes(genesMetadata);
+        this.genes = new GeneDictionary(new ArrayList<>(types.keySet()));
+        this.types = new byte[types.size()];
+        this.detectionThreshold = detectionThreshold;
+
+        int i = 0;
+        for (byte type : types.values()) {
+            this.types[i++] = type;
+        }
+
+        for (String cell : cells) {
+            this.cells.add(cell);
+            this.metrics.add(new long[SPIKE_FEATURES + 1]);
+        }
+    }
+
+    private static void checkDetectionThreshold(final int detectionThreshold) {
+
+        if (detectionThreshold < 0) {
+            throw new IllegalArgumentException(
+                "detectionThreshold cannot be negative: " + detectionThreshold);
+        }
+    }
+}
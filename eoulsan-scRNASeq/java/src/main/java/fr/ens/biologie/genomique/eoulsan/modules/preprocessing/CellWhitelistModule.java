@@ -0,0 +1,168 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.Globals;
+import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
+import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
+import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
+import fr.ens.biologie.genomique.eoulsan.core.Version;
+import fr.ens.biologie.genomique.eoulsan.data.Data;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormat;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormats;
+import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define a module that builds the whitelist of cell barcodes of
+ * R1 reads in process, as the umiwhitelist tool does with umi_tools.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@LocalOnly
+public class CellWhitelistModule extends AbstractModule {
+    /**
+     * Module Name
+     */
+    private static final String MODULE_NAME = "cellwhitelist";
+
+    /**
+     * Parameters Names
+     */
+    private static final String PATTERN_PARAMETER_NAME = "bc.pattern";
+    private static final String CELL_NUMBER_PARAMETER_NAME = "set.cell.number";
+    private static final String EXPECT_CELLS_PARAMETER_NAME = "expect.cells";
+    private static final String THREADS_PARAMETER_NAME = "n.threads";
+
+    private final CellBarcodeSelector selector = new CellBarcodeSelector();
+
+    // DataFormat
+    private static DataFormat WHITELIST_TXT =
+            DataFormatRegistry.getInstance().getDataFormatFromName("whitelist_txt");
+    private static DataFormat CELL_THRESHOLDS_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("cell_thresholds_tsv");
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the selector configured by step parameters
+     *
+     * @return the selector
+     */
+    protected CellBarcodeSelector getSelector() {
+        return this.selector;
+    }
+
+    //
+    // Module Methods
+    //
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public Version getVersion() {
+        return Globals.APP_VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "This module identifies correct cell barcodes with the knee method";
+    }
+
+    @Override
+    public InputPorts getInputPorts() {
+        return new InputPortsBuilder()
+                .addPort("reads", DataFormats.READS_FASTQ).create();
+    }
+
+    @Override
+    public OutputPorts getOutputPorts() {
+        return new OutputPortsBuilder()
+                .addPort("whitelistoutput", WHITELIST_TXT)
+                .addPort("thresholdsoutput", CELL_THRESHOLDS_TSV).create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            try {
+                switch (p.getName()) {
+
+                    case PATTERN_PARAMETER_NAME:
+                        this.selector.setBarcodePattern(p.getStringValue());
+                        break;
+
+                    case CELL_NUMBER_PARAMETER_NAME:
+                        this.selector.setCellNumber(p.getIntValue());
+                        break;
+
+                    case EXPECT_CELLS_PARAMETER_NAME:
+                        this.selector.setExpectCells(p.getIntValue());
+                        break;
+
+                    case THREADS_PARAMETER_NAME:
+                        this.selector.setThreadCount(p.getIntValue());
+                        break;
+
+                    default:
+                        Modules.unknownParameter(context, p);
+                }
+            } catch (IllegalArgumentException e) {
+                Modules.badParameterValue(context, p, e.getMessage());
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", bc.pattern="
+                + this.selector.getBarcodePattern() + ", set.cell.number="
+                + this.selector.getCellNumber() + ", expect.cells="
+                + this.selector.getExpectCells() + ", n.threads="
+                + this.selector.getThreadCount());
+    }
+
+    @Override
+    public TaskResult execute(TaskContext context, TaskStatus status) {
+
+        // Get input and output files, barcodes being in R1 reads
+        final Data readsData = context.getInputData(DataFormats.READS_FASTQ);
+        final File reads = readsData.getDataFile(0).toFile();
+        final File whitelist = context.getOutputData(
+                WHITELIST_TXT, readsData).getDataFile().toFile();
+        final File thresholds = context.getOutputData(
+                CELL_THRESHOLDS_TSV, readsData).getDataFile().toFile();
+
+        // Count barcodes and keep the ones above the knee
+        try {
+            final int cells = this.selector.select(reads, whitelist, thresholds);
+            getLogger().info("In " + getName() + ", " + cells + " cell barcodes kept out of "
+                    + this.selector.getBarcodeCount() + " in "
+                    + this.selector.getReadCount() + " reads");
+            return status.createTaskResult();
+        } catch (IOException e) {
+            return status.createTaskResult(e, "Error with file :" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class define a reader of the chunked binary matrix format written by
+ * ChunkedMatrixWriter. Gene Ids, cell names and the chunk index are read when
+ * the file is opened, then each gene or cell is read by decompressing only
+ * the chunk that holds it. The last decompressed chunk of each layout is kept.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class ChunkedMatrixReader implements Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+    private final Inflater inflater = new Inflater();
+
+    private final GeneDictionary genes;
+    private final List<String> cells;
+    private final long nonZeroCount;
+    private final int chunkSize;
+    private final long[] geneOffsets;
+    private final long[] cellOffsets;
+
+    // Last decompressed chunks
+    private int geneChunkIndex = -1;
+    private byte[] geneChunk;
+    private int cellChunkIndex = -1;
+    private byte[] cellChunk;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of genes (rows) of the matrix
+     *
+     * @return number of genes
+     */
+    public final int getGeneCount() {
+        return this.genes.size();
+    }
+
+    /**
+     * Get the number of cells (columns) of the matrix
+     *
+     * @return number of cells
+     */
+    public final int getCellCount() {
+        return this.cells.size();
+    }
+
+    /**
+     * Get the number of non-zero counts of the matrix
+     *
+     * @return number of non-zero counts
+     */
+    public final long getNonZeroCount() {
+        return this.nonZeroCount;
+    }
+
+    /**
+     * Get the dictionary giving gene rows
+     *
+     * @return the gene dictionary
+     */
+    public final GeneDictionary getGeneDictionary() {
+        return this.genes;
+    }
+
+    /**
+     * Get cell names in column order
+     *
+     * @return an unmodifiable list of cell names
+     */
+    public final List<String> getCells() {
+        return Collections.unmodifiableList(this.cells);
+    }
+
+    //
+    // Reading methods
+    //
+
+    /**
+     * Get counts of a gene over all cells
+     *
+     * @param gene gene Id
+     * @return counts indexed by cell or null if the gene is not in the matrix
+     * @throws IOException if an error occurs while reading file
+     */
+    public final int[] getRow(final String gene) throws IOException {
+
+        final int row = this.genes.getIndex(gene);
+
+        return row < 0 ? null : getRow(row);
+    }
+
+    /**
+     * Get counts of a gene over all cells
+     *
+     * @param row index of the gene
+     * @return counts indexed by cell
+     * @throws IOException if an error occurs while reading file
+     */
+    public final int[] getRow(final int row) throws IOException {
+
+        checkIndex(row, getGeneCount(), "row");
+
+        final int chunk = row / this.chunkSize;
+        if (chunk != this.geneChunkIndex) {
+            this.geneChunk = readChunk(this.geneOffsets, chunk);
+            this.geneChunkIndex = chunk;
+        }
+
+        final int[] result = new int[getCellCount()];
+        readLine(this.geneChunk, row % this.chunkSize, result);
+
+        return result;
+    }
+
+    /**
+     * Get counts of a cell over all genes
+     *
+     * @param column index of the cell
+     * @return counts indexed by gene row
+     * @throws IOException if an error occurs while reading file
+     */
+    public final int[] getColumn(final int column) throws IOException {
+
+        checkIndex(column, getCellCount(), "column");
+
+        final int chunk = column / this.chunkSize;
+        if (chunk != this.cellChunkIndex) {
+            this.cellChunk = readChunk(this.cellOffsets, chunk);
+            this.cellChunkIndex = chunk;
+        }
+
+        final int[] result = new int[getGeneCount()];
+        readLine(this.cellChunk, column % this.chunkSize, result);
+
+        return result;
+    }
+
+    private static void checkIndex(final int index, final int size,
+        final String name) {
+
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(
+                "Invalid " + name + " index: " + index);
+        }
+    }
+
+    /**
+     * Read and decompress a chunk
+     *
+     * @param offsets offsets of the chunks of a layout
+     * @param chunk   index of the chunk
+     * @return the decompressed chunk
+     * @throws IOException if an error occurs while reading file
+     */
+    private byte[] readChunk(final long[] offsets, final int chunk)
+        throws IOException {
+
+        final ByteBuffer compressed =
+            ByteBuffer.allocate((int) (offsets[chunk + 1] - offsets[chunk]));
+        readFully(compressed, offsets[chunk]);
+
+        final ByteArrayOutputStream result =
+            new ByteArrayOutputStream(4 * compressed.capacity());
+        this.inflater.reset();
+
+        try (InflaterInputStream in = new InflaterInputStream(
+            new ByteArrayInputStream(compressed.array()), this.inflater)) {
+            final byte[] buffer = new byte[1 << 13];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                result.write(buffer, 0, n);
+            }
+        }
+
+        return result.toByteArray();
+    }
+
+    /**
+     * Fill a buffer from a position of the file
+     *
+     * @param buffer   the buffer to fill
+     * @param position position in the file
+     * @throws IOException if an error occurs while reading file
+     */
+    private void readFully(final ByteBuffer buffer, final long position)
+        throws IOException {
+
+        long p = position;
+        while (buffer.hasRemaining()) {
+            final int n = this.channel.read(buffer, p);
+            if (n < 0) {
+                throw new EOFException("Truncated matrix file: " + this.file);
+            }
+            p += n;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Read a line of a decompressed chunk in a dense array
+     *
+     * @param chunk  the decompressed chunk
+     * @param line   index of the line in the chunk
+     * @param result array to fill
+     * @throws IOException if the chunk is invalid
+     */
+    private static void readLine(final byte[] chunk, final int line,
+        final int[] result) throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+        try {
+            // Skip previous lines
+            for (int l = 0; l < line; l++) {
+                final int n = buffer.getInt();
+                buffer.position(buffer.position() + 2 * n * Integer.BYTES);
+            }
+
+            final int n = buffer.getInt();
+            final int[] indexes = new int[n];
+            int index = 0;
+            for (int k = 0; k < n; k++) {
+                index += buffer.getInt();
+                indexes[k] = index;
+            }
+            for (int k = 0; k < n; k++) {
+                result[indexes[k]] = buffer.getInt();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException
+            | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Invalid chunk in matrix file", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inflater.end();
+        this.channel.close();
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Public constructor, opening the file
+     *
+     * @param file the chunked matrix file
+     * @throws IOException if an error occurs while reading file or if the file
+     * is not a chunked matrix
+     */
+    public ChunkedMatrixReader(final File file) throws IOException {
+
+        if (file == null) {
+            throw new NullPointerException("file argument cannot be null");
+        }
+
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            final long size = this.channel.size();
+
+            // Footer
+            final ByteBuffer footer =
+                ByteBuffer.allocate(ChunkedMatrixWriter.FOOTER_SIZE);
+            if (size < footer.capacity()) {
+                throw new IOException("Invalid matrix file: " + file);
+            }
+            readFully(footer, size - footer.capacity());
+            final long indexOffset = footer.getLong();
+            if (footer.getInt() != ChunkedMatrixWriter.MAGIC) {
+                throw new IOException("Invalid matrix file: " + file);
+            }
+
+            // Header
+            this.channel.position(0);
+            final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(this.channel),
+                    1 << 16));
+
+            if (in.readInt() != ChunkedMatrixWriter.MAGIC
+                || in.readInt() != ChunkedMatrixWriter.VERSION) {
+                throw new IOException("Invalid matrix file: " + file);
+            }
+
+            final int nGenes = in.readInt();
+            final int nCells = in.readInt();
+            this.nonZeroCount = in.readLong();
+            this.chunkSize = in.readInt();
+
+            final List<String> geneIds = new ArrayList<>(nGenes);
+            for (int i = 0; i < nGenes; i++) {
+                geneIds.add(in.readUTF());
+            }
+            this.genes = new GeneDictionary(geneIds);
+
+            this.cells = new ArrayList<>(nCells);
+            for (int j = 0; j < nCells; j++) {
+                this.cells.add(in.readUTF());
+            }
+
+            // Chunk index
+            this.geneOffsets = new long[ChunkedMatrixWriter
+                .chunkCount(nGenes, this.chunkSize) + 1];
+            this.cellOffsets = new long[ChunkedMatrixWriter
+                .chunkCount(nCells, this.chunkSize) + 1];
+
+            final ByteBuffer index = ByteBuffer.allocate(Long.BYTES
+                * (this.geneOffsets.length + this.cellOffsets.length));
+            if (indexOffset + index.capacity() + footer.capacity() != size) {
+                throw new IOException("Invalid matrix file: " + file);
+            }
+            readFully(index, indexOffset);
+            index.asLongBuffer().get(this.geneOffsets).get(this.cellOffsets);
+
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            this.inflater.end();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * This class define the writer of the chunked binary matrix format. Counts
+ * are stored twice, gene-major and cell-major, in fixed-size chunks of genes
+ * or cells compressed independently. A chunk index at the end of the file
+ * gives the offset of each chunk, so a gene or a cell can be read back by
+ * decompressing a single chunk.
+ * <p>
+ * File layout, big-endian:
+ * <ul>
+ * <li>header: magic, version, gene count, cell count, non-zero count, chunk
+ * size, then gene Ids and cell names</li>
+ * <li>gene-major chunks then cell-major chunks, each one deflated. A chunk
+ * holds, for each of its lines, the number of counts, the delta-coded
+ * indexes, then the counts</li>
+ * <li>chunk index: offsets of gene chunks then of cell chunks, each list
+ * ending with the end offset of its last chunk</li>
+ * <li>footer: offset of the chunk index and magic</li>
+ * </ul>
+ * As in other formats, non detected genes are excluded.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public final class ChunkedMatrixWriter {
+
+    static final int MAGIC = 0x53434d58; // "SCMX"
+    static final int VERSION = 1;
+    static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES;
+
+    /**
+     * Default number of genes or cells per chunk
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    /**
+     * Write a matrix in chunked binary format with default chunk size
+     *
+     * @param matrix the matrix to write
+     * @param file   the output file
+     * @throws IOException if an error occurs while writing file
+     */
+    public static void write(final CountMatrix matrix, final File file)
+        throws IOException {
+        write(matrix, file, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Write a matrix in chunked binary format
+     *
+     * @param matrix    the matrix to write
+     * @param file      the output file
+     * @param chunkSize number of genes or cells per chunk
+     * @throws IOException if an error occurs while writing file
+     */
+    public static void write(final CountMatrix matrix, final File file,
+        final int chunkSize) throws IOException {
+
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException(
+                "chunkSize must be greater than 0: " + chunkSize);
+        }
+
+        // Renumber detected genes
+        final int[] outputRows = new int[matrix.getGeneCount()];
+        final List<String> genes = new ArrayList<>();
+        for (int i = 0; i < matrix.getGeneCount(); i++) {
+            if (matrix.isDetected(i)) {
+                outputRows[i] = genes.size();
+                genes.add(matrix.getGene(i));
+            } else {
+                outputRows[i] = -1;
+            }
+        }
+
+        final int nGenes = genes.size();
+        final int nCells = matrix.getCellCount();
+        final long nnz = matrix.getDetectedNonZeroCount();
+
+        // Cell-major layout, with output rows of detected genes only
+        final int[][] cellIndexes = new int[nCells][];
+        final int[][] cellValues = new int[nCells][];
+        for (int j = 0; j < nCells; j++) {
+            final int[] rows = matrix.getColumnRows(j);
+            final int[] values = matrix.getColumnValues(j);
+            int n = 0;
+            for (int row : rows) {
+                n += outputRows[row] < 0 ? 0 : 1;
+            }
+            cellIndexes[j] = new int[n];
+            cellValues[j] = n == rows.length ? values : new int[n];
+            n = 0;
+            for (int k = 0; k < rows.length; k++) {
+                if (outputRows[rows[k]] >= 0) {
+                    cellIndexes[j][n] = outputRows[rows[k]];
+                    cellValues[j][n] = values[k];
+                    n++;
+                }
+            }
+        }
+
+        // Gene-major layout, transposed with a counting sort on rows
+        final int[] counts = new int[nGenes];
+        for (int[] rows : cellIndexes) {
+            for (int row : rows) {
+                counts[row]++;
+            }
+        }
+        final int[][] geneIndexes = new int[nGenes][];
+        final int[][] geneValues = new int[nGenes][];
+        for (int i = 0; i < nGenes; i++) {
+            geneIndexes[i] = new int[counts[i]];
+            geneValues[i] = new int[counts[i]];
+        }
+        Arrays.fill(counts, 0);
+        for (int j = 0; j < nCells; j++) {
+            final int[] rows = cellIndexes[j];
+            final int[] values = cellValues[j];
+            for (int k = 0; k < rows.length; k++) {
+                final int p = counts[rows[k]]++;
+                geneIndexes[rows[k]][p] = j;
+                geneValues[rows[k]][p] = values[k];
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+
+            // Header
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nGenes);
+            out.writeInt(nCells);
+            out.writeLong(nnz);
+            out.writeInt(chunkSize);
+            for (String gene : genes) {
+                out.writeUTF(gene);
+            }
+            for (int j = 0; j < nCells; j++) {
+                out.writeUTF(matrix.getCell(j));
+            }
+
+            long position = out.size();
+            final Deflater deflater = new Deflater();
+            try {
+                final long[] geneOffsets = new long[chunkCount(nGenes,
+                    chunkSize) + 1];
+                for (int c = 0; c < geneOffsets.length - 1; c++) {
+                    geneOffsets[c] = position;
+                    position += writeChunk(out, deflater, geneIndexes,
+                        geneValues, c * chunkSize, chunkSize);
+                }
+                geneOffsets[geneOffsets.length - 1] = position;
+
+                final long[] cellOffsets = new long[chunkCount(nCells,
+                    chunkSize) + 1];
+                for (int c = 0; c < cellOffsets.length - 1; c++) {
+                    cellOffsets[c] = position;
+                    position += writeChunk(out, deflater, cellIndexes,
+                        cellValues, c * chunkSize, chunkSize);
+                }
+                cellOffsets[cellOffsets.length - 1] = position;
+
+                // Chunk index and footer
+                for (long offset : geneOffsets) {
+                    out.writeLong(offset);
+                }
+                for (long offset : cellOffsets) {
+                    out.writeLong(offset);
+                }
+                out.writeLong(position);
+                out.writeInt(MAGIC);
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Get the number of chunks of a layout
+     *
+     * @param count     number of lines of the layout
+     * @param chunkSize number of lines per chunk
+     * @return number of chunks
+     */
+    static int chunkCount(final int count, final int chunkSize) {
+        return (count + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * Compress and write a chunk
+     *
+     * @return number of bytes written
+     */
+    private static int writeChunk(final DataOutputStream out,
+        final Deflater deflater, final int[][] indexes, final int[][] values,
+        final int start, final int chunkSize) throws IOException {
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        deflater.reset();
+
+        try (DataOutputStream chunk = new DataOutputStream(
+            new DeflaterOutputStream(bytes, deflater))) {
+
+            final int end = Math.min(start + chunkSize, indexes.length);
+            for (int line = start; line < end; line++) {
+
+                final int[] lineIndexes = indexes[line];
+                chunk.writeInt(lineIndexes.length);
+
+                int previous = 0;
+                for (int index : lineIndexes) {
+                    chunk.writeInt(index - previous);
+                    previous = index;
+                }
+                for (int value : values[line]) {
+                    chunk.writeInt(value);
+                }
+            }
+        }
+
+        bytes.writeTo(out);
+
+        return bytes.size();
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Private constructor
+     */
+    private ChunkedMatrixWriter() {
+    }
+}
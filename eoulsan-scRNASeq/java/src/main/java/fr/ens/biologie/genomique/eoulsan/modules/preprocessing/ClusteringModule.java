@@ -0,0 +1,230 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.Globals;
+import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
+import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
+import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
+import fr.ens.biologie.genomique.eoulsan.core.Version;
+import fr.ens.biologie.genomique.eoulsan.data.Data;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormat;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
+import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define a module that clusters the cells of a PCA embedding on
+ * their shared nearest neighbour graph and adds their cluster to the cells
+ * metadata.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@LocalOnly
+public class ClusteringModule extends AbstractModule {
+    /**
+     * Module Name
+     */
+    private static final String MODULE_NAME = "clustering";
+
+    /**
+     * Modularity optimization algorithms
+     */
+    protected enum ClusteringAlgorithm {
+        LOUVAIN, LEIDEN
+    }
+
+    /**
+     * Nearest neighbours search methods
+     */
+    protected enum NeighborMethod {
+        NNDESCENT, EXACT
+    }
+
+    /**
+     * Parameters Names
+     */
+    private static final String ALGORITHM_PARAMETER_NAME = "algorithm";
+    private static final String KNN_METHOD_PARAMETER_NAME = "knn.method";
+    private static final String K_PARAMETER_NAME = "k.param";
+    private static final String PRUNE_PARAMETER_NAME = "prune.snn";
+    private static final String RESOLUTION_PARAMETER_NAME = "resolution";
+    private static final String DIMENSIONS_PARAMETER_NAME = "n.pcs";
+    private static final String ITERATIONS_PARAMETER_NAME = "iterations";
+    private static final String THREADS_PARAMETER_NAME = "n.threads";
+    private static final String SEED_PARAMETER_NAME = "seed";
+
+    private final CellClusterer clusterer = new CellClusterer();
+
+    // DataFormat
+    private static DataFormat PCA_EMBEDDING_BIN =
+            DataFormatRegistry.getInstance().getDataFormatFromName("pca_embedding_bin");
+    private static DataFormat NORMALIZED_CELLS_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("normalized_cells_metadata_tsv");
+    private static DataFormat CLUSTERED_CELLS_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("clustered_cells_metadata_tsv");
+
+    //
+    // Module Methods
+    //
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public Version getVersion() {
+        return Globals.APP_VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "This module clusters cells on the shared nearest neighbour graph of their principal components";
+    }
+
+    @Override
+    public InputPorts getInputPorts() {
+        return new InputPortsBuilder()
+                .addPort("embedding", PCA_EMBEDDING_BIN)
+                .addPort("cells", NORMALIZED_CELLS_METADATA_TSV).create();
+    }
+
+    @Override
+    public OutputPorts getOutputPorts() {
+        return new OutputPortsBuilder()
+                .addPort("cellsoutput", CLUSTERED_CELLS_METADATA_TSV).create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            try {
+                switch (p.getName()) {
+
+                    case ALGORITHM_PARAMETER_NAME:
+                        switch (p.getLowerStringValue()) {
+
+                            case "louvain":
+                                this.clusterer.setAlgorithm(ClusteringAlgorithm.LOUVAIN);
+                                break;
+
+                            case "leiden":
+                                this.clusterer.setAlgorithm(ClusteringAlgorithm.LEIDEN);
+                                break;
+
+                            default:
+                                Modules.badParameterValue(context, p,
+                                        "Unknown clustering algorithm");
+                                break;
+                        }
+                        break;
+
+                    case KNN_METHOD_PARAMETER_NAME:
+                        switch (p.getLowerStringValue()) {
+
+                            case "nndescent":
+                                this.clusterer.setNeighborMethod(NeighborMethod.NNDESCENT);
+                                break;
+
+                            case "exact":
+                                this.clusterer.setNeighborMethod(NeighborMethod.EXACT);
+                                break;
+
+                            default:
+                                Modules.badParameterValue(context, p,
+                                        "Unknown nearest neighbours method");
+                                break;
+                        }
+                        break;
+
+                    case K_PARAMETER_NAME:
+                        this.clusterer.setNeighborCount(p.getIntValue());
+                        break;
+
+                    case PRUNE_PARAMETER_NAME:
+                        this.clusterer.setPrune(p.getDoubleValue());
+                        break;
+
+                    case RESOLUTION_PARAMETER_NAME:
+                        this.clusterer.setResolution(p.getDoubleValue());
+                        break;
+
+                    case DIMENSIONS_PARAMETER_NAME:
+                        this.clusterer.setDimensionCount(p.getIntValue());
+                        break;
+
+                    case ITERATIONS_PARAMETER_NAME:
+                        this.clusterer.setIterations(p.getIntValue());
+                        break;
+
+                    case THREADS_PARAMETER_NAME:
+                        this.clusterer.setThreadCount(p.getIntValue());
+                        break;
+
+                    case SEED_PARAMETER_NAME:
+                        this.clusterer.setSeed(p.getLongValue());
+                        break;
+
+                    default:
+                        Modules.unknownParameter(context, p);
+                }
+            } catch (IllegalArgumentException e) {
+                Modules.badParameterValue(context, p, e.getMessage());
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", algorithm="
+                + this.clusterer.getAlgorithm().name().toLowerCase() + ", knn.method="
+                + this.clusterer.getNeighborMethod().name().toLowerCase() + ", k.param="
+                + this.clusterer.getNeighborCount() + ", prune.snn="
+                + this.clusterer.getPrune() + ", resolution="
+                + this.clusterer.getResolution() + ", n.pcs="
+                + this.clusterer.getDimensionCount() + ", iterations="
+                + this.clusterer.getIterations() + ", n.threads="
+                + this.clusterer.getThreadCount() + ", seed="
+                + this.clusterer.getSeed());
+    }
+
+    @Override
+    public TaskResult execute(TaskContext context, TaskStatus status) {
+
+        // Get input and output files
+        final Data embeddingData = context.getInputData(PCA_EMBEDDING_BIN);
+        final File embedding = embeddingData.getDataFile().toFile();
+        final File cells = context.getInputData(NORMALIZED_CELLS_METADATA_TSV)
+                .getDataFile().toFile();
+        final File cellsOutput = context.getOutputData(
+                CLUSTERED_CELLS_METADATA_TSV, embeddingData).getDataFile().toFile();
+
+        // Cluster cells
+        try {
+            final int clusters = this.clusterer.cluster(embedding, cells, cellsOutput);
+            getLogger().info("In " + getName() + ", " + clusters
+                    + " clusters found, modularity="
+                    + this.clusterer.getModularity());
+
+            return status.createTaskResult();
+        } catch (IOException e) {
+            return status.createTaskResult(e, "Error with file :" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+/**
+ * This interface define a count matrix built cell by cell from sparse
+ * columns, and written once all cells are added.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public interface ColumnMatrix {
+
+    /**
+     * Get the number of genes (rows) of the matrix
+     *
+     * @return number of genes
+     */
+    int getGeneCount();
+
+    /**
+     * Get the number of cells (columns) of the matrix
+     *
+     * @return number of cells
+     */
+    int getCellCount();
+
+    /**
+     * Get the number of non-zero counts of the matrix
+     *
+     * @return number of non-zero counts
+     */
+    long getNonZeroCount();
+
+    /**
+     * Set the genes written with the matrix. A gene is detected, and written,
+     * when it has counts in at least minCells cells and a total count of at
+     * least minCounts. By default, genes with a non-zero count are detected.
+     *
+     * @param minCells  minimal number of cells with counts
+     * @param minCounts minimal total count
+     */
+    void setGeneFilter(int minCells, long minCounts);
+
+    /**
+     * Add a cell to the matrix from its non-zero counts
+     *
+     * @param cell   name of the cell
+     * @param rows   increasing row indexes of the non-zero counts
+     * @param values non-zero counts
+     * @return index of the new column
+     * @throws IOException if an error occurs while storing the column
+     */
+    int addCell(String cell, int[] rows, int[] values) throws IOException;
+
+    /**
+     * Write matrix in tabulated format, excluding non detected genes
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    void write(BufferedWriter out) throws IOException;
+
+    /**
+     * Write matrix in Matrix Market coordinate format, excluding non detected
+     * genes
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    void writeMatrixMarket(BufferedWriter out) throws IOException;
+
+    /**
+     * Write Ids of detected genes, one per line, in Matrix Market row order
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    void writeGenes(BufferedWriter out) throws IOException;
+
+    /**
+     * Write cell names, one per line, in column order
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    void writeBarcodes(BufferedWriter out) throws IOException;
+}
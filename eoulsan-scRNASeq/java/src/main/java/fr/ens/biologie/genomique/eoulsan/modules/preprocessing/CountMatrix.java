@@ -0,0 +1,480 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class define an in-memory count matrix stored as one sparse primitive
+ * column per cell, with genes mapped once to dense row indices. Only non-zero
+ * counts are kept.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class CountMatrix implements ColumnMatrix {
+
+    private final GeneDictionary genes;
+    private final List<String> cells = new ArrayList<>();
+    private final List<int[]> columnRows = new ArrayList<>();
+    private final List<int[]> columnValues = new ArrayList<>();
+    private final long[] rowSums;
+    private final int[] rowCells;
+    private long nonZeroCount;
+    private int minCells = 1;
+    private long minCounts = 1;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of genes (rows) of the matrix
+     *
+     * @return number of genes
+     */
+    @Override
+    public final int getGeneCount() {
+        return this.genes.size();
+    }
+
+    /**
+     * Get the number of cells (columns) of the matrix
+     *
+     * @return number of cells
+     */
+    @Override
+    public final int getCellCount() {
+        return this.cells.size();
+    }
+
+    /**
+     * Get gene Id of a row
+     *
+     * @param row index of the row
+     * @return gene Id
+     */
+    public final String getGene(final int row) {
+        return this.genes.getId(row);
+    }
+
+    /**
+     * Get the dictionary giving gene rows
+     *
+     * @return the gene dictionary
+     */
+    public final GeneDictionary getGeneDictionary() {
+        return this.genes;
+    }
+
+    /**
+     * Get the row index of a gene
+     *
+     * @param gene gene Id
+     * @return row index or -1 if the gene is unknown
+     */
+    public final int getGeneIndex(final String gene) {
+        return this.genes.getIndex(gene);
+    }
+
+    /**
+     * Get cell name of a column
+     *
+     * @param column index of the column
+     * @return cell name
+     */
+    public final String getCell(final int column) {
+        return this.cells.get(column);
+    }
+
+    /**
+     * Get row indexes of the non-zero counts of a cell
+     *
+     * @param column index of the column
+     * @return increasing row indexes
+     */
+    public final int[] getColumnRows(final int column) {
+        return this.columnRows.get(column);
+    }
+
+    /**
+     * Get the non-zero counts of a cell
+     *
+     * @param column index of the column
+     * @return counts, in the order of getColumnRows()
+     */
+    public final int[] getColumnValues(final int column) {
+        return this.columnValues.get(column);
+    }
+
+    /**
+     * Get counts of a cell, zeros included
+     *
+     * @param column index of the column
+     * @return counts of the cell, indexed by gene row
+     */
+    public final int[] getColumn(final int column) {
+
+        final int[] result = newColumn();
+        final int[] rows = this.columnRows.get(column);
+        final int[] values = this.columnValues.get(column);
+
+        for (int k = 0; k < rows.length; k++) {
+            result[rows[k]] = values[k];
+        }
+
+        return result;
+    }
+
+    /**
+     * Get total count of a gene over all cells
+     *
+     * @param row index of the row
+     * @return sum of the row
+     */
+    public final long getRowSum(final int row) {
+        return this.rowSums[row];
+    }
+
+    /**
+     * Get the number of cells with counts for a gene
+     *
+     * @param row index of the row
+     * @return number of non-zero counts of the row
+     */
+    public final int getRowCellCount(final int row) {
+        return this.rowCells[row];
+    }
+
+    /**
+     * Get the number of non-zero counts of the matrix
+     *
+     * @return number of non-zero counts
+     */
+    @Override
+    public final long getNonZeroCount() {
+        return this.nonZeroCount;
+    }
+
+    /**
+     * Test if a gene is detected, i.e. passes the gene filter
+     *
+     * @param row index of the row
+     * @return true if the gene is written with the matrix
+     */
+    public final boolean isDetected(final int row) {
+        return this.rowCells[row] >= this.minCells
+            && this.rowSums[row] >= this.minCounts;
+    }
+
+    /**
+     * Get the number of detected genes
+     *
+     * @return number of detected genes
+     */
+    public final int getDetectedGeneCount() {
+
+        int count = 0;
+        for (int i = 0; i < this.rowSums.length; i++) {
+            if (isDetected(i)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the number of non-zero counts of detected genes
+     *
+     * @return number of non-zero counts written with the matrix
+     */
+    public final long getDetectedNonZeroCount() {
+
+        long count = 0;
+        for (int i = 0; i < this.rowCells.length; i++) {
+            if (isDetected(i)) {
+                count += this.rowCells[i];
+            }
+        }
+
+        return count;
+    }
+
+    //
+    // Setters
+    //
+
+    @Override
+    public final void setGeneFilter(final int minCells, final long minCounts) {
+
+        if (minCells < 0) {
+            throw new IllegalArgumentException(
+                "minCells cannot be negative: " + minCells);
+        }
+
+        if (minCounts < 0) {
+            throw new IllegalArgumentException(
+                "minCounts cannot be negative: " + minCounts);
+        }
+
+        // Genes without counts are never written
+        this.minCells = Math.max(1, minCells);
+        this.minCounts = Math.max(1, minCounts);
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Create a new empty column for a cell
+     *
+     * @return an array of counts with one slot per gene
+     */
+    public final int[] newColumn() {
+        return new int[this.genes.size()];
+    }
+
+    /**
+     * Add a cell to the matrix, updating row sums. Only non-zero counts of the
+     * column are kept, so the array can be reused by the caller.
+     *
+     * @param cell   name of the cell
+     * @param column counts of the cell, indexed by gene row
+     * @return index of the new column
+     */
+    public final int addCell(final String cell, final int[] column) {
+
+        if (column.length != this.genes.size()) {
+            throw new IllegalArgumentException(
+                "Column of cell " + cell + " has " + column.length
+                    + " rows instead of " + this.genes.size());
+        }
+
+        final int[][] sparse = toSparse(column);
+
+        return addCell(cell, sparse[0], sparse[1]);
+    }
+
+    /**
+     * Add a cell to the matrix from its non-zero counts, updating row sums
+     *
+     * @param cell   name of the cell
+     * @param rows   increasing row indexes of the non-zero counts
+     * @param values non-zero counts
+     * @return index of the new column
+     */
+    @Override
+    public final int addCell(final String cell, final int[] rows,
+        final int[] values) {
+
+        if (rows.length != values.length) {
+            throw new IllegalArgumentException(
+                "Column of cell " + cell + " has " + rows.length
+                    + " row indexes for " + values.length + " values");
+        }
+
+        for (int k = 0; k < rows.length; k++) {
+            this.rowSums[rows[k]] += values[k];
+            this.rowCells[rows[k]]++;
+        }
+
+        this.cells.add(cell);
+        this.columnRows.add(rows);
+        this.columnValues.add(values);
+        this.nonZeroCount += rows.length;
+
+        return this.cells.size() - 1;
+    }
+
+    /**
+     * Convert a column of counts to its non-zero counts
+     *
+     * @param column counts indexed by gene row
+     * @return an array with row indexes first and values second
+     */
+    public static int[][] toSparse(final int[] column) {
+
+        int nnz = 0;
+        for (int value : column) {
+            if (value != 0) {
+                nnz++;
+            }
+        }
+
+        final int[] rows = new int[nnz];
+        final int[] values = new int[nnz];
+        int k = 0;
+        for (int i = 0; i < column.length; i++) {
+            if (column[i] != 0) {
+                rows[k] = i;
+                values[k] = column[i];
+                k++;
+            }
+        }
+
+        return new int[][] {rows, values};
+    }
+
+    /**
+     * Write matrix in tabulated format, excluding non detected genes
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    @Override
+    public final void write(BufferedWriter out) throws IOException {
+
+        final int nCells = this.cells.size();
+        final int[][] rows = this.columnRows.toArray(new int[nCells][]);
+        final int[][] values = this.columnValues.toArray(new int[nCells][]);
+        final int[] cursors = new int[nCells];
+
+        // Write headers
+        for (int j = 0; j < nCells; j++) {
+            if (j > 0) {
+                out.write('\t');
+            }
+            out.write(this.cells.get(j));
+        }
+        out.newLine();
+
+        // Write rows, walking each sparse column with its own cursor
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.genes.size(); i++) {
+
+            if (!isDetected(i)) {
+                // Counts of the gene are skipped
+                for (int j = 0; j < nCells; j++) {
+                    final int k = cursors[j];
+                    if (k < rows[j].length && rows[j][k] == i) {
+                        cursors[j]++;
+                    }
+                }
+                continue;
+            }
+
+            sb.setLength(0);
+            sb.append(this.genes.getId(i));
+            for (int j = 0; j < nCells; j++) {
+                final int k = cursors[j];
+                if (k < rows[j].length && rows[j][k] == i) {
+                    sb.append('\t').append(values[j][k]);
+                    cursors[j]++;
+                } else {
+                    sb.append("\t0");
+                }
+            }
+            out.append(sb);
+            out.newLine();
+        }
+    }
+
+    /**
+     * Write matrix in Matrix Market coordinate format, excluding non detected
+     * genes. Rows are genes and columns are cells, both 1-based.
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    @Override
+    public final void writeMatrixMarket(BufferedWriter out)
+        throws IOException {
+
+        // Renumber detected genes
+        final int[] outputRows = new int[this.genes.size()];
+        int detected = 0;
+        for (int i = 0; i < this.genes.size(); i++) {
+            outputRows[i] = isDetected(i) ? ++detected : -1;
+        }
+
+        // Write headers
+        out.write("%%MatrixMarket matrix coordinate integer general");
+        out.newLine();
+        out.write(detected + " " + this.cells.size() + " "
+            + getDetectedNonZeroCount());
+        out.newLine();
+
+        // Write triplets column by column
+        final StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < this.cells.size(); j++) {
+
+            final int[] rows = this.columnRows.get(j);
+            final int[] values = this.columnValues.get(j);
+
+            for (int k = 0; k < rows.length; k++) {
+                if (outputRows[rows[k]] < 0) {
+                    continue;
+                }
+                sb.setLength(0);
+                sb.append(outputRows[rows[k]]).append(' ').append(j + 1)
+                    .append(' ').append(values[k]);
+                out.append(sb);
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Write Ids of detected genes, one per line, in Matrix Market row order
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    @Override
+    public final void writeGenes(BufferedWriter out) throws IOException {
+
+        for (int i = 0; i < this.genes.size(); i++) {
+            if (isDetected(i)) {
+                out.write(this.genes.getId(i));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Write cell names, one per line, in column order
+     *
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    @Override
+    public final void writeBarcodes(BufferedWriter out) throws IOException {
+        for (String cell : this.cells) {
+            out.write(cell);
+            out.newLine();
+        }
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Public constructor
+     *
+     * @param genes gene Ids in row order
+     */
+    public CountMatrix(final List<String> genes) {
+        this(new GeneDictionary(genes));
+    }
+
+    /**
+     * Public constructor
+     *
+     * @param genes dictionary giving gene rows
+     */
+    public CountMatrix(final GeneDictionary genes) {
+
+        if (genes == null) {
+            throw new NullPointerException("genes argument cannot be null");
+        }
+
+        this.genes = genes;
+        this.rowSums = new long[this.genes.size()];
+        this.rowCells = new int[this.genes.size()];
+    }
+}
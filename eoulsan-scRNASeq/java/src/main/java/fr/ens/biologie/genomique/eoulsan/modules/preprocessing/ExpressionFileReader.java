@@ -0,0 +1,193 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * This class define a reader for two columns expression files (Id and Count
+ * separated by a tabulation, with one header line), plain or gzip compressed.
+ * Lines are tokenized
+ * straight from bytes: gene Ids are looked up in a gene dictionary and counts
+ * are parsed without creating any object per line.
+ * <p>
+ * A reader reuses its buffer from one file to another and is not thread safe,
+ * use one reader per thread.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class ExpressionFileReader {
+
+    /**
+     * Default buffer size
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private ByteBuffer buffer;
+
+    //
+    // Reading methods
+    //
+
+    /**
+     * Read counts of an expression file into a column
+     *
+     * @param file       expression file
+     * @param dictionary gene dictionary giving row indexes
+     * @param column     array to fill, indexed by gene row. Genes unknown of
+     *                   the dictionary are ignored
+     * @throws IOException if an error occurs while reading file or if a count
+     *                     is invalid
+     */
+    public void readCounts(final File file, final GeneDictionary dictionary,
+        final int[] column) throws IOException {
+
+        try (ReadableByteChannel channel = GzipUtils.openChannel(file)) {
+
+            ByteBuffer buf = this.buffer;
+            buf.clear();
+
+            boolean header = true;
+            boolean eof = false;
+            int lineNumber = 1;
+
+            while (!eof) {
+
+                // Enlarge buffer if a whole line does not fit
+                if (!buf.hasRemaining()) {
+                    buf = grow(buf);
+                    this.buffer = buf;
+                }
+
+                eof = channel.read(buf) < 0;
+                buf.flip();
+
+                final byte[] bytes = buf.array();
+                final int limit = buf.limit();
+                int pos = 0;
+
+                while (pos < limit) {
+
+                    // Find end of line
+                    int end = pos;
+                    while (end < limit && bytes[end] != '\n') {
+                        end++;
+                    }
+
+                    // Incomplete line, wait for more bytes
+                    if (end == limit && !eof) {
+                        break;
+                    }
+
+                    if (header) {
+                        header = false;
+                    } else if (end > pos) {
+                        parseLine(bytes, pos, end, dictionary, column, file,
+                            lineNumber);
+                    }
+
+                    lineNumber++;
+                    pos = end + 1;
+                }
+
+                // Keep incomplete line for next read
+                buf.position(Math.min(pos, limit));
+                buf.compact();
+            }
+        }
+    }
+
+    /**
+     * Parse one "Id\tCount" line
+     */
+    private static void parseLine(final byte[] bytes, final int start,
+        final int lineEnd, final GeneDictionary dictionary, final int[] column,
+        final File file, final int lineNumber) throws IOException {
+
+        final int end =
+            bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+        if (end == start) {
+            return;
+        }
+
+        // Find Id
+        int tab = start;
+        while (tab < end && bytes[tab] != '\t') {
+            tab++;
+        }
+
+        if (tab == end) {
+            throw new IOException(
+                "Missing count in " + file + " at line " + lineNumber);
+        }
+
+        final int row = dictionary.getIndex(bytes, start, tab - start);
+        if (row < 0) {
+            return;
+        }
+
+        // Parse count
+        long count = 0;
+        boolean digits = false;
+        for (int i = tab + 1; i < end; i++) {
+
+            final byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                count = count * 10 + (b - '0');
+                digits = true;
+                if (count > Integer.MAX_VALUE) {
+                    throw new IOException("Count too large in " + file
+                        + " at line " + lineNumber);
+                }
+            } else if (b != ' ') {
+                throw new IOException(
+                    "Invalid count in " + file + " at line " + lineNumber);
+            }
+        }
+
+        if (!digits) {
+            throw new IOException(
+                "Missing count in " + file + " at line " + lineNumber);
+        }
+
+        column[row] = (int) count;
+    }
+
+    private static ByteBuffer grow(final ByteBuffer buffer) {
+
+        final ByteBuffer result = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        result.put(buffer);
+
+        return result;
+    }
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Public constructor
+     */
+    public ExpressionFileReader() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Public constructor
+     *
+     * @param bufferSize initial size of the buffer
+     */
+    public ExpressionFileReader(final int bufferSize) {
+
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException(
+                "bufferSize must be greater than 0: " + bufferSize);
+        }
+
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+}
@@ -0,0 +1,630 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.MatrixCreatorModule.MatrixFormat;
+
+/**
+ * This class define an out-of-core count matrix. Cells are gathered in an
+ * in-memory chunk, spilled to a temporary file as soon as the chunk exceeds
+ * the memory budget. Matrix is written by merging chunk files, so heap usage
+ * does not depend on the number of cells.
+ * <p>
+ * For tabulated output, chunks are spilled gene-major and merged row by row
+ * (k-way merge on row index). As each open chunk holds a read buffer, the
+ * number of chunks merged at once is bounded by the memory budget, more
+ * chunks being first merged in several passes into larger chunks. For Matrix
+ * Market output, chunks are spilled cell-major and concatenated.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class ExternalCountMatrix implements ColumnMatrix, Closeable {
+
+    /**
+     * Estimated heap used by a column besides its counts
+     */
+    private static final int COLUMN_OVERHEAD = 64;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Maximal number of chunks merged at once, whatever the budget
+     */
+    private static final int MAX_FAN_IN = 256;
+
+    private final GeneDictionary genes;
+    private final MatrixFormat format;
+    private final File directory;
+    private final long memoryBudget;
+
+    private final List<String> cells = new ArrayList<>();
+    private final long[] rowSums;
+    private final int[] rowCells;
+    private long nonZeroCount;
+    private int minCells = 1;
+    private long minCounts = 1;
+
+    private final List<File> chunkFiles = new ArrayList<>();
+    private final List<Integer> chunkSizes = new ArrayList<>();
+    private int spilledChunks;
+    private CountMatrix chunk;
+    private long chunkMemory;
+
+    //
+    // Getters
+    //
+
+    @Override
+    public final int getGeneCount() {
+        return this.genes.size();
+    }
+
+    @Override
+    public final int getCellCount() {
+        return this.cells.size();
+    }
+
+    @Override
+    public final long getNonZeroCount() {
+        return this.nonZeroCount;
+    }
+
+    /**
+     * Get the number of chunks spilled to disk
+     *
+     * @return number of chunk files
+     */
+    public final int getChunkCount() {
+        return this.spilledChunks;
+    }
+
+    /**
+     * Get the number of chunks merged at once, half of the budget being used
+     * by their read buffers
+     *
+     * @return the number of chunks merged at once, at least 2
+     */
+    public final int getMaxFanIn() {
+        return (int) Math.max(2,
+            Math.min(MAX_FAN_IN, this.memoryBudget / 2 / BUFFER_SIZE));
+    }
+
+    /**
+     * Test if a gene is detected, i.e. passes the gene filter
+     *
+     * @param row index of the row
+     * @return true if the gene is written with the matrix
+     */
+    public final boolean isDetected(final int row) {
+        return this.rowCells[row] >= this.minCells
+            && this.rowSums[row] >= this.minCounts;
+    }
+
+    //
+    // Setters
+    //
+
+    @Override
+    public final void setGeneFilter(final int minCells, final long minCounts) {
+
+        if (minCells < 0) {
+            throw new IllegalArgumentException(
+                "minCells cannot be negative: " + minCells);
+        }
+
+        if (minCounts < 0) {
+            throw new IllegalArgumentException(
+                "minCounts cannot be negative: " + minCounts);
+        }
+
+        // Genes without counts are never written
+        this.minCells = Math.max(1, minCells);
+        this.minCounts = Math.max(1, minCounts);
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Add a cell to the matrix from its non-zero counts, spilling the current
+     * chunk if it exceeds the memory budget
+     *
+     * @param cell   name of the cell
+     * @param rows   increasing row indexes of the non-zero counts
+     * @param values non-zero counts
+     * @return index of the new column
+     * @throws IOException if an error occurs while spilling chunk
+     */
+    @Override
+    public final int addCell(final String cell, final int[] rows,
+        final int[] values) throws IOException {
+
+        this.chunk.addCell(cell, rows, values);
+
+        for (int k = 0; k < rows.length; k++) {
+            this.rowSums[rows[k]] += values[k];
+            this.rowCells[rows[k]]++;
+        }
+        this.cells.add(cell);
+        this.nonZeroCount += rows.length;
+
+        // Half of the budget holds the chunk, the other half is used to spill
+        this.chunkMemory += 8L * rows.length + COLUMN_OVERHEAD;
+        if (this.chunkMemory >= this.memoryBudget / 2) {
+            spill();
+        }
+
+        return this.cells.size() - 1;
+    }
+
+    /**
+     * Write the current chunk in a temporary file and start a new chunk
+     *
+     * @throws IOException if an error occurs while writing chunk
+     */
+    private void spill() throws IOException {
+
+        if (this.chunk.getCellCount() == 0) {
+            return;
+        }
+
+        final File file =
+            File.createTempFile("matrixchunk", ".bin", this.directory);
+        this.chunkFiles.add(file);
+        this.chunkSizes.add(this.chunk.getCellCount());
+        this.spilledChunks++;
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE))) {
+
+            if (this.format == MatrixFormat.MTX) {
+                spillCellMajor(this.chunk, out);
+            } else {
+                spillGeneMajor(this.chunk, out);
+            }
+        }
+
+        this.chunk = new CountMatrix(this.genes);
+        this.chunkMemory = 0;
+    }
+
+    /**
+     * Write a chunk cell by cell: number of counts, rows, then values
+     */
+    private static void spillCellMajor(final CountMatrix chunk,
+        final DataOutputStream out) throws IOException {
+
+        for (int j = 0; j < chunk.getCellCount(); j++) {
+
+            final int[] rows = chunk.getColumnRows(j);
+            final int[] values = chunk.getColumnValues(j);
+
+            out.writeInt(rows.length);
+            for (int row : rows) {
+                out.writeInt(row);
+            }
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    /**
+     * Write a chunk gene by gene, for genes with counts: row, number of
+     * counts, local columns, then values. The chunk ends with row -1.
+     */
+    private static void spillGeneMajor(final CountMatrix chunk,
+        final DataOutputStream out) throws IOException {
+
+        final int nGenes = chunk.getGeneCount();
+        final int nnz = (int) chunk.getNonZeroCount();
+
+        // Transpose with a counting sort on rows
+        final int[] starts = new int[nGenes + 1];
+        for (int j = 0; j < chunk.getCellCount(); j++) {
+            for (int row : chunk.getColumnRows(j)) {
+                starts[row + 1]++;
+            }
+        }
+        for (int i = 0; i < nGenes; i++) {
+            starts[i + 1] += starts[i];
+        }
+
+        final int[] positions = Arrays.copyOf(starts, nGenes);
+        final int[] columns = new int[nnz];
+        final int[] values = new int[nnz];
+        for (int j = 0; j < chunk.getCellCount(); j++) {
+            final int[] rows = chunk.getColumnRows(j);
+            final int[] counts = chunk.getColumnValues(j);
+            for (int k = 0; k < rows.length; k++) {
+                final int p = positions[rows[k]]++;
+                columns[p] = j;
+                values[p] = counts[k];
+            }
+        }
+
+        for (int i = 0; i < nGenes; i++) {
+
+            if (starts[i] == starts[i + 1]) {
+                continue;
+            }
+
+            out.writeInt(i);
+            out.writeInt(starts[i + 1] - starts[i]);
+            for (int p = starts[i]; p < starts[i + 1]; p++) {
+                out.writeInt(columns[p]);
+            }
+            for (int p = starts[i]; p < starts[i + 1]; p++) {
+                out.writeInt(values[p]);
+            }
+        }
+        out.writeInt(-1);
+    }
+
+    /**
+     * Open a chunk file for reading
+     */
+    private DataInputStream openChunk(final int index) throws IOException {
+        return new DataInputStream(new BufferedInputStream(
+            new FileInputStream(this.chunkFiles.get(index)), BUFFER_SIZE));
+    }
+
+    /**
+     * Merge consecutive gene-major chunks into one chunk, until no more chunks
+     * than the fan-in are left
+     *
+     * @throws IOException if an error occurs while merging chunks
+     */
+    private void reduceChunks() throws IOException {
+
+        final int fanIn = getMaxFanIn();
+
+        while (this.chunkFiles.size() > fanIn) {
+            for (int from = 0; from < this.chunkFiles.size() - 1; from++) {
+                mergeChunks(from,
+                    Math.min(from + fanIn, this.chunkFiles.size()));
+            }
+        }
+    }
+
+    /**
+     * Merge gene-major chunks into one chunk, replacing them in the chunk
+     * list. Local columns are shifted by the cells of the previous chunks.
+     *
+     * @param from index of the first chunk to merge
+     * @param to   index after the last chunk to merge
+     * @throws IOException if an error occurs while merging chunks
+     */
+    private void mergeChunks(final int from, final int to) throws IOException {
+
+        final int nChunks = to - from;
+        final DataInputStream[] inputs = new DataInputStream[nChunks];
+        final int[] nextRows = new int[nChunks];
+        final int[] offsets = new int[nChunks];
+        int size = 0;
+
+        final File file =
+            File.createTempFile("matrixchunk", ".bin", this.directory);
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE))) {
+
+            for (int c = 0; c < nChunks; c++) {
+                inputs[c] = openChunk(from + c);
+                nextRows[c] = inputs[c].readInt();
+                offsets[c] = size;
+                size += this.chunkSizes.get(from + c);
+            }
+
+            // A row has at most one count per cell
+            final int[] columns = new int[size];
+            final int[] values = new int[size];
+
+            for (int i = 0; i < this.genes.size(); i++) {
+
+                if (this.rowSums[i] == 0) {
+                    continue;
+                }
+
+                int n = 0;
+                for (int c = 0; c < nChunks; c++) {
+
+                    if (nextRows[c] != i) {
+                        continue;
+                    }
+
+                    final DataInputStream in = inputs[c];
+                    final int m = in.readInt();
+                    for (int k = 0; k < m; k++) {
+                        columns[n + k] = offsets[c] + in.readInt();
+                    }
+                    for (int k = 0; k < m; k++) {
+                        values[n + k] = in.readInt();
+                    }
+                    n += m;
+                    nextRows[c] = in.readInt();
+                }
+
+                if (n == 0) {
+                    continue;
+                }
+
+                out.writeInt(i);
+                out.writeInt(n);
+                for (int k = 0; k < n; k++) {
+                    out.writeInt(columns[k]);
+                }
+                for (int k = 0; k < n; k++) {
+                    out.writeInt(values[k]);
+                }
+            }
+            out.writeInt(-1);
+
+        } catch (IOException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        } finally {
+            for (DataInputStream in : inputs) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+
+        // Replace merged chunks
+        final List<File> merged = this.chunkFiles.subList(from, to);
+        for (File f : merged) {
+            Files.deleteIfExists(f.toPath());
+        }
+        merged.clear();
+        this.chunkSizes.subList(from, to).clear();
+        this.chunkFiles.add(from, file);
+        this.chunkSizes.add(from, size);
+    }
+
+    @Override
+    public final void write(final BufferedWriter out) throws IOException {
+
+        if (this.format == MatrixFormat.MTX) {
+            throw new IllegalStateException(
+                "Chunks have been spilled for Matrix Market output");
+        }
+
+        spill();
+        reduceChunks();
+
+        final int nChunks = this.chunkFiles.size();
+        final DataInputStream[] inputs = new DataInputStream[nChunks];
+        final int[] nextRows = new int[nChunks];
+        final int[][] segments = new int[nChunks][];
+
+        try {
+            for (int c = 0; c < nChunks; c++) {
+                inputs[c] = openChunk(c);
+                nextRows[c] = inputs[c].readInt();
+                segments[c] = new int[this.chunkSizes.get(c)];
+            }
+
+            // Write headers
+            for (int j = 0; j < this.cells.size(); j++) {
+                if (j > 0) {
+                    out.write('\t');
+                }
+                out.write(this.cells.get(j));
+            }
+            out.newLine();
+
+            // Merge chunks on row index
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < this.genes.size(); i++) {
+
+                if (this.rowSums[i] == 0) {
+                    continue;
+                }
+
+                // Rows of filtered genes are read but not written
+                final boolean detected = isDetected(i);
+                sb.setLength(0);
+                sb.append(this.genes.getId(i));
+
+                for (int c = 0; c < nChunks; c++) {
+
+                    final int[] segment = segments[c];
+                    Arrays.fill(segment, 0);
+
+                    if (nextRows[c] == i) {
+                        readRow(inputs[c], segment);
+                        nextRows[c] = inputs[c].readInt();
+                    }
+
+                    if (detected) {
+                        for (int value : segment) {
+                            sb.append('\t').append(value);
+                        }
+                    }
+                }
+
+                if (detected) {
+                    out.append(sb);
+                    out.newLine();
+                }
+            }
+        } finally {
+            for (DataInputStream in : inputs) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the counts of a row of a gene-major chunk in a dense segment
+     */
+    private static void readRow(final DataInputStream in, final int[] segment)
+        throws IOException {
+
+        final int n = in.readInt();
+        final int[] columns = new int[n];
+        for (int k = 0; k < n; k++) {
+            columns[k] = in.readInt();
+        }
+        for (int k = 0; k < n; k++) {
+            segment[columns[k]] = in.readInt();
+        }
+    }
+
+    @Override
+    public final void writeMatrixMarket(final BufferedWriter out)
+        throws IOException {
+
+        if (this.format != MatrixFormat.MTX) {
+            throw new IllegalStateException(
+                "Chunks have been spilled for tabulated output");
+        }
+
+        spill();
+
+        // Renumber detected genes
+        final int[] outputRows = new int[this.genes.size()];
+        int detected = 0;
+        long nnz = 0;
+        for (int i = 0; i < this.genes.size(); i++) {
+            outputRows[i] = isDetected(i) ? ++detected : -1;
+            nnz += outputRows[i] < 0 ? 0 : this.rowCells[i];
+        }
+
+        // Write headers
+        out.write("%%MatrixMarket matrix coordinate integer general");
+        out.newLine();
+        out.write(detected + " " + this.cells.size() + " " + nnz);
+        out.newLine();
+
+        // Write triplets column by column, chunk after chunk
+        final StringBuilder sb = new StringBuilder();
+        int column = 0;
+        for (int c = 0; c < this.chunkFiles.size(); c++) {
+
+            try (DataInputStream in = openChunk(c)) {
+
+                for (int j = 0; j < this.chunkSizes.get(c); j++) {
+
+                    column++;
+                    final int n = in.readInt();
+                    final int[] rows = new int[n];
+                    for (int k = 0; k < n; k++) {
+                        rows[k] = in.readInt();
+                    }
+
+                    for (int k = 0; k < n; k++) {
+                        final int value = in.readInt();
+                        if (outputRows[rows[k]] < 0) {
+                            continue;
+                        }
+                        sb.setLength(0);
+                        sb.append(outputRows[rows[k]]).append(' ')
+                            .append(column).append(' ').append(value);
+                        out.append(sb);
+                        out.newLine();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public final void writeGenes(final BufferedWriter out) throws IOException {
+
+        for (int i = 0; i < this.genes.size(); i++) {
+            if (isDetected(i)) {
+                out.write(this.genes.getId(i));
+                out.newLine();
+            }
+        }
+    }
+
+    @Override
+    public final void writeBarcodes(final BufferedWriter out)
+        throws IOException {
+        for (String cell : this.cells) {
+            out.write(cell);
+            out.newLine();
+        }
+    }
+
+    /**
+     * Delete chunk files
+     *
+     * @throws IOException if a chunk file cannot be deleted
+     */
+    @Override
+    public void close() throws IOException {
+
+        for (File file : this.chunkFiles) {
+            Files.deleteIfExists(file.toPath());
+        }
+        this.chunkFiles.clear();
+        this.chunkSizes.clear();
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Public constructor
+     *
+     * @param genes        dictionary giving gene rows
+     * @param format       output format, which sets the layout of chunks
+     * @param directory    directory of chunk files
+     * @param memoryBudget heap allowed for counts, in bytes
+     */
+    public ExternalCountMatrix(final GeneDictionary genes,
+        final MatrixFormat format, final File directory,
+        final long memoryBudget) {
+
+        if (genes == null) {
+            throw new NullPointerException("genes argument cannot be null");
+        }
+
+        if (format == null) {
+            throw new NullPointerException("format argument cannot be null");
+        }
+
+        if (directory == null) {
+            throw new NullPointerException(
+                "directory argument cannot be null");
+        }
+
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException(
+                "memoryBudget must be greater than 0: " + memoryBudget);
+        }
+
+        this.genes = genes;
+        this.format = format;
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.rowSums = new long[genes.size()];
+        this.rowCells = new int[genes.size()];
+        this.chunk = new CountMatrix(genes);
+    }
+}
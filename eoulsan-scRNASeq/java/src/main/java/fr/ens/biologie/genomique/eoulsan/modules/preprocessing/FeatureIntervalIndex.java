@@ -0,0 +1,498 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class define an index of the genomic intervals of features, giving the
+ * features overlapping a region or nearest to a position. Features are
+ * designed by their index, feature i being the feature of line i of the
+ * metadata file and of index i of the gene dictionary.
+ * <p>
+ * Intervals of a chromosome are sorted by start, and the sorted array is read
+ * as an implicit binary tree where each node holds the maximum end of its
+ * subtree, so overlapping features are found in O(log n + k). A prefix
+ * array of the interval of maximum end gives the nearest feature in O(log n).
+ * Positions are 1-based and intervals closed, as in annotation files.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class FeatureIntervalIndex {
+
+    /**
+     * Index file header
+     */
+    private static final int MAGIC = 0x46495458; // "FITX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+
+    /**
+     * Subtrees of this level or under are scanned linearly
+     */
+    private static final int LINEAR_LEVEL = 3;
+
+    private final Map<String, Intervals> chromosomes;
+    private final int size;
+
+    /**
+     * This class define the intervals of a chromosome
+     */
+    private static final class Intervals {
+
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] features;
+
+        // Maximum end of the subtree of each node
+        private final int[] maxEnds;
+        private final int maxLevel;
+
+        // Interval of maximum end among the first i + 1 intervals
+        private final int[] maxEndIndexes;
+
+        Intervals(final int[] starts, final int[] ends, final int[] features) {
+
+            this.starts = starts;
+            this.ends = ends;
+            this.features = features;
+            this.maxEnds = new int[starts.length];
+            this.maxLevel = indexTree();
+
+            this.maxEndIndexes = new int[starts.length];
+            for (int i = 0; i < starts.length; i++) {
+                this.maxEndIndexes[i] = i == 0
+                    || ends[i] > ends[this.maxEndIndexes[i - 1]] ? i :
+                    this.maxEndIndexes[i - 1];
+            }
+        }
+
+        /**
+         * Compute the maximum ends of the implicit tree: leaves are at even
+         * indexes, nodes of level k at indexes ending with k ones then a zero
+         *
+         * @return the level of the root
+         */
+        private int indexTree() {
+
+            final int n = this.starts.length;
+            if (n == 0) {
+                return -1;
+            }
+
+            int lastIndex = 0;
+            int last = 0;
+            for (int i = 0; i < n; i += 2) {
+                lastIndex = i;
+                this.maxEnds[i] = this.ends[i];
+                last = this.maxEnds[i];
+            }
+
+            int k = 1;
+            for (; 1 << k <= n; k++) {
+
+                final int x = 1 << (k - 1);
+                final int step = x << 2;
+                for (int i = (x << 1) - 1; i < n; i += step) {
+                    final int left = this.maxEnds[i - x];
+                    final int right = i + x < n ? this.maxEnds[i + x] : last;
+                    this.maxEnds[i] =
+                        Math.max(this.ends[i], Math.max(left, right));
+                }
+
+                // Maximum end of the last, incomplete, subtree
+                lastIndex = (lastIndex >> k & 1) != 0 ? lastIndex - x :
+                    lastIndex + x;
+                if (lastIndex < n && this.maxEnds[lastIndex] > last) {
+                    last = this.maxEnds[lastIndex];
+                }
+            }
+
+            return k - 1;
+        }
+
+        /**
+         * Add the intervals overlapping a region to a list, in start order
+         */
+        void overlapping(final int start, final int end,
+            final IntList result) {
+
+            if (this.maxLevel < 0) {
+                return;
+            }
+
+            final int n = this.starts.length;
+            // A node and its left child may be pending on each level
+            final int[] stack = new int[3 * 2 * (this.maxLevel + 2)];
+            int top = 0;
+            stack[top++] = (1 << this.maxLevel) - 1;
+            stack[top++] = this.maxLevel;
+            stack[top++] = 0;
+
+            while (top > 0) {
+
+                final int visited = stack[--top];
+                final int k = stack[--top];
+                final int x = stack[--top];
+
+                if (k <= LINEAR_LEVEL) {
+
+                    // Scan the small subtree
+                    final int i0 = x >> k << k;
+                    final int i1 = Math.min(i0 + (1 << (k + 1)) - 1, n);
+                    for (int i = i0; i < i1 && this.starts[i] <= end; i++) {
+                        if (this.ends[i] >= start) {
+                            result.add(this.features[i]);
+                        }
+                    }
+
+                } else if (visited == 0) {
+
+                    // Visit the left child, then the node
+                    stack[top++] = x;
+                    stack[top++] = k;
+                    stack[top++] = 1;
+
+                    final int y = x - (1 << (k - 1));
+                    if (y >= n || this.maxEnds[y] >= start) {
+                        stack[top++] = y;
+                        stack[top++] = k - 1;
+                        stack[top++] = 0;
+                    }
+
+                } else if (x < n && this.starts[x] <= end) {
+
+                    if (this.ends[x] >= start) {
+                        result.add(this.features[x]);
+                    }
+
+                    // Visit the right child
+                    stack[top++] = x + (1 << (k - 1));
+                    stack[top++] = k - 1;
+                    stack[top++] = 0;
+                }
+            }
+        }
+
+        /**
+         * Get the interval nearest to a position, an overlapping interval
+         * being at distance 0 and ties going to the upstream interval
+         */
+        int nearest(final int position) {
+
+            // First interval starting after the position
+            int low = 0;
+            int high = this.starts.length;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (this.starts[middle] <= position) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            final int upstream = low > 0 ? this.maxEndIndexes[low - 1] : -1;
+            if (upstream >= 0 && this.ends[upstream] >= position) {
+                return upstream;
+            }
+            if (low == this.starts.length) {
+                return upstream;
+            }
+            if (upstream < 0 || (long) this.starts[low] - position
+                < (long) position - this.ends[upstream]) {
+                return low;
+            }
+
+            return upstream;
+        }
+    }
+
+    /**
+     * This class define a growable list of int
+     */
+    private static final class IntList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        void add(final int value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(this.values, this.size);
+        }
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of features of the index
+     *
+     * @return number of features
+     */
+    public final int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the chromosomes of the index
+     *
+     * @return an unmodifiable list of chromosomes
+     */
+    public final List<String> getChromosomes() {
+        return Collections.unmodifiableList(
+            new ArrayList<>(this.chromosomes.keySet()));
+    }
+
+    /**
+     * Get the features overlapping a region
+     *
+     * @param chromosome chromosome of the region
+     * @param start      start position of the region
+     * @param end        end position of the region
+     * @return indexes of the features, in start order
+     */
+    public final int[] getOverlapping(final String chromosome,
+        final int start, final int end) {
+
+        final IntList result = new IntList();
+        final Intervals intervals = this.chromosomes.get(chromosome);
+        if (intervals != null && start <= end) {
+            intervals.overlapping(start, end, result);
+        }
+
+        return result.toArray();
+    }
+
+    /**
+     * Get the feature nearest to a position. A feature overlapping the
+     * position is at distance 0; on equal distances, the feature upstream is
+     * returned.
+     *
+     * @param chromosome chromosome of the position
+     * @param position   the position
+     * @return index of the feature or -1 if the chromosome has no feature
+     */
+    public final int getNearest(final String chromosome, final int position) {
+
+        final Intervals intervals = this.chromosomes.get(chromosome);
+        if (intervals == null || intervals.starts.length == 0) {
+            return -1;
+        }
+
+        return intervals.features[intervals.nearest(position)];
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Build the index of the features of a feature table, feature i being the
+     * i-th Id of the table
+     *
+     * @param features the features
+     * @return an index
+     */
+    public static FeatureIntervalIndex build(final FeatureTable features) {
+
+        // Features of each chromosome, in table order
+        final Map<String, IntList> byChromosome = new LinkedHashMap<>();
+        for (int i = 0; i < features.size(); i++) {
+            final String chromosome =
+                features.getChromosome(features.getKeyRow(i));
+            IntList list = byChromosome.get(chromosome);
+            if (list == null) {
+                list = new IntList();
+                byChromosome.put(chromosome, list);
+            }
+            list.add(i);
+        }
+
+        final Map<String, Intervals> chromosomes = new LinkedHashMap<>();
+        for (Map.Entry<String, IntList> e : byChromosome.entrySet()) {
+
+            // Sort on start, then on table order
+            final int n = e.getValue().size;
+            final long[] order = new long[n];
+            for (int i = 0; i < n; i++) {
+                final int row = features.getKeyRow(e.getValue().values[i]);
+                order[i] = (long) features.getStart(row) << 32 | i;
+            }
+            Arrays.sort(order);
+
+            final int[] starts = new int[n];
+            final int[] ends = new int[n];
+            final int[] indexes = new int[n];
+            for (int i = 0; i < n; i++) {
+                final int feature = e.getValue().values[(int) order[i]];
+                final int row = features.getKeyRow(feature);
+                starts[i] = features.getStart(row);
+                ends[i] = features.getEnd(row);
+                indexes[i] = feature;
+            }
+
+            chromosomes.put(e.getKey(), new Intervals(starts, ends, indexes));
+        }
+
+        return new FeatureIntervalIndex(chromosomes);
+    }
+
+    /**
+     * Write the index in a binary file. The file is replaced atomically.
+     *
+     * @param file the index file
+     * @throws IOException if an error occurs while writing file
+     */
+    public final void write(final File file) throws IOException {
+
+        long length = HEADER_SIZE;
+        final List<byte[]> names = new ArrayList<>(this.chromosomes.size());
+        for (Map.Entry<String, Intervals> e : this.chromosomes.entrySet()) {
+            final byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += 2 * Integer.BYTES + name.length
+                + 3L * Integer.BYTES * e.getValue().starts.length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too many features for an index file");
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(this.chromosomes.size());
+
+        int c = 0;
+        for (Intervals intervals : this.chromosomes.values()) {
+            final byte[] name = names.get(c++);
+            buffer.putInt(name.length).put(name);
+            buffer.putInt(intervals.starts.length);
+            final IntBuffer ints = buffer.asIntBuffer();
+            ints.put(intervals.starts).put(intervals.ends)
+                .put(intervals.features);
+            buffer.position(buffer.position() + Integer.BYTES * ints.position());
+        }
+        buffer.flip();
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel
+            .open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Load an index from a binary file. Intervals are bulk copied from a
+     * memory mapping of the file, the trees are computed again.
+     *
+     * @param file the index file
+     * @return an index
+     * @throws IOException if an error occurs while reading file or if the file
+     * is not a valid index
+     */
+    public static FeatureIntervalIndex load(final File file)
+        throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel()) {
+
+            final long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid feature interval index file: "
+                    + file);
+            }
+
+            final MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Invalid feature interval index file: "
+                    + file);
+            }
+
+            final int count = buffer.getInt();
+            final Map<String, Intervals> chromosomes = new LinkedHashMap<>();
+            try {
+                for (int c = 0; c < count; c++) {
+
+                    final byte[] name = new byte[buffer.getInt()];
+                    buffer.get(name);
+
+                    final int n = buffer.getInt();
+                    if (n < 0 || 3L * Integer.BYTES * n > buffer.remaining()) {
+                        throw new IOException(
+                            "Invalid feature interval index file: " + file);
+                    }
+
+                    final int[] starts = new int[n];
+                    final int[] ends = new int[n];
+                    final int[] features = new int[n];
+                    buffer.asIntBuffer().get(starts).get(ends).get(features);
+                    buffer.position(buffer.position() + 3 * Integer.BYTES * n);
+
+                    chromosomes.put(new String(name, StandardCharsets.UTF_8),
+                        new Intervals(starts, ends, features));
+                }
+            } catch (RuntimeException e) {
+                throw new IOException(
+                    "Invalid feature interval index file: " + file, e);
+            }
+
+            if (buffer.hasRemaining()) {
+                throw new IOException("Invalid feature interval index file: "
+                    + file);
+            }
+
+            return new FeatureIntervalIndex(chromosomes);
+        }
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Private constructor
+     *
+     * @param chromosomes intervals of each chromosome
+     */
+    private FeatureIntervalIndex(final Map<String, Intervals> chromosomes) {
+
+        this.chromosomes = chromosomes;
+
+        int size = 0;
+        for (Intervals intervals : chromosomes.values()) {
+            size += intervals.starts.length;
+        }
+        this.size = size;
+    }
+}
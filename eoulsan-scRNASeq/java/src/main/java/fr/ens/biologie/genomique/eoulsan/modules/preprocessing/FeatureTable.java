@@ -0,0 +1,482 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class define a table gathering metadata from annotation file for
+ * features, stored column by column: positions and lengths in int arrays,
+ * Ids, genomic types, types, chromosomes, transcripts and genes as codes of
+ * dictionaries.
+ * <p>
+ * Features are saved under each Id of their comma separated Id, as
+ * saveFeature does with SCFeatureMetadata objects: a new Id gets the row of
+ * the feature, a known Id gets its row updated with the length and bounds of
+ * the feature. The Ids of a feature being new share the same row.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class FeatureTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_CODE = -1;
+
+    // Dictionaries
+    private final IdDictionary ids = new IdDictionary();
+    private final IdDictionary names = new IdDictionary();
+    private final IdDictionary parents = new IdDictionary();
+
+    // Feature Ids in saving order, and row of each Id code
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private int keyCount;
+    private int[] keyRows = new int[INITIAL_CAPACITY];
+
+    // Rows
+    private int[] rowIds = new int[INITIAL_CAPACITY];
+    private int[] genomicTypes = new int[INITIAL_CAPACITY];
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] chromosomes = new int[INITIAL_CAPACITY];
+    private int[] transcripts = new int[INITIAL_CAPACITY];
+    private int[] genes = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    private int rowCount;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of feature Ids
+     *
+     * @return number of Ids
+     */
+    public final int size() {
+        return this.keyCount;
+    }
+
+    /**
+     * Get the number of rows, Ids of a same feature sharing a row
+     *
+     * @return number of rows
+     */
+    public final int getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * Get a feature Id in saving order
+     *
+     * @param index index of the Id
+     * @return feature Id
+     */
+    public final String getKey(final int index) {
+        return this.ids.get(this.keys[checkKey(index)]);
+    }
+
+    /**
+     * Get the row of a feature Id in saving order
+     *
+     * @param index index of the Id
+     * @return row of the feature
+     */
+    public final int getKeyRow(final int index) {
+        return this.keyRows[this.keys[checkKey(index)]];
+    }
+
+    /**
+     * Get the row of a feature Id
+     *
+     * @param id feature Id
+     * @return row of the feature or -1 if the Id is unknown
+     */
+    public final int getRow(final String id) {
+
+        final int code = this.ids.getCode(id);
+        return code < 0 ? -1 : this.keyRows[code];
+    }
+
+    /**
+     * Test if a feature Id is known
+     *
+     * @param id feature Id
+     * @return true if the Id is known
+     */
+    public final boolean containsKey(final String id) {
+        return getRow(id) >= 0;
+    }
+
+    /**
+     * Get feature genomic type
+     *
+     * @param row row of the feature
+     * @return genomicType
+     */
+    public final String getGenomicType(final int row) {
+        return this.names.get(this.genomicTypes[checkRow(row)]);
+    }
+
+    /**
+     * Get feature Id, that may be a comma separated list of Ids
+     *
+     * @param row row of the feature
+     * @return id
+     */
+    public final String getId(final int row) {
+        return this.ids.get(this.rowIds[checkRow(row)]);
+    }
+
+    /**
+     * Get feature type
+     *
+     * @param row row of the feature
+     * @return type
+     */
+    public final String getType(final int row) {
+        return this.names.get(this.types[checkRow(row)]);
+    }
+
+    /**
+     * Get feature Length
+     *
+     * @param row row of the feature
+     * @return length
+     */
+    public final int getLength(final int row) {
+        return this.lengths[checkRow(row)];
+    }
+
+    /**
+     * Get feature corresponding genId
+     *
+     * @param row row of the feature
+     * @return gene or null if not set
+     */
+    public final String getGene(final int row) {
+        return getParent(this.genes[checkRow(row)]);
+    }
+
+    /**
+     * Get feature start position
+     *
+     * @param row row of the feature
+     * @return start position(int)
+     */
+    public final int getStart(final int row) {
+        return this.starts[checkRow(row)];
+    }
+
+    /**
+     * Get feature end position
+     *
+     * @param row row of the feature
+     * @return end position(int)
+     */
+    public final int getEnd(final int row) {
+        return this.ends[checkRow(row)];
+    }
+
+    /**
+     * Get feature chromosome position
+     *
+     * @param row row of the feature
+     * @return chromosome (String)
+     */
+    public final String getChromosome(final int row) {
+        return this.names.get(this.chromosomes[checkRow(row)]);
+    }
+
+    /**
+     * Get feature transcript ID
+     *
+     * @param row row of the feature
+     * @return transcript (String) or null if not set
+     */
+    public final String getTranscript(final int row) {
+        return getParent(this.transcripts[checkRow(row)]);
+    }
+
+    /**
+     * Test if feature has gene characteristics
+     *
+     * @param row row of the feature
+     * @return true if feature is a gene, otherwise false
+     */
+    public final boolean isGene(final int row) {
+        return getGenomicType(row).toLowerCase().equals("gene");
+    }
+
+    /**
+     * Test if feature is a sparse one
+     *
+     * @param row row of the feature
+     * @return true if feature is an exon or a CDS
+     */
+    public final boolean isSparse(final int row) {
+
+        final String genomicType = getGenomicType(row);
+        return genomicType.toLowerCase().equals("exon") || genomicType
+            .toUpperCase().equals("CDS");
+    }
+
+    /**
+     * Get the metadata of a feature in a SCFeatureMetadata object
+     *
+     * @param row row of the feature
+     * @return a new SCFeatureMetadata object
+     */
+    public final SCFeatureMetadata getFeature(final int row) {
+
+        final SCFeatureMetadata feature =
+            new SCFeatureMetadata(getGenomicType(row));
+        feature.setId(getId(row));
+        feature.setType(getType(row));
+        feature.setLength(getLength(row));
+        feature.setStart(getStart(row));
+        feature.setEnd(getEnd(row));
+        feature.setChromosome(getChromosome(row));
+        feature.setGene(getGene(row));
+        feature.setTranscript(getTranscript(row));
+
+        return feature;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set gene of a feature
+     *
+     * @param row  row of the feature
+     * @param gene the gene Id of the gene corresponding to the feature, may be
+     *             null
+     */
+    public final void setGene(final int row, final String gene) {
+        this.genes[checkRow(row)] =
+            gene == null ? NO_CODE : this.parents.add(gene);
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Save a feature
+     *
+     * @param genomicType genomic type of the feature
+     * @param id          Id of the feature, may be a comma separated list
+     * @param type        type of the feature
+     * @param length      length of the feature
+     * @param start       start position of the feature
+     * @param end         end position of the feature
+     * @param chromosome  chromosome of the feature
+     * @param transcript  transcript Id of the feature, may be null
+     */
+    public final void add(final String genomicType, final String id,
+        final String type, final int length, final int start, final int end,
+        final String chromosome, final String transcript) {
+
+        // If features as a merged ID, separate and treat each one separately
+        final String[] featureIds =
+            id.indexOf(',') < 0 ? new String[] {id} : id.split(",", 0);
+
+        int row = -1;
+        for (String featureId : featureIds) {
+
+            final int code = addId(featureId);
+
+            // If Id is not known put feature
+            if (this.keyRows[code] < 0) {
+                if (row < 0) {
+                    row = addRow(addId(id), this.names.add(genomicType),
+                        this.names.add(type), this.names.add(chromosome),
+                        transcript == null ? NO_CODE :
+                            this.parents.add(transcript), NO_CODE, length,
+                        start, end);
+                }
+                addKey(code, row);
+
+                // Else update feature info
+            } else {
+                update(this.keyRows[code], length, start, end);
+            }
+        }
+    }
+
+    /**
+     * Save a feature
+     *
+     * @param feature SCFeatureMetadata to add
+     */
+    public final void add(final SCFeatureMetadata feature) {
+
+        add(feature.getGenomicType(), feature.getId(), feature.getType(),
+            feature.getLength(), feature.getStart(), feature.getEnd(),
+            feature.getChromosome(), feature.getTranscript());
+    }
+
+    /**
+     * Save the features of another table, in its saving order, as if they were
+     * saved after the features of this table
+     *
+     * @param other the other table
+     */
+    public final void addAll(final FeatureTable other) {
+
+        // Rows of the other table copied in this table
+        final int[] copies = new int[other.rowCount];
+        Arrays.fill(copies, -1);
+
+        for (int i = 0; i < other.keyCount; i++) {
+
+            final int code = addId(other.getKey(i));
+            final int otherRow = other.getKeyRow(i);
+
+            if (this.keyRows[code] < 0) {
+                if (copies[otherRow] < 0) {
+                    copies[otherRow] = addRow(addId(other.getId(otherRow)),
+                        this.names.add(other.getGenomicType(otherRow)),
+                        this.names.add(other.getType(otherRow)),
+                        this.names.add(other.getChromosome(otherRow)),
+                        addParent(other.getTranscript(otherRow)),
+                        addParent(other.getGene(otherRow)),
+                        other.lengths[otherRow], other.starts[otherRow],
+                        other.ends[otherRow]);
+                }
+                addKey(code, copies[otherRow]);
+            } else {
+                update(this.keyRows[code], other.lengths[otherRow],
+                    other.starts[otherRow], other.ends[otherRow]);
+            }
+        }
+    }
+
+    /**
+     * Write features parameter using a BufferedWriter
+     *
+     * @param row row of the feature
+     * @param out the Writer
+     * @throws IOException error with output file
+     */
+    public final void printMetadata(final int row, final BufferedWriter out)
+        throws IOException {
+
+        // Set output for gene
+        String output =
+            getId(row) + "\t" + getType(row) + "\t" + getLength(row);
+        if (isGene(row)) {
+            out.write(output);
+            return;
+        }
+
+        // Set output for transcripts
+        output = output + "\t" + getGene(row);
+
+        // Treat sparse features
+        if (isSparse(row)) {
+            output = output + "\t" + getTranscript(row);
+        }
+
+        out.write(output);
+    }
+
+    private void update(final int row, final int length, final int start,
+        final int end) {
+
+        this.lengths[row] += length;
+        if (this.starts[row] > start) {
+            this.starts[row] = start;
+        }
+        if (this.ends[row] < end) {
+            this.ends[row] = end;
+        }
+    }
+
+    private int addId(final String id) {
+
+        final int size = this.ids.size();
+        final int code = this.ids.add(id);
+
+        // New Ids have no row yet
+        if (code == size) {
+            if (code == this.keyRows.length) {
+                this.keyRows = Arrays.copyOf(this.keyRows, code * 2);
+            }
+            this.keyRows[code] = -1;
+        }
+
+        return code;
+    }
+
+    private int addParent(final String parent) {
+        return parent == null ? NO_CODE : this.parents.add(parent);
+    }
+
+    private String getParent(final int code) {
+        return code == NO_CODE ? null : this.parents.get(code);
+    }
+
+    private void addKey(final int code, final int row) {
+
+        if (this.keyCount == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.keyCount * 2);
+        }
+        this.keys[this.keyCount++] = code;
+        this.keyRows[code] = row;
+    }
+
+    private int addRow(final int id, final int genomicType, final int type,
+        final int chromosome, final int transcript, final int gene,
+        final int length, final int start, final int end) {
+
+        final int row = this.rowCount;
+        if (row == this.rowIds.length) {
+            final int capacity = row * 2;
+            this.rowIds = Arrays.copyOf(this.rowIds, capacity);
+            this.genomicTypes = Arrays.copyOf(this.genomicTypes, capacity);
+            this.types = Arrays.copyOf(this.types, capacity);
+            this.chromosomes = Arrays.copyOf(this.chromosomes, capacity);
+            this.transcripts = Arrays.copyOf(this.transcripts, capacity);
+            this.genes = Arrays.copyOf(this.genes, capacity);
+            this.lengths = Arrays.copyOf(this.lengths, capacity);
+            this.starts = Arrays.copyOf(this.starts, capacity);
+            this.ends = Arrays.copyOf(this.ends, capacity);
+        }
+
+        this.rowIds[row] = id;
+        this.genomicTypes[row] = genomicType;
+        this.types[row] = type;
+        this.chromosomes[row] = chromosome;
+        this.transcripts[row] = transcript;
+        this.genes[row] = gene;
+        this.lengths[row] = length;
+        this.starts[row] = start;
+        this.ends[row] = end;
+        this.rowCount++;
+
+        return row;
+    }
+
+    private int checkKey(final int index) {
+
+        if (index < 0 || index >= this.keyCount) {
+            throw new IndexOutOfBoundsException("Unknown Id index: " + index);
+        }
+
+        return index;
+    }
+
+    private int checkRow(final int row) {
+
+        if (row < 0 || row >= this.rowCount) {
+            throw new IndexOutOfBoundsException("Unknown row: " + row);
+        }
+
+        return row;
+    }
+}
@@ -16,6 +16,7 @@ import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
 import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
 import fr.ens.biologie.genomique.eoulsan.core.Modules;
 import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
 import fr.ens.biologie.genomique.eoulsan.core.Parameter;
 import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
 import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
@@ -25,8 +26,6 @@ import fr.ens.biologie.genomique.eoulsan.core.Version;
 import fr.ens.biologie.genomique.eoulsan.data.*;
 import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
 
-import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOutputPort;
-
 /**
  * This class define a module that extract information from the annotation file
  *
@@ -54,6 +53,11 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
     private static final String MITOCHONDRIAL_TAG_PARAMETER_NAME =
         "mitochondrial.tag";
     private static final String SPIKE_TAG_PARAMETER_NAME = "spike.tag";
+    private static final String THREADS_PARAMETER_NAME = "n.threads";
+    private static final String CACHE_DIRECTORY_PARAMETER_NAME =
+        "cache.directory";
+    private static final String CACHE_MAX_SIZE_PARAMETER_NAME =
+        "cache.max.size";
 
     /**
      * Default Parameters
@@ -72,10 +76,32 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
     private String mitochondrialTag = DEFAULT_MITOCHONDRIAL_TAG;
     private String spikeTag = DEFAULT_SPIKE_TAG;
 
+    private int threadCount = 1;
+
+    private static final long DEFAULT_CACHE_MAX_SIZE = 1024;
+
+    private File cacheDirectory;
+    private long cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+
+    /**
+     * Attribute keys of transcript - gene relations, as bytes
+     */
+    private static final byte[] ID_KEY = AnnotationScanner.bytes("ID");
+    private static final byte[] PARENT_KEY = AnnotationScanner.bytes("Parent");
+    private static final byte[] TRANSCRIPT_ID_KEY =
+        AnnotationScanner.bytes("transcript_id");
+    private static final byte[] GENE_ID_KEY = AnnotationScanner.bytes("gene_id");
+
     // DataFormats
     private static final DataFormat GENES_METADATA_TSV =
         DataFormatRegistry.getInstance()
             .getDataFormatFromName("genes_metadata_tsv");
+    private static final DataFormat GENES_INDEX_BIN =
+        DataFormatRegistry.getInstance()
+            .getDataFormatFromName("genes_index_bin");
+    private static final DataFormat FEATURES_INTERVALS_BIN =
+        DataFormatRegistry.getInstance()
+            .getDataFormatFromName("features_intervals_bin");
 
     //
     // Getters
@@ -126,6 +152,33 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
         return this.spikeTag;
     }
 
+    /**
+     * Get the number of threads used to parse the annotation file
+     *
+     * @return the number of threads
+     */
+    protected int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Get the directory of the cache of extracted metadata
+     *
+     * @return the cache directory or null if metadata are not cached
+     */
+    protected File getCacheDirectory() {
+        return this.cacheDirectory;
+    }
+
+    /**
+     * Get the maximum size of the cache of extracted metadata
+     *
+     * @return the maximum size in megabytes
+     */
+    protected long getCacheMaxSize() {
+        return this.cacheMaxSize;
+    }
+
     //
     // Module Methods
     //
@@ -150,7 +203,10 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
     }
 
     @Override public OutputPorts getOutputPorts() {
-        return singleOutputPort("genesoutput", GENES_METADATA_TSV);
+        return new OutputPortsBuilder()
+            .addPort("genesoutput", GENES_METADATA_TSV)
+            .addPort("genesindex", GENES_INDEX_BIN)
+            .addPort("featuresintervals", FEATURES_INTERVALS_BIN).create();
     }
 
     @Override public void configure(final StepConfigurationContext context,
@@ -182,6 +238,26 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
                 this.spikeTag = p.getStringValue();
                 break;
 
+            case THREADS_PARAMETER_NAME:
+                this.threadCount = p.getIntValue();
+                if (this.threadCount < 1) {
+                    Modules.badParameterValue(context, p,
+                        "The number of threads must be greater than 0");
+                }
+                break;
+
+            case CACHE_DIRECTORY_PARAMETER_NAME:
+                this.cacheDirectory = new File(p.getStringValue());
+                break;
+
+            case CACHE_MAX_SIZE_PARAMETER_NAME:
+                this.cacheMaxSize = p.getLongValue();
+                if (this.cacheMaxSize < 0) {
+                    Modules.badParameterValue(context, p,
+                        "The maximum size of the cache cannot be negative");
+                }
+                break;
+
             case FEATURES_FILE_FORMAT:
                 switch (p.getLowerStringValue()) {
 
@@ -217,6 +293,13 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
                 + ", attribute ID=" + this.attributeId);
         getLogger().info(
             "In" + getName() + ", format=" + (this.gtfFormat ? "gtf" : "gff"));
+        getLogger().info(
+            "In " + getName() + ", threads=" + this.threadCount);
+        if (this.cacheDirectory != null) {
+            getLogger().info("In " + getName() + ", cache directory="
+                + this.cacheDirectory + ", cache max size=" + this.cacheMaxSize
+                + " MB");
+        }
     }
 
     @Override public TaskResult execute(final TaskContext context,
@@ -227,22 +310,38 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
                     DataFormats.ANNOTATION_GFF);
             final Data geneMetadata = context
                 .getOutputData(GENES_METADATA_TSV, featuresAnnotationData);
+            final Data geneIndex = context
+                .getOutputData(GENES_INDEX_BIN, featuresAnnotationData);
+            final Data featuresIntervals = context
+                .getOutputData(FEATURES_INTERVALS_BIN, featuresAnnotationData);
 
             // Get annotation file
             final DataFile annotationFile =
                 featuresAnnotationData.getDataFile();
 
-            // Get final metadata file
+            // Get final metadata and index files
             final File metadataFile = geneMetadata.getDataFile().toFile();
+            final File indexFile = geneIndex.getDataFile().toFile();
+            final File intervalsFile =
+                featuresIntervals.getDataFile().toFile();
 
             getLogger()
                 .info("Annotation file: " + annotationFile.toFile().toPath());
             getLogger().info("Output file: " + metadataFile.toPath());
 
             // Write metadata file
-            extractMetadata(annotationFile, this.mitochondrialTag,
+            if (this.cacheDirectory == null) {
+                extractMetadata(annotationFile, this.mitochondrialTag,
+                    this.spikeTag, this.genomicType, this.attributeId,
+                    this.gtfFormat, metadataFile, indexFile, intervalsFile,
+                    this.threadCount);
+            } else if (extractMetadata(annotationFile, this.mitochondrialTag,
                 this.spikeTag, this.genomicType, this.attributeId,
-                this.gtfFormat, metadataFile);
+                this.gtfFormat, metadataFile, indexFile, intervalsFile,
+                this.threadCount, new AnnotationCache(this.cacheDirectory,
+                    this.cacheMaxSize * 1024 * 1024))) {
+                getLogger().info("Metadata restored from cache");
+            }
 
             // Write log file
             return status.createTaskResult();
@@ -275,14 +374,204 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
         final String attributeId, final boolean gtfFormat, File outFile)
         throws IOException, EoulsanException {
 
+        extractMetadata(annotations, mtTag, spikeTag, genomicType, attributeId,
+            gtfFormat, outFile, null);
+    }
+
+    /**
+     * Extract and Write features metadata from annotation file, and the gene
+     * index giving a row to each feature in metadata order
+     *
+     * @param annotations the annotation file
+     * @param mtTag       tag for mitochondrial features
+     * @param spikeTag    tag for spike in features
+     * @param genomicType genomic type of the features to consider
+     * @param attributeId Id to design the feature
+     * @param gtfFormat   boolean indicating if the annotation file is gtf or not
+     * @param outFile     output file to write data
+     * @param indexFile   output file to write gene index, may be null
+     * @throws IOException      if encounters problem with input or output file
+     * @throws EoulsanException if features has no Id
+     */
+    protected static void extractMetadata(DataFile annotations,
+        final String mtTag, final String spikeTag, final String genomicType,
+        final String attributeId, final boolean gtfFormat, File outFile,
+        File indexFile) throws IOException, EoulsanException {
+
+        extractMetadata(annotations, mtTag, spikeTag, genomicType, attributeId,
+            gtfFormat, outFile, indexFile, null, 1);
+    }
+
+    /**
+     * Extract and Write features metadata from annotation file, and the gene
+     * index giving a row to each feature in metadata order, and the index of
+     * their genomic intervals. Local files uncompressed or bgzip compressed
+     * are parsed in chunks on several threads
+     *
+     * @param annotations   the annotation file
+     * @param mtTag         tag for mitochondrial features
+     * @param spikeTag      tag for spike in features
+     * @param genomicType   genomic type of the features to consider
+     * @param attributeId   Id to design the feature
+     * @param gtfFormat     boolean indicating if the annotation file is gtf or
+     *                      not
+     * @param outFile       output file to write data
+     * @param indexFile     output file to write gene index, may be null
+     * @param intervalsFile output file to write interval index, may be null
+     * @param threadCount   number of threads to parse the annotation file
+     * @throws IOException      if encounters problem with input or output file
+     * @throws EoulsanException if features has no Id
+     */
+    protected static void extractMetadata(DataFile annotations,
+        final String mtTag, final String spikeTag, final String genomicType,
+        final String attributeId, final boolean gtfFormat, File outFile,
+        File indexFile, File intervalsFile, final int threadCount)
+        throws IOException, EoulsanException {
+
+        // Initialise gathering variables
+        final FeatureTable features = new FeatureTable();
+        final Map<String, String> parents = new HashMap<>();
+
+        // Read annotation file
+        final File file = annotations.toFile();
+        if (threadCount > 1 && file != null && file.isFile()
+            && ParallelAnnotationParser.isSplittable(file)) {
+            new ParallelAnnotationParser(mtTag, spikeTag, genomicType,
+                attributeId, gtfFormat, threadCount).parse(file, features,
+                parents);
+        } else {
+            scanFeatures(annotations, mtTag, spikeTag, genomicType,
+                attributeId, gtfFormat, features, parents);
+        }
+
+        writeMetadata(features, parents, genomicType, outFile, indexFile,
+            intervalsFile);
+    }
+
+    /**
+     * Extract and Write features metadata from annotation file, and the gene
+     * index and the interval index, or restore them from a cache. Files
+     * extracted are saved in the cache, an error with the cache only being
+     * logged.
+     *
+     * @param annotations   the annotation file
+     * @param mtTag         tag for mitochondrial features
+     * @param spikeTag      tag for spike in features
+     * @param genomicType   genomic type of the features to consider
+     * @param attributeId   Id to design the feature
+     * @param gtfFormat     boolean indicating if the annotation file is gtf or
+     *                      not
+     * @param outFile       output file to write data
+     * @param indexFile     output file to write gene index, may be null
+     * @param intervalsFile output file to write interval index, may be null
+     * @param threadCount   number of threads to parse the annotation file
+     * @param cache         cache of extracted metadata
+     * @return true if files were restored from the cache
+     * @throws IOException      if encounters problem with input or output file
+     * @throws EoulsanException if features has no Id
+     */
+    static boolean extractMetadata(DataFile annotations, final String mtTag,
+        final String spikeTag, final String genomicType,
+        final String attributeId, final boolean gtfFormat, File outFile,
+        File indexFile, File intervalsFile, final int threadCount,
+        final AnnotationCache cache)
+        throws IOException, EoulsanException {
+
+        final String key = AnnotationCache.key(annotations, genomicType,
+            attributeId, mtTag, spikeTag, gtfFormat ? "gtf" : "gff");
+
+        try {
+            if (cache.restore(key, outFile, indexFile, intervalsFile)) {
+                return true;
+            }
+        } catch (IOException e) {
+            getLogger().warning(
+                "Cannot restore metadata from cache: " + e.getMessage());
+        }
+
+        extractMetadata(annotations, mtTag, spikeTag, genomicType, attributeId,
+            gtfFormat, outFile, indexFile, intervalsFile, threadCount);
+
+        try {
+            cache.store(key, outFile, indexFile, intervalsFile);
+        } catch (IOException e) {
+            getLogger().warning(
+                "Cannot save metadata in cache: " + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Gather features and transcript - gene relations of an annotation file
+     * with an annotation scanner, attributes being only read on the lines of
+     * the genomic type and on transcripts
+     *
+     * @param annotations the annotation file
+     * @param mtTag       tag for mitochondrial features
+     * @param spikeTag    tag for spike in features
+     * @param genomicType genomic type of the features to consider
+     * @param attributeId Id to design the feature
+     * @param gtfFormat   boolean indicating if the annotation file is gtf or not
+     * @param features    table to save features
+     * @param parents     Map to save transcript id - gene id relations
+     * @throws IOException      if encounters problem with input file
+     * @throws EoulsanException if features has no Id
+     */
+    static void scanFeatures(final DataFile annotations, final String mtTag,
+        final String spikeTag, final String genomicType,
+        final String attributeId, final boolean gtfFormat,
+        final FeatureTable features, final Map<String, String> parents)
+        throws IOException, EoulsanException {
+
+        final byte[] attributeKey = AnnotationScanner.bytes(attributeId);
+        final boolean gene = genomicType.toLowerCase().equals("gene");
+
+        try (final AnnotationScanner scanner = new AnnotationScanner(
+            annotations.open(), gtfFormat, genomicType, !gene)) {
+
+            while (scanner.next()) {
+
+                //Save feature tree if genomic type is not gene ----------------
+                if (scanner.isParent()) {
+                    saveParentGene(scanner, parents, gtfFormat);
+                }
+
+                if (scanner.isFeature()) {
+
+                    // Extract and save feature information --------------------
+                    saveMetadata(features, scanner, gtfFormat, attributeKey,
+                        attributeId, mtTag, spikeTag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gather features and transcript - gene relations of an annotation file
+     * with GFFReader entries. Not used by the module, this is the baseline of
+     * the annotation parsing benchmark.
+     *
+     * @param annotations the annotation file
+     * @param mtTag       tag for mitochondrial features
+     * @param spikeTag    tag for spike in features
+     * @param genomicType genomic type of the features to consider
+     * @param attributeId Id to design the feature
+     * @param gtfFormat   boolean indicating if the annotation file is gtf or not
+     * @param features    table to save features
+     * @param parents     Map to save transcript id - gene id relations
+     * @throws IOException      if encounters problem with input file
+     * @throws EoulsanException if features has no Id
+     */
+    static void readFeatures(final DataFile annotations, final String mtTag,
+        final String spikeTag, final String genomicType,
+        final String attributeId, final boolean gtfFormat,
+        final FeatureTable features, Map<String, String> parents)
+        throws IOException, EoulsanException {
+
         try (final GFFReader annotationReader = gtfFormat ?
             new GTFReader(annotations.open()) :
-            new GFFReader(annotations.open());
-            BufferedWriter out = new BufferedWriter(new FileWriter(outFile))) {
-
-            // Initialise gathering variables
-            Map<String, SCFeatureMetadata> features = new HashMap<>();
-            Map<String, String> parents = new HashMap<>();
+            new GFFReader(annotations.open())) {
 
             //Read annotation file
             for (final GFFEntry anno : annotationReader) {
@@ -302,20 +591,41 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
                             spikeTag);
 
                     // Save Feature  Information -------------------------------
-                    saveFeature(features, feature);
+                    features.add(feature);
 
                 }
             }
+        }
+    }
+
+    /**
+     * Complete features with their gene and write their metadata and indexes
+     *
+     * @param features      the features
+     * @param parents       transcript id - gene id relations
+     * @param genomicType   genomic type of the features
+     * @param outFile       output file to write data
+     * @param indexFile     output file to write gene index, may be null
+     * @param intervalsFile output file to write interval index, may be null
+     * @throws IOException if encounters problem with output files
+     */
+    static void writeMetadata(final FeatureTable features,
+        final Map<String, String> parents, final String genomicType,
+        final File outFile, final File indexFile, final File intervalsFile)
+        throws IOException {
+
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(outFile))) {
 
             // Complete features -----------------------------------------------
 
-            for (String id : features.keySet()) {
-                SCFeatureMetadata feature = features.get(id);
-                if (!feature.isGene()) {
-                    if (!feature.isSparse()) {
-                        feature.setGene(parents.get(id));
+            for (int i = 0; i < features.size(); i++) {
+                final int row = features.getKeyRow(i);
+                if (!features.isGene(row)) {
+                    if (!features.isSparse(row)) {
+                        features.setGene(row, parents.get(features.getKey(i)));
                     } else {
-                        feature.setGene(parents.get(feature.getTranscript()));
+                        features.setGene(row,
+                            parents.get(features.getTranscript(row)));
                     }
                 }
             }
@@ -336,9 +646,21 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
             }
             // Write metadata in output file
             out.newLine();
-            for (String id : features.keySet()) {
-                features.get(id).printMetadata(out);
+            final List<String> ids = new ArrayList<>(features.size());
+            for (int i = 0; i < features.size(); i++) {
+                features.printMetadata(features.getKeyRow(i), out);
                 out.newLine();
+                ids.add(features.getKey(i));
+            }
+
+            // Write gene index ------------------------------------------------
+            if (indexFile != null) {
+                new GeneDictionary(ids).write(indexFile);
+            }
+
+            // Write interval index --------------------------------------------
+            if (intervalsFile != null) {
+                FeatureIntervalIndex.build(features).write(intervalsFile);
             }
         }
     }
@@ -389,6 +711,33 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
         return map;
     }
 
+    /**
+     * Save transcript id - gene id relation of the transcript line of an
+     * annotation scanner
+     *
+     * @param scanner   the annotation scanner on a transcript line
+     * @param map       Map to save data
+     * @param gtfFormat boolean indicating whether annotations are from a gtf file or not
+     */
+    static void saveParentGene(final AnnotationScanner scanner,
+        final Map<String, String> map, final boolean gtfFormat) {
+
+        String transcript =
+            scanner.getAttributeValue(gtfFormat ? TRANSCRIPT_ID_KEY : ID_KEY);
+        String gene =
+            scanner.getAttributeValue(gtfFormat ? GENE_ID_KEY : PARENT_KEY);
+
+        // Treat ID=transcript:ID and Parent=gene:ID
+        if (transcript != null) {
+            transcript = removePrefix(transcript);
+        }
+        if (gene != null) {
+            gene = removePrefix(gene);
+        }
+
+        map.put(transcript, gene);
+    }
+
     /**
      * Extract metadata from annotation file in a SCFeatureMetadata object
      *
@@ -473,6 +822,106 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
 
     }
 
+    /**
+     * Extract metadata from the feature line of an annotation scanner and save
+     * it in a feature table
+     *
+     * @param features     table to save the feature
+     * @param scanner      the annotation scanner on a feature line
+     * @param gtfFormat    boolean indicating if the annotation file is gtf or not
+     * @param attributeKey attribute name for Id of feature, as bytes
+     * @param attributeId  attribute name for Id of feature (String)
+     * @param mtTag        tag indicating mitochondrial features (String)
+     * @param spikeTag     tag indicating exogenous features (String)
+     * @throws IOException      if a position is not a number
+     * @throws EoulsanException if attributeId field is not defined in the file
+     */
+    static void saveMetadata(final FeatureTable features,
+        final AnnotationScanner scanner, final boolean gtfFormat,
+        final byte[] attributeKey, final String attributeId,
+        final String mtTag, final String spikeTag)
+        throws IOException, EoulsanException {
+
+        // get genomic type
+        final String genomicType = scanner.getType();
+
+        // get Id
+        final String featureId = scanner.getAttributeValue(attributeKey);
+        if (featureId == null) {
+            throw new EoulsanException(
+                "Feature " + genomicType + " does not contain a " + attributeId
+                    + " attribute");
+        }
+
+        // Get position information
+        final int start = scanner.getStart();
+        final int end = scanner.getEnd();
+        final String chromosome = scanner.getSeqId();
+
+        // get feature type
+        final String type;
+        if (chromosome.equals(mtTag)) {
+            type = "mitochondrial";
+        } else if (chromosome.equals(spikeTag)) {
+            type = "spike";
+        } else {
+            type = "other";
+        }
+
+        // get transcript of sparse features
+        String transcript = null;
+        if (genomicType.toLowerCase().equals("exon") || genomicType
+            .toUpperCase().equals("CDS")) {
+
+            transcript = scanner
+                .getAttributeValue(gtfFormat ? TRANSCRIPT_ID_KEY : PARENT_KEY);
+
+            // Keep the prefixed transcripts of a list, as GFFEntry parsing does
+            if (transcript != null && transcript.indexOf(',') >= 0) {
+                final StringBuilder sb = new StringBuilder();
+                int from = 0;
+                while (from <= transcript.length()) {
+                    int to = transcript.indexOf(',', from);
+                    if (to < 0) {
+                        to = transcript.length();
+                    }
+                    final String trans = transcript.substring(from, to);
+                    if (trans.indexOf(':') >= 0) {
+                        if (sb.length() > 0) {
+                            sb.append(',');
+                        }
+                        sb.append(removePrefix(trans));
+                    }
+                    from = to + 1;
+                }
+                transcript = sb.toString();
+            } else if (transcript != null) {
+                transcript = removePrefix(transcript);
+            }
+        }
+
+        // Save MetaData
+        features.add(genomicType, featureId, type, end - start + 1, start, end,
+            chromosome, transcript);
+    }
+
+    /**
+     * Remove the type prefix of an Id, "type:ID" giving "ID"
+     *
+     * @param id the Id
+     * @return the Id without prefix, or the Id if it has no prefix
+     */
+    private static String removePrefix(final String id) {
+
+        final int colon = id.indexOf(':');
+        if (colon < 0) {
+            return id;
+        }
+
+        final int next = id.indexOf(':', colon + 1);
+        return id.substring(colon + 1, next < 0 ? id.length() : next);
+    }
+
     /**
      * Save Feature metadata
      *
@@ -489,16 +938,16 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
         if(id.contains(",")) {
             List<String> ids = Arrays.asList(id.split(",", 0));
 
-            for(String id : ids) {
+            for(String featureId : ids) {
                 // If Id is not known put feature
-                if (!features.containsKey(id)) {
+                if (!features.containsKey(featureId)) {
 
-                    features.put(id, feature);
+                    features.put(featureId, feature);
 
                     // Else update feature info
                 } else {
 
-                    SCFeatureMetadata oldFeature = features.get(id);
+                    SCFeatureMetadata oldFeature = features.get(featureId);
                     final int oldLength = oldFeature.getLength();
                     final int oldStart = oldFeature.getStart();
                     final int oldEnd = oldFeature.getEnd();
@@ -506,9 +955,9 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
                     oldFeature.setLength(oldLength + feature.getLength());
 
                     if (oldStart > feature.getStart())
-                        oldFeature.setStart(oldStart);
-                    if (oldEnd > feature.getEnd())
-                        oldFeature.setEnd(oldEnd);
+                        oldFeature.setStart(feature.getStart());
+                    if (oldEnd < feature.getEnd())
+                        oldFeature.setEnd(feature.getEnd());
 
                 }
             }
@@ -532,9 +981,9 @@ import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOu
                 oldFeature.setLength(oldLength + feature.getLength());
 
                 if (oldStart > feature.getStart())
-                    oldFeature.setStart(oldStart);
-                if (oldEnd > feature.getEnd())
-                    oldFeature.setEnd(oldEnd);
+                    oldFeature.setStart(feature.getStart());
+                if (oldEnd < feature.getEnd())
+                    oldFeature.setEnd(feature.getEnd());
 
             }
         }
@@ -0,0 +1,395 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class define a dictionary giving a dense int index to each gene Id.
+ * Ids are stored as bytes in an open-addressing hash table, so they can be
+ * looked up straight from a byte range without creating a String.
+ * <p>
+ * A dictionary can be saved in a binary index file holding its hash table and
+ * a sorted Id table, and loaded back from a memory mapping without hashing
+ * any Id again.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class GeneDictionary {
+
+    /**
+     * Index file header
+     */
+    private static final int MAGIC = 0x47444958; // "GDIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    // Id bytes, Id i being data[offsets[i], offsets[i + 1])
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] hashes;
+    private final int[] table;
+    private final int[] sorted;
+    private final int mask;
+
+    // Ids decoded on demand
+    private final String[] ids;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of genes of the dictionary
+     *
+     * @return number of genes
+     */
+    public final int size() {
+        return this.hashes.length;
+    }
+
+    /**
+     * Get gene Id from its index
+     *
+     * @param index index of the gene
+     * @return gene Id
+     */
+    public final String getId(final int index) {
+
+        String id = this.ids[index];
+        if (id == null) {
+            id = new String(this.data, this.offsets[index],
+                this.offsets[index + 1] - this.offsets[index],
+                StandardCharsets.UTF_8);
+            this.ids[index] = id;
+        }
+
+        return id;
+    }
+
+    /**
+     * Get all gene Ids in index order
+     *
+     * @return an unmodifiable list of gene Ids
+     */
+    public final List<String> getIds() {
+
+        return new AbstractList<String>() {
+
+            @Override
+            public String get(final int index) {
+                return getId(index);
+            }
+
+            @Override
+            public int size() {
+                return GeneDictionary.this.size();
+            }
+        };
+    }
+
+    /**
+     * Get the index of the gene of a given rank in Id order
+     *
+     * @param rank rank of the gene Id in sorted Ids
+     * @return index of the gene
+     */
+    public final int getSortedIndex(final int rank) {
+        return this.sorted[rank];
+    }
+
+    /**
+     * Get the index of a gene
+     *
+     * @param id gene Id
+     * @return index of the gene or -1 if the gene is unknown
+     */
+    public final int getIndex(final String id) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        return getIndex(key, 0, key.length);
+    }
+
+    /**
+     * Get the index of a gene from the bytes of its Id
+     *
+     * @param buffer array holding the Id
+     * @param offset offset of the Id in the array
+     * @param length length of the Id
+     * @return index of the gene or -1 if the gene is unknown
+     */
+    public final int getIndex(final byte[] buffer, final int offset,
+        final int length) {
+
+        final int hash = hash(buffer, offset, length);
+
+        for (int slot = hash & this.mask; ; slot = (slot + 1) & this.mask) {
+
+            final int entry = this.table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+
+            final int index = entry - 1;
+            if (this.hashes[index] == hash
+                && equals(index, buffer, offset, length)) {
+                return index;
+            }
+        }
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Compute the hash of a byte range (FNV-1a)
+     *
+     * @param buffer array holding the bytes
+     * @param offset offset of the range
+     * @param length length of the range
+     * @return hash of the range
+     */
+    static int hash(final byte[] buffer, final int offset, final int length) {
+
+        int hash = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= buffer[i];
+            hash *= 0x01000193;
+        }
+
+        // Spread high bits on low bits used for slots
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean equals(final int index, final byte[] buffer,
+        final int offset, final int length) {
+
+        final int start = this.offsets[index];
+        if (this.offsets[index + 1] - start != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (this.data[start + i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compare two Ids on their bytes
+     */
+    private int compare(final int index1, final int index2) {
+
+        final int start1 = this.offsets[index1];
+        final int start2 = this.offsets[index2];
+        final int length1 = this.offsets[index1 + 1] - start1;
+        final int length2 = this.offsets[index2 + 1] - start2;
+
+        for (int i = 0; i < Math.min(length1, length2); i++) {
+            final int diff =
+                (this.data[start1 + i] & 0xff) - (this.data[start2 + i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+
+        return length1 - length2;
+    }
+
+    /**
+     * Write the dictionary in a binary index file. The file is replaced
+     * atomically.
+     *
+     * @param file the index file
+     * @throws IOException if an error occurs while writing file
+     */
+    public final void write(final File file) throws IOException {
+
+        final int n = size();
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+            + Integer.BYTES * (this.offsets.length + 2 * n + this.table.length)
+            + this.data.length);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(n)
+            .putInt(this.table.length);
+        buffer.asIntBuffer().put(this.offsets).put(this.hashes)
+            .put(this.table).put(this.sorted);
+        buffer.position(buffer.capacity() - this.data.length);
+        buffer.put(this.data);
+        buffer.flip();
+
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel
+            .open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Load a dictionary from a binary index file. The file is memory mapped
+     * and its tables are bulk copied, no Id is decoded nor hashed.
+     *
+     * @param file the index file
+     * @return a dictionary
+     * @throws IOException if an error occurs while reading file or if the file
+     * is not a valid index
+     */
+    public static GeneDictionary load(final File file) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel()) {
+
+            final long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid gene index file: " + file);
+            }
+
+            final MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Invalid gene index file: " + file);
+            }
+
+            final int n = buffer.getInt();
+            final int capacity = buffer.getInt();
+            if (n < 0 || capacity < 2 || Integer.bitCount(capacity) != 1
+                || HEADER_SIZE + Integer.BYTES * (3L * n + 1 + capacity)
+                > fileSize) {
+                throw new IOException("Invalid gene index file: " + file);
+            }
+
+            final int[] offsets = new int[n + 1];
+            final int[] hashes = new int[n];
+            final int[] table = new int[capacity];
+            final int[] sorted = new int[n];
+            buffer.asIntBuffer().get(offsets).get(hashes).get(table)
+                .get(sorted);
+
+            final int dataStart = HEADER_SIZE
+                + Integer.BYTES * (offsets.length + 2 * n + capacity);
+            if (dataStart + (long) offsets[n] != fileSize) {
+                throw new IOException("Invalid gene index file: " + file);
+            }
+
+            final byte[] data = new byte[offsets[n]];
+            buffer.position(dataStart);
+            buffer.get(data);
+
+            return new GeneDictionary(data, offsets, hashes, table, sorted);
+        }
+    }
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Private constructor used when loading an index file
+     */
+    private GeneDictionary(final byte[] data, final int[] offsets,
+        final int[] hashes, final int[] table, final int[] sorted) {
+
+        this.data = data;
+        this.offsets = offsets;
+        this.hashes = hashes;
+        this.table = table;
+        this.sorted = sorted;
+        this.mask = table.length - 1;
+        this.ids = new String[hashes.length];
+    }
+
+    /**
+     * Public constructor. If an Id is duplicated, lookups return its first
+     * index.
+     *
+     * @param ids gene Ids in index order
+     */
+    public GeneDictionary(final List<String> ids) {
+
+        if (ids == null) {
+            throw new NullPointerException("ids argument cannot be null");
+        }
+
+        final int n = ids.size();
+        this.ids = ids.toArray(new String[n]);
+        this.offsets = new int[n + 1];
+        this.hashes = new int[n];
+
+        // Pack Id bytes
+        final byte[][] keys = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            keys[i] = this.ids[i].getBytes(StandardCharsets.UTF_8);
+            this.offsets[i + 1] = this.offsets[i] + keys[i].length;
+        }
+        this.data = new byte[this.offsets[n]];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(keys[i], 0, this.data, this.offsets[i],
+                keys[i].length);
+        }
+
+        // Keep load factor under 0.5
+        int capacity = 2;
+        while (capacity < n * 2) {
+            capacity <<= 1;
+        }
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < n; i++) {
+
+            this.hashes[i] = hash(keys[i], 0, keys[i].length);
+
+            if (getIndex(keys[i], 0, keys[i].length) >= 0) {
+                continue;
+            }
+
+            int slot = this.hashes[i] & this.mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.table[slot] = i + 1;
+        }
+
+        // Sort indexes on Id bytes, ties in index order
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                final int diff = GeneDictionary.this.compare(i1, i2);
+                return diff != 0 ? diff : Integer.compare(i1, i2);
+            }
+        });
+        this.sorted = new int[n];
+        for (int i = 0; i < n; i++) {
+            this.sorted[i] = order[i];
+        }
+    }
+}
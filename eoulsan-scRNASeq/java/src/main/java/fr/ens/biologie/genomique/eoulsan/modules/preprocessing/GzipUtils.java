@@ -0,0 +1,122 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class define utility methods to read files that may be gzip or bgzip
+ * compressed. Compression is detected from magic bytes, not from file name.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public final class GzipUtils {
+
+    /**
+     * Gzip magic bytes, shared by bgzip files
+     */
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Test if a file is gzip (or bgzip) compressed
+     *
+     * @param file the file to test
+     * @return true if the file starts with gzip magic bytes
+     * @throws IOException if an error occurs while reading file
+     */
+    public static boolean isGzip(final File file) throws IOException {
+
+        try (FileChannel channel = FileChannel
+            .open(file.toPath(), StandardOpenOption.READ)) {
+            return isGzip(channel);
+        }
+    }
+
+    /**
+     * Open a file, decompressing it if needed
+     *
+     * @param file the file to open
+     * @return an input stream on the uncompressed content
+     * @throws IOException if an error occurs while opening file
+     */
+    public static InputStream open(final File file) throws IOException {
+
+        final InputStream in =
+            new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+
+        in.mark(2);
+        final boolean gzip =
+            in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+        in.reset();
+
+        // GZIPInputStream reads all members of bgzip files
+        return gzip ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+
+    /**
+     * Open a channel on a file, decompressing it if needed. Uncompressed files
+     * are read straight from a file channel.
+     *
+     * @param file the file to open
+     * @return a channel on the uncompressed content
+     * @throws IOException if an error occurs while opening file
+     */
+    public static ReadableByteChannel openChannel(final File file)
+        throws IOException {
+
+        final FileChannel channel =
+            FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            if (!isGzip(channel)) {
+                return channel;
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        channel.close();
+        return Channels.newChannel(open(file));
+    }
+
+    /**
+     * Test magic bytes of a channel, restoring its position
+     */
+    private static boolean isGzip(final FileChannel channel)
+        throws IOException {
+
+        final ByteBuffer magic = ByteBuffer.allocate(2);
+        while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            // Read until two bytes are available or end of file
+        }
+        channel.position(0);
+
+        return magic.position() == 2
+            && (magic.get(0) & 0xff) == GZIP_MAGIC_1
+            && (magic.get(1) & 0xff) == GZIP_MAGIC_2;
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Private constructor
+     */
+    private GzipUtils() {
+    }
+}
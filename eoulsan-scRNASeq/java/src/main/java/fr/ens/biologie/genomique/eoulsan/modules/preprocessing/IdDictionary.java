@@ -0,0 +1,164 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class define a growable dictionary giving a dense int code to each
+ * String. Strings are stored as UTF-8 bytes in a single array, with an
+ * open-addressing hash table on their codes, so a dictionary of n Strings
+ * costs their bytes and four ints per String.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+final class IdDictionary {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // String bytes, String i being data[offsets[i], offsets[i + 1])
+    private byte[] data = new byte[INITIAL_CAPACITY * 16];
+    private int[] offsets = new int[INITIAL_CAPACITY + 1];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int mask = INITIAL_CAPACITY * 2 - 1;
+    private int size;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of Strings of the dictionary
+     *
+     * @return number of Strings
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get a String from its code
+     *
+     * @param code code of the String
+     * @return the String
+     */
+    String get(final int code) {
+
+        if (code < 0 || code >= this.size) {
+            throw new IndexOutOfBoundsException("Unknown code: " + code);
+        }
+
+        return new String(this.data, this.offsets[code],
+            this.offsets[code + 1] - this.offsets[code], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the code of a String
+     *
+     * @param s the String
+     * @return code of the String or -1 if the String is unknown
+     */
+    int getCode(final String s) {
+
+        final byte[] key = s.getBytes(StandardCharsets.UTF_8);
+        final int entry = this.table[slot(key, GeneDictionary.hash(key, 0,
+            key.length))];
+
+        return entry - 1;
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Add a String to the dictionary
+     *
+     * @param s the String
+     * @return code of the String
+     */
+    int add(final String s) {
+
+        final byte[] key = s.getBytes(StandardCharsets.UTF_8);
+        final int hash = GeneDictionary.hash(key, 0, key.length);
+        final int slot = slot(key, hash);
+        if (this.table[slot] != 0) {
+            return this.table[slot] - 1;
+        }
+
+        // Append the String
+        final int code = this.size;
+        if (code == this.hashes.length) {
+            this.hashes = Arrays.copyOf(this.hashes, code * 2);
+            this.offsets = Arrays.copyOf(this.offsets, code * 2 + 1);
+        }
+        final int start = this.offsets[code];
+        if (start + key.length > this.data.length) {
+            this.data = Arrays.copyOf(this.data,
+                Math.max(this.data.length * 2, start + key.length));
+        }
+        System.arraycopy(key, 0, this.data, start, key.length);
+        this.offsets[code + 1] = start + key.length;
+        this.hashes[code] = hash;
+        this.table[slot] = code + 1;
+        this.size++;
+
+        // Keep the table at most half full
+        if (this.size * 2 > this.table.length) {
+            rehash();
+        }
+
+        return code;
+    }
+
+    /**
+     * Find the slot of a String, or the empty slot where it would be put
+     */
+    private int slot(final byte[] key, final int hash) {
+
+        for (int slot = hash & this.mask; ; slot = (slot + 1) & this.mask) {
+
+            final int entry = this.table[slot];
+            if (entry == 0) {
+                return slot;
+            }
+
+            final int code = entry - 1;
+            if (this.hashes[code] == hash && equals(code, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean equals(final int code, final byte[] key) {
+
+        final int start = this.offsets[code];
+        if (this.offsets[code + 1] - start != key.length) {
+            return false;
+        }
+
+        for (int i = 0; i < key.length; i++) {
+            if (this.data[start + i] != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void rehash() {
+
+        this.table = new int[this.table.length * 2];
+        this.mask = this.table.length - 1;
+
+        for (int code = 0; code < this.size; code++) {
+            int slot = this.hashes[code] & this.mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.table[slot] = code + 1;
+        }
+    }
+}
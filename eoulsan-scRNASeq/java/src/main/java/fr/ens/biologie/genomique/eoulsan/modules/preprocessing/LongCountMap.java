@@ -0,0 +1,182 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.util.Arrays;
+
+/**
+ * This class define an open-addressing hash table counting non negative long
+ * keys, such as encoded barcodes. Keys and counts are stored in primitive
+ * arrays, so counting a key neither boxes it nor creates an entry object.
+ * <p>
+ * Slots can be read by index, from 0 to the capacity of the table, to
+ * iterate on the counted keys.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+class LongCountMap {
+
+    /**
+     * Key of empty slots, counted keys being non negative
+     */
+    static final long EMPTY = -1L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] counts;
+    private int mask;
+    private int size;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of counted keys
+     *
+     * @return the number of keys
+     */
+    final int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the number of slots of the table
+     *
+     * @return the number of slots
+     */
+    final int capacity() {
+        return this.keys.length;
+    }
+
+    /**
+     * Get the key of a slot
+     *
+     * @param slot the slot
+     * @return the key of the slot or EMPTY
+     */
+    final long keyAt(final int slot) {
+        return this.keys[slot];
+    }
+
+    /**
+     * Get the count of a slot
+     *
+     * @param slot the slot
+     * @return the count of the key of the slot
+     */
+    final int countAt(final int slot) {
+        return this.counts[slot];
+    }
+
+    /**
+     * Get the count of a key
+     *
+     * @param key the key
+     * @return the count of the key, 0 if it was never counted
+     */
+    final int get(final long key) {
+
+        for (int slot = slot(key); ; slot = (slot + 1) & this.mask) {
+            final long k = this.keys[slot];
+            if (k == key) {
+                return this.counts[slot];
+            }
+            if (k == EMPTY) {
+                return 0;
+            }
+        }
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Add a count to a key
+     *
+     * @param key   the key, non negative
+     * @param count the count to add
+     */
+    final void add(final long key, final int count) {
+
+        for (int slot = slot(key); ; slot = (slot + 1) & this.mask) {
+            final long k = this.keys[slot];
+            if (k == key) {
+                this.counts[slot] += count;
+                return;
+            }
+            if (k == EMPTY) {
+                this.keys[slot] = key;
+                this.counts[slot] = count;
+                if (++this.size > this.keys.length / 2) {
+                    resize(this.keys.length * 2);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Add all the counts of another map
+     *
+     * @param other the other map
+     */
+    final void addAll(final LongCountMap other) {
+
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.keys[slot] != EMPTY) {
+                add(other.keys[slot], other.counts[slot]);
+            }
+        }
+    }
+
+    private int slot(final long key) {
+
+        // Finalizer of MurmurHash3, spreading all bits of the key
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return (int) h & this.mask;
+    }
+
+    private void resize(final int capacity) {
+
+        final long[] oldKeys = this.keys;
+        final int[] oldCounts = this.counts;
+
+        this.keys = new long[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.counts = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY) {
+                int s = slot(oldKeys[slot]);
+                while (this.keys[s] != EMPTY) {
+                    s = (s + 1) & this.mask;
+                }
+                this.keys[s] = oldKeys[slot];
+                this.counts[s] = oldCounts[slot];
+            }
+        }
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Constructor
+     */
+    LongCountMap() {
+
+        this.keys = new long[0];
+        resize(MIN_CAPACITY);
+    }
+}
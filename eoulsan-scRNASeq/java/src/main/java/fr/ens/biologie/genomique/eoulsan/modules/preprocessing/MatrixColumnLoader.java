@@ -0,0 +1,293 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.MatrixCreatorModule.MatrixFormat;
+
+/**
+ * This class define a loader of selected columns from an expression matrix
+ * previously written by the matrix creator, in TSV or Matrix Market format,
+ * plain or gzip compressed, or in chunked binary format. Columns are returned
+ * as sparse columns indexed by the rows of a gene dictionary.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public final class MatrixColumnLoader {
+
+    /**
+     * This class define a growable sparse column
+     */
+    private static final class ColumnBuilder {
+
+        private int[] rows = new int[16];
+        private int[] values = new int[16];
+        private int size;
+        private boolean sorted = true;
+
+        void add(final int row, final int value) {
+
+            if (this.size == this.rows.length) {
+                this.rows = Arrays.copyOf(this.rows, this.size * 2);
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+
+            if (this.size > 0 && this.rows[this.size - 1] > row) {
+                this.sorted = false;
+            }
+
+            this.rows[this.size] = row;
+            this.values[this.size] = value;
+            this.size++;
+        }
+
+        int[][] toSparse() {
+
+            final int[] r = Arrays.copyOf(this.rows, this.size);
+            final int[] v = Arrays.copyOf(this.values, this.size);
+
+            // Gene order may differ from the one of the loaded matrix
+            if (!this.sorted) {
+                final long[] packed = new long[this.size];
+                for (int k = 0; k < this.size; k++) {
+                    packed[k] = ((long) r[k] << 32) | (v[k] & 0xffffffffL);
+                }
+                Arrays.sort(packed);
+                for (int k = 0; k < this.size; k++) {
+                    r[k] = (int) (packed[k] >>> 32);
+                    v[k] = (int) packed[k];
+                }
+            }
+
+            return new int[][] {r, v};
+        }
+    }
+
+    /**
+     * Load columns of a matrix
+     *
+     * @param matrixFile the matrix file
+     * @param format     format of the matrix
+     * @param genes      dictionary giving rows of the loaded columns. Genes
+     *                   unknown of the dictionary are ignored
+     * @param columns    indexes of the columns to load
+     * @return a map of sparse columns, row indexes first and values second
+     * @throws IOException if an error occurs while reading the matrix
+     */
+    public static Map<Integer, int[][]> load(final File matrixFile,
+        final MatrixFormat format, final GeneDictionary genes,
+        final Set<Integer> columns) throws IOException {
+
+        final Map<Integer, ColumnBuilder> builders = new HashMap<>();
+        for (int column : columns) {
+            builders.put(column, new ColumnBuilder());
+        }
+
+        switch (format) {
+
+        case MTX:
+            loadMatrixMarket(matrixFile, genes, builders);
+            break;
+
+        case CHUNKED:
+            loadChunked(matrixFile, genes, builders);
+            break;
+
+        default:
+            loadTSV(matrixFile, genes, builders);
+            break;
+        }
+
+        final Map<Integer, int[][]> result = new HashMap<>();
+        for (Map.Entry<Integer, ColumnBuilder> e : builders.entrySet()) {
+            result.put(e.getKey(), e.getValue().toSparse());
+        }
+
+        return result;
+    }
+
+    /**
+     * Load columns of a TSV matrix. Rows are scanned up to the last selected
+     * column, fields of the other columns are skipped without being decoded.
+     */
+    private static void loadTSV(final File matrixFile,
+        final GeneDictionary genes, final Map<Integer, ColumnBuilder> builders)
+        throws IOException {
+
+        try (BufferedReader in = open(matrixFile)) {
+
+            final String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Empty matrix file: " + matrixFile);
+            }
+            final int nCells = header.split("\t").length;
+
+            // Columns to load, null for the others
+            final ColumnBuilder[] selected = new ColumnBuilder[nCells];
+            int last = -1;
+            for (Map.Entry<Integer, ColumnBuilder> e : builders.entrySet()) {
+                if (e.getKey() >= nCells) {
+                    throw new IOException(
+                        "Column " + e.getKey() + " not found in " + matrixFile);
+                }
+                selected[e.getKey()] = e.getValue();
+                last = Math.max(last, e.getKey());
+            }
+
+            String line;
+            while (last >= 0 && (line = in.readLine()) != null) {
+
+                int pos = line.indexOf('\t');
+                if (pos < 0) {
+                    continue;
+                }
+
+                final int row = genes.getIndex(line.substring(0, pos));
+                if (row < 0) {
+                    continue;
+                }
+
+                final int length = line.length();
+                for (int j = 0; j <= last && pos < length; j++) {
+
+                    // Skip the tab before the field
+                    pos++;
+
+                    if (selected[j] == null) {
+                        pos = line.indexOf('\t', pos);
+                        if (pos < 0) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    int value = 0;
+                    while (pos < length && line.charAt(pos) != '\t') {
+
+                        final int digit = line.charAt(pos++) - '0';
+                        if (digit < 0 || digit > 9
+                            || value > (Integer.MAX_VALUE - digit) / 10) {
+                            throw new IOException("Invalid count in "
+                                + matrixFile + " for gene "
+                                + genes.getId(row) + " in column " + j);
+                        }
+                        value = value * 10 + digit;
+                    }
+
+                    if (value != 0) {
+                        selected[j].add(row, value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Load columns of a Matrix Market matrix, using its genes sidecar file
+     */
+    private static void loadMatrixMarket(final File matrixFile,
+        final GeneDictionary genes, final Map<Integer, ColumnBuilder> builders)
+        throws IOException {
+
+        // Map Matrix Market rows to dictionary rows
+        final List<Integer> rows = new ArrayList<>();
+        try (BufferedReader in = open(MatrixMerger.getGenesFile(matrixFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                rows.add(genes.getIndex(line.trim()));
+            }
+        }
+
+        try (BufferedReader in = open(matrixFile)) {
+
+            String line;
+            boolean size = false;
+            while ((line = in.readLine()) != null) {
+
+                if (line.startsWith("%")) {
+                    continue;
+                }
+
+                // Skip size line
+                if (!size) {
+                    size = true;
+                    continue;
+                }
+
+                final String[] fields = line.split(" ");
+                final ColumnBuilder builder =
+                    builders.get(Integer.parseInt(fields[1]) - 1);
+                if (builder == null) {
+                    continue;
+                }
+
+                final int row = rows.get(Integer.parseInt(fields[0]) - 1);
+                if (row >= 0) {
+                    builder.add(row, Integer.parseInt(fields[2]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Load columns of a chunked binary matrix, reading only their chunks
+     */
+    private static void loadChunked(final File matrixFile,
+        final GeneDictionary genes, final Map<Integer, ColumnBuilder> builders)
+        throws IOException {
+
+        try (ChunkedMatrixReader reader = new ChunkedMatrixReader(matrixFile)) {
+
+            // Map matrix rows to dictionary rows
+            final int[] rows = new int[reader.getGeneCount()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = genes.getIndex(reader.getGeneDictionary().getId(i));
+            }
+
+            // Columns in file order, so each chunk is decompressed once
+            for (Map.Entry<Integer, ColumnBuilder> e : new TreeMap<>(builders)
+                .entrySet()) {
+
+                if (e.getKey() >= reader.getCellCount()) {
+                    throw new IOException(
+                        "Column " + e.getKey() + " not found in " + matrixFile);
+                }
+
+                final int[] column = reader.getColumn(e.getKey());
+                for (int i = 0; i < column.length; i++) {
+                    if (column[i] != 0 && rows[i] >= 0) {
+                        e.getValue().add(rows[i], column[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static BufferedReader open(final File file) throws IOException {
+        return new BufferedReader(
+            new InputStreamReader(GzipUtils.open(file), StandardCharsets.UTF_8),
+            1 << 16);
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Private constructor
+     */
+    private MatrixColumnLoader() {
+    }
+}
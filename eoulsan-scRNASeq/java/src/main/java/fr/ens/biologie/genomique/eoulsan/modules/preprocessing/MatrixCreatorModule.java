@@ -1,22 +1,22 @@
 package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
 
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
 import fr.ens.biologie.genomique.eoulsan.Globals;
 import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
 import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
 import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
 import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
 import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
 import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
 import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
@@ -26,10 +26,10 @@ import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
 import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
 import fr.ens.biologie.genomique.eoulsan.data.Data;
 import fr.ens.biologie.genomique.eoulsan.data.DataFormats;
+import fr.ens.biologie.genomique.eoulsan.io.CompressionType;
 
 
 import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
-import static fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder.singleOutputPort;
 
 /**
  * This class define a module that merges expression files.
@@ -45,9 +45,187 @@ public class MatrixCreatorModule extends AbstractModule {
      */
     private static final String MODULE_NAME = "matrixcreator";
 
+    /**
+     * Parameters Names
+     */
+    private static final String OUTPUT_FORMAT_PARAMETER_NAME = "output.format";
+
+    /**
+     * Output matrix formats
+     */
+    protected enum MatrixFormat {
+        TSV, MTX, CHUNKED
+    }
+
+    private static final String THREADS_PARAMETER_NAME = "n.threads";
+    private static final String COMPRESSION_PARAMETER_NAME = "output.compression";
+    private static final String INCREMENTAL_PARAMETER_NAME = "incremental";
+    private static final String GENES_INDEX_PARAMETER_NAME = "genes.index";
+    private static final String MEMORY_BUDGET_PARAMETER_NAME = "memory.budget";
+    private static final String CELLS_METRICS_PARAMETER_NAME = "cells.metrics";
+    private static final String DETECTION_THRESHOLD_PARAMETER_NAME = "detection.threshold";
+    private static final String MIN_CELLS_PARAMETER_NAME = "min.cells";
+    private static final String MIN_COUNTS_PARAMETER_NAME = "min.counts";
+
+    /**
+     * Default Parameters
+     */
+    private static final MatrixFormat DEFAULT_OUTPUT_FORMAT = MatrixFormat.TSV;
+    private static final int DEFAULT_THREADS = 1;
+
+    private MatrixFormat outputFormat = DEFAULT_OUTPUT_FORMAT;
+    private int nThreads = DEFAULT_THREADS;
+    private boolean compressOutput;
+    private boolean incremental;
+    private boolean useGenesIndex;
+    private int memoryBudget;
+    private boolean cellsMetrics;
+    private int detectionThreshold;
+    private int minCells;
+    private long minCounts;
+
     // DataFormat
     private static DataFormat EXPRESSION_MATRIX_TSV =
             DataFormatRegistry.getInstance().getDataFormatFromName("expression_matrix_tsv");
+    private static DataFormat EXPRESSION_MATRIX_MTX =
+            DataFormatRegistry.getInstance().getDataFormatFromName("expression_matrix_mtx");
+    private static DataFormat EXPRESSION_MATRIX_CHUNKED =
+            DataFormatRegistry.getInstance().getDataFormatFromName("expression_matrix_chunked");
+    private static DataFormat GENES_INDEX_BIN =
+            DataFormatRegistry.getInstance().getDataFormatFromName("genes_index_bin");
+    private static DataFormat GENES_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("genes_metadata_tsv");
+    private static DataFormat INI_CELLS_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("initial_cells_metadata_tsv");
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the format of the output matrix
+     *
+     * @return the output format
+     */
+    protected MatrixFormat getOutputFormat() {
+        return this.outputFormat;
+    }
+
+    /**
+     * Get the number of threads used to parse cell files
+     *
+     * @return number of threads
+     */
+    protected int getNbThreads() {
+        return this.nThreads;
+    }
+
+    /**
+     * Test if the output matrix is gzip compressed
+     *
+     * @return true if the output matrix is compressed
+     */
+    protected boolean isOutputCompressed() {
+        return this.compressOutput;
+    }
+
+    /**
+     * Get the compression of the output matrix file, giving its extension.
+     * Chunked matrices are not affected as their chunks are always compressed.
+     *
+     * @return the compression type of the output matrix
+     */
+    protected CompressionType getOutputCompression() {
+        return this.compressOutput && this.outputFormat != MatrixFormat.CHUNKED
+                ? CompressionType.GZIP : CompressionType.NONE;
+    }
+
+    /**
+     * Test if only new or changed cell files are read, columns of the other
+     * cells being taken from the previous output matrix
+     *
+     * @return true if merging is incremental
+     */
+    protected boolean isIncremental() {
+        return this.incremental;
+    }
+
+    /**
+     * Test if gene rows are taken from the gene index of the features metadata
+     * step instead of the first cell file
+     *
+     * @return true if the gene index is used
+     */
+    protected boolean isGenesIndexUsed() {
+        return this.useGenesIndex;
+    }
+
+    /**
+     * Get the heap allowed for counts before spilling cells to the local
+     * temporary directory
+     *
+     * @return memory budget in megabytes, 0 if the matrix is kept in memory
+     */
+    protected int getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Test if per-cell quality metrics are computed while merging
+     *
+     * @return true if per-cell metrics are written
+     */
+    protected boolean isCellsMetrics() {
+        return this.cellsMetrics;
+    }
+
+    /**
+     * Get the count above which a gene is detected in a cell
+     *
+     * @return the detection threshold
+     */
+    protected int getDetectionThreshold() {
+        return this.detectionThreshold;
+    }
+
+    /**
+     * Get the minimal number of cells with counts of a gene of the output
+     * matrix
+     *
+     * @return the minimal number of cells
+     */
+    protected int getMinCells() {
+        return this.minCells;
+    }
+
+    /**
+     * Get the minimal total count of a gene of the output matrix
+     *
+     * @return the minimal total count
+     */
+    protected long getMinCounts() {
+        return this.minCounts;
+    }
+
+    /**
+     * Get the DataFormat of the output matrix
+     *
+     * @return the output DataFormat
+     */
+    private DataFormat getOutputDataFormat() {
+
+        switch (this.outputFormat) {
+
+            case MTX:
+                return EXPRESSION_MATRIX_MTX;
+
+            case CHUNKED:
+                return EXPRESSION_MATRIX_CHUNKED;
+
+            default:
+                return EXPRESSION_MATRIX_TSV;
+        }
+    }
 
     //
     // Module Methods
@@ -70,14 +248,148 @@ public class MatrixCreatorModule extends AbstractModule {
 
     @Override
     public InputPorts getInputPorts() {
-        return new InputPortsBuilder()
-                .addPort(InputPortsBuilder.DEFAULT_SINGLE_INPUT_PORT_NAME, true, DataFormats.EXPRESSION_RESULTS_TSV)
-                .create();
+
+        final InputPortsBuilder builder = new InputPortsBuilder()
+                .addPort(InputPortsBuilder.DEFAULT_SINGLE_INPUT_PORT_NAME, true, DataFormats.EXPRESSION_RESULTS_TSV);
+
+        if (this.useGenesIndex) {
+            builder.addPort("genesindex", GENES_INDEX_BIN);
+        }
+
+        if (this.cellsMetrics) {
+            builder.addPort("genesmetadata", GENES_METADATA_TSV);
+        }
+
+        return builder.create();
     }
 
     @Override
     public OutputPorts getOutputPorts() {
-        return singleOutputPort("matrix", EXPRESSION_MATRIX_TSV);
+
+        final OutputPortsBuilder builder = new OutputPortsBuilder()
+                .addPort("matrix", getOutputDataFormat(), getOutputCompression());
+
+        if (this.cellsMetrics) {
+            builder.addPort("cellsmetrics", INI_CELLS_METADATA_TSV);
+        }
+
+        return builder.create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            switch (p.getName()) {
+
+                case OUTPUT_FORMAT_PARAMETER_NAME:
+                    switch (p.getLowerStringValue()) {
+
+                        case "tsv":
+                            this.outputFormat = MatrixFormat.TSV;
+                            break;
+
+                        case "mtx":
+                            this.outputFormat = MatrixFormat.MTX;
+                            break;
+
+                        case "chunked":
+                            this.outputFormat = MatrixFormat.CHUNKED;
+                            break;
+
+                        default:
+                            Modules.badParameterValue(context, p,
+                                    "Unknown matrix output format");
+                            break;
+                    }
+                    break;
+
+                case COMPRESSION_PARAMETER_NAME:
+                    switch (p.getLowerStringValue()) {
+
+                        case "none":
+                            this.compressOutput = false;
+                            break;
+
+                        case "gzip":
+                            this.compressOutput = true;
+                            break;
+
+                        default:
+                            Modules.badParameterValue(context, p,
+                                    "Unknown compression type");
+                            break;
+                    }
+                    break;
+
+                case THREADS_PARAMETER_NAME:
+                    this.nThreads = p.getIntValue();
+                    if (this.nThreads < 1) {
+                        Modules.badParameterValue(context, p,
+                                "The number of threads must be greater than 0");
+                    }
+                    break;
+
+                case INCREMENTAL_PARAMETER_NAME:
+                    this.incremental = p.getBooleanValue();
+                    break;
+
+                case GENES_INDEX_PARAMETER_NAME:
+                    this.useGenesIndex = p.getBooleanValue();
+                    break;
+
+                case MEMORY_BUDGET_PARAMETER_NAME:
+                    this.memoryBudget = p.getIntValue();
+                    if (this.memoryBudget < 0) {
+                        Modules.badParameterValue(context, p,
+                                "The memory budget cannot be negative");
+                    }
+                    break;
+
+                case CELLS_METRICS_PARAMETER_NAME:
+                    this.cellsMetrics = p.getBooleanValue();
+                    break;
+
+                case DETECTION_THRESHOLD_PARAMETER_NAME:
+                    this.detectionThreshold = p.getIntValue();
+                    if (this.detectionThreshold < 0) {
+                        Modules.badParameterValue(context, p,
+                                "The detection threshold cannot be negative");
+                    }
+                    break;
+
+                case MIN_CELLS_PARAMETER_NAME:
+                    this.minCells = p.getIntValue();
+                    if (this.minCells < 0) {
+                        Modules.badParameterValue(context, p,
+                                "The minimal number of cells cannot be negative");
+                    }
+                    break;
+
+                case MIN_COUNTS_PARAMETER_NAME:
+                    this.minCounts = p.getLongValue();
+                    if (this.minCounts < 0) {
+                        Modules.badParameterValue(context, p,
+                                "The minimal number of counts cannot be negative");
+                    }
+                    break;
+
+                default:
+                    Modules.unknownParameter(context, p);
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", output format="
+                + this.outputFormat.name().toLowerCase() + ", output.compression="
+                + (this.compressOutput ? "gzip" : "none") + ", n.threads="
+                + this.nThreads + ", incremental=" + this.incremental
+                + ", genes.index=" + this.useGenesIndex + ", memory.budget="
+                + this.memoryBudget + " MB, cells.metrics=" + this.cellsMetrics
+                + ", detection.threshold=" + this.detectionThreshold
+                + ", min.cells=" + this.minCells + ", min.counts=" + this.minCounts);
     }
 
     @Override
@@ -92,7 +404,7 @@ public class MatrixCreatorModule extends AbstractModule {
         }
 
         // Get output and input files
-        File output = context.getOutputData(EXPRESSION_MATRIX_TSV, inData).getDataFile().toFile();
+        File output = context.getOutputData(getOutputDataFormat(), inData).getDataFile().toFile();
         //String names = getSamplesName(context);
         List<File> files = new ArrayList<>();
         for (Data data : inData.getListElements()) {
@@ -102,7 +414,27 @@ public class MatrixCreatorModule extends AbstractModule {
 
         // Merge files
         try {
-            merge(files, output);
+            final MatrixMerger merger = new MatrixMerger();
+            merger.setFormat(this.outputFormat);
+            merger.setThreadCount(this.nThreads);
+            merger.setCompressed(this.compressOutput);
+            merger.setIncremental(this.incremental);
+            merger.setMemoryBudget(this.memoryBudget * 1024L * 1024L);
+            merger.setTempDirectory(context.getLocalTempDirectory());
+            merger.setMinCells(this.minCells);
+            merger.setMinCounts(this.minCounts);
+            if (this.useGenesIndex) {
+                merger.setGeneDictionary(GeneDictionary.load(
+                        context.getInputData(GENES_INDEX_BIN).getDataFile().toFile()));
+            }
+            if (this.cellsMetrics) {
+                merger.setCellMetricsFile(context.getOutputData(
+                        INI_CELLS_METADATA_TSV, inData).getDataFile().toFile());
+                merger.setGenesMetadataFile(
+                        context.getInputData(GENES_METADATA_TSV).getDataFile().toFile());
+                merger.setDetectionThreshold(this.detectionThreshold);
+            }
+            merger.merge(files, output);
             return status.createTaskResult();
         } catch (NullPointerException | IOException e) {
             return status.createTaskResult(e, "Error with file :" + e.getMessage());
@@ -121,76 +453,25 @@ public class MatrixCreatorModule extends AbstractModule {
 
     protected static void merge(List<File> files, File mergedFile)
             throws NullPointerException, IOException {
+        merge(files, mergedFile, MatrixFormat.TSV);
+    }
 
-			/* Test parameters */
-        if (files == null) {
-            throw new NullPointerException("files argument cannot be null");
-        }
-
-        if (mergedFile == null) {
-            throw new NullPointerException("mergedFile argument cannot be null");
-        }
-
-			/* Set structures and extract first file */
-        File init = files.get(0);
-
-        String headers = init.getName().replace(".tsv", "").split("_")[3];
-        List<String> genes = new ArrayList<>();
-        Map<String, String> lines = new HashMap<>();
-
-			/* Treat first file initialising structures */
-        try (BufferedReader in = new BufferedReader(new FileReader(init))) {
-            String aLine;
-            String[] parts = new String[2];
-            int i = 0;
-            while ((aLine = in.readLine()) != null) {
-                if (i > 0) {
-                    parts = aLine.split("\t");
-                    genes.add(parts[0]);
-                    lines.put(parts[0], parts[1]);
-                }
-                i++;
-            }
-        }
+    /**
+     * Merge two columns files into one matrix
+     *
+     * @param files      list of files to merge
+     * @param mergedFile file for writing merging
+     * @param format     format of the merged file
+     * @throws NullPointerException
+     * @throws IOException
+     */
 
-			/* Remove file treated from files list */
-        files.remove(0);
-
-			/* Treat other files */
-        for (File file : files) {
-
-            headers = headers + "\t" + file.getName().replace(".tsv", "").split("_")[3];
-            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-                String aLine;
-                String[] parts = new String[2];
-                while ((aLine = in.readLine()) != null) {
-                    parts = aLine.split("\t");
-                    String value = lines.get(parts[0]);
-                    value = value + "\t" + parts[1];
-                    lines.put(parts[0], value);
-                }
-            }
-        }
+    protected static void merge(List<File> files, File mergedFile, MatrixFormat format)
+            throws NullPointerException, IOException {
 
-			/* Write merged file, excluding non detected genes */
-        try (BufferedWriter out = new BufferedWriter(new FileWriter(mergedFile,
-                true))) {
-            out.write(headers);
-            out.newLine();
-            for (String key : genes) {
-                int sum = 0;
-                String[] values = lines.get(key).split("\t");
-                for (String value : values) {
-                    sum = sum + Integer.parseInt(value);
-                }
-                if (sum > 0) {
-                    out.write(key + "\t" + lines.get(key));
-                    out.newLine();
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setFormat(format);
+        merger.merge(files, mergedFile);
     }
 
     /**
@@ -0,0 +1,212 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.GeneSelection;
+
+/**
+ * This class define helpers to read and write tabulated expression matrices,
+ * gzip compressed or not, and to select their rows on gene types. Rows are
+ * parsed without splitting lines.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+final class MatrixFiles {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Open a tabulated matrix, gzip compressed or not
+     */
+    static BufferedReader openMatrix(final File file)
+        throws IOException {
+        return new BufferedReader(new InputStreamReader(GzipUtils.open(file),
+            StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Create a buffered writer on an output file
+     */
+    static BufferedWriter createWriter(final File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Read cell names from the header of a tabulated matrix
+     *
+     * @param in   reader of the matrix
+     * @param file the matrix file
+     * @return cell names, in column order
+     * @throws IOException if the matrix is empty
+     */
+    static List<String> readHeader(final BufferedReader in,
+        final File file) throws IOException {
+
+        final String header = in.readLine();
+        if (header == null) {
+            throw new IOException("Empty matrix file: " + file);
+        }
+
+        final List<String> result =
+            new ArrayList<>(Arrays.asList(header.split("\t", -1)));
+
+        // Headers may start with an empty field for gene Ids
+        if (!result.isEmpty() && result.get(0).isEmpty()) {
+            result.remove(0);
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse the counts of a matrix row
+     *
+     * @param line   the row
+     * @param counts array to fill, indexed by cell
+     * @return end of the gene Id in the line
+     * @throws IOException if the row is invalid
+     */
+    static int parseRow(final String line, final int[] counts)
+        throws IOException {
+
+        final int idEnd = line.indexOf('\t');
+        if (idEnd < 0) {
+            throw new IOException("Invalid matrix line: " + line);
+        }
+
+        int j = 0;
+        int value = 0;
+        for (int p = idEnd + 1; p < line.length(); p++) {
+
+            final char c = line.charAt(p);
+            if (c == '\t') {
+                if (j == counts.length) {
+                    throw new IOException(
+                        "Invalid number of counts in matrix line: " + line);
+                }
+                counts[j++] = value;
+                value = 0;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else if (c != '\r') {
+                throw new IOException("Invalid count in matrix line: " + line);
+            }
+        }
+
+        if (j < counts.length) {
+            counts[j++] = value;
+        }
+        if (j != counts.length) {
+            throw new IOException(
+                "Invalid number of counts in matrix line: " + line);
+        }
+
+        return idEnd;
+    }
+
+    /**
+     * Test if a gene is selected by a gene selection
+     *
+     * @param geneSelection the gene selection
+     * @param type          type of the gene, null for endogenous nuclear genes
+     * @return true if the gene is selected
+     */
+    static boolean isSelected(final GeneSelection geneSelection,
+        final Byte type) {
+
+        if (type == null) {
+            return true;
+        }
+
+        switch (geneSelection) {
+
+        case NUCLEAR:
+            return false;
+
+        case ENDOGENOUS:
+            return type != CellMetrics.SPIKE;
+
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Write the columns of kept cells. Fields are copied without parsing.
+     *
+     * @param matrixFile         tabulated expression matrix
+     * @param filteredMatrixFile output matrix
+     * @param kept               for each cell, true if the cell is kept
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    static void writeMatrix(final File matrixFile,
+        final File filteredMatrixFile, final boolean[] kept)
+        throws IOException {
+
+        try (BufferedReader in = openMatrix(matrixFile);
+            BufferedWriter out = createWriter(filteredMatrixFile)) {
+
+            final List<String> cells = readHeader(in, matrixFile);
+            boolean first = true;
+            for (int j = 0; j < cells.size(); j++) {
+                if (kept[j]) {
+                    if (!first) {
+                        out.write('\t');
+                    }
+                    out.write(cells.get(j));
+                    first = false;
+                }
+            }
+            out.newLine();
+
+            final StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                int start = line.indexOf('\t');
+                if (start < 0) {
+                    throw new IOException("Invalid matrix line: " + line);
+                }
+
+                sb.setLength(0);
+                sb.append(line, 0, start);
+                for (int j = 0; j < kept.length && start < line.length(); j++) {
+                    int end = line.indexOf('\t', start + 1);
+                    if (end < 0) {
+                        end = line.length();
+                    }
+                    if (kept[j]) {
+                        sb.append(line, start, end);
+                    }
+                    start = end;
+                }
+
+                out.append(sb);
+                out.newLine();
+            }
+        }
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Private constructor
+     */
+    private MatrixFiles() {
+    }
+}
@@ -0,0 +1,330 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class define the manifest kept next to an expression matrix for
+ * incremental merging. For each input file it records its size, modification
+ * time, content hash and column in the matrix.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class MatrixManifest {
+
+    private static final String HEADER = "#matrixcreator manifest";
+    private static final String FORMAT_KEY = "#format=";
+    private static final String HASH_ALGORITHM = "MD5";
+
+    private final String format;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * This class define the manifest entry of one input file
+     */
+    public static final class Entry {
+
+        private final String path;
+        private final long size;
+        private final long modified;
+        private final String hash;
+        private final int column;
+
+        /**
+         * Get absolute path of the input file
+         *
+         * @return path of the file
+         */
+        public String getPath() {
+            return this.path;
+        }
+
+        /**
+         * Get size of the input file
+         *
+         * @return size in bytes
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * Get modification time of the input file
+         *
+         * @return modification time in milliseconds
+         */
+        public long getModified() {
+            return this.modified;
+        }
+
+        /**
+         * Get content hash of the input file
+         *
+         * @return hexadecimal hash
+         */
+        public String getHash() {
+            return this.hash;
+        }
+
+        /**
+         * Get column of the input file in the matrix
+         *
+         * @return column index
+         */
+        public int getColumn() {
+            return this.column;
+        }
+
+        /**
+         * Constructor
+         *
+         * @param path     absolute path of the input file
+         * @param size     size of the file
+         * @param modified modification time of the file
+         * @param hash     content hash of the file
+         * @param column   column of the file in the matrix
+         */
+        public Entry(final String path, final long size, final long modified,
+            final String hash, final int column) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.column = column;
+        }
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the format of the matrix described by the manifest
+     *
+     * @return format name
+     */
+    public final String getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Get the entry of an input file
+     *
+     * @param file input file
+     * @return the entry or null if the file is not in the manifest
+     */
+    public final Entry getEntry(final File file) {
+        return this.entries.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Get the number of entries
+     *
+     * @return number of entries
+     */
+    public final int size() {
+        return this.entries.size();
+    }
+
+    //
+    // Other methods
+    //
+
+    /**
+     * Add an input file to the manifest
+     *
+     * @param file   input file
+     * @param hash   content hash of the file, computed if null
+     * @param column column of the file in the matrix
+     * @throws IOException if an error occurs while hashing file
+     */
+    public final void add(final File file, final String hash,
+        final int column) throws IOException {
+
+        final String path = file.getAbsolutePath();
+        this.entries.put(path, new Entry(path, file.length(),
+            file.lastModified(), hash == null ? hash(file) : hash, column));
+    }
+
+    /**
+     * Test if an input file is unchanged since the manifest was written. Size
+     * and modification time are compared first, the content is only hashed
+     * when the file has been touched without changing its size.
+     *
+     * @param file input file
+     * @return the entry of the unchanged file or null if the file is new or
+     * modified
+     * @throws IOException if an error occurs while hashing file
+     */
+    public final Entry getUnchangedEntry(final File file) throws IOException {
+
+        final Entry entry = getEntry(file);
+
+        if (entry == null || entry.size != file.length()) {
+            return null;
+        }
+
+        if (entry.modified == file.lastModified()
+            || entry.hash.equals(hash(file))) {
+            return entry;
+        }
+
+        return null;
+    }
+
+    /**
+     * Write manifest. The file is replaced atomically.
+     *
+     * @param manifestFile the manifest file
+     * @throws IOException if an error occurs while writing file
+     */
+    public final void write(final File manifestFile) throws IOException {
+
+        final File tmpFile = new File(manifestFile.getPath() + ".tmp");
+
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(tmpFile))) {
+
+            out.write(HEADER);
+            out.newLine();
+            out.write(FORMAT_KEY + this.format);
+            out.newLine();
+            out.write("File\tSize\tModified\tHash\tColumn");
+            out.newLine();
+
+            for (Entry e : this.entries.values()) {
+                out.write(e.path + "\t" + e.size + "\t" + e.modified + "\t"
+                    + e.hash + "\t" + e.column);
+                out.newLine();
+            }
+        }
+
+        Files.move(tmpFile.toPath(), manifestFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read a manifest
+     *
+     * @param manifestFile the manifest file
+     * @return the manifest or null if the file is not a valid manifest
+     * @throws IOException if an error occurs while reading file
+     */
+    public static MatrixManifest read(final File manifestFile)
+        throws IOException {
+
+        try (BufferedReader in = new BufferedReader(
+            new FileReader(manifestFile))) {
+
+            if (!HEADER.equals(in.readLine())) {
+                return null;
+            }
+
+            final String formatLine = in.readLine();
+            if (formatLine == null || !formatLine.startsWith(FORMAT_KEY)) {
+                return null;
+            }
+
+            final MatrixManifest result =
+                new MatrixManifest(formatLine.substring(FORMAT_KEY.length()));
+
+            // Skip column names
+            in.readLine();
+
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                final String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    return null;
+                }
+
+                try {
+                    result.entries.put(fields[0],
+                        new Entry(fields[0], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3],
+                            Integer.parseInt(fields[4])));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Compute the content hash of a file
+     *
+     * @param file the file
+     * @return hexadecimal hash
+     * @throws IOException if an error occurs while reading file
+     */
+    public static String hash(final File file) throws IOException {
+
+        try (InputStream in = new FileInputStream(file)) {
+            return hash(in);
+        }
+    }
+
+    /**
+     * Compute the content hash of a stream, read up to its end
+     *
+     * @param in the stream
+     * @return hexadecimal hash
+     * @throws IOException if an error occurs while reading stream
+     */
+    public static String hash(final InputStream in) throws IOException {
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        final byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+
+        return sb.toString();
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Public constructor
+     *
+     * @param format format of the matrix described by the manifest
+     */
+    public MatrixManifest(final String format) {
+
+        if (format == null) {
+            throw new NullPointerException("format argument cannot be null");
+        }
+
+        this.format = format;
+    }
+}
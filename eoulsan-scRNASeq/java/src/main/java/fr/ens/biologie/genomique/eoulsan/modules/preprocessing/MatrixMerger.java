@@ -0,0 +1,1096 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import fr.ens.biologie.genomique.eoulsan.io.CompressionType;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.MatrixCreatorModule.MatrixFormat;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define the engine that merges expression files into a count
+ * matrix. Cell files can be parsed concurrently, columns always keep the order
+ * of the input files.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class MatrixMerger {
+
+    /**
+     * Number of cell files parsed in advance by each thread
+     */
+    private static final int FILES_PER_THREAD = 4;
+
+    private static final String GZIP_EXTENSION =
+        CompressionType.GZIP.getExtension();
+
+    private MatrixFormat format = MatrixFormat.TSV;
+    private int threadCount = 1;
+    private boolean compressed;
+    private boolean incremental;
+    private GeneDictionary geneDictionary;
+    private long memoryBudget;
+    private File tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private File cellMetricsFile;
+    private File genesMetadataFile;
+    private int detectionThreshold;
+    private int minCells;
+    private long minCounts;
+
+    /**
+     * One reader per thread, each reusing its buffer over cell files
+     */
+    private final ThreadLocal<ExpressionFileReader> readers =
+        new ThreadLocal<ExpressionFileReader>() {
+
+            @Override
+            protected ExpressionFileReader initialValue() {
+                return new ExpressionFileReader();
+            }
+        };
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the format of the merged file
+     *
+     * @return the output format
+     */
+    public final MatrixFormat getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Get the number of threads used to parse cell files
+     *
+     * @return number of threads
+     */
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Test if the merged file is gzip compressed
+     *
+     * @return true if the merged file is compressed
+     */
+    public final boolean isCompressed() {
+        return this.compressed;
+    }
+
+    /**
+     * Test if merging reuses columns of a previous merging
+     *
+     * @return true if merging is incremental
+     */
+    public final boolean isIncremental() {
+        return this.incremental;
+    }
+
+    /**
+     * Get the dictionary giving gene rows of the merged file
+     *
+     * @return the gene dictionary or null if genes are taken from the first
+     * expression file
+     */
+    public final GeneDictionary getGeneDictionary() {
+        return this.geneDictionary;
+    }
+
+    /**
+     * Get the heap allowed for counts before spilling cells to disk
+     *
+     * @return memory budget in bytes, 0 if the matrix is kept in memory
+     */
+    public final long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Get the directory of files spilled to disk
+     *
+     * @return temporary directory
+     */
+    public final File getTempDirectory() {
+        return this.tempDirectory;
+    }
+
+    /**
+     * Get the file of per-cell quality metrics
+     *
+     * @return the metrics file or null if metrics are not computed
+     */
+    public final File getCellMetricsFile() {
+        return this.cellMetricsFile;
+    }
+
+    /**
+     * Get the genes metadata file giving gene types for per-cell metrics
+     *
+     * @return the genes metadata file or null if all genes are endogenous
+     */
+    public final File getGenesMetadataFile() {
+        return this.genesMetadataFile;
+    }
+
+    /**
+     * Get the count above which a gene is detected in a cell
+     *
+     * @return the detection threshold
+     */
+    public final int getDetectionThreshold() {
+        return this.detectionThreshold;
+    }
+
+    /**
+     * Get the minimal number of cells with counts of a written gene
+     *
+     * @return the minimal number of cells
+     */
+    public final int getMinCells() {
+        return this.minCells;
+    }
+
+    /**
+     * Get the minimal total count of a written gene
+     *
+     * @return the minimal total count
+     */
+    public final long getMinCounts() {
+        return this.minCounts;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the format of the merged file
+     *
+     * @param format the output format
+     */
+    public final void setFormat(final MatrixFormat format) {
+
+        if (format == null) {
+            throw new NullPointerException("format argument cannot be null");
+        }
+
+        this.format = format;
+    }
+
+    /**
+     * Set the number of threads used to parse cell files
+     *
+     * @param threadCount number of threads, at least 1
+     */
+    public final void setThreadCount(final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "threadCount must be greater than 0: " + threadCount);
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Set gzip compression of the merged file. Blocks are compressed using the
+     * threads used to parse cell files. Chunked matrices are not affected as
+     * their chunks are always compressed.
+     *
+     * @param compressed true to compress the merged file
+     */
+    public final void setCompressed(final boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Set incremental merging. A manifest is then kept next to the merged
+     * file, and on next merging only new or changed files are read, columns
+     * of the other files being taken from the previous merged file.
+     *
+     * @param incremental true to enable incremental merging
+     */
+    public final void setIncremental(final boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Set the dictionary giving gene rows of the merged file, usually loaded
+     * from the gene index of the features metadata step. Genes of expression
+     * files unknown of the dictionary are ignored.
+     *
+     * @param geneDictionary the gene dictionary, null to take genes from the
+     *                       first expression file
+     */
+    public final void setGeneDictionary(final GeneDictionary geneDictionary) {
+        this.geneDictionary = geneDictionary;
+    }
+
+    /**
+     * Set the heap allowed for counts. When set, cells are spilled to the
+     * temporary directory in chunks and the matrix is written by merging
+     * chunks, so heap usage does not depend on the number of cells.
+     *
+     * @param memoryBudget memory budget in bytes, 0 to keep the matrix in
+     *                     memory
+     */
+    public final void setMemoryBudget(final long memoryBudget) {
+
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException(
+                "memoryBudget cannot be negative: " + memoryBudget);
+        }
+
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set the directory of files spilled to disk
+     *
+     * @param tempDirectory temporary directory
+     */
+    public final void setTempDirectory(final File tempDirectory) {
+
+        if (tempDirectory == null) {
+            throw new NullPointerException(
+                "tempDirectory argument cannot be null");
+        }
+
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Set the file of per-cell quality metrics. Metrics are computed from the
+     * columns of the matrix while it is filled, so counts are not read again.
+     *
+     * @param cellMetricsFile the metrics file, null to not compute metrics
+     */
+    public final void setCellMetricsFile(final File cellMetricsFile) {
+        this.cellMetricsFile = cellMetricsFile;
+    }
+
+    /**
+     * Set the genes metadata file giving mitochondrial and spike-in genes for
+     * per-cell metrics
+     *
+     * @param genesMetadataFile the genes metadata file, null if all genes are
+     *                          endogenous
+     */
+    public final void setGenesMetadataFile(final File genesMetadataFile) {
+        this.genesMetadataFile = genesMetadataFile;
+    }
+
+    /**
+     * Set the count above which a gene is detected in a cell
+     *
+     * @param detectionThreshold the detection threshold
+     */
+    public final void setDetectionThreshold(final int detectionThreshold) {
+
+        if (detectionThreshold < 0) {
+            throw new IllegalArgumentException(
+                "detectionThreshold cannot be negative: " + detectionThreshold);
+        }
+
+        this.detectionThreshold = detectionThreshold;
+    }
+
+    /**
+     * Set the minimal number of cells with counts of a written gene. Cells
+     * with counts are tracked per gene while the matrix is filled, so filtering
+     * genes does not need another pass on counts.
+     *
+     * @param minCells the minimal number of cells, 0 or 1 to keep all genes
+     *                 with counts
+     */
+    public final void setMinCells(final int minCells) {
+
+        if (minCells < 0) {
+            throw new IllegalArgumentException(
+                "minCells cannot be negative: " + minCells);
+        }
+
+        this.minCells = minCells;
+    }
+
+    /**
+     * Set the minimal total count of a written gene
+     *
+     * @param minCounts the minimal total count, 0 or 1 to keep all genes with
+     *                  counts
+     */
+    public final void setMinCounts(final long minCounts) {
+
+        if (minCounts < 0) {
+            throw new IllegalArgumentException(
+                "minCounts cannot be negative: " + minCounts);
+        }
+
+        this.minCounts = minCounts;
+    }
+
+    //
+    // Merging methods
+    //
+
+    /**
+     * Merge two columns files into one matrix
+     *
+     * @param files      list of files to merge
+     * @param mergedFile file for writing merging
+     * @throws NullPointerException if an argument is null
+     * @throws IOException          if an error occurs while reading or writing
+     *                              files
+     */
+    public void merge(List<File> files, File mergedFile)
+        throws NullPointerException, IOException {
+
+        /* Test parameters */
+        if (files == null) {
+            throw new NullPointerException("files argument cannot be null");
+        }
+
+        if (mergedFile == null) {
+            throw new NullPointerException(
+                "mergedFile argument cannot be null");
+        }
+
+        final GeneDictionary genes = getGenes(files);
+
+        /* Filtered genes are missing from the merged file, which cannot be
+           reused */
+        final boolean geneFiltered = this.minCells > 1 || this.minCounts > 1;
+        final boolean incremental = this.incremental && !geneFiltered;
+        if (this.incremental && geneFiltered) {
+            getLogger().warning("Incremental merging disabled by gene filter,"
+                + " all expression files will be merged");
+        }
+
+        /* Get columns of unchanged files from previous merging */
+        final File manifestFile = getManifestFile(mergedFile);
+        final MatrixManifest previous =
+            incremental ? readManifest(manifestFile, mergedFile) : null;
+
+        /* New files of a TSV matrix are appended to the previous rows */
+        if (previous != null && this.format == MatrixFormat.TSV
+            && this.memoryBudget == 0 && this.cellMetricsFile == null) {
+
+            final int appended = appendColumns(files, mergedFile, previous,
+                genes, manifestFile);
+            if (appended > 0) {
+                writeManifest(files, previous,
+                    new HashSet<>(files.subList(0, appended)), manifestFile);
+                return;
+            }
+        }
+
+        final Map<File, int[][]> reused = previous == null ?
+            Collections.<File, int[][]> emptyMap() :
+            loadUnchangedColumns(files, mergedFile, previous, genes);
+
+        /* Compute per-cell metrics while filling the matrix */
+        final CellMetrics metrics = this.cellMetricsFile == null ? null :
+            new CellMetrics(genes, this.genesMetadataFile,
+                this.detectionThreshold);
+
+        /* Fill one primitive column per cell */
+        if (this.format == MatrixFormat.CHUNKED) {
+
+            // Both layouts of the chunked format need the whole matrix
+            if (this.memoryBudget > 0) {
+                getLogger().warning(
+                    "Memory budget ignored for chunked matrix output");
+            }
+
+            final CountMatrix matrix =
+                createMatrix(files, genes, reused, metrics);
+            matrix.setGeneFilter(this.minCells, this.minCounts);
+            Files.deleteIfExists(manifestFile.toPath());
+            ChunkedMatrixWriter.write(matrix, mergedFile);
+
+        } else if (this.memoryBudget > 0) {
+            try (ExternalCountMatrix matrix = new ExternalCountMatrix(genes,
+                this.format, this.tempDirectory, this.memoryBudget)) {
+                matrix.setGeneFilter(this.minCells, this.minCounts);
+                fillMatrix(files, genes, matrix, reused, metrics);
+                write(matrix, mergedFile, manifestFile);
+                getLogger().info("Merged " + matrix.getChunkCount()
+                    + " chunks spilled to " + this.tempDirectory);
+            }
+        } else {
+            final CountMatrix matrix =
+                createMatrix(files, genes, reused, metrics);
+            matrix.setGeneFilter(this.minCells, this.minCounts);
+            write(matrix, mergedFile, manifestFile);
+        }
+
+        if (metrics != null) {
+            metrics.write(this.cellMetricsFile);
+        }
+
+        /* Save manifest for next merging */
+        if (incremental) {
+            writeManifest(files, previous, reused.keySet(), manifestFile);
+        }
+    }
+
+    /**
+     * Write the merged file, excluding non detected genes
+     *
+     * @param matrix       the matrix to write
+     * @param mergedFile   file for writing merging
+     * @param manifestFile manifest file, deleted as it no more describes the
+     *                     merged file
+     * @throws IOException if an error occurs while writing files
+     */
+    private void write(final ColumnMatrix matrix, final File mergedFile,
+        final File manifestFile) throws IOException {
+
+        Files.deleteIfExists(manifestFile.toPath());
+
+        if (this.format == MatrixFormat.MTX) {
+            writeMatrixMarket(matrix, mergedFile);
+        } else {
+            try (BufferedWriter out = createWriter(mergedFile)) {
+                matrix.write(out);
+            }
+        }
+    }
+
+    /**
+     * Read the manifest of a previous merging
+     *
+     * @param manifestFile the manifest file
+     * @param mergedFile   the merged file of the previous merging
+     * @return the manifest or null if no usable manifest exists
+     * @throws IOException if an error occurs while reading manifest
+     */
+    private MatrixManifest readManifest(final File manifestFile,
+        final File mergedFile) throws IOException {
+
+        if (!manifestFile.isFile() || !mergedFile.isFile()) {
+            return null;
+        }
+
+        final MatrixManifest manifest = MatrixManifest.read(manifestFile);
+
+        if (manifest == null || !this.format.name()
+            .equals(manifest.getFormat())) {
+            getLogger().warning("Unusable manifest " + manifestFile
+                + ", all expression files will be merged");
+            return null;
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Load the columns of files unchanged since previous merging
+     *
+     * @param files      list of files to merge
+     * @param mergedFile the merged file of the previous merging
+     * @param manifest   the manifest of the previous merging
+     * @param genes      dictionary giving gene rows
+     * @return a map of sparse columns for unchanged files
+     * @throws IOException if an error occurs while reading files
+     */
+    private Map<File, int[][]> loadUnchangedColumns(final List<File> files,
+        final File mergedFile, final MatrixManifest manifest,
+        final GeneDictionary genes) throws IOException {
+
+        final Map<File, Integer> unchanged = new HashMap<>();
+        for (File file : files) {
+            final MatrixManifest.Entry entry = manifest.getUnchangedEntry(file);
+            if (entry != null) {
+                unchanged.put(file, entry.getColumn());
+            }
+        }
+
+        getLogger().info("Reusing " + unchanged.size() + " of " + files.size()
+            + " expression files from " + mergedFile);
+
+        final Map<Integer, int[][]> columns = MatrixColumnLoader
+            .load(mergedFile, this.format, genes,
+                new HashSet<>(unchanged.values()));
+
+        final Map<File, int[][]> result = new HashMap<>();
+        for (Map.Entry<File, Integer> e : unchanged.entrySet()) {
+            result.put(e.getKey(), columns.get(e.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Append the columns of new files to a previous TSV matrix. This applies
+     * when the files of the previous matrix are unchanged and come first, in
+     * the same order. Previous rows are copied as text without decoding their
+     * counts, rows of genes only counted in new files being inserted with
+     * zeros in previous columns.
+     *
+     * @param files        list of files to merge
+     * @param mergedFile   the merged file of the previous merging
+     * @param manifest     the manifest of the previous merging
+     * @param genes        dictionary giving gene rows
+     * @param manifestFile manifest file, deleted as it no more describes the
+     *                     merged file
+     * @return the number of reused files, 0 if columns cannot be appended
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    private int appendColumns(final List<File> files, final File mergedFile,
+        final MatrixManifest manifest, final GeneDictionary genes,
+        final File manifestFile) throws IOException {
+
+        // Previous files must be the first ones
+        int reused = 0;
+        while (reused < files.size() && reused < manifest.size()) {
+            final MatrixManifest.Entry entry =
+                manifest.getUnchangedEntry(files.get(reused));
+            if (entry == null || entry.getColumn() != reused) {
+                break;
+            }
+            reused++;
+        }
+
+        if (reused == 0 || reused != manifest.size()) {
+            return 0;
+        }
+
+        getLogger().info("Appending " + (files.size() - reused)
+            + " expression files to " + mergedFile);
+
+        final CountMatrix added = new CountMatrix(genes);
+        fillMatrix(files.subList(reused, files.size()), genes, added,
+            Collections.<File, int[][]> emptyMap(), null);
+
+        final File tmpFile = new File(mergedFile.getPath() + ".tmp");
+        final boolean appended;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+            GzipUtils.open(mergedFile), StandardCharsets.UTF_8), 1 << 16);
+             BufferedWriter out = createWriter(tmpFile)) {
+            appended = appendColumns(in, out, reused, added);
+        }
+
+        if (!appended) {
+            getLogger().warning("Rows of " + mergedFile
+                + " do not match genes, all expression files will be merged");
+            Files.deleteIfExists(tmpFile.toPath());
+            return 0;
+        }
+
+        Files.deleteIfExists(manifestFile.toPath());
+        Files.move(tmpFile.toPath(), mergedFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+
+        return reused;
+    }
+
+    /**
+     * Copy the rows of a previous TSV matrix, appending the columns of a
+     * matrix of new cells
+     *
+     * @param in      reader of the previous matrix
+     * @param out     writer of the merged matrix
+     * @param reused  number of columns of the previous matrix
+     * @param added   matrix of the new cells, with the same genes
+     * @return false if the previous rows are not genes in dictionary order
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    private static boolean appendColumns(final BufferedReader in,
+        final BufferedWriter out, final int reused, final CountMatrix added)
+        throws IOException {
+
+        final GeneDictionary genes = added.getGeneDictionary();
+        final int nCells = added.getCellCount();
+        final int[] cursors = new int[nCells];
+
+        // Header
+        final String header = in.readLine();
+        if (header == null || header.split("\t").length != reused) {
+            return false;
+        }
+        out.write(header);
+        for (int j = 0; j < nCells; j++) {
+            out.write('\t');
+            out.write(added.getCell(j));
+        }
+        out.newLine();
+
+        // Zeros of previous columns for genes not written before
+        final StringBuilder zeros = new StringBuilder();
+        for (int j = 0; j < reused; j++) {
+            zeros.append("\t0");
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        String line = in.readLine();
+        int previousRow = getRow(line, genes);
+
+        for (int i = 0; i < genes.size(); i++) {
+
+            if (previousRow < i) {
+                return false;
+            }
+
+            sb.setLength(0);
+            boolean counted = false;
+            for (int j = 0; j < nCells; j++) {
+                final int[] rows = added.getColumnRows(j);
+                final int k = cursors[j];
+                if (k < rows.length && rows[k] == i) {
+                    sb.append('\t').append(added.getColumnValues(j)[k]);
+                    cursors[j]++;
+                    counted = true;
+                } else {
+                    sb.append("\t0");
+                }
+            }
+
+            if (previousRow == i) {
+                out.write(line);
+                line = in.readLine();
+                previousRow = getRow(line, genes);
+            } else if (counted) {
+                out.write(genes.getId(i));
+                out.append(zeros);
+            } else {
+                continue;
+            }
+
+            out.append(sb);
+            out.newLine();
+        }
+
+        return line == null;
+    }
+
+    /**
+     * Get the dictionary row of a line of a TSV matrix
+     *
+     * @param line  the line, may be null
+     * @param genes dictionary giving gene rows
+     * @return the row of the gene, -1 if unknown, Integer.MAX_VALUE at the
+     * end of the matrix
+     */
+    private static int getRow(final String line, final GeneDictionary genes) {
+
+        if (line == null) {
+            return Integer.MAX_VALUE;
+        }
+
+        final int tab = line.indexOf('\t');
+        return tab < 0 ? -1 : genes.getIndex(line.substring(0, tab));
+    }
+
+    /**
+     * Write the manifest of the current merging
+     *
+     * @param files        list of merged files
+     * @param previous     manifest of the previous merging, may be null
+     * @param reused       files reused from the previous merging
+     * @param manifestFile the manifest file
+     * @throws IOException if an error occurs while writing manifest
+     */
+    private void writeManifest(final List<File> files,
+        final MatrixManifest previous, final Set<File> reused,
+        final File manifestFile) throws IOException {
+
+        final MatrixManifest manifest = new MatrixManifest(this.format.name());
+
+        for (int j = 0; j < files.size(); j++) {
+            final File file = files.get(j);
+            manifest.add(file, reused.contains(file) ?
+                previous.getEntry(file).getHash() : null, j);
+        }
+
+        manifest.write(manifestFile);
+    }
+
+    /**
+     * Create a writer on an output file, compressing it if needed
+     *
+     * @param file the output file
+     * @return a buffered writer
+     * @throws IOException if an error occurs while creating file
+     */
+    protected BufferedWriter createWriter(File file) throws IOException {
+
+        OutputStream out = new FileOutputStream(file);
+        if (this.compressed) {
+            out = new ParallelGzipOutputStream(out, this.threadCount);
+        }
+
+        return new BufferedWriter(
+            new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Create a count matrix from expression files. Gene rows are taken from
+     * the gene dictionary if set, from the first file otherwise.
+     *
+     * @param files list of files to merge
+     * @return a count matrix with one column per file, in list order
+     * @throws IOException if an error occurs while reading files
+     */
+    public CountMatrix createMatrix(List<File> files) throws IOException {
+
+        return createMatrix(files, getGenes(files),
+            Collections.<File, int[][]> emptyMap(), null);
+    }
+
+    /**
+     * Get the dictionary giving gene rows
+     *
+     * @param files list of files to merge
+     * @return the gene dictionary if set, else a dictionary of the genes of
+     * the first file
+     * @throws IOException if an error occurs while reading files
+     */
+    private GeneDictionary getGenes(final List<File> files)
+        throws IOException {
+
+        if (this.geneDictionary != null) {
+            return this.geneDictionary;
+        }
+
+        return new GeneDictionary(readGenes(files.get(0)));
+    }
+
+    /**
+     * Create a count matrix from expression files
+     *
+     * @param files   list of files to merge
+     * @param genes   dictionary giving gene rows
+     * @param reused  sparse columns of files that must not be read
+     * @param metrics per-cell metrics to compute, may be null
+     * @return a count matrix with one column per file, in list order
+     * @throws IOException if an error occurs while reading files
+     */
+    private CountMatrix createMatrix(final List<File> files,
+        final GeneDictionary genes, final Map<File, int[][]> reused,
+        final CellMetrics metrics) throws IOException {
+
+        final CountMatrix matrix = new CountMatrix(genes);
+        fillMatrix(files, genes, matrix, reused, metrics);
+
+        return matrix;
+    }
+
+    /**
+     * Add one column per expression file to a matrix
+     *
+     * @param files   list of files to merge
+     * @param genes   dictionary giving gene rows
+     * @param matrix  the matrix to fill
+     * @param reused  sparse columns of files that must not be read
+     * @param metrics per-cell metrics to compute, may be null
+     * @throws IOException if an error occurs while reading files
+     */
+    private void fillMatrix(final List<File> files, final GeneDictionary genes,
+        final ColumnMatrix matrix, final Map<File, int[][]> reused,
+        final CellMetrics metrics) throws IOException {
+
+        if (this.threadCount == 1) {
+            final int[] column = new int[genes.size()];
+            for (File file : files) {
+                int[][] sparse = reused.get(file);
+                if (sparse == null) {
+                    readCounts(file, genes, column);
+                    sparse = CountMatrix.toSparse(column);
+                }
+                addCell(matrix, metrics, file, sparse);
+            }
+            return;
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(this.threadCount);
+        try {
+            fillMatrix(pool, files, genes, matrix, reused, metrics);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Parse cell files on a pool, adding columns in input order. Only a
+     * bounded window of parsed cells is kept waiting for its turn.
+     *
+     * @param pool    the pool running parsing tasks
+     * @param files   list of files to merge
+     * @param genes   dictionary giving gene rows
+     * @param matrix  the matrix to fill
+     * @param reused  sparse columns of files that must not be read
+     * @param metrics per-cell metrics to compute, may be null
+     * @throws IOException if an error occurs while reading files
+     */
+    private void fillMatrix(final ForkJoinPool pool, final List<File> files,
+        final GeneDictionary genes, final ColumnMatrix matrix,
+        final Map<File, int[][]> reused, final CellMetrics metrics)
+        throws IOException {
+
+        final int window = this.threadCount * FILES_PER_THREAD;
+        final Deque<Future<int[][]>> pending = new ArrayDeque<>(window);
+        int submitted = 0;
+
+        for (File file : files) {
+
+            // Fill the window
+            while (submitted < files.size() && pending.size() < window) {
+                final File next = files.get(submitted++);
+                if (!reused.containsKey(next)) {
+                    pending.addLast(pool.submit(parseTask(next, genes)));
+                }
+            }
+
+            // Add the oldest cell
+            final int[][] column = reused.containsKey(file) ?
+                reused.get(file) : waitFor(pending.removeFirst(), file);
+            addCell(matrix, metrics, file, column);
+        }
+    }
+
+    /**
+     * Add the column of a cell to a matrix and to per-cell metrics
+     *
+     * @param matrix  the matrix to fill
+     * @param metrics per-cell metrics to compute, may be null
+     * @param file    expression file of the cell
+     * @param column  row indexes and values of the column
+     * @throws IOException if an error occurs while storing the column
+     */
+    private static void addCell(final ColumnMatrix matrix,
+        final CellMetrics metrics, final File file, final int[][] column)
+        throws IOException {
+
+        final String cell = getCellName(file);
+        matrix.addCell(cell, column[0], column[1]);
+        if (metrics != null) {
+            metrics.addCell(cell, column[0], column[1]);
+        }
+    }
+
+    /**
+     * Create a task that reads a cell file into a sparse column
+     *
+     * @param file  expression file
+     * @param genes dictionary giving gene rows
+     * @return a task returning row indexes and values of the column
+     */
+    private Callable<int[][]> parseTask(final File file,
+        final GeneDictionary genes) {
+
+        return new Callable<int[][]>() {
+
+            @Override
+            public int[][] call() throws IOException {
+                final int[] column = new int[genes.size()];
+                readCounts(file, genes, column);
+                return CountMatrix.toSparse(column);
+            }
+        };
+    }
+
+    /**
+     * Wait for the result of a parsing task
+     *
+     * @param future the task
+     * @param file   file parsed by the task
+     * @return result of the task
+     * @throws IOException if the task has failed
+     */
+    private static int[][] waitFor(final Future<int[][]> future,
+        final File file) throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(
+                "Error while reading " + file + ": " + e.getCause()
+                    .getMessage(), e.getCause());
+        }
+    }
+
+    //
+    // Output methods
+    //
+
+    /**
+     * Write a matrix in Matrix Market format with its genes and barcodes
+     * sidecar files. All files are compressed if compression is enabled, the
+     * Matrix Market file being then expected to end with ".gz" like its
+     * sidecar files.
+     *
+     * @param matrix  the matrix to write
+     * @param mtxFile Matrix Market file
+     * @throws IOException if an error occurs while writing files
+     */
+    public void writeMatrixMarket(ColumnMatrix matrix, File mtxFile)
+        throws IOException {
+
+        try (BufferedWriter out = createWriter(mtxFile)) {
+            matrix.writeMatrixMarket(out);
+        }
+
+        try (BufferedWriter out = createWriter(getGenesFile(mtxFile))) {
+            matrix.writeGenes(out);
+        }
+
+        try (BufferedWriter out = createWriter(getBarcodesFile(mtxFile))) {
+            matrix.writeBarcodes(out);
+        }
+    }
+
+    /**
+     * Get the genes sidecar file of a Matrix Market file, gzip compressed if
+     * the Matrix Market file is
+     *
+     * @param mtxFile Matrix Market file
+     * @return genes file, in the same directory
+     */
+    public static File getGenesFile(File mtxFile) {
+        return getSidecarFile(mtxFile, "_genes.tsv", true);
+    }
+
+    /**
+     * Get the manifest file of a merged file, used by incremental merging
+     *
+     * @param mergedFile merged file
+     * @return manifest file, in the same directory
+     */
+    public static File getManifestFile(File mergedFile) {
+        return getSidecarFile(mergedFile, "_manifest.tsv", false);
+    }
+
+    /**
+     * Get the barcodes sidecar file of a Matrix Market file, gzip compressed
+     * if the Matrix Market file is
+     *
+     * @param mtxFile Matrix Market file
+     * @return barcodes file, in the same directory
+     */
+    public static File getBarcodesFile(File mtxFile) {
+        return getSidecarFile(mtxFile, "_barcodes.tsv", true);
+    }
+
+    private static File getSidecarFile(File mtxFile, String suffix,
+        boolean keepCompression) {
+
+        String name = mtxFile.getName();
+        final boolean gzip = name.endsWith(GZIP_EXTENSION);
+        if (gzip) {
+            name = name.substring(0, name.length() - GZIP_EXTENSION.length());
+        }
+        final int dot = name.lastIndexOf('.');
+
+        return new File(mtxFile.getParentFile(),
+            (dot > 0 ? name.substring(0, dot) : name) + suffix
+                + (gzip && keepCompression ? GZIP_EXTENSION : ""));
+    }
+
+    //
+    // Input methods
+    //
+
+    /**
+     * Get cell name from an expression file name
+     *
+     * @param file expression file
+     * @return name of the cell
+     */
+    public static String getCellName(File file) {
+        return file.getName().replace(".gz", "").replace(".tsv", "")
+            .split("_")[3];
+    }
+
+    /**
+     * Read gene Ids of an expression file, plain or gzip compressed, keeping
+     * file order
+     *
+     * @param file expression file
+     * @return list of gene Ids
+     * @throws IOException if an error occurs while reading file
+     */
+    public static List<String> readGenes(File file) throws IOException {
+
+        List<String> genes = new ArrayList<>();
+
+        try (BufferedReader in = new BufferedReader(
+            new InputStreamReader(GzipUtils.open(file), StandardCharsets.UTF_8))) {
+            String aLine = in.readLine();
+            while ((aLine = in.readLine()) != null) {
+                final int tab = aLine.indexOf('\t');
+                genes.add(tab < 0 ? aLine : aLine.substring(0, tab));
+            }
+        }
+
+        return genes;
+    }
+
+    /**
+     * Read counts of an expression file into a primitive column, with the
+     * reader of the current thread
+     *
+     * @param file   expression file
+     * @param matrix matrix giving gene indexes
+     * @param column array to fill, indexed by gene row. Genes unknown of the
+     *               matrix are ignored
+     * @throws IOException if an error occurs while reading file
+     */
+    public void readCounts(File file, CountMatrix matrix, int[] column)
+        throws IOException {
+
+        readCounts(file, matrix.getGeneDictionary(), column);
+    }
+
+    /**
+     * Read counts of an expression file into a primitive column, with the
+     * reader of the current thread
+     *
+     * @param file   expression file
+     * @param genes  dictionary giving gene rows
+     * @param column array to fill, indexed by gene row. Genes unknown of the
+     *               dictionary are ignored
+     * @throws IOException if an error occurs while reading file
+     */
+    private void readCounts(final File file, final GeneDictionary genes,
+        final int[] column) throws IOException {
+
+        Arrays.fill(column, 0);
+        this.readers.get().readCounts(file, genes, column);
+    }
+}
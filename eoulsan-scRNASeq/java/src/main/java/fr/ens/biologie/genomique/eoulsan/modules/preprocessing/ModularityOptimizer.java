@@ -0,0 +1,608 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * This class define the optimization of the modularity of a weighted
+ * undirected graph, with the Louvain algorithm (Blondel et al., 2008) or the
+ * Leiden algorithm (Traag, Waltman and van Eck, 2019). The resolution scales
+ * the expected weight of edges inside communities.
+ * <p>
+ * Nodes are visited in a random order drawn from the seed, so a partition
+ * only depends on the graph and on the seed. The refinement of the Leiden
+ * algorithm merges each node in the refined community of greatest gain.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+class ModularityOptimizer {
+
+    /**
+     * Gains smaller than this value are ignored so moves always converge
+     */
+    private static final double EPSILON = 1e-12;
+
+    private final double resolution;
+    private final Random random;
+
+    /**
+     * This class define a weighted undirected graph in compressed form.
+     * Each edge is stored in the rows of its two nodes, self loops once.
+     */
+    static final class Graph {
+
+        private final int nodeCount;
+        // Edges of node i are targets[starts[i], starts[i + 1])
+        private final int[] starts;
+        private final int[] targets;
+        private final double[] weights;
+        private final double[] strengths;
+        private final double totalWeight;
+
+        /**
+         * Constructor
+         *
+         * @param starts  start of the edges of each node, with a final end
+         * @param targets target of each edge
+         * @param weights weight of each edge
+         */
+        Graph(final int[] starts, final int[] targets,
+            final double[] weights) {
+
+            this.nodeCount = starts.length - 1;
+            this.starts = starts;
+            this.targets = targets;
+            this.weights = weights;
+            this.strengths = new double[this.nodeCount];
+
+            double total = 0;
+            for (int i = 0; i < this.nodeCount; i++) {
+                for (int p = starts[i]; p < starts[i + 1]; p++) {
+                    this.strengths[i] += weights[p];
+                }
+                total += this.strengths[i];
+            }
+            this.totalWeight = total;
+        }
+
+        int getNodeCount() {
+            return this.nodeCount;
+        }
+
+        int getEdgeCount() {
+            return this.starts[this.nodeCount];
+        }
+    }
+
+    //
+    // Optimization methods
+    //
+
+    /**
+     * Find communities with the Louvain algorithm
+     *
+     * @param graph the graph
+     * @return the community of each node, numbered from 0
+     */
+    int[] louvain(final Graph graph) {
+
+        final int[] result = identity(graph.nodeCount);
+        Graph g = graph;
+
+        while (true) {
+
+            final int[] communities = identity(g.nodeCount);
+            if (!moveNodes(g, communities)) {
+                break;
+            }
+
+            final int count = renumber(communities);
+            for (int i = 0; i < result.length; i++) {
+                result[i] = communities[result[i]];
+            }
+            if (count == g.nodeCount) {
+                break;
+            }
+            g = aggregate(g, communities, count);
+        }
+
+        return result;
+    }
+
+    /**
+     * Find communities with the Leiden algorithm
+     *
+     * @param graph      the graph
+     * @param iterations number of iterations, each starting from the
+     *                   partition of the previous one
+     * @return the community of each node, numbered from 0
+     */
+    int[] leiden(final Graph graph, final int iterations) {
+
+        int[] result = identity(graph.nodeCount);
+        for (int i = 0; i < iterations; i++) {
+            result = leidenIteration(graph, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Compute the modularity of a partition
+     *
+     * @param graph       the graph
+     * @param communities the community of each node
+     * @return the modularity
+     */
+    double modularity(final Graph graph, final int[] communities) {
+
+        if (graph.totalWeight == 0) {
+            return 0;
+        }
+
+        final double[] totals = new double[graph.nodeCount];
+        double internal = 0;
+        for (int i = 0; i < graph.nodeCount; i++) {
+            totals[communities[i]] += graph.strengths[i];
+            for (int p = graph.starts[i]; p < graph.starts[i + 1]; p++) {
+                if (communities[graph.targets[p]] == communities[i]) {
+                    internal += graph.weights[p];
+                }
+            }
+        }
+
+        double expected = 0;
+        for (double total : totals) {
+            expected += total * total;
+        }
+
+        return (internal - this.resolution * expected / graph.totalWeight)
+            / graph.totalWeight;
+    }
+
+    /**
+     * Run an iteration of the Leiden algorithm
+     *
+     * @param graph   the graph
+     * @param initial initial community of each node
+     * @return the community of each node, numbered from 0
+     */
+    private int[] leidenIteration(final Graph graph, final int[] initial) {
+
+        // Node of the aggregated graph holding each node of the graph
+        final int[] nodes = identity(graph.nodeCount);
+        int[] communities = Arrays.copyOf(initial, initial.length);
+        Graph g = graph;
+
+        while (true) {
+
+            moveNodesFast(g, communities);
+            final int count = renumber(communities);
+            if (count == g.nodeCount) {
+                break;
+            }
+
+            final int[] refined = refine(g, communities);
+            final int refinedCount = renumber(refined);
+            if (refinedCount == g.nodeCount) {
+                break;
+            }
+
+            // Aggregated nodes start in the community of their members
+            final int[] aggregatedCommunities = new int[refinedCount];
+            for (int i = 0; i < g.nodeCount; i++) {
+                aggregatedCommunities[refined[i]] = communities[i];
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = refined[nodes[i]];
+            }
+
+            g = aggregate(g, refined, refinedCount);
+            communities = aggregatedCommunities;
+        }
+
+        final int[] result = new int[graph.nodeCount];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = communities[nodes[i]];
+        }
+        renumber(result);
+
+        return result;
+    }
+
+    /**
+     * Move nodes to the neighbouring community of greatest gain, in passes
+     * over all the nodes until no node moves
+     *
+     * @param g           the graph
+     * @param communities community of each node, updated
+     * @return true if a node has moved
+     */
+    private boolean moveNodes(final Graph g, final int[] communities) {
+
+        final double[] totals = communityTotals(g, communities);
+        final double[] neighborWeights = new double[g.nodeCount];
+        final int[] neighborCommunities = new int[g.nodeCount];
+        final int[] order = shuffledNodes(g.nodeCount);
+
+        boolean result = false;
+        int moves;
+        do {
+            moves = 0;
+            for (int i : order) {
+                final int best = bestCommunity(g, i, communities, totals,
+                    neighborWeights, neighborCommunities, -1);
+                if (best != communities[i]) {
+                    communities[i] = best;
+                    moves++;
+                }
+            }
+            result |= moves > 0;
+        } while (moves > 0);
+
+        return result;
+    }
+
+    /**
+     * Move nodes to the community of greatest gain, an empty community
+     * included, visiting again the neighbours of each moved node
+     *
+     * @param g           the graph
+     * @param communities community of each node, updated
+     */
+    private void moveNodesFast(final Graph g, final int[] communities) {
+
+        final double[] totals = communityTotals(g, communities);
+        final int[] sizes = new int[g.nodeCount];
+        for (int c : communities) {
+            sizes[c]++;
+        }
+        final Deque<Integer> emptyCommunities = new ArrayDeque<>();
+        for (int c = g.nodeCount - 1; c >= 0; c--) {
+            if (sizes[c] == 0) {
+                emptyCommunities.push(c);
+            }
+        }
+
+        final double[] neighborWeights = new double[g.nodeCount];
+        final int[] neighborCommunities = new int[g.nodeCount];
+        final boolean[] queued = new boolean[g.nodeCount];
+        final Deque<Integer> queue = new ArrayDeque<>(g.nodeCount);
+        for (int i : shuffledNodes(g.nodeCount)) {
+            queue.add(i);
+            queued[i] = true;
+        }
+
+        while (!queue.isEmpty()) {
+
+            final int i = queue.poll();
+            queued[i] = false;
+
+            final int current = communities[i];
+            final int empty = sizes[current] == 1 ? current
+                : emptyCommunities.isEmpty() ? -1 : emptyCommunities.peek();
+            final int best = bestCommunity(g, i, communities, totals,
+                neighborWeights, neighborCommunities, empty);
+            if (best == current) {
+                continue;
+            }
+
+            communities[i] = best;
+            if (--sizes[current] == 0) {
+                emptyCommunities.push(current);
+            }
+            if (sizes[best]++ == 0) {
+                emptyCommunities.remove(best);
+            }
+
+            for (int p = g.starts[i]; p < g.starts[i + 1]; p++) {
+                final int j = g.targets[p];
+                if (!queued[j] && communities[j] != best) {
+                    queue.add(j);
+                    queued[j] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the community of greatest modularity gain for a node, and update
+     * the totals of its old and new communities
+     *
+     * @param g                   the graph
+     * @param i                   the node
+     * @param communities         community of each node
+     * @param totals              strength of each community
+     * @param neighborWeights     buffer of weights to neighbour communities,
+     *                            filled with zeros
+     * @param neighborCommunities buffer of neighbour communities
+     * @param empty               an empty community to consider, -1 if none
+     * @return the best community, the current one if no move improves
+     */
+    private int bestCommunity(final Graph g, final int i,
+        final int[] communities, final double[] totals,
+        final double[] neighborWeights, final int[] neighborCommunities,
+        final int empty) {
+
+        final int current = communities[i];
+        final double strength = g.strengths[i];
+        final double factor = this.resolution * strength / g.totalWeight;
+
+        int count = 0;
+        neighborCommunities[count++] = current;
+        for (int p = g.starts[i]; p < g.starts[i + 1]; p++) {
+            final int j = g.targets[p];
+            if (j == i) {
+                continue;
+            }
+            final int c = communities[j];
+            if (neighborWeights[c] == 0 && c != current) {
+                neighborCommunities[count++] = c;
+            }
+            neighborWeights[c] += g.weights[p];
+        }
+
+        totals[current] -= strength;
+
+        int best = current;
+        double bestGain =
+            neighborWeights[current] - factor * totals[current];
+        for (int n = 1; n < count; n++) {
+            final int c = neighborCommunities[n];
+            final double gain = neighborWeights[c] - factor * totals[c];
+            if (gain > bestGain + EPSILON) {
+                best = c;
+                bestGain = gain;
+            }
+        }
+        if (empty >= 0 && empty != current && bestGain < -EPSILON) {
+            best = empty;
+        }
+
+        totals[best] += strength;
+        for (int n = 0; n < count; n++) {
+            neighborWeights[neighborCommunities[n]] = 0;
+        }
+
+        return best;
+    }
+
+    /**
+     * Refine the communities of a partition: inside each community, singleton
+     * nodes well connected to their community are merged in the refined
+     * community of greatest positive gain that is also well connected.
+     *
+     * @param g           the graph
+     * @param communities community of each node
+     * @return the refined community of each node
+     */
+    private int[] refine(final Graph g, final int[] communities) {
+
+        final int n = g.nodeCount;
+        final int[] result = identity(n);
+        final double[] totals = Arrays.copyOf(g.strengths, n);
+        final double[] communityTotals = communityTotals(g, communities);
+        final boolean[] merged = new boolean[n];
+
+        // Weight of the edges from each refined community to the rest of
+        // its community
+        final double[] external = new double[n];
+        for (int i = 0; i < n; i++) {
+            for (int p = g.starts[i]; p < g.starts[i + 1]; p++) {
+                final int j = g.targets[p];
+                if (j != i && communities[j] == communities[i]) {
+                    external[i] += g.weights[p];
+                }
+            }
+        }
+
+        final double[] neighborWeights = new double[n];
+        final int[] neighborCommunities = new int[n];
+        final boolean[] seen = new boolean[n];
+
+        for (int i : shuffledNodes(n)) {
+
+            if (merged[result[i]]) {
+                continue;
+            }
+
+            final int c = communities[i];
+            final double strength = g.strengths[i];
+            final double factor = this.resolution / g.totalWeight;
+            if (external[i] < factor * strength
+                * (communityTotals[c] - strength) - EPSILON) {
+                continue;
+            }
+
+            int count = 0;
+            for (int p = g.starts[i]; p < g.starts[i + 1]; p++) {
+                final int j = g.targets[p];
+                if (j == i || communities[j] != c) {
+                    continue;
+                }
+                final int r = result[j];
+                if (!seen[r]) {
+                    seen[r] = true;
+                    neighborCommunities[count++] = r;
+                }
+                neighborWeights[r] += g.weights[p];
+            }
+
+            int best = -1;
+            double bestGain = EPSILON;
+            for (int k = 0; k < count; k++) {
+                final int r = neighborCommunities[k];
+                final boolean wellConnected = external[r] >= factor
+                    * totals[r] * (communityTotals[c] - totals[r]) - EPSILON;
+                final double gain =
+                    neighborWeights[r] - factor * strength * totals[r];
+                if (wellConnected && gain > bestGain) {
+                    best = r;
+                    bestGain = gain;
+                }
+            }
+
+            if (best >= 0) {
+                external[best] += external[i] - 2 * neighborWeights[best];
+                totals[best] += strength;
+                totals[result[i]] -= strength;
+                result[i] = best;
+                merged[best] = true;
+            }
+
+            for (int k = 0; k < count; k++) {
+                neighborWeights[neighborCommunities[k]] = 0;
+                seen[neighborCommunities[k]] = false;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Aggregate the nodes of each community in a single node
+     *
+     * @param g           the graph
+     * @param communities community of each node, numbered from 0
+     * @param count       number of communities
+     * @return the aggregated graph
+     */
+    private static Graph aggregate(final Graph g, final int[] communities,
+        final int count) {
+
+        // Nodes sorted by community
+        final int[] memberStarts = new int[count + 1];
+        for (int c : communities) {
+            memberStarts[c + 1]++;
+        }
+        for (int c = 0; c < count; c++) {
+            memberStarts[c + 1] += memberStarts[c];
+        }
+        final int[] members = new int[g.nodeCount];
+        final int[] next = Arrays.copyOf(memberStarts, count);
+        for (int i = 0; i < g.nodeCount; i++) {
+            members[next[communities[i]]++] = i;
+        }
+
+        final int[] starts = new int[count + 1];
+        int[] targets = new int[Math.max(16, g.getEdgeCount() / 2)];
+        double[] weights = new double[targets.length];
+        final double[] rowWeights = new double[count];
+        final int[] rowTargets = new int[count];
+        final boolean[] seen = new boolean[count];
+        int size = 0;
+
+        for (int c = 0; c < count; c++) {
+
+            int rowSize = 0;
+            for (int m = memberStarts[c]; m < memberStarts[c + 1]; m++) {
+                final int i = members[m];
+                for (int p = g.starts[i]; p < g.starts[i + 1]; p++) {
+                    final int d = communities[g.targets[p]];
+                    if (!seen[d]) {
+                        seen[d] = true;
+                        rowTargets[rowSize++] = d;
+                    }
+                    rowWeights[d] += g.weights[p];
+                }
+            }
+
+            Arrays.sort(rowTargets, 0, rowSize);
+            if (size + rowSize > targets.length) {
+                final int capacity = Math.max(size + rowSize, 2 * targets.length);
+                targets = Arrays.copyOf(targets, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+            }
+            for (int k = 0; k < rowSize; k++) {
+                final int d = rowTargets[k];
+                targets[size] = d;
+                weights[size++] = rowWeights[d];
+                rowWeights[d] = 0;
+                seen[d] = false;
+            }
+            starts[c + 1] = size;
+        }
+
+        return new Graph(starts, Arrays.copyOf(targets, size),
+            Arrays.copyOf(weights, size));
+    }
+
+    //
+    // Utility methods
+    //
+
+    private static int[] identity(final int n) {
+
+        final int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = i;
+        }
+
+        return result;
+    }
+
+    private static double[] communityTotals(final Graph g,
+        final int[] communities) {
+
+        final double[] result = new double[g.nodeCount];
+        for (int i = 0; i < g.nodeCount; i++) {
+            result[communities[i]] += g.strengths[i];
+        }
+
+        return result;
+    }
+
+    private int[] shuffledNodes(final int n) {
+
+        final int[] result = identity(n);
+        for (int i = n - 1; i > 0; i--) {
+            final int j = this.random.nextInt(i + 1);
+            final int tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+
+        return result;
+    }
+
+    /**
+     * Renumber communities from 0 in order of first node
+     *
+     * @param communities community of each node, renumbered
+     * @return number of communities
+     */
+    private static int renumber(final int[] communities) {
+
+        final int[] ids = new int[communities.length];
+        Arrays.fill(ids, -1);
+        int count = 0;
+        for (int i = 0; i < communities.length; i++) {
+            if (ids[communities[i]] < 0) {
+                ids[communities[i]] = count++;
+            }
+            communities[i] = ids[communities[i]];
+        }
+
+        return count;
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Constructor
+     *
+     * @param resolution the resolution of the modularity
+     * @param seed       the seed of the node orders
+     */
+    ModularityOptimizer(final double resolution, final long seed) {
+
+        this.resolution = resolution;
+        this.random = new Random(seed);
+    }
+}
@@ -0,0 +1,419 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+
+/**
+ * This class define the parsing of an annotation file split in chunks of
+ * lines parsed on a pool of threads. Files must be uncompressed or bgzip
+ * compressed; bgzip files are split on block boundaries, the uncompressed
+ * size of each block being read from its trailer.
+ * <p>
+ * A chunk owns the lines starting in its range: it starts reading one byte
+ * before its range and skips up to the first line feed. Each chunk gathers
+ * the features of its lines in its own feature table, and its transcript -
+ * gene relations. Chunks are then merged in file order, so features, their
+ * order in the output and the errors raised are the ones of a sequential
+ * parse. A chunk in error is parsed again once the lines of the previous
+ * chunks are counted, to report the line numbers of the file.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+class ParallelAnnotationParser {
+
+    /**
+     * Smallest uncompressed size of a chunk
+     */
+    private static final long DEFAULT_MIN_CHUNK_SIZE = 1 << 22;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * BGZF block header: gzip header with a "BC" extra subfield holding the
+     * block size minus 1
+     */
+    private static final int BGZF_HEADER_SIZE = 18;
+    private static final int GZIP_FLAG_EXTRA = 4;
+    private static final int BGZF_TRAILER_SIZE = 4;
+
+    private final String mtTag;
+    private final String spikeTag;
+    private final String genomicType;
+    private final String attributeId;
+    private final boolean gtfFormat;
+    private final int threadCount;
+    private long minChunkSize = DEFAULT_MIN_CHUNK_SIZE;
+
+    /**
+     * This class define a chunk of the file and the result of its parsing
+     */
+    private static final class Chunk {
+
+        // Uncompressed range of the chunk
+        private final long start;
+        private final long end;
+
+        private final FeatureTable features = new FeatureTable();
+        private final Map<String, String> parents = new LinkedHashMap<>();
+        private boolean fastaReached;
+        private long lineCount;
+        private Exception error;
+
+        Chunk(final long start, final long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * This class define the blocks of a bgzip file
+     */
+    private static final class Blocks {
+
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<Long> starts = new ArrayList<>();
+        private long size;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the smallest uncompressed size of a chunk
+     *
+     * @param minChunkSize the size in bytes
+     */
+    void setMinChunkSize(final long minChunkSize) {
+
+        if (minChunkSize < 1) {
+            throw new IllegalArgumentException(
+                "The size of chunks must be greater than 0");
+        }
+
+        this.minChunkSize = minChunkSize;
+    }
+
+    //
+    // Parsing methods
+    //
+
+    /**
+     * Test if a file can be split in chunks
+     *
+     * @param file the file
+     * @return true if the file is uncompressed or bgzip compressed
+     * @throws IOException if an error occurs while reading the file
+     */
+    static boolean isSplittable(final File file) throws IOException {
+
+        if (GzipUtils.isGzip(file)) {
+            return readBlocks(file) != null;
+        }
+
+        return !file.getName().toLowerCase().endsWith(".bz2");
+    }
+
+    /**
+     * Gather the features and transcript - gene relations of an annotation
+     * file
+     *
+     * @param file     the annotation file, uncompressed or bgzip compressed
+     * @param features table to save features
+     * @param parents  Map to save transcript id - gene id relations
+     * @throws IOException      if encounters problem with input file
+     * @throws EoulsanException if features has no Id
+     */
+    void parse(final File file, final FeatureTable features,
+        final Map<String, String> parents)
+        throws IOException, EoulsanException {
+
+        final Blocks blocks = GzipUtils.isGzip(file) ? readBlocks(file) : null;
+        if (blocks == null && GzipUtils.isGzip(file)) {
+            throw new IOException("Gzip file is not bgzip compressed: " + file);
+        }
+        final long size = blocks == null ? file.length() : blocks.size;
+
+        // Chunks of equal size, on block boundaries for bgzip files
+        final int count = (int) Math.max(1, Math.min(
+            (long) this.threadCount * CHUNKS_PER_THREAD,
+            size / this.minChunkSize));
+        final List<Chunk> chunks = new ArrayList<>(count);
+        long start = 0;
+        for (int c = 1; c <= count; c++) {
+            long end = size * c / count;
+            if (blocks != null && c < count) {
+                end = blocks.starts.get(blockIndex(blocks, end));
+            }
+            if (end > start) {
+                chunks.add(new Chunk(start, end));
+                start = end;
+            }
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<>(chunks.size());
+        for (final Chunk chunk : chunks) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+
+                    try {
+                        parseChunk(file, blocks, chunk, 1);
+                    } catch (IOException | EoulsanException | RuntimeException e) {
+                        chunk.error = e;
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(this.threadCount);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing annotations", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while parsing annotations: "
+                + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Merge chunks in file order, up to the sequences of a GFF3 file
+        long firstLine = 1;
+        for (Chunk chunk : chunks) {
+
+            // Lines of chunks are numbered from 1 when parsed in parallel, a
+            // chunk in error is parsed again to report the file line numbers
+            if (chunk.error != null && firstLine > 1) {
+                parseChunk(file, blocks, new Chunk(chunk.start, chunk.end),
+                    firstLine);
+            }
+            if (chunk.error instanceof EoulsanException) {
+                throw (EoulsanException) chunk.error;
+            }
+            if (chunk.error instanceof IOException) {
+                throw (IOException) chunk.error;
+            }
+            if (chunk.error != null) {
+                throw (RuntimeException) chunk.error;
+            }
+
+            parents.putAll(chunk.parents);
+            features.addAll(chunk.features);
+            firstLine += chunk.lineCount;
+
+            if (chunk.fastaReached) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Parse the lines of a chunk, numbering them from a line number
+     */
+    private void parseChunk(final File file, final Blocks blocks,
+        final Chunk chunk, final long firstLine)
+        throws IOException, EoulsanException {
+
+        final byte[] attributeKey = AnnotationScanner.bytes(this.attributeId);
+        final boolean gene = this.genomicType.toLowerCase().equals("gene");
+
+        // Start one byte before the chunk to know if it starts with a line
+        final long from = Math.max(0, chunk.start - 1);
+
+        try (AnnotationScanner scanner = new AnnotationScanner(
+            open(file, blocks, from), this.gtfFormat, this.genomicType,
+            !gene)) {
+
+            if (chunk.start > 0) {
+                scanner.skipLine();
+            }
+            scanner.setLineNumber(firstLine - 1);
+            scanner.setMaxLineOffset(chunk.end - from);
+
+            while (scanner.next()) {
+
+                if (scanner.isParent()) {
+                    FeaturesMetadataExtractorModule.saveParentGene(scanner,
+                        chunk.parents, this.gtfFormat);
+                }
+
+                if (scanner.isFeature()) {
+                    FeaturesMetadataExtractorModule.saveMetadata(
+                        chunk.features, scanner, this.gtfFormat, attributeKey,
+                        this.attributeId, this.mtTag, this.spikeTag);
+                }
+            }
+
+            chunk.fastaReached = scanner.isFastaReached();
+            chunk.lineCount = scanner.getLineNumber() - firstLine + 1;
+        }
+    }
+
+    //
+    // File methods
+    //
+
+    /**
+     * Open a file at an uncompressed offset
+     */
+    private static InputStream open(final File file, final Blocks blocks,
+        final long offset) throws IOException {
+
+        final FileChannel channel =
+            FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            if (blocks == null) {
+                channel.position(offset);
+                return Channels.newInputStream(channel);
+            }
+
+            // Decompress from the block holding the offset
+            final int block = blockIndex(blocks, offset);
+            channel.position(blocks.offsets.get(block));
+            final InputStream in = new GZIPInputStream(
+                Channels.newInputStream(channel), BUFFER_SIZE);
+            long skip = offset - blocks.starts.get(block);
+            while (skip > 0) {
+                final long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    throw new IOException("Unexpected end of bgzip file: " + file);
+                }
+                skip -= skipped;
+            }
+
+            return in;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the index of the last block starting at or before an uncompressed
+     * offset
+     */
+    private static int blockIndex(final Blocks blocks, final long offset) {
+
+        int low = 0;
+        int high = blocks.starts.size() - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (blocks.starts.get(middle) <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Read the offsets and uncompressed sizes of the blocks of a bgzip file
+     *
+     * @param file the file
+     * @return the blocks or null if the file is not bgzip compressed
+     * @throws IOException if an error occurs while reading the file
+     */
+    private static Blocks readBlocks(final File file) throws IOException {
+
+        final Blocks result = new Blocks();
+        final ByteBuffer header =
+            ByteBuffer.allocate(BGZF_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer trailer =
+            ByteBuffer.allocate(BGZF_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        try (FileChannel channel = FileChannel
+            .open(file.toPath(), StandardOpenOption.READ)) {
+
+            final long length = channel.size();
+            long offset = 0;
+            while (offset < length) {
+
+                header.clear();
+                if (channel.read(header, offset) != BGZF_HEADER_SIZE
+                    || (header.get(0) & 0xff) != 0x1f
+                    || (header.get(1) & 0xff) != 0x8b
+                    || (header.get(3) & GZIP_FLAG_EXTRA) == 0
+                    || header.getShort(10) != 6 || header.get(12) != 'B'
+                    || header.get(13) != 'C' || header.getShort(14) != 2) {
+                    return null;
+                }
+
+                final long blockSize = (header.getShort(16) & 0xffff) + 1;
+                trailer.clear();
+                if (offset + blockSize > length || channel
+                    .read(trailer, offset + blockSize - BGZF_TRAILER_SIZE)
+                    != BGZF_TRAILER_SIZE) {
+                    return null;
+                }
+
+                result.offsets.add(offset);
+                result.starts.add(result.size);
+                result.size += trailer.getInt(0) & 0xffffffffL;
+                offset += blockSize;
+            }
+        }
+
+        return result.offsets.isEmpty() ? null : result;
+    }
+
+    //
+    // Constructor
+    //
+
+    /**
+     * Constructor
+     *
+     * @param mtTag       tag for mitochondrial features
+     * @param spikeTag    tag for spike in features
+     * @param genomicType genomic type of the features to consider
+     * @param attributeId Id to design the feature
+     * @param gtfFormat   boolean indicating if the annotation file is gtf or not
+     * @param threadCount number of threads
+     */
+    ParallelAnnotationParser(final String mtTag, final String spikeTag,
+        final String genomicType, final String attributeId,
+        final boolean gtfFormat, final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of threads must be greater than 0");
+        }
+
+        this.mtTag = mtTag;
+        this.spikeTag = spikeTag;
+        this.genomicType = genomicType;
+        this.attributeId = attributeId;
+        this.gtfFormat = gtfFormat;
+        this.threadCount = threadCount;
+    }
+}
@@ -0,0 +1,245 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class define an output stream that gzip compresses independent blocks
+ * on several threads, as pigz does. Each block is written as a complete gzip
+ * member, so the result is a multi-member gzip file readable by gzip, zcat, R
+ * connections or GZIPInputStream.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /**
+     * Default size of uncompressed blocks
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    /**
+     * Number of blocks waiting for compression or writing, per thread
+     */
+    private static final int PENDING_BLOCKS_PER_THREAD = 2;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private final int blockSize;
+
+    private byte[] block;
+    private int count;
+    private boolean empty = true;
+    private boolean closed;
+
+    //
+    // OutputStream methods
+    //
+
+    @Override
+    public void write(final int b) throws IOException {
+
+        checkOpen();
+        this.block[this.count++] = (byte) b;
+        if (this.count == this.blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+
+        checkOpen();
+
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+
+            final int n = Math.min(remaining, this.blockSize - this.count);
+            System.arraycopy(b, offset, this.block, this.count, n);
+            this.count += n;
+            offset += n;
+            remaining -= n;
+
+            if (this.count == this.blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Write the blocks already compressed. The current partial block is kept,
+     * so flushing never creates small gzip members.
+     */
+    @Override
+    public void flush() throws IOException {
+
+        checkOpen();
+        while (!this.pending.isEmpty() && this.pending.peekFirst().isDone()) {
+            writeBlock(this.pending.removeFirst());
+        }
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (this.closed) {
+            return;
+        }
+
+        try {
+            // An empty stream still produces a valid gzip file
+            if (this.count > 0 || this.empty) {
+                submitBlock();
+            }
+
+            while (!this.pending.isEmpty()) {
+                writeBlock(this.pending.removeFirst());
+            }
+        } finally {
+            this.closed = true;
+            this.executor.shutdownNow();
+            this.out.close();
+        }
+    }
+
+    //
+    // Other methods
+    //
+
+    private void checkOpen() throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Submit current block for compression, waiting for the oldest blocks if
+     * too many are pending
+     */
+    private void submitBlock() throws IOException {
+
+        final byte[] data = this.block;
+        final int length = this.count;
+
+        this.pending.addLast(this.executor.submit(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() throws IOException {
+                return compress(data, length);
+            }
+        }));
+
+        this.block = new byte[this.blockSize];
+        this.count = 0;
+        this.empty = false;
+
+        while (this.pending.size() > this.maxPending) {
+            writeBlock(this.pending.removeFirst());
+        }
+    }
+
+    /**
+     * Wait for a block to be compressed and write it
+     */
+    private void writeBlock(final Future<byte[]> future) throws IOException {
+
+        try {
+            this.out.write(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while compressing data");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(
+                "Error while compressing data: " + e.getCause().getMessage(),
+                e.getCause());
+        }
+    }
+
+    /**
+     * Compress a block as a complete gzip member
+     *
+     * @param data   the block
+     * @param length number of bytes of the block to compress
+     * @return the gzip member
+     * @throws IOException if an error occurs while compressing
+     */
+    static byte[] compress(final byte[] data, final int length)
+        throws IOException {
+
+        final ByteArrayOutputStream result =
+            new ByteArrayOutputStream(length / 4 + 64);
+
+        try (GZIPOutputStream gzip = new GZIPOutputStream(result)) {
+            gzip.write(data, 0, length);
+        }
+
+        return result.toByteArray();
+    }
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Public constructor
+     *
+     * @param out         the underlying output stream
+     * @param threadCount number of compression threads
+     */
+    public ParallelGzipOutputStream(final OutputStream out,
+        final int threadCount) {
+        this(out, threadCount, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Public constructor
+     *
+     * @param out         the underlying output stream
+     * @param threadCount number of compression threads
+     * @param blockSize   size of uncompressed blocks
+     */
+    public ParallelGzipOutputStream(final OutputStream out,
+        final int threadCount, final int blockSize) {
+
+        if (out == null) {
+            throw new NullPointerException("out argument cannot be null");
+        }
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "threadCount must be greater than 0: " + threadCount);
+        }
+
+        if (blockSize < 1) {
+            throw new IllegalArgumentException(
+                "blockSize must be greater than 0: " + blockSize);
+        }
+
+        this.out = out;
+        this.executor = Executors.newFixedThreadPool(threadCount);
+        this.maxPending = threadCount * PENDING_BLOCKS_PER_THREAD;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+    }
+}
@@ -0,0 +1,197 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.Globals;
+import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
+import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
+import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
+import fr.ens.biologie.genomique.eoulsan.core.Version;
+import fr.ens.biologie.genomique.eoulsan.data.Data;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormat;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
+import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define a module that computes the principal components of the
+ * cells of a normalized expression matrix, as input of clustering.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@LocalOnly
+public class PcaModule extends AbstractModule {
+    /**
+     * Module Name
+     */
+    private static final String MODULE_NAME = "pca";
+
+    /**
+     * Parameters Names
+     */
+    private static final String COMPONENTS_PARAMETER_NAME = "n.pcs";
+    private static final String OVERSAMPLING_PARAMETER_NAME = "oversampling";
+    private static final String POWER_ITERATIONS_PARAMETER_NAME = "power.iterations";
+    private static final String LOG_PARAMETER_NAME = "log.transform";
+    private static final String CENTER_PARAMETER_NAME = "center";
+    private static final String SCALE_PARAMETER_NAME = "scale";
+    private static final String THREADS_PARAMETER_NAME = "n.threads";
+    private static final String SEED_PARAMETER_NAME = "seed";
+
+    private final RandomizedPca pca = new RandomizedPca();
+
+    // DataFormat
+    private static DataFormat NORMALIZED_EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("normalized_expression_matrix_tsv");
+    private static DataFormat PCA_EMBEDDING_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("pca_embedding_tsv");
+    private static DataFormat PCA_LOADINGS_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("pca_loadings_tsv");
+    private static DataFormat PCA_EMBEDDING_BIN =
+            DataFormatRegistry.getInstance().getDataFormatFromName("pca_embedding_bin");
+
+    //
+    // Module Methods
+    //
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public Version getVersion() {
+        return Globals.APP_VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "This module computes the principal components of the cells of a normalized expression matrix";
+    }
+
+    @Override
+    public InputPorts getInputPorts() {
+        return new InputPortsBuilder()
+                .addPort("matrix", NORMALIZED_EXPRESSION_MATRIX_TSV).create();
+    }
+
+    @Override
+    public OutputPorts getOutputPorts() {
+        return new OutputPortsBuilder()
+                .addPort("embeddingoutput", PCA_EMBEDDING_TSV)
+                .addPort("loadingsoutput", PCA_LOADINGS_TSV)
+                .addPort("binaryoutput", PCA_EMBEDDING_BIN).create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            try {
+                switch (p.getName()) {
+
+                    case COMPONENTS_PARAMETER_NAME:
+                        this.pca.setComponentCount(p.getIntValue());
+                        break;
+
+                    case OVERSAMPLING_PARAMETER_NAME:
+                        this.pca.setOversampling(p.getIntValue());
+                        break;
+
+                    case POWER_ITERATIONS_PARAMETER_NAME:
+                        this.pca.setPowerIterations(p.getIntValue());
+                        break;
+
+                    case LOG_PARAMETER_NAME:
+                        this.pca.setLogTransform(p.getBooleanValue());
+                        break;
+
+                    case CENTER_PARAMETER_NAME:
+                        this.pca.setCenter(p.getBooleanValue());
+                        break;
+
+                    case SCALE_PARAMETER_NAME:
+                        this.pca.setScale(p.getBooleanValue());
+                        break;
+
+                    case THREADS_PARAMETER_NAME:
+                        this.pca.setThreadCount(p.getIntValue());
+                        break;
+
+                    case SEED_PARAMETER_NAME:
+                        this.pca.setSeed(p.getLongValue());
+                        break;
+
+                    default:
+                        Modules.unknownParameter(context, p);
+                }
+            } catch (IllegalArgumentException e) {
+                Modules.badParameterValue(context, p, e.getMessage());
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", n.pcs="
+                + this.pca.getComponentCount() + ", oversampling="
+                + this.pca.getOversampling() + ", power.iterations="
+                + this.pca.getPowerIterations() + ", log.transform="
+                + this.pca.isLogTransform() + ", center="
+                + this.pca.isCenter() + ", scale="
+                + this.pca.isScale() + ", n.threads="
+                + this.pca.getThreadCount() + ", seed="
+                + this.pca.getSeed());
+    }
+
+    @Override
+    public TaskResult execute(TaskContext context, TaskStatus status) {
+
+        // Get input and output files
+        final Data matrixData = context.getInputData(NORMALIZED_EXPRESSION_MATRIX_TSV);
+        final File matrix = matrixData.getDataFile().toFile();
+        final File embedding = context.getOutputData(
+                PCA_EMBEDDING_TSV, matrixData).getDataFile().toFile();
+        final File loadings = context.getOutputData(
+                PCA_LOADINGS_TSV, matrixData).getDataFile().toFile();
+        final File binary = context.getOutputData(
+                PCA_EMBEDDING_BIN, matrixData).getDataFile().toFile();
+
+        // Compute components
+        try {
+            final CellEmbedding result =
+                    this.pca.reduce(matrix, embedding, loadings, binary);
+            if (result.getDimension() < this.pca.getComponentCount()) {
+                getLogger().warning("In " + getName() + ", only "
+                        + result.getDimension() + " components computed");
+            }
+
+            final double[] explained = this.pca.getExplainedVariance();
+            double sum = 0;
+            for (double v : explained) {
+                sum += v;
+            }
+            getLogger().info("In " + getName() + ", " + result.getDimension()
+                    + " components computed for " + result.getCellCount()
+                    + " cells, explaining " + sum + " of the variance");
+
+            return status.createTaskResult();
+        } catch (IOException e) {
+            return status.createTaskResult(e, "Error with file :" + e.getMessage());
+        }
+    }
+}
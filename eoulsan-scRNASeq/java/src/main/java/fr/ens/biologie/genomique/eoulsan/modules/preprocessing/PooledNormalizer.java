@@ -0,0 +1,1040 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.GeneSelection;
+
+/**
+ * This class define the engine that normalizes a tabulated count matrix with
+ * the size factors of the deconvolution method of scran (Lun, Bach and
+ * Marioni, 2016). Cells are split in clusters of similar library size. In
+ * each cluster, cells are arranged on a ring by library size and summed in
+ * pools of consecutive cells; the size factor of each pool is the median
+ * ratio of its expression to the average cell of the cluster, and cell size
+ * factors are the least squares solution of the system linking pools to
+ * their cells. Clusters are then rescaled to a reference cluster.
+ * <p>
+ * Pool sums are updated with a sliding window along the ring, and blocks of
+ * pools are computed on a pool of threads. The least squares systems are
+ * solved by conjugate gradient on their normal equations, window sums giving
+ * the products of the system in linear time, one cluster per task. Clusters
+ * have a bounded size, so runtime grows linearly with the number of cells.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class PooledNormalizer {
+
+    /**
+     * Pool sizes, as in scran
+     */
+    private static final int MIN_POOL_SIZE = 21;
+    private static final int MAX_POOL_SIZE = 101;
+    private static final int POOL_SIZE_STEP = 5;
+
+    /**
+     * Weight of the equations of single cells, keeping the system solvable
+     */
+    private static final double LOW_WEIGHT = 1e-6;
+
+    /**
+     * Number of pools of a size computed by a task
+     */
+    private static final int POOLS_PER_BLOCK = 128;
+
+    private static final double SOLVER_TOLERANCE = 1e-12;
+
+    private GeneSelection geneSelection = GeneSelection.ENDOGENOUS;
+    private File genesMetadataFile;
+    private int maxClusterSize = 3000;
+    private double minMean = 1;
+    private boolean forcePositive;
+    private int threadCount = 1;
+
+    private int clusterCount;
+    private int negativeFactorCount;
+
+    /**
+     * This class define the counts of the selected genes of each cell
+     */
+    private static final class Counts {
+
+        private final List<String> cells;
+        private final int geneCount;
+        // Counts of cell j are values[colStarts[j], colStarts[j + 1])
+        private final int[] colStarts;
+        private final int[] genes;
+        private final int[] values;
+        private final double[] libraries;
+
+        Counts(final List<String> cells, final int geneCount,
+            final int[] colStarts, final int[] genes, final int[] values) {
+
+            this.cells = cells;
+            this.geneCount = geneCount;
+            this.colStarts = colStarts;
+            this.genes = genes;
+            this.values = values;
+            this.libraries = new double[cells.size()];
+            for (int j = 0; j < cells.size(); j++) {
+                for (int p = colStarts[j]; p < colStarts[j + 1]; p++) {
+                    this.libraries[j] += values[p];
+                }
+            }
+        }
+    }
+
+    /**
+     * This class define a cluster of cells arranged on a ring, with the
+     * scaled expression of its cells for the genes of high enough average
+     */
+    private static final class Cluster {
+
+        // Cells in ring order
+        private final int[] cells;
+        private final double[] reference;
+        // Scaled expression of the cell at ring position q is
+        // values[starts[q], starts[q + 1]), on genes of the reference
+        private final int[] starts;
+        private final int[] genes;
+        private final double[] values;
+        private final int[] sizes;
+        // Median ratio of the pool of size sizes[s] starting at position i
+        private final double[][] ratios;
+        private double[] factors;
+
+        Cluster(final int[] cells, final double[] reference, final int[] starts,
+            final int[] genes, final double[] values, final int[] sizes) {
+
+            this.cells = cells;
+            this.reference = reference;
+            this.starts = starts;
+            this.genes = genes;
+            this.values = values;
+            this.sizes = sizes;
+            this.ratios = new double[sizes.length][cells.length];
+        }
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the genes used to compute size factors
+     *
+     * @return the gene selection
+     */
+    public final GeneSelection getGeneSelection() {
+        return this.geneSelection;
+    }
+
+    /**
+     * Get the genes metadata file giving gene types
+     *
+     * @return the genes metadata file
+     */
+    public final File getGenesMetadataFile() {
+        return this.genesMetadataFile;
+    }
+
+    /**
+     * Get the maximal number of cells of a cluster
+     *
+     * @return the maximal cluster size
+     */
+    public final int getMaxClusterSize() {
+        return this.maxClusterSize;
+    }
+
+    /**
+     * Get the minimal average count of the genes used in a cluster
+     *
+     * @return the minimal average count
+     */
+    public final double getMinMean() {
+        return this.minMean;
+    }
+
+    /**
+     * Test if non positive size factors are replaced by library size factors
+     *
+     * @return true if size factors are forced to be positive
+     */
+    public final boolean isForcePositive() {
+        return this.forcePositive;
+    }
+
+    /**
+     * Get the number of threads
+     *
+     * @return number of threads
+     */
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Get the number of clusters of last normalization
+     *
+     * @return number of clusters
+     */
+    public final int getClusterCount() {
+        return this.clusterCount;
+    }
+
+    /**
+     * Get the number of non positive size factors of last normalization,
+     * before they are replaced if size factors are forced to be positive
+     *
+     * @return number of non positive size factors
+     */
+    public final int getNegativeFactorCount() {
+        return this.negativeFactorCount;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the genes used to compute size factors
+     *
+     * @param geneSelection the gene selection
+     */
+    public final void setGeneSelection(final GeneSelection geneSelection) {
+
+        if (geneSelection == null) {
+            throw new NullPointerException(
+                "geneSelection argument cannot be null");
+        }
+
+        this.geneSelection = geneSelection;
+    }
+
+    /**
+     * Set the genes metadata file giving gene types
+     *
+     * @param genesMetadataFile the genes metadata file, null if all genes are
+     *                          endogenous
+     */
+    public final void setGenesMetadataFile(final File genesMetadataFile) {
+        this.genesMetadataFile = genesMetadataFile;
+    }
+
+    /**
+     * Set the maximal number of cells of a cluster
+     *
+     * @param maxClusterSize the maximal cluster size
+     */
+    public final void setMaxClusterSize(final int maxClusterSize) {
+
+        if (maxClusterSize < MIN_POOL_SIZE) {
+            throw new IllegalArgumentException(
+                "The maximal cluster size must be at least " + MIN_POOL_SIZE);
+        }
+
+        this.maxClusterSize = maxClusterSize;
+    }
+
+    /**
+     * Set the minimal average count of the genes used in a cluster
+     *
+     * @param minMean the minimal average count
+     */
+    public final void setMinMean(final double minMean) {
+
+        if (!(minMean > 0)) {
+            throw new IllegalArgumentException(
+                "The minimal average count must be greater than 0");
+        }
+
+        this.minMean = minMean;
+    }
+
+    /**
+     * Set if non positive size factors are replaced by library size factors
+     *
+     * @param forcePositive true to force size factors to be positive
+     */
+    public final void setForcePositive(final boolean forcePositive) {
+        this.forcePositive = forcePositive;
+    }
+
+    /**
+     * Set the number of threads
+     *
+     * @param threadCount number of threads
+     */
+    public final void setThreadCount(final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of threads must be greater than 0");
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    //
+    // Normalization methods
+    //
+
+    /**
+     * Normalize a tabulated count matrix
+     *
+     * @param matrixFile           tabulated expression matrix, may be gzip
+     *                             compressed
+     * @param normalizedMatrixFile output normalized matrix
+     * @param cellsFile            output library size and size factor of
+     *                             each cell
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    public void normalize(final File matrixFile,
+        final File normalizedMatrixFile, final File cellsFile)
+        throws IOException {
+
+        if (matrixFile == null) {
+            throw new NullPointerException(
+                "matrixFile argument cannot be null");
+        }
+
+        if (normalizedMatrixFile == null) {
+            throw new NullPointerException(
+                "normalizedMatrixFile argument cannot be null");
+        }
+
+        if (cellsFile == null) {
+            throw new NullPointerException("cellsFile argument cannot be null");
+        }
+
+        final Counts counts = load(matrixFile);
+        final double[] factors = computeSizeFactors(counts);
+
+        writeMatrix(matrixFile, normalizedMatrixFile, factors);
+        writeCells(cellsFile, counts, factors);
+    }
+
+    /**
+     * Compute the size factor of each cell
+     *
+     * @param counts counts of the cells
+     * @return the size factors, centered on 1, NaN for empty cells and non
+     * positive factors
+     * @throws IOException if a task has failed
+     */
+    private double[] computeSizeFactors(final Counts counts)
+        throws IOException {
+
+        final int nCells = counts.cells.size();
+        final double[] result = new double[nCells];
+        Arrays.fill(result, Double.NaN);
+
+        // Cells sorted by library size, empty cells excluded
+        final List<Integer> sorted = new ArrayList<>(nCells);
+        for (int j = 0; j < nCells; j++) {
+            if (counts.libraries[j] > 0) {
+                sorted.add(j);
+            }
+        }
+        Collections.sort(sorted, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer j1, final Integer j2) {
+                return Double.compare(counts.libraries[j1],
+                    counts.libraries[j2]);
+            }
+        });
+
+        this.negativeFactorCount = 0;
+        this.clusterCount = sorted.isEmpty() ? 0 :
+            (sorted.size() + this.maxClusterSize - 1) / this.maxClusterSize;
+        if (this.clusterCount == 0) {
+            return result;
+        }
+
+        final List<Cluster> clusters = new ArrayList<>(this.clusterCount);
+        for (int c = 0; c < this.clusterCount; c++) {
+            final int start = (int) ((long) sorted.size() * c / this.clusterCount);
+            final int end =
+                (int) ((long) sorted.size() * (c + 1) / this.clusterCount);
+            clusters.add(createCluster(counts, sorted.subList(start, end)));
+        }
+
+        final ForkJoinPool pool =
+            this.threadCount > 1 ? new ForkJoinPool(this.threadCount) : null;
+        try {
+            computeRatios(pool, clusters);
+            solve(pool, counts, clusters);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+
+        // Rescale clusters to the cluster of median library sizes
+        final double[] reference =
+            averageCell(counts, clusters.get(clusters.size() / 2));
+        for (Cluster cluster : clusters) {
+
+            final double[] average = averageCell(counts, cluster);
+            final double[] ratios = new double[counts.geneCount];
+            int n = 0;
+            for (int g = 0; g < counts.geneCount; g++) {
+                if (average[g] > 0 && reference[g] > 0) {
+                    ratios[n++] = average[g] / reference[g];
+                }
+            }
+            final double scale = n == 0 ? 1 : median(ratios, n);
+
+            for (int q = 0; q < cluster.cells.length; q++) {
+                result[cluster.cells[q]] = cluster.factors[q] * scale;
+            }
+        }
+
+        // Center size factors on 1
+        double sum = 0;
+        int n = 0;
+        for (double factor : result) {
+            if (factor > 0) {
+                sum += factor;
+                n++;
+            }
+        }
+        for (int j = 0; j < nCells; j++) {
+            result[j] = result[j] > 0 ? result[j] * n / sum : Double.NaN;
+        }
+
+        return result;
+    }
+
+    /**
+     * Create a cluster: arrange cells on a ring, the smallest libraries at
+     * even positions in increasing order, then the largest ones at odd
+     * positions in decreasing order, and scale their expression by library
+     * size
+     *
+     * @param counts counts of the cells
+     * @param cells  cells of the cluster, by increasing library size
+     * @return the cluster
+     */
+    private Cluster createCluster(final Counts counts,
+        final List<Integer> cells) {
+
+        final int n = cells.size();
+        final int[] ring = new int[n];
+        int q = 0;
+        for (int i = 0; i < n; i += 2) {
+            ring[q++] = cells.get(i);
+        }
+        for (int i = n % 2 == 0 ? n - 1 : n - 2; i > 0; i -= 2) {
+            ring[q++] = cells.get(i);
+        }
+
+        // Average scaled expression, on genes of high enough average count
+        final double[] average = new double[counts.geneCount];
+        double meanLibrary = 0;
+        for (int j : ring) {
+            final double library = counts.libraries[j];
+            meanLibrary += library / n;
+            for (int p = counts.colStarts[j]; p < counts.colStarts[j + 1];
+                 p++) {
+                average[counts.genes[p]] += counts.values[p] / library / n;
+            }
+        }
+
+        final int[] local = new int[counts.geneCount];
+        int nGenes = 0;
+        for (int g = 0; g < counts.geneCount; g++) {
+            local[g] = average[g] * meanLibrary >= this.minMean ? nGenes++ : -1;
+        }
+        final double[] reference = new double[nGenes];
+        for (int g = 0; g < counts.geneCount; g++) {
+            if (local[g] >= 0) {
+                reference[local[g]] = average[g];
+            }
+        }
+
+        final int[] starts = new int[n + 1];
+        for (q = 0; q < n; q++) {
+            final int j = ring[q];
+            starts[q + 1] = starts[q];
+            for (int p = counts.colStarts[j]; p < counts.colStarts[j + 1];
+                 p++) {
+                if (local[counts.genes[p]] >= 0) {
+                    starts[q + 1]++;
+                }
+            }
+        }
+        final int[] genes = new int[starts[n]];
+        final double[] values = new double[starts[n]];
+        int size = 0;
+        for (int j : ring) {
+            for (int p = counts.colStarts[j]; p < counts.colStarts[j + 1];
+                 p++) {
+                if (local[counts.genes[p]] >= 0) {
+                    genes[size] = local[counts.genes[p]];
+                    values[size++] = counts.values[p] / counts.libraries[j];
+                }
+            }
+        }
+
+        // Pool sizes, none if the cluster is too small or has no gene
+        int sizeCount = 0;
+        for (int s = MIN_POOL_SIZE; s <= MAX_POOL_SIZE && s <= n
+            && nGenes > 0; s += POOL_SIZE_STEP) {
+            sizeCount++;
+        }
+        final int[] sizes = new int[sizeCount];
+        for (int s = 0; s < sizeCount; s++) {
+            sizes[s] = MIN_POOL_SIZE + s * POOL_SIZE_STEP;
+        }
+
+        return new Cluster(ring, reference, starts, genes, values, sizes);
+    }
+
+    /**
+     * Compute the median ratio of the pools of all the clusters
+     *
+     * @param pool     the pool of threads, null to compute in current thread
+     * @param clusters the clusters
+     * @throws IOException if a task has failed
+     */
+    private static void computeRatios(final ForkJoinPool pool,
+        final List<Cluster> clusters) throws IOException {
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (final Cluster cluster : clusters) {
+            for (int s = 0; s < cluster.sizes.length; s++) {
+                for (int start = 0; start < cluster.cells.length;
+                     start += POOLS_PER_BLOCK) {
+
+                    final int sizeIndex = s;
+                    final int blockStart = start;
+                    final int blockEnd =
+                        Math.min(cluster.cells.length, start + POOLS_PER_BLOCK);
+                    tasks.add(new Callable<Void>() {
+
+                        @Override
+                        public Void call() {
+                            computeRatios(cluster, sizeIndex, blockStart,
+                                blockEnd);
+                            return null;
+                        }
+                    });
+                }
+            }
+        }
+
+        run(pool, tasks);
+    }
+
+    /**
+     * Compute the median ratio of a block of pools of same size, the pool
+     * sum sliding along the ring
+     *
+     * @param cluster   the cluster
+     * @param sizeIndex index of the pool size
+     * @param start     ring position of the first pool
+     * @param end       ring position after the last pool
+     */
+    private static void computeRatios(final Cluster cluster,
+        final int sizeIndex, final int start, final int end) {
+
+        final int n = cluster.cells.length;
+        final int size = cluster.sizes[sizeIndex];
+        final double[] sums = new double[cluster.reference.length];
+        final double[] ratios = new double[sums.length];
+
+        for (int t = 0; t < size; t++) {
+            addCell(cluster, sums, (start + t) % n, 1);
+        }
+
+        for (int i = start; i < end; i++) {
+
+            if (i > start) {
+                addCell(cluster, sums, i - 1, -1);
+                addCell(cluster, sums, (i + size - 1) % n, 1);
+            }
+
+            for (int g = 0; g < sums.length; g++) {
+                ratios[g] = sums[g] / cluster.reference[g];
+            }
+            cluster.ratios[sizeIndex][i] = median(ratios, ratios.length);
+        }
+    }
+
+    private static void addCell(final Cluster cluster, final double[] sums,
+        final int position, final int sign) {
+
+        for (int p = cluster.starts[position];
+             p < cluster.starts[position + 1]; p++) {
+            sums[cluster.genes[p]] += sign * cluster.values[p];
+        }
+    }
+
+    /**
+     * Solve the least squares system of each cluster, one cluster per task
+     *
+     * @param pool     the pool of threads, null to compute in current thread
+     * @param counts   counts of the cells
+     * @param clusters the clusters
+     * @throws IOException if a task has failed
+     */
+    private void solve(final ForkJoinPool pool, final Counts counts,
+        final List<Cluster> clusters) throws IOException {
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (final Cluster cluster : clusters) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    cluster.factors = solve(counts, cluster);
+                    return null;
+                }
+            });
+        }
+
+        run(pool, tasks);
+
+        for (Cluster cluster : clusters) {
+            for (int q = 0; q < cluster.factors.length; q++) {
+                if (!(cluster.factors[q] > 0)) {
+                    this.negativeFactorCount++;
+                    if (this.forcePositive) {
+                        cluster.factors[q] =
+                            counts.libraries[cluster.cells[q]] * singleCellTarget(
+                                cluster);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the expected inverse library size factor of a single cell, the
+     * right hand side of the equations of single cells
+     */
+    private static double singleCellTarget(final Cluster cluster) {
+
+        double sum = 0;
+        for (double r : cluster.reference) {
+            sum += r;
+        }
+
+        return sum > 0 ? 1 / sum : 1;
+    }
+
+    /**
+     * Solve the least squares system of a cluster by conjugate gradient on
+     * its normal equations. Unknowns are the size factors of cells divided by
+     * their library size.
+     *
+     * @param counts  counts of the cells
+     * @param cluster the cluster
+     * @return the size factor of each cell, in ring order
+     */
+    private static double[] solve(final Counts counts, final Cluster cluster) {
+
+        final int n = cluster.cells.length;
+        final double target = singleCellTarget(cluster);
+        final double[] x = new double[n];
+        Arrays.fill(x, target);
+
+        if (cluster.sizes.length > 0) {
+
+            // Right hand side: t(A) b + w c
+            final double[] b = new double[n];
+            for (int s = 0; s < cluster.sizes.length; s++) {
+                addTransposed(cluster.ratios[s], cluster.sizes[s], b);
+            }
+            for (int q = 0; q < n; q++) {
+                b[q] += LOW_WEIGHT * target;
+            }
+
+            final double[] r = new double[n];
+            final double[] ax = normalProduct(cluster, x);
+            double rr = 0;
+            double bb = 0;
+            for (int q = 0; q < n; q++) {
+                r[q] = b[q] - ax[q];
+                rr += r[q] * r[q];
+                bb += b[q] * b[q];
+            }
+
+            final double[] d = Arrays.copyOf(r, n);
+            for (int it = 0; it < 2 * n + 100
+                && rr > SOLVER_TOLERANCE * SOLVER_TOLERANCE * bb; it++) {
+
+                final double[] ad = normalProduct(cluster, d);
+                double dad = 0;
+                for (int q = 0; q < n; q++) {
+                    dad += d[q] * ad[q];
+                }
+                final double alpha = rr / dad;
+
+                double rrNew = 0;
+                for (int q = 0; q < n; q++) {
+                    x[q] += alpha * d[q];
+                    r[q] -= alpha * ad[q];
+                    rrNew += r[q] * r[q];
+                }
+
+                final double beta = rrNew / rr;
+                for (int q = 0; q < n; q++) {
+                    d[q] = r[q] + beta * d[q];
+                }
+                rr = rrNew;
+            }
+        }
+
+        final double[] result = new double[n];
+        for (int q = 0; q < n; q++) {
+            result[q] = x[q] * counts.libraries[cluster.cells[q]];
+        }
+
+        return result;
+    }
+
+    /**
+     * Compute the product of the normal matrix t(A) A + w I of the system of
+     * a cluster by a vector, from window sums along the ring
+     */
+    private static double[] normalProduct(final Cluster cluster,
+        final double[] v) {
+
+        final int n = v.length;
+        final double[] result = new double[n];
+        final double[] windows = new double[n];
+
+        for (int s = 0; s < cluster.sizes.length; s++) {
+            windowSums(v, cluster.sizes[s], windows);
+            addTransposed(windows, cluster.sizes[s], result);
+        }
+        for (int q = 0; q < n; q++) {
+            result[q] += LOW_WEIGHT * v[q];
+        }
+
+        return result;
+    }
+
+    /**
+     * Compute the sums of the windows of a size starting at each position of
+     * a ring
+     */
+    private static void windowSums(final double[] v, final int size,
+        final double[] result) {
+
+        final int n = v.length;
+        double sum = 0;
+        for (int t = 0; t < size; t++) {
+            sum += v[t % n];
+        }
+        for (int i = 0; i < n; i++) {
+            result[i] = sum;
+            sum += v[(i + size) % n] - v[i];
+        }
+    }
+
+    /**
+     * Add to each position of a ring the sum of the values of the windows of
+     * a size covering it, windows being identified by their start
+     */
+    private static void addTransposed(final double[] windows, final int size,
+        final double[] result) {
+
+        final int n = windows.length;
+        double sum = 0;
+        for (int t = 0; t < size; t++) {
+            sum += windows[((-t) % n + n) % n];
+        }
+        for (int q = 0; q < n; q++) {
+            result[q] += sum;
+            sum += windows[(q + 1) % n] - windows[((q + 1 - size) % n + n) % n];
+        }
+    }
+
+    /**
+     * Compute the average normalized expression of the cells of a cluster
+     */
+    private static double[] averageCell(final Counts counts,
+        final Cluster cluster) {
+
+        final double[] result = new double[counts.geneCount];
+        int n = 0;
+        for (int q = 0; q < cluster.cells.length; q++) {
+            final int j = cluster.cells[q];
+            final double factor = cluster.factors[q];
+            if (!(factor > 0)) {
+                continue;
+            }
+            for (int p = counts.colStarts[j]; p < counts.colStarts[j + 1];
+                 p++) {
+                result[counts.genes[p]] += counts.values[p] / factor;
+            }
+            n++;
+        }
+        for (int g = 0; g < counts.geneCount && n > 0; g++) {
+            result[g] /= n;
+        }
+
+        return result;
+    }
+
+    /**
+     * Run tasks on a pool if any
+     *
+     * @param pool  the pool of threads, null to run in current thread
+     * @param tasks the tasks
+     * @throws IOException if a task has failed
+     */
+    private static void run(final ForkJoinPool pool,
+        final List<Callable<Void>> tasks) throws IOException {
+
+        try {
+            if (pool == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing size factors",
+                e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while computing size factors: "
+                + e.getCause().getMessage(), e.getCause());
+        } catch (Exception e) {
+            throw new IOException("Error while computing size factors: "
+                + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the median of the first values of an array, reordering them
+     *
+     * @param values the values
+     * @param n      number of values
+     * @return the median
+     */
+    private static double median(final double[] values, final int n) {
+
+        if (n == 0) {
+            return Double.NaN;
+        }
+
+        final double upper = select(values, 0, n - 1, n / 2);
+        if (n % 2 == 1) {
+            return upper;
+        }
+
+        // Lower middle value is the maximum of the lower part
+        double lower = values[0];
+        for (int i = 1; i < n / 2; i++) {
+            lower = Math.max(lower, values[i]);
+        }
+
+        return (lower + upper) / 2;
+    }
+
+    /**
+     * Find the k-th smallest value of a range with the quickselect algorithm,
+     * leaving smaller values before it
+     */
+    private static double select(final double[] values, int left, int right,
+        final int k) {
+
+        while (left < right) {
+
+            final double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final double tmp = values[i];
+                    values[i++] = values[j];
+                    values[j--] = tmp;
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+
+        return values[k];
+    }
+
+    //
+    // Input and output methods
+    //
+
+    /**
+     * Load the counts of the selected genes of a tabulated matrix, by cell
+     *
+     * @param matrixFile tabulated expression matrix
+     * @return the counts
+     * @throws IOException if an error occurs while reading file
+     */
+    private Counts load(final File matrixFile) throws IOException {
+
+        final Map<String, Byte> types = this.genesMetadataFile == null ?
+            Collections.<String, Byte> emptyMap() :
+            CellMetrics.readTypes(this.genesMetadataFile);
+
+        final List<String> cells;
+        int nGenes = 0;
+        int[] rowGenes = new int[1 << 16];
+        int[] rowCells = new int[1 << 16];
+        int[] rowValues = new int[1 << 16];
+        int nnz = 0;
+
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile)) {
+
+            cells = MatrixFiles.readHeader(in, matrixFile);
+            final int[] counts = new int[cells.size()];
+
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                final String gene =
+                    line.substring(0, MatrixFiles.parseRow(line, counts));
+                if (!MatrixFiles.isSelected(this.geneSelection,
+                    types.get(gene))) {
+                    continue;
+                }
+
+                for (int j = 0; j < counts.length; j++) {
+                    if (counts[j] == 0) {
+                        continue;
+                    }
+                    if (nnz == rowGenes.length) {
+                        final int capacity =
+                            (int) Math.min(Integer.MAX_VALUE - 8, 2L * nnz);
+                        if (capacity == nnz) {
+                            throw new IOException(
+                                "Too many counts in matrix: " + matrixFile);
+                        }
+                        rowGenes = Arrays.copyOf(rowGenes, capacity);
+                        rowCells = Arrays.copyOf(rowCells, capacity);
+                        rowValues = Arrays.copyOf(rowValues, capacity);
+                    }
+                    rowGenes[nnz] = nGenes;
+                    rowCells[nnz] = j;
+                    rowValues[nnz++] = counts[j];
+                }
+                nGenes++;
+            }
+        }
+
+        // Counts by cell
+        final int[] colStarts = new int[cells.size() + 1];
+        for (int p = 0; p < nnz; p++) {
+            colStarts[rowCells[p] + 1]++;
+        }
+        for (int j = 0; j < cells.size(); j++) {
+            colStarts[j + 1] += colStarts[j];
+        }
+        final int[] genes = new int[nnz];
+        final int[] values = new int[nnz];
+        final int[] next = Arrays.copyOf(colStarts, cells.size());
+        for (int p = 0; p < nnz; p++) {
+            final int q = next[rowCells[p]]++;
+            genes[q] = rowGenes[p];
+            values[q] = rowValues[p];
+        }
+
+        return new Counts(cells, nGenes, colStarts, genes, values);
+    }
+
+    /**
+     * Write the counts of all genes divided by the size factor of each cell
+     */
+    private static void writeMatrix(final File matrixFile, final File file,
+        final double[] factors) throws IOException {
+
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile);
+            BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            final List<String> cells = MatrixFiles.readHeader(in, matrixFile);
+            for (int j = 0; j < cells.size(); j++) {
+                if (j > 0) {
+                    out.write('\t');
+                }
+                out.write(cells.get(j));
+            }
+            out.newLine();
+
+            final int[] counts = new int[cells.size()];
+            final StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                sb.setLength(0);
+                sb.append(line, 0, MatrixFiles.parseRow(line, counts));
+                for (int j = 0; j < counts.length; j++) {
+                    sb.append('\t');
+                    if (counts[j] == 0) {
+                        sb.append('0');
+                    } else if (Double.isNaN(factors[j])) {
+                        sb.append("NA");
+                    } else {
+                        sb.append(counts[j] / factors[j]);
+                    }
+                }
+
+                out.append(sb);
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Write library size and size factor of each cell
+     */
+    private static void writeCells(final File file, final Counts counts,
+        final double[] factors) throws IOException {
+
+        try (BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            out.write("Library_size\tSize_factor");
+            out.newLine();
+
+            for (int j = 0; j < counts.cells.size(); j++) {
+                out.write(counts.cells.get(j) + "\t" + counts.libraries[j]
+                    + "\t" + (Double.isNaN(factors[j]) ? "NA" : factors[j]));
+                out.newLine();
+            }
+        }
+    }
+}
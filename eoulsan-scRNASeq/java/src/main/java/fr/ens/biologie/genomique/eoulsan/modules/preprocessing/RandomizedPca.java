@@ -0,0 +1,984 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * This class define the engine that computes the principal components of the
+ * cells of a tabulated expression matrix with a randomized singular value
+ * decomposition (Halko, Martinsson and Tropp, 2011), as input of clustering.
+ * <p>
+ * The matrix is kept sparse, in both gene-major and cell-major compressed
+ * forms. Genes are centered and scaled to unit variance implicitly: the
+ * matrix is never densified, means and scale factors are applied to the
+ * results of sparse by dense products. Products are computed by blocks of
+ * rows on a pool of threads, each block writing its own rows of the result,
+ * so results do not depend on the number of threads.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class RandomizedPca {
+
+    /**
+     * Number of rows of a product computed by a task
+     */
+    private static final int ROWS_PER_BLOCK = 512;
+
+    private static final int MAX_JACOBI_SWEEPS = 100;
+
+    private int componentCount = 20;
+    private int oversampling = 10;
+    private int powerIterations = 2;
+    private boolean logTransform = true;
+    private boolean center = true;
+    private boolean scale = true;
+    private int threadCount = 1;
+    private long seed = 1;
+
+    private double[] explainedVariance = new double[0];
+
+    /**
+     * This class define a sparse matrix of genes and cells with the
+     * statistics of its genes
+     */
+    private static final class SparseMatrix {
+
+        private final List<String> cells;
+        private final List<String> genes = new ArrayList<>();
+
+        // Gene-major form, gene i being values[rowStarts[i], rowStarts[i + 1])
+        private int[] rowStarts = new int[1024];
+        private int[] columns = new int[1 << 16];
+        private float[] values = new float[1 << 16];
+
+        // Cell-major form, cell j being cellValues[colStarts[j], colStarts[j + 1])
+        private int[] colStarts;
+        private int[] rows;
+        private float[] cellValues;
+
+        private double[] means;
+        private double[] scales;
+
+        SparseMatrix(final List<String> cells) {
+            this.cells = cells;
+        }
+
+        int geneCount() {
+            return this.genes.size();
+        }
+
+        int cellCount() {
+            return this.cells.size();
+        }
+
+        int nonZeroCount() {
+            return this.rowStarts[geneCount()];
+        }
+    }
+
+    /**
+     * This interface define an operation on a range of rows
+     */
+    private interface RowOperation {
+
+        void apply(int start, int end);
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the number of principal components to compute
+     *
+     * @return the number of components
+     */
+    public final int getComponentCount() {
+        return this.componentCount;
+    }
+
+    /**
+     * Get the number of additional random vectors used to sample the range
+     * of the matrix
+     *
+     * @return the oversampling
+     */
+    public final int getOversampling() {
+        return this.oversampling;
+    }
+
+    /**
+     * Get the number of power iterations
+     *
+     * @return the number of power iterations
+     */
+    public final int getPowerIterations() {
+        return this.powerIterations;
+    }
+
+    /**
+     * Test if values are log transformed
+     *
+     * @return true if log(1 + x) of values is used
+     */
+    public final boolean isLogTransform() {
+        return this.logTransform;
+    }
+
+    /**
+     * Test if genes are centered
+     *
+     * @return true if genes are centered
+     */
+    public final boolean isCenter() {
+        return this.center;
+    }
+
+    /**
+     * Test if genes are scaled to unit variance
+     *
+     * @return true if genes are scaled
+     */
+    public final boolean isScale() {
+        return this.scale;
+    }
+
+    /**
+     * Get the number of threads computing products
+     *
+     * @return number of threads
+     */
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Get the seed of the random vectors
+     *
+     * @return the seed
+     */
+    public final long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Get the proportion of variance explained by each component of last
+     * reduction
+     *
+     * @return the proportions of variance
+     */
+    public final double[] getExplainedVariance() {
+        return Arrays.copyOf(this.explainedVariance,
+            this.explainedVariance.length);
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the number of principal components to compute
+     *
+     * @param componentCount the number of components
+     */
+    public final void setComponentCount(final int componentCount) {
+
+        if (componentCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of components must be greater than 0");
+        }
+
+        this.componentCount = componentCount;
+    }
+
+    /**
+     * Set the number of additional random vectors used to sample the range
+     * of the matrix
+     *
+     * @param oversampling the oversampling
+     */
+    public final void setOversampling(final int oversampling) {
+
+        if (oversampling < 0) {
+            throw new IllegalArgumentException(
+                "The oversampling cannot be negative");
+        }
+
+        this.oversampling = oversampling;
+    }
+
+    /**
+     * Set the number of power iterations
+     *
+     * @param powerIterations the number of power iterations
+     */
+    public final void setPowerIterations(final int powerIterations) {
+
+        if (powerIterations < 0) {
+            throw new IllegalArgumentException(
+                "The number of power iterations cannot be negative");
+        }
+
+        this.powerIterations = powerIterations;
+    }
+
+    /**
+     * Set if values are log transformed
+     *
+     * @param logTransform true to use log(1 + x) of values
+     */
+    public final void setLogTransform(final boolean logTransform) {
+        this.logTransform = logTransform;
+    }
+
+    /**
+     * Set if genes are centered
+     *
+     * @param center true to center genes
+     */
+    public final void setCenter(final boolean center) {
+        this.center = center;
+    }
+
+    /**
+     * Set if genes are scaled to unit variance
+     *
+     * @param scale true to scale genes
+     */
+    public final void setScale(final boolean scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Set the number of threads computing products
+     *
+     * @param threadCount number of threads
+     */
+    public final void setThreadCount(final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of threads must be greater than 0");
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Set the seed of the random vectors
+     *
+     * @param seed the seed
+     */
+    public final void setSeed(final long seed) {
+        this.seed = seed;
+    }
+
+    //
+    // Reduction methods
+    //
+
+    /**
+     * Compute the principal components of the cells of a tabulated matrix
+     *
+     * @param matrixFile    tabulated expression matrix, may be gzip
+     *                      compressed
+     * @param embeddingFile output coordinates of the cells on the components
+     * @param loadingsFile  output loadings of the genes on the components
+     * @param binaryFile    output binary embedding of the cells
+     * @return the embedding of the cells
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    public CellEmbedding reduce(final File matrixFile, final File embeddingFile,
+        final File loadingsFile, final File binaryFile) throws IOException {
+
+        if (matrixFile == null) {
+            throw new NullPointerException(
+                "matrixFile argument cannot be null");
+        }
+
+        if (embeddingFile == null) {
+            throw new NullPointerException(
+                "embeddingFile argument cannot be null");
+        }
+
+        if (loadingsFile == null) {
+            throw new NullPointerException(
+                "loadingsFile argument cannot be null");
+        }
+
+        if (binaryFile == null) {
+            throw new NullPointerException(
+                "binaryFile argument cannot be null");
+        }
+
+        final SparseMatrix matrix = load(matrixFile);
+        final int nGenes = matrix.geneCount();
+        final int nCells = matrix.cellCount();
+        if (nGenes == 0 || nCells < 2) {
+            throw new IOException(
+                "Not enough genes or cells to compute components: "
+                    + matrixFile);
+        }
+
+        final int l = Math.min(this.componentCount + this.oversampling,
+            Math.min(nGenes, nCells));
+        final int k = Math.min(this.componentCount, l);
+
+        final ForkJoinPool pool =
+            this.threadCount > 1 ? new ForkJoinPool(this.threadCount) : null;
+
+        try {
+            // Sample the range of the cells with random gene vectors
+            final double[] omega = new double[nGenes * l];
+            final Random random = new Random(this.seed);
+            for (int i = 0; i < omega.length; i++) {
+                omega[i] = random.nextGaussian();
+            }
+
+            double[] q = multiplyTransposed(pool, matrix, omega, l);
+            orthonormalize(q, l);
+            for (int i = 0; i < this.powerIterations; i++) {
+                final double[] z = multiply(pool, matrix, q, l);
+                orthonormalize(z, l);
+                q = multiplyTransposed(pool, matrix, z, l);
+                orthonormalize(q, l);
+            }
+
+            // Decompose the projection B of the matrix on the sampled range,
+            // from the eigen decomposition of B x t(B)
+            final double[] bt = multiply(pool, matrix, q, l);
+            final double[][] gram = new double[l][l];
+            for (int g = 0; g < nGenes; g++) {
+                final int offset = g * l;
+                for (int a = 0; a < l; a++) {
+                    final double v = bt[offset + a];
+                    for (int b = a; b < l; b++) {
+                        gram[a][b] += v * bt[offset + b];
+                    }
+                }
+            }
+            for (int a = 0; a < l; a++) {
+                for (int b = 0; b < a; b++) {
+                    gram[a][b] = gram[b][a];
+                }
+            }
+
+            final double[] eigenvalues = new double[l];
+            final double[][] w = eigen(gram, eigenvalues);
+
+            final double[] singularValues = new double[k];
+            final double[] loadings = new double[nGenes * k];
+            for (int i = 0; i < k; i++) {
+
+                singularValues[i] = Math.sqrt(Math.max(0, eigenvalues[i]));
+                final double inverse =
+                    singularValues[i] > 0 ? 1 / singularValues[i] : 0;
+
+                int maxGene = 0;
+                for (int g = 0; g < nGenes; g++) {
+                    double v = 0;
+                    for (int a = 0; a < l; a++) {
+                        v += bt[g * l + a] * w[a][i];
+                    }
+                    loadings[g * k + i] = v * inverse;
+                    if (Math.abs(loadings[g * k + i])
+                        > Math.abs(loadings[maxGene * k + i])) {
+                        maxGene = g;
+                    }
+                }
+
+                // Signs are set so the largest loading is positive
+                if (loadings[maxGene * k + i] < 0) {
+                    for (int g = 0; g < nGenes; g++) {
+                        loadings[g * k + i] = -loadings[g * k + i];
+                    }
+                    for (int a = 0; a < l; a++) {
+                        w[a][i] = -w[a][i];
+                    }
+                }
+            }
+
+            final float[] coordinates = new float[nCells * k];
+            for (int j = 0; j < nCells; j++) {
+                for (int i = 0; i < k; i++) {
+                    double v = 0;
+                    for (int a = 0; a < l; a++) {
+                        v += q[j * l + a] * w[a][i];
+                    }
+                    coordinates[j * k + i] = (float) (v * singularValues[i]);
+                }
+            }
+
+            final double[] standardDeviations = new double[k];
+            this.explainedVariance = new double[k];
+            final double total = totalVariance(matrix);
+            for (int i = 0; i < k; i++) {
+                standardDeviations[i] =
+                    singularValues[i] / Math.sqrt(nCells - 1);
+                this.explainedVariance[i] = total > 0 ?
+                    standardDeviations[i] * standardDeviations[i] / total : 0;
+            }
+
+            final CellEmbedding result = new CellEmbedding(
+                matrix.cells.toArray(new String[nCells]), k, coordinates,
+                standardDeviations);
+
+            writeEmbedding(embeddingFile, result);
+            writeLoadings(loadingsFile, matrix.genes, loadings, k);
+            result.write(binaryFile);
+
+            return result;
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Load a tabulated matrix in sparse form and compute the mean and the
+     * scale factor of each gene. NA values are considered as null values.
+     *
+     * @param matrixFile tabulated expression matrix
+     * @return the sparse matrix
+     * @throws IOException if an error occurs while reading file
+     */
+    private SparseMatrix load(final File matrixFile) throws IOException {
+
+        final SparseMatrix result;
+
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile)) {
+
+            result = new SparseMatrix(MatrixFiles.readHeader(in, matrixFile));
+            final int nCells = result.cellCount();
+            int nnz = 0;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                final int idEnd = line.indexOf('\t');
+                if (idEnd < 0) {
+                    throw new IOException("Invalid matrix line: " + line);
+                }
+
+                int start = idEnd;
+                int column = 0;
+                while (start < line.length()) {
+
+                    int end = line.indexOf('\t', start + 1);
+                    if (end < 0) {
+                        end = line.length();
+                    }
+                    if (column == nCells) {
+                        throw new IOException(
+                            "Invalid number of values in matrix line: " + line);
+                    }
+
+                    double value =
+                        VariableGeneSelector.parseValue(line, start + 1, end);
+                    start = end;
+                    if (this.logTransform) {
+                        value = Math.log1p(value);
+                    }
+
+                    if (value != 0 && !Double.isNaN(value)) {
+                        if (nnz == result.columns.length) {
+                            if (nnz == Integer.MAX_VALUE) {
+                                throw new IOException(
+                                    "Too many values in matrix: " + matrixFile);
+                            }
+                            final int capacity =
+                                (int) Math.min(Integer.MAX_VALUE, 2L * nnz);
+                            result.columns =
+                                Arrays.copyOf(result.columns, capacity);
+                            result.values =
+                                Arrays.copyOf(result.values, capacity);
+                        }
+                        result.columns[nnz] = column;
+                        result.values[nnz++] = (float) value;
+                    }
+                    column++;
+                }
+
+                if (column != nCells) {
+                    throw new IOException(
+                        "Invalid number of values in matrix line: " + line);
+                }
+
+                result.genes.add(line.substring(0, idEnd));
+                final int nGenes = result.geneCount();
+                if (nGenes == result.rowStarts.length) {
+                    result.rowStarts =
+                        Arrays.copyOf(result.rowStarts, 2 * nGenes);
+                }
+                result.rowStarts[nGenes] = nnz;
+            }
+        }
+
+        transpose(result);
+        computeGeneStatistics(result);
+
+        return result;
+    }
+
+    /**
+     * Build the cell-major form of a matrix from its gene-major form
+     *
+     * @param matrix the matrix
+     */
+    private static void transpose(final SparseMatrix matrix) {
+
+        final int nGenes = matrix.geneCount();
+        final int nnz = matrix.nonZeroCount();
+
+        matrix.colStarts = new int[matrix.cellCount() + 1];
+        matrix.rows = new int[nnz];
+        matrix.cellValues = new float[nnz];
+
+        for (int p = 0; p < nnz; p++) {
+            matrix.colStarts[matrix.columns[p] + 1]++;
+        }
+        for (int j = 0; j < matrix.cellCount(); j++) {
+            matrix.colStarts[j + 1] += matrix.colStarts[j];
+        }
+
+        final int[] next =
+            Arrays.copyOf(matrix.colStarts, matrix.cellCount());
+        for (int g = 0; g < nGenes; g++) {
+            for (int p = matrix.rowStarts[g]; p < matrix.rowStarts[g + 1];
+                 p++) {
+                final int q = next[matrix.columns[p]]++;
+                matrix.rows[q] = g;
+                matrix.cellValues[q] = matrix.values[p];
+            }
+        }
+    }
+
+    /**
+     * Compute the mean and the scale factor of each gene. Genes without
+     * variance have a null scale factor when genes are scaled.
+     *
+     * @param matrix the matrix
+     */
+    private void computeGeneStatistics(final SparseMatrix matrix) {
+
+        final int nGenes = matrix.geneCount();
+        final int nCells = matrix.cellCount();
+        matrix.means = new double[nGenes];
+        matrix.scales = new double[nGenes];
+
+        for (int g = 0; g < nGenes; g++) {
+
+            double sum = 0;
+            for (int p = matrix.rowStarts[g]; p < matrix.rowStarts[g + 1];
+                 p++) {
+                sum += matrix.values[p];
+            }
+            final double mean = sum / nCells;
+
+            // Null values of the gene contribute mean^2 each
+            final int nonZeros = matrix.rowStarts[g + 1] - matrix.rowStarts[g];
+            final double m = this.center ? mean : 0;
+            double ss = (nCells - nonZeros) * m * m;
+            for (int p = matrix.rowStarts[g]; p < matrix.rowStarts[g + 1];
+                 p++) {
+                ss += (matrix.values[p] - m) * (matrix.values[p] - m);
+            }
+            final double sd = Math.sqrt(ss / (nCells - 1));
+
+            matrix.means[g] = m;
+            matrix.scales[g] = !this.scale ? 1 : sd > 0 ? 1 / sd : 0;
+        }
+    }
+
+    /**
+     * Get the total variance of the centered and scaled matrix
+     *
+     * @param matrix the matrix
+     * @return the sum of the variances of genes
+     */
+    private static double totalVariance(final SparseMatrix matrix) {
+
+        final int nCells = matrix.cellCount();
+        double result = 0;
+
+        for (int g = 0; g < matrix.geneCount(); g++) {
+
+            final double m = matrix.means[g];
+            final int nonZeros = matrix.rowStarts[g + 1] - matrix.rowStarts[g];
+            double ss = (nCells - nonZeros) * m * m;
+            for (int p = matrix.rowStarts[g]; p < matrix.rowStarts[g + 1];
+                 p++) {
+                ss += (matrix.values[p] - m) * (matrix.values[p] - m);
+            }
+            result += ss * matrix.scales[g] * matrix.scales[g] / (nCells - 1);
+        }
+
+        return result;
+    }
+
+    //
+    // Products
+    //
+
+    /**
+     * Compute the product of the centered and scaled matrix by dense cell
+     * vectors
+     *
+     * @param pool   the pool of threads, null to compute in current thread
+     * @param matrix the matrix
+     * @param x      cell vectors, in cell-major order
+     * @param l      number of vectors
+     * @return gene vectors, in gene-major order
+     * @throws IOException if a task has failed
+     */
+    private static double[] multiply(final ForkJoinPool pool,
+        final SparseMatrix matrix, final double[] x, final int l)
+        throws IOException {
+
+        final double[] result = new double[matrix.geneCount() * l];
+        final double[] sums = new double[l];
+        for (int j = 0; j < matrix.cellCount(); j++) {
+            for (int a = 0; a < l; a++) {
+                sums[a] += x[j * l + a];
+            }
+        }
+
+        forEachBlock(pool, matrix.geneCount(), new RowOperation() {
+
+            @Override
+            public void apply(final int start, final int end) {
+
+                for (int g = start; g < end; g++) {
+
+                    final int offset = g * l;
+                    for (int p = matrix.rowStarts[g];
+                         p < matrix.rowStarts[g + 1]; p++) {
+                        final double v = matrix.values[p];
+                        final int xOffset = matrix.columns[p] * l;
+                        for (int a = 0; a < l; a++) {
+                            result[offset + a] += v * x[xOffset + a];
+                        }
+                    }
+
+                    final double mean = matrix.means[g];
+                    final double scale = matrix.scales[g];
+                    for (int a = 0; a < l; a++) {
+                        result[offset + a] =
+                            (result[offset + a] - mean * sums[a]) * scale;
+                    }
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Compute the product of the transposed centered and scaled matrix by
+     * dense gene vectors
+     *
+     * @param pool   the pool of threads, null to compute in current thread
+     * @param matrix the matrix
+     * @param y      gene vectors, in gene-major order
+     * @param l      number of vectors
+     * @return cell vectors, in cell-major order
+     * @throws IOException if a task has failed
+     */
+    private static double[] multiplyTransposed(final ForkJoinPool pool,
+        final SparseMatrix matrix, final double[] y, final int l)
+        throws IOException {
+
+        final double[] result = new double[matrix.cellCount() * l];
+        final double[] shifts = new double[l];
+        for (int g = 0; g < matrix.geneCount(); g++) {
+            final double factor = matrix.means[g] * matrix.scales[g];
+            for (int a = 0; a < l; a++) {
+                shifts[a] += factor * y[g * l + a];
+            }
+        }
+
+        forEachBlock(pool, matrix.cellCount(), new RowOperation() {
+
+            @Override
+            public void apply(final int start, final int end) {
+
+                for (int j = start; j < end; j++) {
+
+                    final int offset = j * l;
+                    for (int p = matrix.colStarts[j];
+                         p < matrix.colStarts[j + 1]; p++) {
+                        final int g = matrix.rows[p];
+                        final double v =
+                            matrix.cellValues[p] * matrix.scales[g];
+                        final int yOffset = g * l;
+                        for (int a = 0; a < l; a++) {
+                            result[offset + a] += v * y[yOffset + a];
+                        }
+                    }
+
+                    for (int a = 0; a < l; a++) {
+                        result[offset + a] -= shifts[a];
+                    }
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Apply an operation on blocks of rows, on a pool if any
+     *
+     * @param pool      the pool of threads, null to compute in current thread
+     * @param rowCount  number of rows
+     * @param operation the operation
+     * @throws IOException if a task has failed
+     */
+    private static void forEachBlock(final ForkJoinPool pool,
+        final int rowCount, final RowOperation operation) throws IOException {
+
+        if (pool == null) {
+            operation.apply(0, rowCount);
+            return;
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < rowCount; start += ROWS_PER_BLOCK) {
+
+            final int blockStart = start;
+            final int blockEnd = Math.min(rowCount, start + ROWS_PER_BLOCK);
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    operation.apply(blockStart, blockEnd);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing components", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while computing components: "
+                + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    //
+    // Dense linear algebra
+    //
+
+    /**
+     * Orthonormalize the columns of a dense matrix with the modified
+     * Gram-Schmidt process, applied twice for stability. Columns dependent
+     * of previous ones are set to zero.
+     *
+     * @param a the matrix, in row-major order
+     * @param l number of columns
+     */
+    private static void orthonormalize(final double[] a, final int l) {
+
+        final int n = a.length / l;
+
+        for (int c = 0; c < l; c++) {
+
+            double initialNorm = 0;
+            for (int i = 0; i < n; i++) {
+                initialNorm += a[i * l + c] * a[i * l + c];
+            }
+
+            for (int pass = 0; pass < 2; pass++) {
+                for (int b = 0; b < c; b++) {
+                    double dot = 0;
+                    for (int i = 0; i < n; i++) {
+                        dot += a[i * l + b] * a[i * l + c];
+                    }
+                    for (int i = 0; i < n; i++) {
+                        a[i * l + c] -= dot * a[i * l + b];
+                    }
+                }
+            }
+
+            double norm = 0;
+            for (int i = 0; i < n; i++) {
+                norm += a[i * l + c] * a[i * l + c];
+            }
+
+            final double factor =
+                norm > 1e-24 * initialNorm && norm > 0 ? 1 / Math.sqrt(norm) : 0;
+            for (int i = 0; i < n; i++) {
+                a[i * l + c] *= factor;
+            }
+        }
+    }
+
+    /**
+     * Compute the eigen decomposition of a symmetric matrix with the cyclic
+     * Jacobi method
+     *
+     * @param a           the matrix, modified by the decomposition
+     * @param eigenvalues output eigenvalues, in decreasing order
+     * @return the eigenvectors, as columns in the order of eigenvalues
+     */
+    private static double[][] eigen(final double[][] a,
+        final double[] eigenvalues) {
+
+        final int n = a.length;
+        final double[][] v = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            v[i][i] = 1;
+        }
+
+        for (int sweep = 0; sweep < MAX_JACOBI_SWEEPS; sweep++) {
+
+            double off = 0;
+            double diagonal = 0;
+            for (int p = 0; p < n; p++) {
+                diagonal += a[p][p] * a[p][p];
+                for (int q = p + 1; q < n; q++) {
+                    off += a[p][q] * a[p][q];
+                }
+            }
+            if (off <= 1e-30 * diagonal) {
+                break;
+            }
+
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+
+                    if (a[p][q] == 0) {
+                        continue;
+                    }
+
+                    final double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    final double t = (theta >= 0 ? 1 : -1)
+                        / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    final double c = 1 / Math.sqrt(t * t + 1);
+                    final double s = t * c;
+
+                    for (int i = 0; i < n; i++) {
+                        final double aip = a[i][p];
+                        final double aiq = a[i][q];
+                        a[i][p] = c * aip - s * aiq;
+                        a[i][q] = s * aip + c * aiq;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        final double api = a[p][i];
+                        final double aqi = a[q][i];
+                        a[p][i] = c * api - s * aqi;
+                        a[q][i] = s * api + c * aqi;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        final double vip = v[i][p];
+                        final double viq = v[i][q];
+                        v[i][p] = c * vip - s * viq;
+                        v[i][q] = s * vip + c * viq;
+                    }
+                }
+            }
+        }
+
+        // Sort eigenvalues in decreasing order
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                return Double.compare(a[i2][i2], a[i1][i1]);
+            }
+        });
+
+        final double[][] result = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            eigenvalues[i] = a[order[i]][order[i]];
+            for (int r = 0; r < n; r++) {
+                result[r][i] = v[r][order[i]];
+            }
+        }
+
+        return result;
+    }
+
+    //
+    // Output methods
+    //
+
+    private static void writeComponentsHeader(final BufferedWriter out,
+        final int k) throws IOException {
+
+        for (int i = 0; i < k; i++) {
+            out.write((i > 0 ? "\t" : "") + "PC_" + (i + 1));
+        }
+        out.newLine();
+    }
+
+    /**
+     * Write the coordinates of the cells on the components
+     */
+    private static void writeEmbedding(final File file,
+        final CellEmbedding embedding) throws IOException {
+
+        try (BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            writeComponentsHeader(out, embedding.getDimension());
+
+            final StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < embedding.getCellCount(); j++) {
+                sb.setLength(0);
+                sb.append(embedding.getCellName(j));
+                for (int i = 0; i < embedding.getDimension(); i++) {
+                    sb.append('\t').append(embedding.getValue(j, i));
+                }
+                out.write(sb.toString());
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Write the loadings of the genes on the components
+     */
+    private static void writeLoadings(final File file,
+        final List<String> genes, final double[] loadings, final int k)
+        throws IOException {
+
+        try (BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            writeComponentsHeader(out, k);
+
+            final StringBuilder sb = new StringBuilder();
+            for (int g = 0; g < genes.size(); g++) {
+                sb.setLength(0);
+                sb.append(genes.get(g));
+                for (int i = 0; i < k; i++) {
+                    sb.append('\t').append(loadings[g * k + i]);
+                }
+                out.write(sb.toString());
+                out.newLine();
+            }
+        }
+    }
+}
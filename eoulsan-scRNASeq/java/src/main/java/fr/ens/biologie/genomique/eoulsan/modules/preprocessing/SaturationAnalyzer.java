@@ -0,0 +1,847 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.GeneSelection;
+
+/**
+ * This class define the engine that computes saturation curves of the cells
+ * of a tabulated expression matrix, as the saturation quality checking script
+ * does. For each cell, reads are subsampled without replacement at a grid of
+ * depths and the detected genes are counted. A Michaelis-Menten curve is then
+ * fitted on the mean number of detected genes, and the cell is saturated when
+ * its detected genes are close enough to the fitted maximum.
+ * <p>
+ * Each subsampling iteration shuffles the reads of a cell once, so every
+ * prefix of the shuffled reads is a sample of the corresponding depth. Cells
+ * are processed in parallel, each with its own random stream split from the
+ * seed in cell order, so results do not depend on the number of threads.
+ * Memory holds the non-zero counts of all cells and the reads of one cell
+ * per thread.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class SaturationAnalyzer {
+
+    private static final int MAX_FIT_ITERATIONS = 1000;
+    private static final double FIT_TOLERANCE = 1e-10;
+
+    private GeneSelection geneSelection = GeneSelection.ENDOGENOUS;
+    private int detectionThreshold = 10;
+    private double saturationThreshold = 0.7;
+    private double fitThreshold = 0.97;
+    private int rounding = 10000;
+    private int pointCount = 20;
+    private int iterations = 10;
+    private int threadCount = 1;
+    private long seed = 1;
+    private File genesMetadataFile;
+
+    /**
+     * This class define the saturation curve of a cell
+     */
+    private static final class Curve {
+
+        private final int features;
+        private final long[] depths;
+        private final double[] means;
+        private final double[] sds;
+        private double max = Double.NaN;
+        private double half = Double.NaN;
+        private double saturation = Double.NaN;
+        private double rSquared = Double.NaN;
+
+        Curve(final int features, final int pointCount) {
+            this.features = features;
+            this.depths = new long[pointCount];
+            this.means = new double[pointCount];
+            this.sds = new double[pointCount];
+        }
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the genes subsampled and counted as detected
+     *
+     * @return the gene selection
+     */
+    public final GeneSelection getGeneSelection() {
+        return this.geneSelection;
+    }
+
+    /**
+     * Get the minimal count of a detected gene
+     *
+     * @return the detection threshold
+     */
+    public final int getDetectionThreshold() {
+        return this.detectionThreshold;
+    }
+
+    /**
+     * Get the minimal saturation of a kept cell
+     *
+     * @return the saturation threshold
+     */
+    public final double getSaturationThreshold() {
+        return this.saturationThreshold;
+    }
+
+    /**
+     * Get the minimal coefficient of determination of the fit of a kept cell
+     *
+     * @return the fit threshold
+     */
+    public final double getFitThreshold() {
+        return this.fitThreshold;
+    }
+
+    /**
+     * Get the number of reads the maximal depth of curves is rounded to
+     *
+     * @return the rounding
+     */
+    public final int getRounding() {
+        return this.rounding;
+    }
+
+    /**
+     * Get the number of depths of curves, excluding null depth
+     *
+     * @return the number of points
+     */
+    public final int getPointCount() {
+        return this.pointCount;
+    }
+
+    /**
+     * Get the number of subsamplings at each depth
+     *
+     * @return the number of iterations
+     */
+    public final int getIterations() {
+        return this.iterations;
+    }
+
+    /**
+     * Get the number of threads computing curves
+     *
+     * @return number of threads
+     */
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Get the seed of the random streams
+     *
+     * @return the seed
+     */
+    public final long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * Get the genes metadata file giving mitochondrial and spike-in genes
+     *
+     * @return the genes metadata file
+     */
+    public final File getGenesMetadataFile() {
+        return this.genesMetadataFile;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the genes subsampled and counted as detected
+     *
+     * @param geneSelection the gene selection
+     */
+    public final void setGeneSelection(final GeneSelection geneSelection) {
+
+        if (geneSelection == null) {
+            throw new NullPointerException(
+                "geneSelection argument cannot be null");
+        }
+
+        this.geneSelection = geneSelection;
+    }
+
+    /**
+     * Set the minimal count of a detected gene
+     *
+     * @param detectionThreshold the detection threshold
+     */
+    public final void setDetectionThreshold(final int detectionThreshold) {
+
+        if (detectionThreshold < 0) {
+            throw new IllegalArgumentException(
+                "The detection threshold cannot be lower than 0");
+        }
+
+        this.detectionThreshold = detectionThreshold;
+    }
+
+    /**
+     * Set the minimal saturation of a kept cell
+     *
+     * @param saturationThreshold the saturation threshold
+     */
+    public final void setSaturationThreshold(
+        final double saturationThreshold) {
+
+        if (saturationThreshold < 0 || Double.isNaN(saturationThreshold)) {
+            throw new IllegalArgumentException(
+                "The saturation threshold cannot be lower than 0");
+        }
+
+        this.saturationThreshold = saturationThreshold;
+    }
+
+    /**
+     * Set the minimal coefficient of determination of the fit of a kept cell
+     *
+     * @param fitThreshold the fit threshold
+     */
+    public final void setFitThreshold(final double fitThreshold) {
+
+        if (fitThreshold < 0 || fitThreshold > 1) {
+            throw new IllegalArgumentException(
+                "The fit threshold must be between 0 and 1");
+        }
+
+        this.fitThreshold = fitThreshold;
+    }
+
+    /**
+     * Set the number of reads the maximal depth of curves is rounded to
+     *
+     * @param rounding the rounding
+     */
+    public final void setRounding(final int rounding) {
+
+        if (rounding < 1) {
+            throw new IllegalArgumentException(
+                "The rounding must be greater than 0");
+        }
+
+        this.rounding = rounding;
+    }
+
+    /**
+     * Set the number of depths of curves, excluding null depth
+     *
+     * @param pointCount the number of points
+     */
+    public final void setPointCount(final int pointCount) {
+
+        if (pointCount < 2) {
+            throw new IllegalArgumentException(
+                "The number of points must be greater than 1");
+        }
+
+        this.pointCount = pointCount;
+    }
+
+    /**
+     * Set the number of subsamplings at each depth
+     *
+     * @param iterations the number of iterations
+     */
+    public final void setIterations(final int iterations) {
+
+        if (iterations < 1) {
+            throw new IllegalArgumentException(
+                "The number of iterations must be greater than 0");
+        }
+
+        this.iterations = iterations;
+    }
+
+    /**
+     * Set the number of threads computing curves
+     *
+     * @param threadCount number of threads
+     */
+    public final void setThreadCount(final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of threads must be greater than 0");
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Set the seed of the random streams
+     *
+     * @param seed the seed
+     */
+    public final void setSeed(final long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Set the genes metadata file giving mitochondrial and spike-in genes
+     *
+     * @param genesMetadataFile the genes metadata file, null if all genes are
+     *                          endogenous
+     */
+    public final void setGenesMetadataFile(final File genesMetadataFile) {
+        this.genesMetadataFile = genesMetadataFile;
+    }
+
+    //
+    // Analysis methods
+    //
+
+    /**
+     * Compute the saturation curves of the cells of a tabulated matrix
+     *
+     * @param matrixFile         tabulated expression matrix, may be gzip
+     *                           compressed
+     * @param curvesFile         output mean and standard deviation of detected
+     *                           genes at each depth of each cell
+     * @param cellsFile          output fitted curve and saturation of each
+     *                           cell
+     * @param filteredMatrixFile output matrix of saturated cells, null if not
+     *                           required
+     * @return number of saturated cells
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    public int analyze(final File matrixFile, final File curvesFile,
+        final File cellsFile, final File filteredMatrixFile)
+        throws IOException {
+
+        if (matrixFile == null) {
+            throw new NullPointerException(
+                "matrixFile argument cannot be null");
+        }
+
+        if (curvesFile == null) {
+            throw new NullPointerException(
+                "curvesFile argument cannot be null");
+        }
+
+        if (cellsFile == null) {
+            throw new NullPointerException("cellsFile argument cannot be null");
+        }
+
+        final List<String> cells = new ArrayList<>();
+        final List<int[]> counts = readCounts(matrixFile, cells);
+        final List<Curve> curves = computeCurves(counts);
+
+        final boolean[] saturated = new boolean[curves.size()];
+        int result = 0;
+        for (int j = 0; j < saturated.length; j++) {
+            saturated[j] = isSaturated(curves.get(j));
+            result += saturated[j] ? 1 : 0;
+        }
+
+        writeCurves(curvesFile, cells, curves);
+        writeCells(cellsFile, cells, curves, saturated);
+        if (filteredMatrixFile != null) {
+            MatrixFiles.writeMatrix(matrixFile, filteredMatrixFile, saturated);
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the non-zero counts of selected genes of each cell
+     *
+     * @param matrixFile tabulated expression matrix
+     * @param cells      list to fill with cell names
+     * @return the counts of each cell
+     * @throws IOException if an error occurs while reading file
+     */
+    private List<int[]> readCounts(final File matrixFile,
+        final List<String> cells) throws IOException {
+
+        final Map<String, Byte> types = this.genesMetadataFile == null ?
+            Collections.<String, Byte> emptyMap() :
+            CellMetrics.readTypes(this.genesMetadataFile);
+
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile)) {
+
+            cells.addAll(MatrixFiles.readHeader(in, matrixFile));
+            final int nCells = cells.size();
+            final int[][] columns = new int[nCells][16];
+            final int[] sizes = new int[nCells];
+
+            final int[] row = new int[nCells];
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                final int idEnd = MatrixFiles.parseRow(line, row);
+                if (!MatrixFiles.isSelected(this.geneSelection,
+                    types.get(line.substring(0, idEnd)))) {
+                    continue;
+                }
+
+                for (int j = 0; j < nCells; j++) {
+                    if (row[j] == 0) {
+                        continue;
+                    }
+                    if (sizes[j] == columns[j].length) {
+                        columns[j] = Arrays.copyOf(columns[j], sizes[j] * 2);
+                    }
+                    columns[j][sizes[j]++] = row[j];
+                }
+            }
+
+            final List<int[]> result = new ArrayList<>(nCells);
+            for (int j = 0; j < nCells; j++) {
+                result.add(Arrays.copyOf(columns[j], sizes[j]));
+                columns[j] = null;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Compute the curves of all cells, on a pool if more than one thread is
+     * used
+     *
+     * @param counts the counts of each cell
+     * @return the curve of each cell
+     * @throws IOException if the curve of a cell cannot be computed
+     */
+    private List<Curve> computeCurves(final List<int[]> counts)
+        throws IOException {
+
+        // Streams are split in cell order whatever the number of threads
+        final SplittableRandom random = new SplittableRandom(this.seed);
+        final List<Curve> result = new ArrayList<>(counts.size());
+
+        if (this.threadCount == 1) {
+            for (int[] c : counts) {
+                result.add(computeCurve(c, random.split()));
+            }
+            return result;
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(this.threadCount);
+        try {
+            final List<Future<Curve>> futures = new ArrayList<>(counts.size());
+            for (int[] c : counts) {
+                futures.add(pool.submit(curveTask(c, random.split())));
+            }
+            for (Future<Curve> future : futures) {
+                result.add(waitFor(future));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Create a task that computes the curve of a cell
+     *
+     * @param counts non-zero counts of the cell
+     * @param random random stream of the cell
+     * @return a task returning the curve of the cell
+     */
+    private Callable<Curve> curveTask(final int[] counts,
+        final SplittableRandom random) {
+
+        return new Callable<Curve>() {
+
+            @Override
+            public Curve call() throws IOException {
+                return computeCurve(counts, random);
+            }
+        };
+    }
+
+    /**
+     * Wait for the result of a curve task
+     *
+     * @param future the task
+     * @return result of the task
+     * @throws IOException if the task has failed
+     */
+    private static Curve waitFor(final Future<Curve> future)
+        throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing curves", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while computing curves: "
+                + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Compute and fit the saturation curve of a cell
+     *
+     * @param counts non-zero counts of the cell
+     * @param random random stream of the cell
+     * @return the curve of the cell
+     * @throws IOException if the cell has too many reads to be subsampled
+     */
+    private Curve computeCurve(final int[] counts,
+        final SplittableRandom random) throws IOException {
+
+        // Genes with a null count are never detected
+        final int threshold = Math.max(1, this.detectionThreshold);
+
+        long total = 0;
+        int features = 0;
+        for (int c : counts) {
+            total += c;
+            features += c >= threshold ? 1 : 0;
+        }
+
+        final int n = this.pointCount;
+        final Curve result = new Curve(features, n + 1);
+
+        // Cells with less reads than the rounding have no curve
+        final long maxDepth = total / this.rounding * this.rounding;
+        if (maxDepth == 0) {
+            return result;
+        }
+
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many reads to subsample a cell: " + total);
+        }
+
+        for (int k = 0; k <= n; k++) {
+            result.depths[k] = maxDepth * k / n;
+        }
+
+        final int[] reads = new int[(int) total];
+        int p = 0;
+        for (int g = 0; g < counts.length; g++) {
+            Arrays.fill(reads, p, p + counts[g], g);
+            p += counts[g];
+        }
+
+        final int[] sampled = new int[counts.length];
+        final double[] sqSums = new double[n + 1];
+        for (int it = 0; it < this.iterations; it++) {
+
+            Arrays.fill(sampled, 0);
+            int detected = 0;
+            p = 0;
+
+            // Partial Fisher-Yates shuffle, prefixes are samples
+            for (int k = 1; k <= n; k++) {
+                for (; p < result.depths[k]; p++) {
+                    final int q = p + random.nextInt(reads.length - p);
+                    final int g = reads[q];
+                    reads[q] = reads[p];
+                    reads[p] = g;
+                    if (++sampled[g] == threshold) {
+                        detected++;
+                    }
+                }
+                result.means[k] += detected;
+                sqSums[k] += (double) detected * detected;
+            }
+        }
+
+        for (int k = 0; k <= n; k++) {
+            final double sum = result.means[k];
+            result.means[k] = sum / this.iterations;
+            result.sds[k] = this.iterations < 2 ? Double.NaN : Math.sqrt(
+                Math.max(0, (sqSums[k] - sum * result.means[k])
+                    / (this.iterations - 1)));
+        }
+
+        fit(result);
+
+        return result;
+    }
+
+    /**
+     * Fit a Michaelis-Menten curve, detected = max * depth / (depth + half),
+     * by least absolute deviation, starting from a Hanes-Woolf linear fit
+     *
+     * @param curve the curve to fit
+     */
+    private static void fit(final Curve curve) {
+
+        final long[] depths = curve.depths;
+        final double[] means = curve.means;
+
+        // Hanes-Woolf: depth / detected = half / max + depth / max
+        double sx = 0;
+        double sy = 0;
+        double sxx = 0;
+        double sxy = 0;
+        int m = 0;
+        for (int k = 0; k < depths.length; k++) {
+            if (depths[k] > 0 && means[k] > 0) {
+                final double y = depths[k] / means[k];
+                sx += depths[k];
+                sy += y;
+                sxx += (double) depths[k] * depths[k];
+                sxy += depths[k] * y;
+                m++;
+            }
+        }
+
+        final double sDev = sxx - sx * sx / m;
+        final double slope = (sxy - sx * sy / m) / sDev;
+        if (m < 2 || sDev == 0 || slope == 0 || Double.isNaN(slope)) {
+            return;
+        }
+        final double intercept = (sy - slope * sx) / m;
+
+        final double[] params =
+            minimizeDeviation(depths, means, 1 / slope, intercept / slope);
+        curve.max = params[0];
+        curve.half = params[1];
+        curve.saturation = curve.features / curve.max;
+
+        // Coefficient of determination of predicted against measured
+        final double[] predicted = new double[depths.length];
+        for (int k = 0; k < depths.length; k++) {
+            predicted[k] = predict(depths[k], curve.max, curve.half);
+        }
+        curve.rSquared = squaredCorrelation(means, predicted);
+    }
+
+    /**
+     * Minimize the sum of absolute residuals of a Michaelis-Menten curve with
+     * the Nelder-Mead simplex method
+     *
+     * @param depths depths of the curve
+     * @param means  mean detected genes at each depth
+     * @param max    initial maximal number of detected genes
+     * @param half   initial depth of half maximal detection
+     * @return the fitted maximal number of detected genes and depth of half
+     * maximal detection
+     */
+    private static double[] minimizeDeviation(final long[] depths,
+        final double[] means, final double max, final double half) {
+
+        final double[][] simplex = {{max, half},
+            {max + step(max), half}, {max, half + step(half)}};
+        final double[] values = new double[3];
+        for (int i = 0; i < 3; i++) {
+            values[i] = deviation(depths, means, simplex[i]);
+        }
+
+        for (int it = 0; it < MAX_FIT_ITERATIONS; it++) {
+
+            // Order vertices from best to worst
+            for (int i = 1; i < 3; i++) {
+                for (int k = i; k > 0 && values[k] < values[k - 1]; k--) {
+                    final double v = values[k];
+                    values[k] = values[k - 1];
+                    values[k - 1] = v;
+                    final double[] s = simplex[k];
+                    simplex[k] = simplex[k - 1];
+                    simplex[k - 1] = s;
+                }
+            }
+
+            if (values[2] - values[0] <= FIT_TOLERANCE * (Math.abs(values[0])
+                + FIT_TOLERANCE)) {
+                break;
+            }
+
+            final double[] centroid = {(simplex[0][0] + simplex[1][0]) / 2,
+                (simplex[0][1] + simplex[1][1]) / 2};
+
+            final double[] reflected = move(centroid, simplex[2], -1);
+            final double vr = deviation(depths, means, reflected);
+
+            if (vr < values[0]) {
+                final double[] expanded = move(centroid, simplex[2], -2);
+                final double ve = deviation(depths, means, expanded);
+                if (ve < vr) {
+                    simplex[2] = expanded;
+                    values[2] = ve;
+                } else {
+                    simplex[2] = reflected;
+                    values[2] = vr;
+                }
+            } else if (vr < values[1]) {
+                simplex[2] = reflected;
+                values[2] = vr;
+            } else {
+                final double[] contracted = vr < values[2] ?
+                    move(centroid, reflected, 0.5) :
+                    move(centroid, simplex[2], 0.5);
+                final double vc = deviation(depths, means, contracted);
+                if (vc < Math.min(vr, values[2])) {
+                    simplex[2] = contracted;
+                    values[2] = vc;
+                } else {
+                    // Shrink towards the best vertex
+                    for (int i = 1; i < 3; i++) {
+                        simplex[i] = move(simplex[0], simplex[i], 0.5);
+                        values[i] = deviation(depths, means, simplex[i]);
+                    }
+                }
+            }
+        }
+
+        int best = 0;
+        for (int i = 1; i < 3; i++) {
+            if (values[i] < values[best]) {
+                best = i;
+            }
+        }
+
+        return simplex[best];
+    }
+
+    private static double step(final double value) {
+        return value == 0 ? 1 : 0.1 * Math.abs(value);
+    }
+
+    /**
+     * Get the point at a given ratio of the way from a center to a vertex
+     */
+    private static double[] move(final double[] center, final double[] vertex,
+        final double ratio) {
+
+        return new double[] {center[0] + ratio * (vertex[0] - center[0]),
+            center[1] + ratio * (vertex[1] - center[1])};
+    }
+
+    private static double deviation(final long[] depths, final double[] means,
+        final double[] params) {
+
+        double result = 0;
+        for (int k = 0; k < depths.length; k++) {
+            result += Math.abs(means[k] - predict(depths[k], params[0],
+                params[1]));
+        }
+
+        return Double.isNaN(result) ? Double.POSITIVE_INFINITY : result;
+    }
+
+    private static double predict(final long depth, final double max,
+        final double half) {
+        return depth == 0 ? 0 : max * depth / (depth + half);
+    }
+
+    private static double squaredCorrelation(final double[] x,
+        final double[] y) {
+
+        double mx = 0;
+        double my = 0;
+        for (int k = 0; k < x.length; k++) {
+            mx += x[k];
+            my += y[k];
+        }
+        mx /= x.length;
+        my /= y.length;
+
+        double sxy = 0;
+        double sxx = 0;
+        double syy = 0;
+        for (int k = 0; k < x.length; k++) {
+            sxy += (x[k] - mx) * (y[k] - my);
+            sxx += (x[k] - mx) * (x[k] - mx);
+            syy += (y[k] - my) * (y[k] - my);
+        }
+
+        return sxy * sxy / (sxx * syy);
+    }
+
+    /**
+     * Test if a cell is saturated. Cells without fit are not.
+     */
+    private boolean isSaturated(final Curve curve) {
+
+        return curve.max >= 0 && curve.half >= 0
+            && curve.saturation >= this.saturationThreshold
+            && curve.rSquared >= this.fitThreshold;
+    }
+
+    //
+    // Output methods
+    //
+
+    private static String format(final double value) {
+        return Double.isNaN(value) ? "NA" : Double.toString(value);
+    }
+
+    /**
+     * Write the points of the curve of each cell
+     */
+    private static void writeCurves(final File file, final List<String> cells,
+        final List<Curve> curves) throws IOException {
+
+        try (BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            out.write("Depth\tMean_features\tSd_features");
+            out.newLine();
+
+            for (int j = 0; j < cells.size(); j++) {
+                final Curve curve = curves.get(j);
+
+                // Cells with less reads than the rounding have no curve
+                if (curve.depths[curve.depths.length - 1] == 0) {
+                    continue;
+                }
+
+                for (int k = 0; k < curve.depths.length; k++) {
+                    out.write(cells.get(j) + "\t" + curve.depths[k] + "\t"
+                        + format(curve.means[k]) + "\t" + format(curve.sds[k]));
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the fitted curve and saturation of each cell
+     */
+    private static void writeCells(final File file, final List<String> cells,
+        final List<Curve> curves, final boolean[] saturated)
+        throws IOException {
+
+        try (BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            out.write("Nb_features\tSaturation_max\tSaturation_half"
+                + "\tSaturation\tR_squared\tSaturated");
+            out.newLine();
+
+            for (int j = 0; j < cells.size(); j++) {
+                final Curve curve = curves.get(j);
+                out.write(cells.get(j) + "\t" + curve.features + "\t"
+                    + format(curve.max) + "\t" + format(curve.half) + "\t"
+                    + format(curve.saturation) + "\t" + format(curve.rSquared)
+                    + "\t" + (saturated[j] ? "TRUE" : "FALSE"));
+                out.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.Globals;
+import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
+import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
+import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
+import fr.ens.biologie.genomique.eoulsan.core.Version;
+import fr.ens.biologie.genomique.eoulsan.data.Data;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormat;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
+import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.GeneSelection;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define a module that computes saturation curves of the cells of
+ * an expression matrix by subsampling their reads, and keeps saturated cells.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@LocalOnly
+public class SaturationModule extends AbstractModule {
+    /**
+     * Module Name
+     */
+    private static final String MODULE_NAME = "saturation";
+
+    /**
+     * Parameters Names
+     */
+    private static final String DETECTION_THRESHOLD_PARAMETER_NAME = "detection.threshold";
+    private static final String EXPRESSION_OPTION_PARAMETER_NAME = "expression.option";
+    private static final String SATURATION_THRESHOLD_PARAMETER_NAME = "saturation.threshold";
+    private static final String FIT_THRESHOLD_PARAMETER_NAME = "fit.threshold";
+    private static final String ROUNDING_PARAMETER_NAME = "rounding";
+    private static final String POINTS_PARAMETER_NAME = "n.points";
+    private static final String ITERATIONS_PARAMETER_NAME = "iterations";
+    private static final String THREADS_PARAMETER_NAME = "n.threads";
+    private static final String SEED_PARAMETER_NAME = "seed";
+
+    private final SaturationAnalyzer analyzer = new SaturationAnalyzer();
+
+    // DataFormat
+    private static DataFormat EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("expression_matrix_tsv");
+    private static DataFormat GENES_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("genes_metadata_tsv");
+    private static DataFormat FILTERED_EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("filtered_expression_matrix_tsv");
+    private static DataFormat SATURATION_CURVES_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("saturation_curves_tsv");
+    private static DataFormat SATURATION_CELLS_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("saturation_cells_metadata_tsv");
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the analyzer configured by step parameters
+     *
+     * @return the saturation analyzer
+     */
+    protected SaturationAnalyzer getAnalyzer() {
+        return this.analyzer;
+    }
+
+    //
+    // Module Methods
+    //
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public Version getVersion() {
+        return Globals.APP_VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "This module filters cells of an expression matrix on saturation curves";
+    }
+
+    @Override
+    public InputPorts getInputPorts() {
+        return new InputPortsBuilder()
+                .addPort("matrix", EXPRESSION_MATRIX_TSV)
+                .addPort("genes", GENES_METADATA_TSV).create();
+    }
+
+    @Override
+    public OutputPorts getOutputPorts() {
+        return new OutputPortsBuilder()
+                .addPort("matrixoutput", FILTERED_EXPRESSION_MATRIX_TSV)
+                .addPort("curvesoutput", SATURATION_CURVES_TSV)
+                .addPort("cellsoutput", SATURATION_CELLS_METADATA_TSV).create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            try {
+                switch (p.getName()) {
+
+                    case EXPRESSION_OPTION_PARAMETER_NAME:
+                        switch (p.getLowerStringValue()) {
+
+                            case "all":
+                                this.analyzer.setGeneSelection(GeneSelection.ALL);
+                                break;
+
+                            case "endogenous":
+                                this.analyzer.setGeneSelection(GeneSelection.ENDOGENOUS);
+                                break;
+
+                            case "nuclear":
+                                this.analyzer.setGeneSelection(GeneSelection.NUCLEAR);
+                                break;
+
+                            default:
+                                Modules.badParameterValue(context, p,
+                                        "Unknown type of detected genes");
+                                break;
+                        }
+                        break;
+
+                    case DETECTION_THRESHOLD_PARAMETER_NAME:
+                        this.analyzer.setDetectionThreshold(p.getIntValue());
+                        break;
+
+                    case SATURATION_THRESHOLD_PARAMETER_NAME:
+                        this.analyzer.setSaturationThreshold(p.getDoubleValue());
+                        break;
+
+                    case FIT_THRESHOLD_PARAMETER_NAME:
+                        this.analyzer.setFitThreshold(p.getDoubleValue());
+                        break;
+
+                    case ROUNDING_PARAMETER_NAME:
+                        this.analyzer.setRounding(p.getIntValue());
+                        break;
+
+                    case POINTS_PARAMETER_NAME:
+                        this.analyzer.setPointCount(p.getIntValue());
+                        break;
+
+                    case ITERATIONS_PARAMETER_NAME:
+                        this.analyzer.setIterations(p.getIntValue());
+                        break;
+
+                    case THREADS_PARAMETER_NAME:
+                        this.analyzer.setThreadCount(p.getIntValue());
+                        break;
+
+                    case SEED_PARAMETER_NAME:
+                        this.analyzer.setSeed(p.getLongValue());
+                        break;
+
+                    default:
+                        Modules.unknownParameter(context, p);
+                }
+            } catch (IllegalArgumentException e) {
+                Modules.badParameterValue(context, p, e.getMessage());
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", detection.threshold="
+                + this.analyzer.getDetectionThreshold() + ", expression.option="
+                + this.analyzer.getGeneSelection().name().toLowerCase()
+                + ", saturation.threshold=" + this.analyzer.getSaturationThreshold()
+                + ", fit.threshold=" + this.analyzer.getFitThreshold());
+        getLogger().info("In " + getName() + ", rounding="
+                + this.analyzer.getRounding() + ", n.points="
+                + this.analyzer.getPointCount() + ", iterations="
+                + this.analyzer.getIterations() + ", n.threads="
+                + this.analyzer.getThreadCount() + ", seed="
+                + this.analyzer.getSeed());
+    }
+
+    @Override
+    public TaskResult execute(TaskContext context, TaskStatus status) {
+
+        // Get input and output files
+        final Data matrixData = context.getInputData(EXPRESSION_MATRIX_TSV);
+        final File matrix = matrixData.getDataFile().toFile();
+        final File genes = context.getInputData(GENES_METADATA_TSV).getDataFile().toFile();
+        final File filteredMatrix = context.getOutputData(
+                FILTERED_EXPRESSION_MATRIX_TSV, matrixData).getDataFile().toFile();
+        final File curves = context.getOutputData(
+                SATURATION_CURVES_TSV, matrixData).getDataFile().toFile();
+        final File cells = context.getOutputData(
+                SATURATION_CELLS_METADATA_TSV, matrixData).getDataFile().toFile();
+
+        // Compute curves and keep saturated cells
+        try {
+            this.analyzer.setGenesMetadataFile(genes);
+            final int kept = this.analyzer.analyze(matrix, curves, cells, filteredMatrix);
+            getLogger().info("In " + getName() + ", " + kept + " saturated cells kept");
+            return status.createTaskResult();
+        } catch (IOException e) {
+            return status.createTaskResult(e, "Error with file :" + e.getMessage());
+        }
+    }
+}
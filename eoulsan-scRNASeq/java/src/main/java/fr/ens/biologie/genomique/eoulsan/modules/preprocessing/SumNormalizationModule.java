@@ -0,0 +1,201 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.Globals;
+import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
+import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
+import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
+import fr.ens.biologie.genomique.eoulsan.core.Version;
+import fr.ens.biologie.genomique.eoulsan.data.Data;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormat;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
+import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.GeneSelection;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define a module that normalizes a filtered expression matrix by
+ * library size, in counts or transcripts per million.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@LocalOnly
+public class SumNormalizationModule extends AbstractModule {
+    /**
+     * Module Name
+     */
+    private static final String MODULE_NAME = "sumnormalization";
+
+    /**
+     * Normalization methods
+     */
+    protected enum Normalization {
+        CPM, TPM
+    }
+
+    /**
+     * Parameters Names
+     */
+    private static final String METHOD_PARAMETER_NAME = "method";
+    private static final String EXPRESSION_OPTION_PARAMETER_NAME = "expression.option";
+
+    private final SumNormalizer normalizer = new SumNormalizer();
+
+    // DataFormat
+    private static DataFormat FILTERED_EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("filtered_expression_matrix_tsv");
+    private static DataFormat GENES_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("genes_metadata_tsv");
+    private static DataFormat NORMALIZED_EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("normalized_expression_matrix_tsv");
+    private static DataFormat NORMALIZED_CELLS_METADATA_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("normalized_cells_metadata_tsv");
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the normalizer configured by step parameters
+     *
+     * @return the normalizer
+     */
+    protected SumNormalizer getNormalizer() {
+        return this.normalizer;
+    }
+
+    //
+    // Module Methods
+    //
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public Version getVersion() {
+        return Globals.APP_VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "This module normalizes an expression matrix by library size";
+    }
+
+    @Override
+    public InputPorts getInputPorts() {
+        return new InputPortsBuilder()
+                .addPort("matrix", FILTERED_EXPRESSION_MATRIX_TSV)
+                .addPort("genes", GENES_METADATA_TSV).create();
+    }
+
+    @Override
+    public OutputPorts getOutputPorts() {
+        return new OutputPortsBuilder()
+                .addPort("matrixoutput", NORMALIZED_EXPRESSION_MATRIX_TSV)
+                .addPort("cellsoutput", NORMALIZED_CELLS_METADATA_TSV).create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            switch (p.getName()) {
+
+                case METHOD_PARAMETER_NAME:
+                    switch (p.getLowerStringValue()) {
+
+                        case "cpm":
+                            this.normalizer.setNormalization(Normalization.CPM);
+                            break;
+
+                        case "tpm":
+                            this.normalizer.setNormalization(Normalization.TPM);
+                            break;
+
+                        default:
+                            Modules.badParameterValue(context, p,
+                                    "Unknown normalization method");
+                            break;
+                    }
+                    break;
+
+                case EXPRESSION_OPTION_PARAMETER_NAME:
+                    switch (p.getLowerStringValue()) {
+
+                        case "all":
+                            this.normalizer.setGeneSelection(GeneSelection.ALL);
+                            break;
+
+                        case "endogenous":
+                            this.normalizer.setGeneSelection(GeneSelection.ENDOGENOUS);
+                            break;
+
+                        case "nuclear":
+                            this.normalizer.setGeneSelection(GeneSelection.NUCLEAR);
+                            break;
+
+                        default:
+                            Modules.badParameterValue(context, p,
+                                    "Unknown type of counted genes");
+                            break;
+                    }
+                    break;
+
+                default:
+                    Modules.unknownParameter(context, p);
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", method="
+                + this.normalizer.getNormalization().name().toLowerCase()
+                + ", expression.option="
+                + this.normalizer.getGeneSelection().name().toLowerCase());
+    }
+
+    @Override
+    public TaskResult execute(TaskContext context, TaskStatus status) {
+
+        // Get input and output files
+        final Data matrixData = context.getInputData(FILTERED_EXPRESSION_MATRIX_TSV);
+        final File matrix = matrixData.getDataFile().toFile();
+        final File genes = context.getInputData(GENES_METADATA_TSV).getDataFile().toFile();
+        final File normalizedMatrix = context.getOutputData(
+                NORMALIZED_EXPRESSION_MATRIX_TSV, matrixData).getDataFile().toFile();
+        final File normalizedCells = context.getOutputData(
+                NORMALIZED_CELLS_METADATA_TSV, matrixData).getDataFile().toFile();
+
+        // Normalize matrix
+        try {
+            this.normalizer.setGenesMetadataFile(genes);
+            this.normalizer.normalize(matrix, normalizedMatrix, normalizedCells);
+            if (this.normalizer.getSkippedGeneCount() > 0) {
+                getLogger().warning("In " + getName() + ", "
+                        + this.normalizer.getSkippedGeneCount()
+                        + " genes without length were not normalized");
+            }
+            return status.createTaskResult();
+        } catch (IOException e) {
+            return status.createTaskResult(e, "Error with file :" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.CellFilterModule.GeneSelection;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.SumNormalizationModule.Normalization;
+
+/**
+ * This class define the engine that normalizes a tabulated expression matrix
+ * by library size, in counts per million (CPM) or transcripts per million
+ * (TPM). The matrix is read twice: once to sum the counts of each cell, once
+ * to write scaled values. Memory holds one row and one scale factor per cell.
+ * <p>
+ * Library sizes only count the selected genes, but all genes are written.
+ * For TPM, counts are divided by feature length in kilobases, taken from the
+ * genes metadata, and genes without length are not written.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class SumNormalizer {
+
+    private static final double MILLION = 1e6;
+
+    private Normalization normalization = Normalization.CPM;
+    private GeneSelection geneSelection = GeneSelection.ENDOGENOUS;
+    private File genesMetadataFile;
+
+    private int skippedGeneCount;
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the normalization method
+     *
+     * @return the normalization method
+     */
+    public final Normalization getNormalization() {
+        return this.normalization;
+    }
+
+    /**
+     * Get the genes counted in library sizes
+     *
+     * @return the gene selection
+     */
+    public final GeneSelection getGeneSelection() {
+        return this.geneSelection;
+    }
+
+    /**
+     * Get the genes metadata file giving gene types and lengths
+     *
+     * @return the genes metadata file
+     */
+    public final File getGenesMetadataFile() {
+        return this.genesMetadataFile;
+    }
+
+    /**
+     * Get the number of genes not written by last normalization as their
+     * length is unknown
+     *
+     * @return number of skipped genes
+     */
+    public final int getSkippedGeneCount() {
+        return this.skippedGeneCount;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the normalization method
+     *
+     * @param normalization the normalization method
+     */
+    public final void setNormalization(final Normalization normalization) {
+
+        if (normalization == null) {
+            throw new NullPointerException(
+                "normalization argument cannot be null");
+        }
+
+        this.normalization = normalization;
+    }
+
+    /**
+     * Set the genes counted in library sizes
+     *
+     * @param geneSelection the gene selection
+     */
+    public final void setGeneSelection(final GeneSelection geneSelection) {
+
+        if (geneSelection == null) {
+            throw new NullPointerException(
+                "geneSelection argument cannot be null");
+        }
+
+        this.geneSelection = geneSelection;
+    }
+
+    /**
+     * Set the genes metadata file giving gene types and lengths
+     *
+     * @param genesMetadataFile the genes metadata file, null if all genes are
+     *                          endogenous. Required for TPM.
+     */
+    public final void setGenesMetadataFile(final File genesMetadataFile) {
+        this.genesMetadataFile = genesMetadataFile;
+    }
+
+    //
+    // Normalization methods
+    //
+
+    /**
+     * Normalize a tabulated matrix
+     *
+     * @param matrixFile           tabulated expression matrix, may be gzip
+     *                             compressed
+     * @param normalizedMatrixFile output normalized matrix
+     * @param cellsFile            output library size and scale factor of
+     *                             each cell
+     * @throws IOException if an error occurs while reading or writing files
+     */
+    public void normalize(final File matrixFile,
+        final File normalizedMatrixFile, final File cellsFile)
+        throws IOException {
+
+        if (matrixFile == null) {
+            throw new NullPointerException(
+                "matrixFile argument cannot be null");
+        }
+
+        if (normalizedMatrixFile == null) {
+            throw new NullPointerException(
+                "normalizedMatrixFile argument cannot be null");
+        }
+
+        if (cellsFile == null) {
+            throw new NullPointerException("cellsFile argument cannot be null");
+        }
+
+        final boolean tpm = this.normalization == Normalization.TPM;
+        if (tpm && this.genesMetadataFile == null) {
+            throw new IllegalStateException(
+                "Genes metadata are required for TPM normalization");
+        }
+
+        final Map<String, Byte> types = this.genesMetadataFile == null ?
+            Collections.<String, Byte> emptyMap() :
+            CellMetrics.readTypes(this.genesMetadataFile);
+        final Map<String, Double> lengths = tpm ?
+            readLengths(this.genesMetadataFile) :
+            Collections.<String, Double> emptyMap();
+
+        // First pass: library sizes
+        final List<String> cells;
+        final double[] sums;
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile)) {
+
+            cells = MatrixFiles.readHeader(in, matrixFile);
+            sums = new double[cells.size()];
+            final int[] counts = new int[cells.size()];
+
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                final String gene =
+                    line.substring(0, MatrixFiles.parseRow(line, counts));
+                if (!MatrixFiles.isSelected(this.geneSelection,
+                    types.get(gene))) {
+                    continue;
+                }
+
+                final double divisor = tpm ? lengthOf(lengths, gene) : 1;
+                if (Double.isNaN(divisor)) {
+                    continue;
+                }
+
+                for (int j = 0; j < counts.length; j++) {
+                    sums[j] += counts[j] / divisor;
+                }
+            }
+        }
+
+        final double[] factors = new double[sums.length];
+        for (int j = 0; j < sums.length; j++) {
+            factors[j] = sums[j] == 0 ? Double.NaN : MILLION / sums[j];
+        }
+
+        // Second pass: scaled values
+        this.skippedGeneCount = 0;
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile);
+            BufferedWriter out =
+                MatrixFiles.createWriter(normalizedMatrixFile)) {
+
+            MatrixFiles.readHeader(in, matrixFile);
+            writeHeader(out, cells);
+
+            final int[] counts = new int[cells.size()];
+            final StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+
+                final String gene =
+                    line.substring(0, MatrixFiles.parseRow(line, counts));
+                final double divisor = tpm ? lengthOf(lengths, gene) : 1;
+                if (Double.isNaN(divisor)) {
+                    this.skippedGeneCount++;
+                    continue;
+                }
+
+                sb.setLength(0);
+                sb.append(gene);
+                for (int j = 0; j < counts.length; j++) {
+                    sb.append('\t');
+                    appendValue(sb, counts[j], counts[j] / divisor * factors[j]);
+                }
+
+                out.append(sb);
+                out.newLine();
+            }
+        }
+
+        writeCells(cellsFile, cells, sums, factors);
+    }
+
+    /**
+     * Get the length of a gene in kilobases
+     *
+     * @return the length or NaN if the gene length is unknown
+     */
+    private static double lengthOf(final Map<String, Double> lengths,
+        final String gene) {
+
+        final Double result = lengths.get(gene);
+
+        return result == null ? Double.NaN : result;
+    }
+
+    private static void appendValue(final StringBuilder sb, final int count,
+        final double value) {
+
+        if (count == 0) {
+            sb.append('0');
+        } else if (Double.isNaN(value)) {
+            sb.append("NA");
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * Read feature lengths from the Length column of a genes metadata file
+     *
+     * @param file the genes metadata file
+     * @return a map of lengths in kilobases
+     * @throws IOException if an error occurs while reading file
+     */
+    private static Map<String, Double> readLengths(final File file)
+        throws IOException {
+
+        final Map<String, Double> result = new HashMap<>();
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+            // Skip headers
+            String line = in.readLine();
+
+            while ((line = in.readLine()) != null) {
+
+                final String[] fields = line.split("\t");
+                if (fields.length < 3) {
+                    continue;
+                }
+
+                try {
+                    final int length = Integer.parseInt(fields[2]);
+                    if (length > 0) {
+                        result.put(fields[0], length / 1000.0);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid length in genes metadata "
+                        + file + ": " + line, e);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void writeHeader(final BufferedWriter out,
+        final List<String> cells) throws IOException {
+
+        for (int j = 0; j < cells.size(); j++) {
+            if (j > 0) {
+                out.write('\t');
+            }
+            out.write(cells.get(j));
+        }
+        out.newLine();
+    }
+
+    /**
+     * Write library size and scale factor of each cell
+     */
+    private static void writeCells(final File file, final List<String> cells,
+        final double[] sums, final double[] factors) throws IOException {
+
+        try (BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            out.write("Library_size\tScale_factor");
+            out.newLine();
+
+            for (int j = 0; j < cells.size(); j++) {
+                out.write(cells.get(j) + "\t" + sums[j] + "\t"
+                    + (Double.isNaN(factors[j]) ? "NA" : factors[j]));
+                out.newLine();
+            }
+        }
+    }
+}
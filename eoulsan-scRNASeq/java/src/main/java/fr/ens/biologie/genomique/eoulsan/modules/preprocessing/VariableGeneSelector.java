@@ -0,0 +1,679 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.modules.preprocessing.VariableGenesModule.SelectionMethod;
+
+/**
+ * This class define the engine that computes per-gene statistics of a
+ * normalized tabulated expression matrix and selects highly variable genes
+ * as Seurat does: genes are binned on the log of their mean, and their log
+ * dispersion (variance to mean ratio) is scaled to a z-score inside each bin.
+ * <p>
+ * Mean, variance, dispersion and number of cells with expression are computed
+ * in a single pass, with Welford's algorithm. As the matrix is gene-major,
+ * each row is complete in a block of lines, so blocks are parsed by a pool of
+ * threads without merging partial statistics, and results keep row order.
+ * The matrix is read a second time to write the rows of selected genes.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+public class VariableGeneSelector {
+
+    /**
+     * Number of lines parsed by a task
+     */
+    private static final int LINES_PER_BLOCK = 256;
+
+    /**
+     * Number of blocks parsed in advance by each thread
+     */
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    private SelectionMethod method = SelectionMethod.SEURAT;
+    private double lowMean = 0.01;
+    private double highMean = 5;
+    private double dispersionThreshold = 1;
+    private int binCount = 20;
+    private int threadCount = 1;
+    private boolean keepAllGenes;
+
+    private int selectedGeneCount;
+
+    /**
+     * This class define the statistics of a block of matrix rows
+     */
+    private static final class Block {
+
+        private final String[] genes;
+        private final double[] means;
+        private final double[] variances;
+        private final int[] nonZeros;
+
+        Block(final int size) {
+            this.genes = new String[size];
+            this.means = new double[size];
+            this.variances = new double[size];
+            this.nonZeros = new int[size];
+        }
+    }
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the method selecting highly variable genes
+     *
+     * @return the selection method
+     */
+    public final SelectionMethod getMethod() {
+        return this.method;
+    }
+
+    /**
+     * Get the log mean above which a gene may be selected
+     *
+     * @return the low mean cutoff
+     */
+    public final double getLowMean() {
+        return this.lowMean;
+    }
+
+    /**
+     * Get the log mean under which a gene may be selected
+     *
+     * @return the high mean cutoff
+     */
+    public final double getHighMean() {
+        return this.highMean;
+    }
+
+    /**
+     * Get the scaled dispersion above which a gene is selected
+     *
+     * @return the dispersion threshold
+     */
+    public final double getDispersionThreshold() {
+        return this.dispersionThreshold;
+    }
+
+    /**
+     * Get the number of bins of log means
+     *
+     * @return the number of bins
+     */
+    public final int getBinCount() {
+        return this.binCount;
+    }
+
+    /**
+     * Get the number of threads parsing the matrix
+     *
+     * @return number of threads
+     */
+    public final int getThreadCount() {
+        return this.threadCount;
+    }
+
+    /**
+     * Test if all genes are kept when none is variable
+     *
+     * @return true if all genes are kept when none is variable
+     */
+    public final boolean isKeepAllGenes() {
+        return this.keepAllGenes;
+    }
+
+    /**
+     * Get the number of genes selected by last selection
+     *
+     * @return number of selected genes
+     */
+    public final int getSelectedGeneCount() {
+        return this.selectedGeneCount;
+    }
+
+    //
+    // Setters
+    //
+
+    /**
+     * Set the method selecting highly variable genes
+     *
+     * @param method the selection method
+     */
+    public final void setMethod(final SelectionMethod method) {
+
+        if (method == null) {
+            throw new NullPointerException("method argument cannot be null");
+        }
+
+        this.method = method;
+    }
+
+    /**
+     * Set the log mean above which a gene may be selected
+     *
+     * @param lowMean the low mean cutoff
+     */
+    public final void setLowMean(final double lowMean) {
+        this.lowMean = lowMean;
+    }
+
+    /**
+     * Set the log mean under which a gene may be selected
+     *
+     * @param highMean the high mean cutoff
+     */
+    public final void setHighMean(final double highMean) {
+        this.highMean = highMean;
+    }
+
+    /**
+     * Set the scaled dispersion above which a gene is selected
+     *
+     * @param dispersionThreshold the dispersion threshold
+     */
+    public final void setDispersionThreshold(
+        final double dispersionThreshold) {
+        this.dispersionThreshold = dispersionThreshold;
+    }
+
+    /**
+     * Set the number of bins of log means
+     *
+     * @param binCount the number of bins
+     */
+    public final void setBinCount(final int binCount) {
+
+        if (binCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of bins must be greater than 0");
+        }
+
+        this.binCount = binCount;
+    }
+
+    /**
+     * Set the number of threads parsing the matrix
+     *
+     * @param threadCount number of threads
+     */
+    public final void setThreadCount(final int threadCount) {
+
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                "The number of threads must be greater than 0");
+        }
+
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Set if all genes are kept when none is variable, as in the clustering
+     * script. Otherwise selection fails.
+     *
+     * @param keepAllGenes true to keep all genes when none is variable
+     */
+    public final void setKeepAllGenes(final boolean keepAllGenes) {
+        this.keepAllGenes = keepAllGenes;
+    }
+
+    //
+    // Selection methods
+    //
+
+    /**
+     * Compute gene statistics and select highly variable genes of a tabulated
+     * matrix
+     *
+     * @param matrixFile        normalized tabulated expression matrix, may be
+     *                          gzip compressed
+     * @param genesFile         output statistics of each gene
+     * @param variableGenesFile output matrix of selected genes, or of all
+     *                          genes if none is selected and all genes are
+     *                          kept
+     * @return number of selected genes
+     * @throws IOException      if an error occurs while reading or writing
+     *                          files
+     * @throws EoulsanException if no gene is selected and all genes are not
+     *                          kept
+     */
+    public int select(final File matrixFile, final File genesFile,
+        final File variableGenesFile) throws IOException, EoulsanException {
+
+        if (matrixFile == null) {
+            throw new NullPointerException(
+                "matrixFile argument cannot be null");
+        }
+
+        if (genesFile == null) {
+            throw new NullPointerException("genesFile argument cannot be null");
+        }
+
+        if (variableGenesFile == null) {
+            throw new NullPointerException(
+                "variableGenesFile argument cannot be null");
+        }
+
+        final List<Block> blocks = computeStatistics(matrixFile);
+
+        int nGenes = 0;
+        for (Block block : blocks) {
+            nGenes += block.genes.length;
+        }
+
+        // Gather statistics in row order
+        final String[] genes = new String[nGenes];
+        final double[] means = new double[nGenes];
+        final double[] variances = new double[nGenes];
+        final int[] nonZeros = new int[nGenes];
+        int i = 0;
+        for (Block block : blocks) {
+            final int n = block.genes.length;
+            System.arraycopy(block.genes, 0, genes, i, n);
+            System.arraycopy(block.means, 0, means, i, n);
+            System.arraycopy(block.variances, 0, variances, i, n);
+            System.arraycopy(block.nonZeros, 0, nonZeros, i, n);
+            i += n;
+        }
+
+        final double[] scaled = scaleDispersions(means, variances);
+        final boolean[] selected = new boolean[nGenes];
+        this.selectedGeneCount = 0;
+        for (i = 0; i < nGenes; i++) {
+            selected[i] = isSelected(means[i], scaled[i]);
+            this.selectedGeneCount += selected[i] ? 1 : 0;
+        }
+
+        writeStatistics(genesFile, genes, means, variances, nonZeros, scaled,
+            selected);
+
+        // Statistics are kept to tune thresholds
+        if (this.selectedGeneCount == 0) {
+            if (!this.keepAllGenes) {
+                throw new EoulsanException("No highly variable gene found in "
+                    + matrixFile + ", statistics written in " + genesFile);
+            }
+            Arrays.fill(selected, true);
+        }
+        writeRows(matrixFile, variableGenesFile, selected);
+
+        return this.selectedGeneCount;
+    }
+
+    /**
+     * Compute statistics of each row of a matrix, on a pool if more than one
+     * thread is used
+     *
+     * @param matrixFile tabulated expression matrix
+     * @return statistics of blocks of rows, in row order
+     * @throws IOException if an error occurs while reading file
+     */
+    private List<Block> computeStatistics(final File matrixFile)
+        throws IOException {
+
+        final List<Block> result = new ArrayList<>();
+
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile)) {
+
+            final int nCells = MatrixFiles.readHeader(in, matrixFile).size();
+
+            if (this.threadCount == 1) {
+                List<String> lines;
+                while (!(lines = readBlock(in)).isEmpty()) {
+                    result.add(parseBlock(lines, nCells));
+                }
+                return result;
+            }
+
+            final ForkJoinPool pool = new ForkJoinPool(this.threadCount);
+            try {
+                final int window = this.threadCount * BLOCKS_PER_THREAD;
+                final Deque<Future<Block>> pending = new ArrayDeque<>(window);
+
+                List<String> lines;
+                while (!(lines = readBlock(in)).isEmpty()) {
+                    if (pending.size() == window) {
+                        result.add(waitFor(pending.removeFirst()));
+                    }
+                    pending.addLast(pool.submit(blockTask(lines, nCells)));
+                }
+                while (!pending.isEmpty()) {
+                    result.add(waitFor(pending.removeFirst()));
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        return result;
+    }
+
+    private static List<String> readBlock(final BufferedReader in)
+        throws IOException {
+
+        final List<String> result = new ArrayList<>(LINES_PER_BLOCK);
+        String line;
+        while (result.size() < LINES_PER_BLOCK
+            && (line = in.readLine()) != null) {
+            result.add(line);
+        }
+
+        return result;
+    }
+
+    /**
+     * Create a task that computes the statistics of a block of rows
+     *
+     * @param lines  rows of the block
+     * @param nCells number of cells of the matrix
+     * @return a task returning the statistics of the block
+     */
+    private static Callable<Block> blockTask(final List<String> lines,
+        final int nCells) {
+
+        return new Callable<Block>() {
+
+            @Override
+            public Block call() throws IOException {
+                return parseBlock(lines, nCells);
+            }
+        };
+    }
+
+    /**
+     * Wait for the result of a block task
+     *
+     * @param future the task
+     * @return result of the task
+     * @throws IOException if the task has failed
+     */
+    private static Block waitFor(final Future<Block> future)
+        throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading matrix", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Error while reading matrix: "
+                + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Compute the statistics of a block of rows. Values are accumulated with
+     * Welford's algorithm, NA values are ignored.
+     *
+     * @param lines  rows of the block
+     * @param nCells number of cells of the matrix
+     * @return the statistics of the block
+     * @throws IOException if a row is invalid
+     */
+    private static Block parseBlock(final List<String> lines,
+        final int nCells) throws IOException {
+
+        final Block result = new Block(lines.size());
+
+        for (int r = 0; r < lines.size(); r++) {
+
+            final String line = lines.get(r);
+            int start = line.indexOf('\t');
+            if (start < 0) {
+                throw new IOException("Invalid matrix line: " + line);
+            }
+            result.genes[r] = line.substring(0, start);
+
+            long n = 0;
+            double mean = 0;
+            double m2 = 0;
+            int nonZero = 0;
+            int fields = 0;
+
+            while (start < line.length()) {
+
+                int end = line.indexOf('\t', start + 1);
+                if (end < 0) {
+                    end = line.length();
+                }
+                fields++;
+
+                final double value = parseValue(line, start + 1, end);
+                start = end;
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+
+                n++;
+                final double delta = value - mean;
+                mean += delta / n;
+                m2 += delta * (value - mean);
+                nonZero += value != 0 ? 1 : 0;
+            }
+
+            if (fields != nCells) {
+                throw new IOException(
+                    "Invalid number of values in matrix line: " + line);
+            }
+
+            result.means[r] = n == 0 ? Double.NaN : mean;
+            result.variances[r] = n < 2 ? Double.NaN : m2 / (n - 1);
+            result.nonZeros[r] = nonZero;
+        }
+
+        return result;
+    }
+
+    /**
+     * Parse a value of a row
+     *
+     * @return the value or NaN for NA values
+     * @throws IOException if the value is invalid
+     */
+    static double parseValue(final String line, final int start,
+        final int end) throws IOException {
+
+        final int length = end - start;
+        if (length == 1 && line.charAt(start) == '0') {
+            return 0;
+        }
+        if (length == 2 && line.startsWith("NA", start)) {
+            return Double.NaN;
+        }
+
+        try {
+            return Double.parseDouble(line.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid value in matrix line: " + line, e);
+        }
+    }
+
+    /**
+     * Get the log of the mean of a gene, as the x axis of Seurat mean
+     * variability plot
+     */
+    private static double logMean(final double mean) {
+        return Math.log1p(mean);
+    }
+
+    /**
+     * Get the log of the dispersion of a gene
+     *
+     * @return the log dispersion or NaN for genes without expression
+     */
+    private static double logDispersion(final double mean,
+        final double variance) {
+
+        if (!(mean > 0) || !(variance > 0)) {
+            return Double.NaN;
+        }
+
+        return Math.log(variance / mean);
+    }
+
+    /**
+     * Scale the log dispersion of each gene to a z-score among the genes of
+     * its bin of log mean. Bins are of equal width over the range of log
+     * means. Genes alone in their bin have a null scaled dispersion.
+     *
+     * @param means     mean of each gene
+     * @param variances variance of each gene
+     * @return scaled dispersion of each gene, NaN for genes without dispersion
+     */
+    private double[] scaleDispersions(final double[] means,
+        final double[] variances) {
+
+        final int nGenes = means.length;
+        final double[] result = new double[nGenes];
+        Arrays.fill(result, Double.NaN);
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < nGenes; i++) {
+            if (!Double.isNaN(logDispersion(means[i], variances[i]))) {
+                min = Math.min(min, logMean(means[i]));
+                max = Math.max(max, logMean(means[i]));
+            }
+        }
+
+        if (min > max) {
+            return result;
+        }
+
+        final int[] bins = new int[nGenes];
+        final long[] counts = new long[this.binCount];
+        final double[] binMeans = new double[this.binCount];
+        final double[] binM2 = new double[this.binCount];
+        final double width = (max - min) / this.binCount;
+
+        for (int i = 0; i < nGenes; i++) {
+
+            final double y = logDispersion(means[i], variances[i]);
+            if (Double.isNaN(y)) {
+                bins[i] = -1;
+                continue;
+            }
+
+            final int bin = width == 0 ? 0 : Math.min(this.binCount - 1,
+                (int) ((logMean(means[i]) - min) / width));
+            bins[i] = bin;
+
+            final long n = ++counts[bin];
+            final double delta = y - binMeans[bin];
+            binMeans[bin] += delta / n;
+            binM2[bin] += delta * (y - binMeans[bin]);
+        }
+
+        for (int i = 0; i < nGenes; i++) {
+
+            final int bin = bins[i];
+            if (bin < 0) {
+                continue;
+            }
+
+            final double sd = counts[bin] < 2 ? Double.NaN :
+                Math.sqrt(binM2[bin] / (counts[bin] - 1));
+            final double z = (logDispersion(means[i], variances[i])
+                - binMeans[bin]) / sd;
+            result[i] = Double.isNaN(z) || Double.isInfinite(z) ? 0 : z;
+        }
+
+        return result;
+    }
+
+    /**
+     * Test if a gene is selected
+     *
+     * @param mean   mean of the gene
+     * @param scaled scaled dispersion of the gene
+     * @return true if the gene is highly variable, or if no selection is done
+     */
+    private boolean isSelected(final double mean, final double scaled) {
+
+        if (this.method == SelectionMethod.NONE) {
+            return true;
+        }
+
+        final double x = logMean(mean);
+
+        return x > this.lowMean && x < this.highMean
+            && scaled > this.dispersionThreshold;
+    }
+
+    //
+    // Output methods
+    //
+
+    private static String format(final double value) {
+        return Double.isNaN(value) ? "NA" : Double.toString(value);
+    }
+
+    /**
+     * Write the statistics of each gene
+     */
+    private static void writeStatistics(final File file, final String[] genes,
+        final double[] means, final double[] variances, final int[] nonZeros,
+        final double[] scaled, final boolean[] selected) throws IOException {
+
+        try (BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            out.write("Mean\tVariance\tDispersion\tNb_cells\tScaled_dispersion"
+                + "\tHighly_variable");
+            out.newLine();
+
+            for (int i = 0; i < genes.length; i++) {
+                out.write(genes[i] + "\t" + format(means[i]) + "\t"
+                    + format(variances[i]) + "\t"
+                    + format(variances[i] / means[i]) + "\t" + nonZeros[i]
+                    + "\t" + format(scaled[i]) + "\t"
+                    + (selected[i] ? "TRUE" : "FALSE"));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Write the header and the selected rows of a matrix. Rows are copied
+     * without parsing.
+     */
+    private static void writeRows(final File matrixFile, final File file,
+        final boolean[] selected) throws IOException {
+
+        try (BufferedReader in = MatrixFiles.openMatrix(matrixFile);
+            BufferedWriter out = MatrixFiles.createWriter(file)) {
+
+            out.write(in.readLine());
+            out.newLine();
+
+            String line;
+            int i = 0;
+            while ((line = in.readLine()) != null) {
+                if (selected[i++]) {
+                    out.write(line);
+                    out.newLine();
+                }
+            }
+        }
+    }
+}
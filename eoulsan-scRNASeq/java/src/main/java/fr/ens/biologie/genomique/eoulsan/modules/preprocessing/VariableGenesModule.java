@@ -0,0 +1,212 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.Globals;
+import fr.ens.biologie.genomique.eoulsan.annotations.LocalOnly;
+import fr.ens.biologie.genomique.eoulsan.core.InputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.InputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Modules;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPorts;
+import fr.ens.biologie.genomique.eoulsan.core.OutputPortsBuilder;
+import fr.ens.biologie.genomique.eoulsan.core.Parameter;
+import fr.ens.biologie.genomique.eoulsan.core.StepConfigurationContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskContext;
+import fr.ens.biologie.genomique.eoulsan.core.TaskResult;
+import fr.ens.biologie.genomique.eoulsan.core.TaskStatus;
+import fr.ens.biologie.genomique.eoulsan.core.Version;
+import fr.ens.biologie.genomique.eoulsan.data.Data;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormat;
+import fr.ens.biologie.genomique.eoulsan.data.DataFormatRegistry;
+import fr.ens.biologie.genomique.eoulsan.modules.AbstractModule;
+
+import static fr.ens.biologie.genomique.eoulsan.EoulsanLogger.getLogger;
+
+/**
+ * This class define a module that computes per-gene statistics of a
+ * normalized expression matrix and keeps highly variable genes.
+ *
+ * @author Geoffray Brelurut
+ * @since 2017
+ */
+
+@LocalOnly
+public class VariableGenesModule extends AbstractModule {
+    /**
+     * Module Name
+     */
+    private static final String MODULE_NAME = "variablegenes";
+
+    /**
+     * Highly variable genes selection methods
+     */
+    protected enum SelectionMethod {
+        SEURAT, NONE
+    }
+
+    /**
+     * Parameters Names
+     */
+    private static final String HVG_METHOD_PARAMETER_NAME = "hvg.method";
+    private static final String LOW_MEAN_PARAMETER_NAME = "low.mean";
+    private static final String HIGH_MEAN_PARAMETER_NAME = "high.mean";
+    private static final String VAR_THRESHOLD_PARAMETER_NAME = "var.threshold";
+    private static final String BINS_PARAMETER_NAME = "n.bins";
+    private static final String THREADS_PARAMETER_NAME = "n.threads";
+    private static final String KEEP_ALL_PARAMETER_NAME = "keep.all.genes";
+
+    private final VariableGeneSelector selector = new VariableGeneSelector();
+
+    // DataFormat
+    private static DataFormat NORMALIZED_EXPRESSION_MATRIX_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("normalized_expression_matrix_tsv");
+    private static DataFormat GENE_STATISTICS_TSV =
+            DataFormatRegistry.getInstance().getDataFormatFromName("gene_statistics_tsv");
+
+    //
+    // Getters
+    //
+
+    /**
+     * Get the selector configured by step parameters
+     *
+     * @return the variable gene selector
+     */
+    protected VariableGeneSelector getSelector() {
+        return this.selector;
+    }
+
+    //
+    // Module Methods
+    //
+
+    @Override
+    public String getName() {
+        return MODULE_NAME;
+    }
+
+    @Override
+    public Version getVersion() {
+        return Globals.APP_VERSION;
+    }
+
+    @Override
+    public String getDescription() {
+        return "This module selects highly variable genes of a normalized expression matrix";
+    }
+
+    @Override
+    public InputPorts getInputPorts() {
+        return new InputPortsBuilder()
+                .addPort("matrix", NORMALIZED_EXPRESSION_MATRIX_TSV).create();
+    }
+
+    @Override
+    public OutputPorts getOutputPorts() {
+        return new OutputPortsBuilder()
+                .addPort("matrixoutput", NORMALIZED_EXPRESSION_MATRIX_TSV)
+                .addPort("genesoutput", GENE_STATISTICS_TSV).create();
+    }
+
+    @Override
+    public void configure(final StepConfigurationContext context,
+                          final Set<Parameter> stepParameters) throws EoulsanException {
+
+        for (Parameter p : stepParameters) {
+
+            try {
+                switch (p.getName()) {
+
+                    case HVG_METHOD_PARAMETER_NAME:
+                        switch (p.getLowerStringValue()) {
+
+                            case "seurat":
+                                this.selector.setMethod(SelectionMethod.SEURAT);
+                                break;
+
+                            case "none":
+                                this.selector.setMethod(SelectionMethod.NONE);
+                                break;
+
+                            default:
+                                Modules.badParameterValue(context, p,
+                                        "Unknown highly variable genes method");
+                                break;
+                        }
+                        break;
+
+                    case LOW_MEAN_PARAMETER_NAME:
+                        this.selector.setLowMean(p.getDoubleValue());
+                        break;
+
+                    case HIGH_MEAN_PARAMETER_NAME:
+                        this.selector.setHighMean(p.getDoubleValue());
+                        break;
+
+                    case VAR_THRESHOLD_PARAMETER_NAME:
+                        this.selector.setDispersionThreshold(p.getDoubleValue());
+                        break;
+
+                    case BINS_PARAMETER_NAME:
+                        this.selector.setBinCount(p.getIntValue());
+                        break;
+
+                    case THREADS_PARAMETER_NAME:
+                        this.selector.setThreadCount(p.getIntValue());
+                        break;
+
+                    case KEEP_ALL_PARAMETER_NAME:
+                        this.selector.setKeepAllGenes(p.getBooleanValue());
+                        break;
+
+                    default:
+                        Modules.unknownParameter(context, p);
+                }
+            } catch (IllegalArgumentException e) {
+                Modules.badParameterValue(context, p, e.getMessage());
+            }
+        }
+
+        // Log Step parameters
+        getLogger().info("In " + getName() + ", hvg.method="
+                + this.selector.getMethod().name().toLowerCase() + ", low.mean="
+                + this.selector.getLowMean() + ", high.mean="
+                + this.selector.getHighMean() + ", var.threshold="
+                + this.selector.getDispersionThreshold() + ", n.bins="
+                + this.selector.getBinCount() + ", n.threads="
+                + this.selector.getThreadCount() + ", keep.all.genes="
+                + this.selector.isKeepAllGenes());
+    }
+
+    @Override
+    public TaskResult execute(TaskContext context, TaskStatus status) {
+
+        // Get input and output files
+        final Data matrixData = context.getInputData(NORMALIZED_EXPRESSION_MATRIX_TSV);
+        final File matrix = matrixData.getDataFile().toFile();
+        final File variableGenes = context.getOutputData(
+                NORMALIZED_EXPRESSION_MATRIX_TSV, matrixData).getDataFile().toFile();
+        final File genes = context.getOutputData(
+                GENE_STATISTICS_TSV, matrixData).getDataFile().toFile();
+
+        // Select genes
+        try {
+            final int selected = this.selector.select(matrix, genes, variableGenes);
+            if (selected == 0) {
+                getLogger().warning("In " + getName()
+                        + ", no highly variable gene found, all genes kept");
+            } else {
+                getLogger().info("In " + getName() + ", " + selected
+                        + " highly variable genes kept");
+            }
+            return status.createTaskResult();
+        } catch (EoulsanException e) {
+            return status.createTaskResult(e, e.getMessage());
+        } catch (IOException e) {
+            return status.createTaskResult(e, "Error with file :" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import fr.ens.biologie.genomique.eoulsan.data.DataFile;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+public class TestAnnotationCache {
+
+    private static final String GTF =
+            "1\thavana\texon\t100\t199\t.\t+\t.\tgene_id \"G1\"; transcript_id \"T1\";\n"
+            + "MT\thavana\texon\t10\t60\t.\t-\t.\tgene_id \"G2\"; transcript_id \"T2\";\n";
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(final String name, final String content) throws IOException {
+
+        final File file = folder.newFile(name);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+            out.write(content);
+        }
+
+        return file;
+    }
+
+    @Test
+    public void testRestore() throws IOException, EoulsanException {
+
+        final DataFile annotations = new DataFile(write("annotations.gtf", GTF));
+        final AnnotationCache cache =
+                new AnnotationCache(new File(folder.getRoot(), "cache"), 1 << 20);
+
+        final File metadata = folder.newFile("metadata.tsv");
+        final File index = folder.newFile("index.bin");
+        final File intervals = folder.newFile("intervals.fix");
+        Assert.assertFalse(FeaturesMetadataExtractorModule.extractMetadata(
+                annotations, "MT", "ERCC", "exon", "transcript_id", true,
+                metadata, index, intervals, 1, cache));
+
+        // Same annotations and parameters
+        final File restored = folder.newFile("restored.tsv");
+        final File restoredIndex = folder.newFile("restored.bin");
+        final File restoredIntervals = folder.newFile("restored.fix");
+        Assert.assertTrue(FeaturesMetadataExtractorModule.extractMetadata(
+                annotations, "MT", "ERCC", "exon", "transcript_id", true,
+                restored, restoredIndex, restoredIntervals, 1, cache));
+        Assert.assertEquals(Files.readAllLines(metadata.toPath()),
+                Files.readAllLines(restored.toPath()));
+        Assert.assertArrayEquals(Files.readAllBytes(index.toPath()),
+                Files.readAllBytes(restoredIndex.toPath()));
+        Assert.assertArrayEquals(Files.readAllBytes(intervals.toPath()),
+                Files.readAllBytes(restoredIntervals.toPath()));
+
+        // Other parameters or other content
+        Assert.assertFalse(FeaturesMetadataExtractorModule.extractMetadata(
+                annotations, "chrM", "ERCC", "exon", "transcript_id", true,
+                restored, null, null, 1, cache));
+        Assert.assertNotEquals(AnnotationCache.key(annotations, "exon"),
+                AnnotationCache.key(new DataFile(write("other.gtf", GTF + GTF)),
+                        "exon"));
+        Assert.assertNotEquals(AnnotationCache.key(annotations, "exon", "MT"),
+                AnnotationCache.key(annotations, "exon\tMT"));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+
+        final File metadata = write("metadata.tsv", new String(new char[1000]));
+        final AnnotationCache cache =
+                new AnnotationCache(new File(folder.getRoot(), "cache"), 2500);
+
+        cache.store("a", metadata, null, null);
+        cache.store("b", metadata, null, null);
+        new File(cache.getDirectory(), "a.tsv").setLastModified(1000);
+        new File(cache.getDirectory(), "b.tsv").setLastModified(2000);
+
+        // Restoring an entry makes it the most recently used
+        Assert.assertTrue(cache.restore("a", folder.newFile("a.tsv"), null, null));
+        cache.store("c", metadata, null, null);
+
+        Assert.assertEquals(2000, cache.getSize());
+        Assert.assertTrue(cache.restore("a", folder.newFile("a2.tsv"), null, null));
+        Assert.assertFalse(cache.restore("b", folder.newFile("b.tsv"), null, null));
+        Assert.assertTrue(cache.restore("c", folder.newFile("c.tsv"), null, null));
+
+        // Entries without their index are not restored when one is needed
+        Assert.assertFalse(cache.restore("c", folder.newFile("c2.tsv"),
+                folder.newFile("c.bin"), null));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+
+        final File metadata = write("metadata.tsv", new String(new char[1000]));
+        final File index = write("index.bin", new String(new char[100]));
+        final File directory = new File(folder.getRoot(), "cache");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws IOException {
+
+                        final AnnotationCache cache =
+                                new AnnotationCache(directory, 5500);
+                        for (int i = 0; i < 20; i++) {
+                            cache.store("key" + i % 8, metadata, index, null);
+                            final File out = File.createTempFile("out", ".tsv",
+                                    folder.getRoot());
+                            if (cache.restore("key" + (i + 3) % 8, out, null, null)) {
+                                Assert.assertEquals(1000, out.length());
+                            }
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Only complete entries are left, within the maximum size
+        final AnnotationCache cache = new AnnotationCache(directory, 5500);
+        Assert.assertTrue(cache.getSize() <= 5500);
+        for (File f : directory.listFiles()) {
+            Assert.assertFalse(f.getName(), f.getName().endsWith(".tmp"));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import fr.ens.biologie.genomique.eoulsan.data.DataFile;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class TestAnnotationScanner {
+
+    private static final String GTF = "#!genome-build GRCm38\n"
+            + "1\thavana\tgene\t100\t900\t.\t+\t.\tgene_id \"G1\"; gene_name \"A\";\n"
+            + "1\thavana\ttranscript\t100\t900\t.\t+\t.\tgene_id \"G1\"; transcript_id \"T1\";\r\n"
+            + "1\thavana\tExon\t100\t199\t.\t+\t.\tgene_id \"G1\"; transcript_id \"T1\"; exon_id \"E1\";\n"
+            + "1\thavana\texon\t800\t900\t.\t+\t.\tgene_id \"G1\"; transcript_id \"T1\"; exon_id \"E2\";\n"
+            + "MT\thavana\tV_gene_segment\t10\t60\t.\t-\t.\tgene_id \"G2\"; transcript_id \"T2\";\n"
+            + "MT\thavana\texon\t10\t60\t.\t-\t.\tgene_id \"G2\"; transcript_id \"T2\"; exon_id \"E3\";\n"
+            + "MT\thavana\tCDS\t10\t60\t.\t-\t0\tgene_id \"G2\"; transcript_id \"T2\";";
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static AnnotationScanner scanner(final String annotations,
+                                             final boolean gtfFormat,
+                                             final String genomicType) {
+
+        return new AnnotationScanner(new ByteArrayInputStream(
+                annotations.getBytes(StandardCharsets.UTF_8)), gtfFormat,
+                genomicType, !genomicType.equals("gene"));
+    }
+
+    @Test
+    public void testScanner() throws IOException {
+
+        try (AnnotationScanner scanner = scanner(GTF, true, "exon")) {
+
+            // Transcript lines are parents only, exons features only
+            Assert.assertTrue(scanner.next());
+            Assert.assertTrue(scanner.isParent());
+            Assert.assertFalse(scanner.isFeature());
+            Assert.assertEquals(3, scanner.getLineNumber());
+            Assert.assertEquals("T1",
+                    scanner.getAttributeValue(AnnotationScanner.bytes("transcript_id")));
+
+            Assert.assertTrue(scanner.next());
+            Assert.assertTrue(scanner.isFeature());
+            Assert.assertEquals("Exon", scanner.getType());
+            Assert.assertEquals("1", scanner.getSeqId());
+            Assert.assertEquals(100, scanner.getStart());
+            Assert.assertEquals(199, scanner.getEnd());
+            Assert.assertEquals("E1",
+                    scanner.getAttributeValue(AnnotationScanner.bytes("exon_id")));
+            Assert.assertNull(scanner.getAttributeValue(AnnotationScanner.bytes("exon")));
+
+            Assert.assertTrue(scanner.next());
+            Assert.assertTrue(scanner.next());
+            Assert.assertTrue(scanner.isParent());
+            Assert.assertEquals("V_gene_segment", scanner.getType());
+
+            // CDS lines are skipped
+            Assert.assertTrue(scanner.next());
+            Assert.assertEquals("E3",
+                    scanner.getAttributeValue(AnnotationScanner.bytes("exon_id")));
+            Assert.assertFalse(scanner.next());
+        }
+
+        // Genes do not need transcripts
+        try (AnnotationScanner scanner = scanner(GTF, true, "gene")) {
+            Assert.assertTrue(scanner.next());
+            Assert.assertTrue(scanner.isFeature());
+            Assert.assertFalse(scanner.next());
+        }
+    }
+
+    @Test
+    public void testGff() throws IOException {
+
+        final String gff = "##gff-version 3\n"
+                + "6\tensembl\tmRNA\t1\t90\t.\t+\t.\tID=transcript:T1;Parent=gene:G1\n"
+                + "6\tensembl\texon\t1\t30\t.\t+\t.\tParent=transcript:T1,transcript:T2;Name=E1\n"
+                + "##FASTA\n"
+                + ">6\nACGT\n";
+
+        try (AnnotationScanner scanner = scanner(gff, false, "exon")) {
+            Assert.assertTrue(scanner.next());
+            Assert.assertTrue(scanner.isParent());
+            Assert.assertEquals("gene:G1",
+                    scanner.getAttributeValue(AnnotationScanner.bytes("Parent")));
+            Assert.assertTrue(scanner.next());
+            Assert.assertEquals("E1",
+                    scanner.getAttributeValue(AnnotationScanner.bytes("Name")));
+            Assert.assertFalse(scanner.next());
+        }
+
+        // Prefixes of Ids are removed
+        final File annotations = folder.newFile("annotations.gff");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(annotations),
+                StandardCharsets.UTF_8)) {
+            out.write(gff);
+        }
+        final FeatureTable features = new FeatureTable();
+        final Map<String, String> parents = new HashMap<>();
+        try {
+            FeaturesMetadataExtractorModule.scanFeatures(new DataFile(annotations),
+                    "MT", "ERCC", "exon", "Name", false, features, parents);
+        } catch (EoulsanException e) {
+            Assert.fail(e.getMessage());
+        }
+        Assert.assertEquals("G1", parents.get("T1"));
+        Assert.assertEquals("T1,T2", features.getTranscript(features.getRow("E1")));
+        Assert.assertEquals(30, features.getLength(features.getRow("E1")));
+    }
+
+    @Test
+    public void testExtractMetadata() throws IOException, EoulsanException {
+
+        final File annotations = folder.newFile("annotations.gtf");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(annotations),
+                StandardCharsets.UTF_8)) {
+            out.write(GTF);
+        }
+        final File output = folder.newFile("exons.tsv");
+
+        FeaturesMetadataExtractorModule.extractMetadata(new DataFile(annotations),
+                "MT", "ERCC", "exon", "transcript_id", true, output);
+
+        final Map<String, String> lines = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(output))) {
+            Assert.assertEquals("Type\tLength\tGeneID\ttranscriptID", reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.put(line.substring(0, line.indexOf('\t')), line);
+            }
+        }
+
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals("T1\tother\t201\tG1\tT1", lines.get("T1"));
+        Assert.assertEquals("T2\tmitochondrial\t51\tG2\tT2", lines.get("T2"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidLine() throws IOException {
+
+        try (AnnotationScanner scanner = scanner("1\thavana\texon\t1\n", true, "exon")) {
+            scanner.next();
+        }
+    }
+}
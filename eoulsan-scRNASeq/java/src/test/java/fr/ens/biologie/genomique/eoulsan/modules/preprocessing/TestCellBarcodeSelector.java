@@ -0,0 +1,181 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+
+public class TestCellBarcodeSelector {
+
+    private static final int CELLS = 50;
+    private static final int BACKGROUND = 3000;
+    private static final String BASES = "ACGT";
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String randomSequence(final Random random, final int length) {
+
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            result.append(BASES.charAt(random.nextInt(4)));
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Write R1 reads of CELLS barcodes of 500 to 1000 reads, with one
+     * sequencing error in a read of each cell, and of BACKGROUND barcodes of
+     * 1 to 5 reads. Reads are shuffled and longer than the barcode pattern.
+     */
+    private File writeReads(final String name, final boolean gzip,
+                            final List<String> cells) throws IOException {
+
+        final Random random = new Random(11);
+        final List<String> barcodes = new ArrayList<>();
+        for (int c = 0; c < CELLS; c++) {
+            final String cell = randomSequence(random, 16);
+            cells.add(cell);
+            for (int r = 500 + random.nextInt(500); r > 0; r--) {
+                barcodes.add(cell);
+            }
+            barcodes.add(cell.substring(0, 15) + "N");
+        }
+        for (int b = 0; b < BACKGROUND; b++) {
+            final String barcode = randomSequence(random, 16);
+            for (int r = 1 + random.nextInt(5); r > 0; r--) {
+                barcodes.add(barcode);
+            }
+        }
+        Collections.shuffle(barcodes, random);
+
+        final File reads = folder.newFile(name);
+        final OutputStream os = gzip ? new GZIPOutputStream(new FileOutputStream(reads))
+                : new FileOutputStream(reads);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+            int i = 0;
+            for (String barcode : barcodes) {
+                final String sequence = barcode + randomSequence(random, 74);
+                out.write("@read" + i++ + "\n" + sequence + "\n+\n");
+                for (int q = 0; q < sequence.length(); q++) {
+                    out.write('I');
+                }
+                out.write("\n");
+            }
+            // A read shorter than the pattern
+            out.write("@short\nACGT\n+\nIIII\n");
+        }
+
+        return reads;
+    }
+
+    @Test
+    public void testEncoding() {
+
+        for (String barcode : new String[]{"AAAAAAAAAAAAAAAA", "ACGTNACGTN",
+                "NNNNNNNNNNNNNNNNNNNNN", "TTTTTTTTTTTTTTTTTTTTT"}) {
+            final long key = CellBarcodeSelector.encode(barcode.toCharArray());
+            Assert.assertTrue(key >= 0);
+            Assert.assertEquals(barcode, CellBarcodeSelector.decode(key, barcode.length()));
+        }
+        Assert.assertTrue(CellBarcodeSelector.encode("AAAC".toCharArray())
+                != CellBarcodeSelector.encode("AAAN".toCharArray()));
+
+        final LongCountMap map = new LongCountMap();
+        for (long key = 0; key < 1000; key++) {
+            map.add(key * 7919, (int) key % 3 + 1);
+            map.add(key * 7919, 1);
+        }
+        Assert.assertEquals(1000, map.size());
+        Assert.assertEquals(3, map.get(7919));
+        Assert.assertEquals(0, map.get(1));
+    }
+
+    @Test
+    public void testKnee() throws IOException {
+
+        final List<String> cells = new ArrayList<>();
+        final File reads = writeReads("reads.fastq", false, cells);
+        final File whitelist = folder.newFile("whitelist.txt");
+        final File thresholds = folder.newFile("thresholds.tsv");
+
+        final CellBarcodeSelector selector = new CellBarcodeSelector();
+        Assert.assertEquals(CELLS, selector.select(reads, whitelist, thresholds));
+        Assert.assertEquals(CELLS + CELLS + BACKGROUND, selector.getBarcodeCount());
+
+        // Kept barcodes are sorted, with their corrected barcode
+        final List<String> lines = Files.readAllLines(whitelist.toPath());
+        Collections.sort(cells);
+        Assert.assertEquals(CELLS, lines.size());
+        long keptReads = 0;
+        for (int c = 0; c < CELLS; c++) {
+            final String[] fields = lines.get(c).split("\t", -1);
+            Assert.assertEquals(cells.get(c), fields[0]);
+            Assert.assertTrue(fields[1].contains(cells.get(c).substring(0, 15) + "N"));
+            Assert.assertTrue(Integer.parseInt(fields[2]) >= 500);
+            keptReads += Integer.parseInt(fields[2]);
+        }
+        Assert.assertTrue(selector.getReadCount() > keptReads);
+
+        final List<String> table = Files.readAllLines(thresholds.toPath());
+        Assert.assertEquals("count\taction", table.get(0));
+        Assert.assertTrue(table.contains(CELLS + "\tSelected"));
+    }
+
+    @Test
+    public void testCellNumber() throws IOException {
+
+        final File reads = writeReads("reads.fastq.gz", true, new ArrayList<String>());
+        final File whitelist = folder.newFile("whitelist.txt");
+        final File thresholds = folder.newFile("thresholds.tsv");
+
+        final CellBarcodeSelector selector = new CellBarcodeSelector();
+        selector.setCellNumber(10);
+        Assert.assertEquals(10, selector.select(reads, whitelist, thresholds));
+        Assert.assertEquals(10, Files.readAllLines(whitelist.toPath()).size());
+    }
+
+    @Test
+    public void testThreads() throws IOException {
+
+        final File reads = writeReads("reads.fastq.gz", true, new ArrayList<String>());
+        final File whitelist = folder.newFile("whitelist.txt");
+        final File thresholds = folder.newFile("thresholds.tsv");
+        final File parallelWhitelist = folder.newFile("parallelWhitelist.txt");
+        final File parallelThresholds = folder.newFile("parallelThresholds.tsv");
+
+        CellBarcodeSelector selector = new CellBarcodeSelector();
+        selector.select(reads, whitelist, thresholds);
+        final long readCount = selector.getReadCount();
+
+        // Each chunk of lines is decoded by one task
+        selector = new CellBarcodeSelector();
+        selector.setThreadCount(3);
+        selector.select(reads, parallelWhitelist, parallelThresholds);
+
+        Assert.assertEquals(readCount, selector.getReadCount());
+        Assert.assertEquals(Files.readAllLines(whitelist.toPath()),
+                Files.readAllLines(parallelWhitelist.toPath()));
+        Assert.assertEquals(Files.readAllLines(thresholds.toPath()),
+                Files.readAllLines(parallelThresholds.toPath()));
+    }
+}
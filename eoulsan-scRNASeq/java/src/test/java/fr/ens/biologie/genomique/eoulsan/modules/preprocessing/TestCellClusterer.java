@@ -0,0 +1,160 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+
+public class TestCellClusterer {
+
+    private static final int DIMENSION = 5;
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Create an embedding of groups of cells around distant centers, cell i
+     * being in group i % groups
+     */
+    private static CellEmbedding createEmbedding(final int cells,
+                                                 final int groups) {
+
+        final Random random = new Random(7);
+        final String[] names = new String[cells];
+        final float[] values = new float[cells * DIMENSION];
+        for (int i = 0; i < cells; i++) {
+            names[i] = "c" + i;
+            for (int d = 0; d < DIMENSION; d++) {
+                final double center = d == i % groups % DIMENSION ?
+                        20 * (1 + i % groups / DIMENSION) : 0;
+                values[i * DIMENSION + d] =
+                        (float) (center + random.nextGaussian());
+            }
+        }
+
+        return new CellEmbedding(names, DIMENSION, values,
+                new double[DIMENSION]);
+    }
+
+    private static void assertGroups(final int[] clusters, final int groups) {
+
+        for (int i = groups; i < clusters.length; i++) {
+            Assert.assertEquals(clusters[i % groups], clusters[i]);
+        }
+        for (int g = 1; g < groups; g++) {
+            Assert.assertTrue(clusters[0] != clusters[g]);
+        }
+    }
+
+    @Test
+    public void testModularity() {
+
+        // Two cliques of 5 nodes linked by a single edge
+        final int n = 10;
+        final int[] starts = new int[n + 1];
+        final int[] targets = new int[2 * (2 * 10 + 1)];
+        final double[] weights = new double[targets.length];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i != j && (i / 5 == j / 5 || i + j == 9 && (i == 4 || j == 4))) {
+                    targets[size] = j;
+                    weights[size++] = 1;
+                }
+            }
+            starts[i + 1] = size;
+        }
+
+        final ModularityOptimizer.Graph graph =
+                new ModularityOptimizer.Graph(starts, targets, weights);
+        final ModularityOptimizer optimizer = new ModularityOptimizer(1, 42);
+
+        for (int[] communities : new int[][]{optimizer.louvain(graph),
+                optimizer.leiden(graph, 2)}) {
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(communities[i / 5 * 5], communities[i]);
+            }
+            Assert.assertTrue(communities[0] != communities[5]);
+            Assert.assertEquals(2 * 20.0 / 42 - 0.5,
+                    optimizer.modularity(graph, communities), 1e-12);
+        }
+    }
+
+    @Test
+    public void testClusters() throws IOException {
+
+        final CellEmbedding embedding = createEmbedding(600, 6);
+
+        final CellClusterer clusterer = new CellClusterer();
+        clusterer.setNeighborCount(15);
+        assertGroups(clusterer.cluster(embedding), 6);
+        Assert.assertEquals(6, clusterer.getClusterCount());
+        Assert.assertTrue(clusterer.getModularity() > 0.7);
+
+        clusterer.setAlgorithm(ClusteringModule.ClusteringAlgorithm.LEIDEN);
+        assertGroups(clusterer.cluster(embedding), 6);
+        Assert.assertEquals(6, clusterer.getClusterCount());
+
+        // Approximate neighbours give the same clusters as exact ones
+        final int[] approximate = clusterer.cluster(embedding);
+        clusterer.setNeighborMethod(ClusteringModule.NeighborMethod.EXACT);
+        Assert.assertArrayEquals(approximate, clusterer.cluster(embedding));
+    }
+
+    @Test
+    public void testThreads() throws IOException {
+
+        final CellEmbedding embedding = createEmbedding(2000, 8);
+
+        final CellClusterer clusterer = new CellClusterer();
+        final int[] clusters = clusterer.cluster(embedding);
+        assertGroups(clusters, 8);
+
+        // Each task only updates the neighbours of its own cells
+        clusterer.setThreadCount(3);
+        Assert.assertArrayEquals(clusters, clusterer.cluster(embedding));
+    }
+
+    @Test
+    public void testCellsMetadata() throws IOException {
+
+        final File embeddingFile = folder.newFile("embedding.pcae");
+        final File cellsFile = folder.newFile("cells.tsv");
+        final File outputFile = folder.newFile("clusteredCells.tsv");
+
+        final CellEmbedding embedding = createEmbedding(100, 2);
+        embedding.write(embeddingFile);
+
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(cellsFile))) {
+            out.write("Library_size\tScale_factor\n");
+            out.write("c1\t100\t1.0\n");
+            out.write("c0\t100\t1.0\n");
+            out.write("removed\t10\t0.1\n");
+        }
+
+        final CellClusterer clusterer = new CellClusterer();
+        clusterer.setNeighborCount(10);
+        Assert.assertEquals(2, clusterer.cluster(embeddingFile, cellsFile, outputFile));
+
+        final List<String> lines = Files.readAllLines(outputFile.toPath());
+        Assert.assertEquals(4, lines.size());
+        Assert.assertEquals("Library_size\tScale_factor\tCluster", lines.get(0));
+        Assert.assertEquals("c1\t100\t1.0\t1", lines.get(1));
+        Assert.assertEquals("c0\t100\t1.0\t0", lines.get(2));
+        Assert.assertEquals("removed\t10\t0.1\tNA", lines.get(3));
+    }
+}
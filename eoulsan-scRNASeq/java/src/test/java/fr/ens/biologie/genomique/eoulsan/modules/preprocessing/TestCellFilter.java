@@ -0,0 +1,123 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class TestCellFilter {
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write a matrix where c6 has a high mitochondrial proportion and c6 and
+     * c7 have outlier library sizes
+     */
+    private File writeMatrix() throws IOException {
+
+        final File matrix = folder.newFile("matrix.tsv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(matrix))) {
+            out.write("c1\tc2\tc3\tc4\tc5\tc6\tc7\n");
+            out.write("G1\t100\t104\t96\t102\t98\t100\t1000\n");
+            out.write("G2\t100\t100\t100\t100\t100\t100\t100\n");
+            out.write("G3\t100\t100\t100\t100\t100\t100\t100\n");
+            out.write("MT1\t5\t5\t5\t5\t5\t200\t5\n");
+            out.write("ERCC1\t5\t5\t5\t5\t5\t5\t5\n");
+        }
+
+        return matrix;
+    }
+
+    private File writeGenes() throws IOException {
+
+        final File genes = folder.newFile("genes.tsv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(genes))) {
+            out.write("Type\tLength\n");
+            out.write("G1\tother\t100\n");
+            out.write("MT1\tmitochondrial\t100\n");
+            out.write("ERCC1\tspike\t100\n");
+        }
+
+        return genes;
+    }
+
+    private static List<String> firstColumn(List<String> lines) {
+        final List<String> result = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            result.add(line.split("\t")[0]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testMadFilter() throws IOException {
+
+        final File matrix = writeMatrix();
+        final File filteredMatrix = folder.newFile("filteredMatrix.tsv");
+        final File filteredCells = folder.newFile("filteredCells.tsv");
+
+        final CellFilter filter = new CellFilter();
+        filter.setGenesMetadataFile(writeGenes());
+
+        Assert.assertEquals(5, filter.filter(matrix, filteredMatrix, filteredCells));
+
+        final List<String> lines = Files.readAllLines(filteredMatrix.toPath());
+        Assert.assertEquals(Arrays.asList(
+                "c1\tc2\tc3\tc4\tc5",
+                "G1\t100\t104\t96\t102\t98",
+                "G2\t100\t100\t100\t100\t100",
+                "G3\t100\t100\t100\t100\t100",
+                "MT1\t5\t5\t5\t5\t5",
+                "ERCC1\t5\t5\t5\t5\t5"), lines);
+
+        final List<String> cells = Files.readAllLines(filteredCells.toPath());
+        Assert.assertEquals(Arrays.asList("c1", "c2", "c3", "c4", "c5"), firstColumn(cells));
+        Assert.assertEquals(Arrays.asList("c2", "314", "3", "5", "0", "5", "0"),
+                Arrays.asList(cells.get(2).split("\t")).subList(0, 7));
+
+        // c7 only fails on library size
+        filter.setFilterCount(2);
+        Assert.assertEquals(6, filter.filter(matrix, filteredMatrix, filteredCells));
+        Assert.assertEquals(Arrays.asList("c1", "c2", "c3", "c4", "c5", "c7"),
+                firstColumn(Files.readAllLines(filteredCells.toPath())));
+    }
+
+    @Test
+    public void testThresholdFilter() throws IOException {
+
+        final File matrix = writeMatrix();
+        final File filteredMatrix = folder.newFile("filteredMatrix.tsv");
+        final File filteredCells = folder.newFile("filteredCells.tsv");
+
+        final CellFilter filter = new CellFilter();
+        filter.setGenesMetadataFile(writeGenes());
+        filter.setMode(CellFilterModule.FilterMode.THRESHOLD);
+        filter.setFeaturesThreshold(0);
+        filter.setReadsThreshold(306);
+
+        Assert.assertEquals(3, filter.filter(matrix, filteredMatrix, filteredCells));
+        Assert.assertEquals("c2\tc4\tc7", Files.readAllLines(filteredMatrix.toPath()).get(0));
+
+        // Without spike-in and mitochondrial genes, only c7 reaches 306 counts
+        filter.setGeneSelection(CellFilterModule.GeneSelection.NUCLEAR);
+        filter.setMaxMitochondrialProportion(0);
+        Assert.assertEquals(1, filter.filter(matrix, filteredMatrix, filteredCells));
+        Assert.assertEquals("c7", Files.readAllLines(filteredMatrix.toPath()).get(0));
+    }
+}
@@ -0,0 +1,156 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+public class TestFeatureIntervalIndex {
+
+    private static final String[] CHROMOSOMES = {"1", "2", "MT"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static FeatureTable randomTable(final Random random, final int n) {
+
+        final FeatureTable table = new FeatureTable();
+        for (int i = 0; i < n; i++) {
+            final int start = 1 + random.nextInt(100000);
+            // Mostly short features, some long ones nesting others
+            final int length = random.nextInt(20) == 0
+                    ? random.nextInt(50000) : random.nextInt(500);
+            table.add("exon", "T" + i, "other", length + 1, start,
+                    start + length,
+                    CHROMOSOMES[random.nextInt(CHROMOSOMES.length)], null);
+        }
+
+        return table;
+    }
+
+    private static int[] overlapping(final FeatureTable table,
+            final String chromosome, final int start, final int end) {
+
+        final List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < table.size(); i++) {
+            final int row = table.getKeyRow(i);
+            if (table.getChromosome(row).equals(chromosome)
+                    && table.getStart(row) <= end && table.getEnd(row) >= start) {
+                result.add(i);
+            }
+        }
+
+        final int[] array = new int[result.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = result.get(i);
+        }
+        Arrays.sort(array);
+
+        return array;
+    }
+
+    private static int distance(final FeatureTable table, final int feature,
+            final int position) {
+
+        final int row = table.getKeyRow(feature);
+        return Math.max(0, Math.max(table.getStart(row) - position,
+                position - table.getEnd(row)));
+    }
+
+    private static void check(final FeatureTable table,
+            final FeatureIntervalIndex index, final Random random) {
+
+        Assert.assertEquals(table.size(), index.size());
+
+        for (int q = 0; q < 500; q++) {
+
+            final String chromosome =
+                    CHROMOSOMES[random.nextInt(CHROMOSOMES.length)];
+            final int start = random.nextInt(110000);
+            final int end = start + random.nextInt(2000);
+
+            final int[] result = index.getOverlapping(chromosome, start, end);
+            for (int i = 1; i < result.length; i++) {
+                Assert.assertTrue(table.getStart(table.getKeyRow(result[i - 1]))
+                        <= table.getStart(table.getKeyRow(result[i])));
+            }
+            Arrays.sort(result);
+            Assert.assertArrayEquals(overlapping(table, chromosome, start, end),
+                    result);
+
+            // Nearest feature, compared on distances as several can be nearest
+            int best = Integer.MAX_VALUE;
+            for (int i = 0; i < table.size(); i++) {
+                if (table.getChromosome(table.getKeyRow(i)).equals(chromosome)) {
+                    best = Math.min(best, distance(table, i, start));
+                }
+            }
+            final int nearest = index.getNearest(chromosome, start);
+            Assert.assertEquals(best, distance(table, nearest, start));
+        }
+    }
+
+    @Test
+    public void testQueries() {
+
+        final Random random = new Random(42);
+        final FeatureTable table = randomTable(random, 3000);
+        check(table, FeatureIntervalIndex.build(table), random);
+    }
+
+    @Test
+    public void testSmallIndexes() {
+
+        final FeatureTable table = new FeatureTable();
+        table.add("gene", "G1", "other", 100, 101, 200, "1", null);
+        table.add("gene", "G2", "other", 1000, 1, 1000, "1", null);
+        table.add("gene", "G3", "other", 10, 301, 310, "1", null);
+        table.add("gene", "G4", "mitochondrial", 10, 1, 10, "MT", null);
+
+        final FeatureIntervalIndex index = FeatureIntervalIndex.build(table);
+
+        Assert.assertEquals(Arrays.asList("1", "MT"), index.getChromosomes());
+        Assert.assertArrayEquals(new int[] {1, 0},
+                index.getOverlapping("1", 150, 250));
+        Assert.assertArrayEquals(new int[] {1, 2},
+                index.getOverlapping("1", 310, 310));
+        Assert.assertArrayEquals(new int[0], index.getOverlapping("1", 1001, 2000));
+        Assert.assertArrayEquals(new int[0], index.getOverlapping("2", 1, 2000));
+
+        Assert.assertEquals(1, index.getNearest("1", 2000));
+        Assert.assertEquals(3, index.getNearest("MT", 50));
+        Assert.assertEquals(-1, index.getNearest("2", 50));
+
+        // On equal distances, the feature upstream
+        final FeatureTable gaps = new FeatureTable();
+        gaps.add("gene", "G1", "other", 10, 1, 10, "1", null);
+        gaps.add("gene", "G2", "other", 10, 31, 40, "1", null);
+        final FeatureIntervalIndex gapIndex = FeatureIntervalIndex.build(gaps);
+        Assert.assertEquals(0, gapIndex.getNearest("1", 20));
+        Assert.assertEquals(1, gapIndex.getNearest("1", 21));
+        Assert.assertEquals(0, gapIndex.getNearest("1", -5));
+        Assert.assertEquals(1, gapIndex.getNearest("1", 100));
+    }
+
+    @Test
+    public void testWriteLoad() throws IOException {
+
+        final Random random = new Random(7);
+        final FeatureTable table = randomTable(random, 1000);
+        final File file = new File(folder.getRoot(), "features.fix");
+
+        FeatureIntervalIndex.build(table).write(file);
+        final FeatureIntervalIndex index = FeatureIntervalIndex.load(file);
+
+        Assert.assertEquals(3, index.getChromosomes().size());
+        check(table, index, random);
+    }
+}
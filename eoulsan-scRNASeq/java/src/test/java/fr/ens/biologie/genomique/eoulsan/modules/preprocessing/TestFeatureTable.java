@@ -0,0 +1,135 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class TestFeatureTable {
+
+    @Test
+    public void testDictionary() {
+
+        final IdDictionary dictionary = new IdDictionary();
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i, dictionary.add("ENSMUST" + i));
+        }
+        Assert.assertEquals(10000, dictionary.size());
+        Assert.assertEquals(1234, dictionary.add("ENSMUST1234"));
+        Assert.assertEquals("ENSMUST9999", dictionary.get(9999));
+        Assert.assertEquals(0, dictionary.getCode("ENSMUST0"));
+        Assert.assertEquals(-1, dictionary.getCode("ENSMUST10000"));
+        Assert.assertEquals(10000, dictionary.add("\u00e9"));
+        Assert.assertEquals("\u00e9", dictionary.get(10000));
+    }
+
+    @Test
+    public void testSaveFeature() {
+
+        // Same features saved in a table and in SCFeatureMetadata objects
+        final String[][] lines = {
+                {"exon", "T1", "1", "100", "199", "T1"},
+                {"exon", "T2,T3", "MT", "10", "20", "T2,T3"},
+                {"exon", "T1", "1", "50", "60", "T1"},
+                {"exon", "T3,T4", "MT", "5", "15", "T3,T4"},
+                {"exon", "T1", "1", "300", "310", null}};
+
+        final FeatureTable table = new FeatureTable();
+        final Map<String, SCFeatureMetadata> features = new HashMap<>();
+        for (String[] line : lines) {
+            final SCFeatureMetadata feature = new SCFeatureMetadata(line[0]);
+            final int start = Integer.parseInt(line[3]);
+            final int end = Integer.parseInt(line[4]);
+            feature.setId(line[1]);
+            feature.setChromosome(line[2]);
+            feature.setType(line[2].equals("MT") ? "mitochondrial" : "other");
+            feature.setStart(start);
+            feature.setEnd(end);
+            feature.setLength(end - start + 1);
+            feature.setTranscript(line[5]);
+
+            FeaturesMetadataExtractorModule.saveFeature(features, feature);
+            table.add(feature);
+        }
+
+        Assert.assertEquals(4, table.size());
+        Assert.assertEquals(3, table.getRowCount());
+        Assert.assertEquals("T4", table.getKey(3));
+        Assert.assertEquals(-1, table.getRow("T5"));
+
+        for (String id : features.keySet()) {
+            final SCFeatureMetadata expected = features.get(id);
+            final SCFeatureMetadata feature = table.getFeature(table.getRow(id));
+            Assert.assertEquals(id, expected.getId(), feature.getId());
+            Assert.assertEquals(id, expected.getLength(), feature.getLength());
+            Assert.assertEquals(id, expected.getStart(), feature.getStart());
+            Assert.assertEquals(id, expected.getEnd(), feature.getEnd());
+            Assert.assertEquals(id, expected.getType(), feature.getType());
+            Assert.assertEquals(id, expected.getTranscript(), feature.getTranscript());
+        }
+
+        // Ids of a same feature share their row
+        Assert.assertEquals(table.getRow("T2"), table.getRow("T3"));
+        Assert.assertEquals(11 + 11, table.getLength(table.getRow("T2")));
+        Assert.assertEquals(5, table.getStart(table.getRow("T2")));
+        Assert.assertEquals(100 + 11 + 11, table.getLength(table.getRow("T1")));
+        Assert.assertEquals(50, table.getStart(table.getRow("T1")));
+        Assert.assertEquals(310, table.getEnd(table.getRow("T1")));
+    }
+
+    @Test
+    public void testAddAll() {
+
+        final FeatureTable first = new FeatureTable();
+        first.add("exon", "E1", "other", 10, 1, 10, "1", "T1");
+        first.add("exon", "E2", "other", 10, 21, 30, "1", "T1");
+
+        final FeatureTable second = new FeatureTable();
+        second.add("exon", "E2", "other", 5, 11, 15, "1", "T1");
+        second.add("exon", "E3,E4", "spike", 5, 1, 5, "ERCC", null);
+        second.add("exon", "E2", "other", 5, 41, 45, "1", "T1");
+
+        first.addAll(second);
+
+        Assert.assertEquals(4, first.size());
+        Assert.assertEquals(3, first.getRowCount());
+        Assert.assertEquals("E3", first.getKey(2));
+
+        final int e2 = first.getRow("E2");
+        Assert.assertEquals(20, first.getLength(e2));
+        Assert.assertEquals(11, first.getStart(e2));
+        Assert.assertEquals(45, first.getEnd(e2));
+
+        final int e3 = first.getRow("E3");
+        Assert.assertEquals(e3, first.getRow("E4"));
+        Assert.assertEquals("E3,E4", first.getId(e3));
+        Assert.assertEquals("ERCC", first.getChromosome(e3));
+        Assert.assertNull(first.getTranscript(e3));
+    }
+
+    @Test
+    public void testPrintMetadata() throws IOException {
+
+        final FeatureTable table = new FeatureTable();
+        table.add("gene", "G1", "other", 100, 1, 100, "1", null);
+        table.add("transcript", "T1", "mitochondrial", 50, 1, 50, "MT", null);
+        table.add("CDS", "C1", "other", 20, 1, 20, "1", "T1");
+        table.setGene(1, "G1");
+
+        final StringWriter writer = new StringWriter();
+        try (BufferedWriter out = new BufferedWriter(writer)) {
+            for (int row = 0; row < table.getRowCount(); row++) {
+                table.printMetadata(row, out);
+                out.newLine();
+            }
+        }
+
+        Assert.assertEquals("G1\tother\t100\n" + "T1\tmitochondrial\t50\tG1\n"
+                + "C1\tother\t20\tnull\tT1\n", writer.toString());
+    }
+}
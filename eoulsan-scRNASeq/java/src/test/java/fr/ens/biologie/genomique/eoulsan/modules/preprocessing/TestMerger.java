@@ -3,6 +3,8 @@ package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
 
 
 import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import fr.ens.biologie.genomique.eoulsan.data.DataFile;
+import fr.ens.biologie.genomique.eoulsan.io.CompressionType;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -10,8 +12,15 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 
 
@@ -64,4 +73,732 @@ public class TestMerger{
         }
 
     }
+
+    @Test
+    public void testMergerWholeMatrix() throws IOException {
+
+        final String filesPath = "src/test/files/";
+
+        final File merged = folder.newFile("mergingResultWhole.tsv");
+        final File ref = new File(filesPath + "mergingResult_ref.tsv");
+
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+        }
+
+        MatrixCreatorModule.merge(files, merged);
+
+        // Input list must be left untouched
+        Assert.assertEquals(4, files.size());
+
+        try (BufferedReader refReader = new BufferedReader(new FileReader(ref));
+             BufferedReader mergedReader = new BufferedReader(new FileReader(merged))) {
+
+            String refLine;
+            while ((refLine = refReader.readLine()) != null) {
+                Assert.assertEquals(refLine, mergedReader.readLine());
+            }
+            Assert.assertNull(mergedReader.readLine());
+        }
+    }
+
+    @Test
+    public void testMergerMatrixMarket() throws IOException {
+
+        final String filesPath = "src/test/files/";
+
+        final File merged = folder.newFile("mergingResult.mtx");
+        final File ref = new File(filesPath + "mergingResult_ref.tsv");
+
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+        }
+
+        MatrixCreatorModule.merge(files, merged, MatrixCreatorModule.MatrixFormat.MTX);
+
+        // Rebuild dense matrix from reference
+        List<String> genes = new ArrayList<>();
+        List<String[]> rows = new ArrayList<>();
+        int nonZero = 0;
+        try (BufferedReader refReader = new BufferedReader(new FileReader(ref))) {
+            String line = refReader.readLine();
+            while ((line = refReader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                genes.add(fields[0]);
+                rows.add(fields);
+                for (int j = 1; j < fields.length; j++) {
+                    if (!fields[j].equals("0")) {
+                        nonZero++;
+                    }
+                }
+            }
+        }
+
+        try (BufferedReader mtxReader = new BufferedReader(new FileReader(merged))) {
+
+            Assert.assertEquals("%%MatrixMarket matrix coordinate integer general", mtxReader.readLine());
+            Assert.assertEquals(genes.size() + " 4 " + nonZero, mtxReader.readLine());
+
+            String line;
+            int count = 0;
+            while ((line = mtxReader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                String[] row = rows.get(Integer.parseInt(fields[0]) - 1);
+                Assert.assertEquals(row[Integer.parseInt(fields[1])], fields[2]);
+                count++;
+            }
+            Assert.assertEquals(nonZero, count);
+        }
+
+        try (BufferedReader genesReader = new BufferedReader(
+                new FileReader(MatrixMerger.getGenesFile(merged)))) {
+            for (String gene : genes) {
+                Assert.assertEquals(gene, genesReader.readLine());
+            }
+            Assert.assertNull(genesReader.readLine());
+        }
+
+        try (BufferedReader barcodesReader = new BufferedReader(
+                new FileReader(MatrixMerger.getBarcodesFile(merged)))) {
+            for (int i = 1; i <= 4; i++) {
+                Assert.assertEquals("cell" + i, barcodesReader.readLine());
+            }
+            Assert.assertNull(barcodesReader.readLine());
+        }
+    }
+
+    @Test
+    public void testMergerThreads() throws IOException {
+
+        final String filesPath = "src/test/files/";
+
+        final File sequential = folder.newFile("mergingResultSequential.tsv");
+        final File parallel = folder.newFile("mergingResultParallel.tsv");
+
+        // Repeat cells so that the parsing window is exceeded
+        List<File> files = new ArrayList<>();
+        for (int k = 0; k < 5; k++) {
+            for (int i = 1; i <= 4; i++) {
+                files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+            }
+        }
+
+        MatrixCreatorModule.merge(files, sequential);
+
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setThreadCount(3);
+        merger.merge(files, parallel);
+
+        try (BufferedReader sequentialReader = new BufferedReader(new FileReader(sequential));
+             BufferedReader parallelReader = new BufferedReader(new FileReader(parallel))) {
+
+            String line;
+            while ((line = sequentialReader.readLine()) != null) {
+                Assert.assertEquals(line, parallelReader.readLine());
+            }
+            Assert.assertNull(parallelReader.readLine());
+        }
+    }
+
+    @Test
+    public void testExpressionFileReader() throws IOException {
+
+        final File file = folder.newFile("expressionstep_output_expression_cellX.tsv");
+        try (Writer out = new FileWriter(file)) {
+            out.write("Id\tCount\r\n");
+            out.write("ENSMUSG00000000001\t12\r\n");
+            out.write("UNKNOWN\t5\r\n");
+            out.write("ENSMUSG00000000003\t0\n");
+            out.write("ENSMUSG00000000028\t123456");
+        }
+
+        final GeneDictionary dictionary = new GeneDictionary(Arrays.asList(
+                "ENSMUSG00000000028", "ENSMUSG00000000001", "ENSMUSG00000000003"));
+
+        // A tiny buffer forces buffer growth and lines split over reads
+        final ExpressionFileReader reader = new ExpressionFileReader(4);
+        final int[] column = new int[dictionary.size()];
+        reader.readCounts(file, dictionary, column);
+
+        Assert.assertArrayEquals(new int[] {123456, 12, 0}, column);
+        Assert.assertEquals(-1, dictionary.getIndex("UNKNOWN"));
+        Assert.assertEquals(2, dictionary.getIndex("ENSMUSG00000000003"));
+    }
+
+    @Test
+    public void testExpressionFileReaderErrors() throws IOException {
+
+        final GeneDictionary dictionary = new GeneDictionary(Arrays.asList(
+                "ENSMUSG00000000001", "ENSMUSG00000000003"));
+        final ExpressionFileReader reader = new ExpressionFileReader();
+
+        final String[] lines = {"ENSMUSG00000000003 12\n",
+                "ENSMUSG00000000003\t2147483648\n",
+                "ENSMUSG00000000003\t99999999999999999999\n",
+                "ENSMUSG00000000003\t12a\n"};
+        for (String line : lines) {
+
+            final File file = folder.newFile();
+            try (Writer out = new FileWriter(file)) {
+                out.write("Id\tCount\n");
+                out.write("ENSMUSG00000000001\t2147483647\r\n");
+                out.write("\r\n");
+                out.write(line);
+            }
+
+            try {
+                reader.readCounts(file, dictionary, new int[dictionary.size()]);
+                Assert.fail("Invalid line not detected: " + line);
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage(),
+                        e.getMessage().endsWith("at line 4"));
+            }
+        }
+    }
+
+    @Test
+    public void testMergerGzip() throws IOException {
+
+        final String filesPath = "src/test/files/";
+        final File ref = new File(filesPath + "mergingResult_ref.tsv");
+        final File merged = folder.newFile("mergingResult.tsv.gz");
+
+        // Compress input files
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            final String name = "expressionstep_output_expression_cell" + i + ".tsv";
+            final File compressed = folder.newFile(name + ".gz");
+            try (InputStream in = new FileInputStream(filesPath + name);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed))) {
+                final byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            files.add(compressed);
+        }
+
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setThreadCount(2);
+        merger.setCompressed(true);
+        merger.merge(files, merged);
+
+        Assert.assertTrue(GzipUtils.isGzip(merged));
+
+        try (BufferedReader refReader = new BufferedReader(new FileReader(ref));
+             BufferedReader mergedReader = new BufferedReader(new InputStreamReader(GzipUtils.open(merged)))) {
+
+            String refLine;
+            while ((refLine = refReader.readLine()) != null) {
+                Assert.assertEquals(refLine, mergedReader.readLine());
+            }
+            Assert.assertNull(mergedReader.readLine());
+        }
+    }
+
+    @Test
+    public void testMergerMatrixMarketGzip() throws IOException {
+
+        final String filesPath = "src/test/files/";
+
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+        }
+
+        final File plain = folder.newFile("plainResult.mtx");
+        MatrixCreatorModule.merge(files, plain, MatrixCreatorModule.MatrixFormat.MTX);
+
+        // Output file named as the framework names a gzip output port
+        final File merged = new File(folder.getRoot(),
+                "mergingResult.mtx" + CompressionType.GZIP.getExtension());
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setFormat(MatrixCreatorModule.MatrixFormat.MTX);
+        merger.setThreadCount(2);
+        merger.setCompressed(true);
+        merger.merge(files, merged);
+
+        Assert.assertEquals("mergingResult_genes.tsv.gz",
+                MatrixMerger.getGenesFile(merged).getName());
+        Assert.assertEquals("mergingResult_barcodes.tsv.gz",
+                MatrixMerger.getBarcodesFile(merged).getName());
+        Assert.assertEquals("mergingResult_manifest.tsv",
+                MatrixMerger.getManifestFile(merged).getName());
+        Assert.assertEquals("plainResult_genes.tsv",
+                MatrixMerger.getGenesFile(plain).getName());
+
+        // Files are read back by the extension of their names
+        Assert.assertEquals(Files.readAllLines(plain.toPath()), readLines(merged));
+        Assert.assertEquals(Files.readAllLines(MatrixMerger.getGenesFile(plain).toPath()),
+                readLines(MatrixMerger.getGenesFile(merged)));
+        Assert.assertEquals(Files.readAllLines(MatrixMerger.getBarcodesFile(plain).toPath()),
+                readLines(MatrixMerger.getBarcodesFile(merged)));
+    }
+
+    private static List<String> readLines(final File file) throws IOException {
+
+        final List<String> result = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new DataFile(file).open()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                result.add(line);
+            }
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testParallelGzipBlocks() throws IOException {
+
+        final File file = folder.newFile("blocks.gz");
+        final StringBuilder expected = new StringBuilder();
+
+        // Tiny blocks give a multi-member gzip file
+        try (Writer out = new OutputStreamWriter(new ParallelGzipOutputStream(new FileOutputStream(file), 3, 7))) {
+            for (int i = 0; i < 1000; i++) {
+                expected.append("line").append(i).append('\n');
+                out.write("line" + i + "\n");
+            }
+        }
+
+        final StringBuilder result = new StringBuilder();
+        try (Reader in = new InputStreamReader(GzipUtils.open(file))) {
+            int c;
+            while ((c = in.read()) >= 0) {
+                result.append((char) c);
+            }
+        }
+
+        Assert.assertEquals(expected.toString(), result.toString());
+    }
+
+    @Test
+    public void testMergerIncremental() throws IOException {
+
+        final String filesPath = "src/test/files/";
+        final File ref = new File(filesPath + "mergingResult_ref.tsv");
+
+        for (MatrixCreatorModule.MatrixFormat format : MatrixCreatorModule.MatrixFormat.values()) {
+
+            final File dir = folder.newFolder("incremental" + format);
+            final File merged = new File(dir, "mergingResult." + format.name().toLowerCase());
+
+            List<File> files = new ArrayList<>();
+            for (int i = 1; i <= 4; i++) {
+                final String name = "expressionstep_output_expression_cell" + i + ".tsv";
+                final File copy = new File(dir, name);
+                Files.copy(new File(filesPath + name).toPath(), copy.toPath());
+                files.add(copy);
+            }
+
+            final MatrixMerger merger = new MatrixMerger();
+            merger.setFormat(format);
+            merger.setIncremental(true);
+
+            // First merging with three cells, then add the last one
+            merger.merge(new ArrayList<>(files.subList(0, 3)), merged);
+            Assert.assertTrue(MatrixMerger.getManifestFile(merged).isFile());
+            merger.merge(files, merged);
+
+            final MatrixManifest manifest = MatrixManifest.read(MatrixMerger.getManifestFile(merged));
+            Assert.assertEquals(4, manifest.size());
+            Assert.assertEquals(3, manifest.getEntry(files.get(3)).getColumn());
+
+            final CountMatrix expected = new MatrixMerger().createMatrix(files);
+
+            if (format == MatrixCreatorModule.MatrixFormat.TSV) {
+                try (BufferedReader refReader = new BufferedReader(new FileReader(ref));
+                     BufferedReader mergedReader = new BufferedReader(new FileReader(merged))) {
+
+                    String refLine;
+                    while ((refLine = refReader.readLine()) != null) {
+                        Assert.assertEquals(refLine, mergedReader.readLine());
+                    }
+                    Assert.assertNull(mergedReader.readLine());
+                }
+            }
+
+            // Reused columns must be the ones of the previous matrix
+            final GeneDictionary genes = expected.getGeneDictionary();
+            final Set<Integer> columns = new HashSet<>(Arrays.asList(0, 1, 2, 3));
+            final Map<Integer, int[][]> loaded = MatrixColumnLoader.load(merged, format, genes, columns);
+            for (int j = 0; j < 4; j++) {
+                Assert.assertArrayEquals(expected.getColumnRows(j), loaded.get(j)[0]);
+                Assert.assertArrayEquals(expected.getColumnValues(j), loaded.get(j)[1]);
+            }
+
+            // A modified cell file is read again
+            try (Writer out = new FileWriter(files.get(0))) {
+                out.write("Id\tCount\n");
+                out.write(genes.getId(0) + "\t7\n");
+            }
+            merger.merge(files, merged);
+
+            final Map<Integer, int[][]> reloaded = MatrixColumnLoader.load(merged, format, genes,
+                    Collections.singleton(0));
+            Assert.assertArrayEquals(new int[] {0}, reloaded.get(0)[0]);
+            Assert.assertArrayEquals(new int[] {7}, reloaded.get(0)[1]);
+        }
+    }
+
+    @Test
+    public void testMergerIncrementalAppend() throws IOException {
+
+        final File dir = folder.newFolder("append");
+        final String[][] counts = {{"3", "0", "0", "1"}, {"0", "0", "0", "2"},
+                {"0", "5", "0", "4"}};
+
+        final List<File> files = new ArrayList<>();
+        for (int j = 0; j < counts.length; j++) {
+            final File file = new File(dir, "expressionstep_output_expression_cell" + j + ".tsv");
+            try (Writer out = new FileWriter(file)) {
+                out.write("Id\tCount\n");
+                for (int i = 0; i < counts[j].length; i++) {
+                    out.write("G" + i + "\t" + counts[j][i] + "\n");
+                }
+            }
+            files.add(file);
+        }
+
+        final File merged = new File(dir, "merged.tsv.gz");
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setIncremental(true);
+        merger.setCompressed(true);
+
+        // The gene only counted in the new cell is inserted in previous rows
+        merger.merge(new ArrayList<>(files.subList(0, 2)), merged);
+        Assert.assertEquals(Arrays.asList("cell0\tcell1", "G0\t3\t0", "G3\t1\t2"),
+                readLines(merged));
+        merger.merge(files, merged);
+
+        final File fresh = new File(dir, "fresh.tsv");
+        new MatrixMerger().merge(files, fresh);
+        Assert.assertEquals(Files.readAllLines(fresh.toPath()), readLines(merged));
+        Assert.assertEquals(3, MatrixManifest.read(MatrixMerger.getManifestFile(merged)).size());
+
+        // Rows not in gene order are loaded as columns
+        try (Writer out = new FileWriter(merged)) {
+            out.write("cell0\tcell1\tcell2\n");
+            out.write("G3\t1\t2\t4\n");
+            out.write("G1\t0\t0\t5\n");
+            out.write("G0\t3\t0\t0\n");
+        }
+        final File added = new File(dir, "expressionstep_output_expression_cell3.tsv");
+        Files.copy(files.get(0).toPath(), added.toPath());
+        files.add(added);
+        merger.merge(files, merged);
+
+        new MatrixMerger().merge(files, fresh);
+        Assert.assertEquals(Files.readAllLines(fresh.toPath()), readLines(merged));
+    }
+
+    @Test
+    public void testGeneDictionaryIndex() throws IOException {
+
+        final String filesPath = "src/test/files/";
+        final File ref = new File(filesPath + "mergingResult_ref.tsv");
+        final File indexFile = folder.newFile("genes.gdx");
+        final File merged = folder.newFile("mergingResult.tsv");
+
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+        }
+
+        // Index genes in reverse order
+        final List<String> ids = new ArrayList<>(MatrixMerger.readGenes(files.get(0)));
+        Collections.reverse(ids);
+        new GeneDictionary(ids).write(indexFile);
+
+        final GeneDictionary dictionary = GeneDictionary.load(indexFile);
+        Assert.assertEquals(ids.size(), dictionary.size());
+        Assert.assertEquals(ids, dictionary.getIds());
+        for (int i = 0; i < ids.size(); i++) {
+            Assert.assertEquals(i, dictionary.getIndex(ids.get(i)));
+        }
+        Assert.assertEquals(-1, dictionary.getIndex("UNKNOWN"));
+
+        final List<String> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        for (int i = 0; i < sorted.size(); i++) {
+            Assert.assertEquals(sorted.get(i), dictionary.getId(dictionary.getSortedIndex(i)));
+        }
+
+        // Rows follow the index
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setGeneDictionary(dictionary);
+        merger.merge(files, merged);
+
+        final List<String> refLines = Files.readAllLines(ref.toPath());
+        final List<String> mergedLines = Files.readAllLines(merged.toPath());
+        Assert.assertEquals(refLines.get(0), mergedLines.get(0));
+
+        final List<String> refRows = new ArrayList<>(refLines.subList(1, refLines.size()));
+        Collections.reverse(refRows);
+        Assert.assertEquals(refRows, mergedLines.subList(1, mergedLines.size()));
+    }
+
+    @Test
+    public void testMergerExternal() throws IOException {
+
+        final String filesPath = "src/test/files/";
+
+        // Repeat cells so that several chunks are spilled
+        List<File> files = new ArrayList<>();
+        for (int k = 0; k < 5; k++) {
+            for (int i = 1; i <= 4; i++) {
+                files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+            }
+        }
+
+        // Chunked output is always built in memory
+        for (MatrixCreatorModule.MatrixFormat format : new MatrixCreatorModule.MatrixFormat[] {
+                MatrixCreatorModule.MatrixFormat.TSV, MatrixCreatorModule.MatrixFormat.MTX}) {
+
+            final String extension = "." + format.name().toLowerCase();
+            final File inMemory = folder.newFile("mergingResultInMemory" + extension);
+            final File external = folder.newFile("mergingResultExternal" + extension);
+            final File tempDir = folder.newFolder("chunks" + format);
+
+            final MatrixMerger merger = new MatrixMerger();
+            merger.setFormat(format);
+            merger.merge(files, inMemory);
+
+            // A tiny budget spills a chunk every two cells, merged two at a time
+            merger.setMemoryBudget(512);
+            merger.setTempDirectory(tempDir);
+            merger.setThreadCount(2);
+            merger.merge(files, external);
+
+            Assert.assertEquals(Files.readAllLines(inMemory.toPath()), Files.readAllLines(external.toPath()));
+            Assert.assertEquals(0, tempDir.list().length);
+
+            if (format == MatrixCreatorModule.MatrixFormat.MTX) {
+                Assert.assertEquals(Files.readAllLines(MatrixMerger.getGenesFile(inMemory).toPath()),
+                        Files.readAllLines(MatrixMerger.getGenesFile(external).toPath()));
+                Assert.assertEquals(Files.readAllLines(MatrixMerger.getBarcodesFile(inMemory).toPath()),
+                        Files.readAllLines(MatrixMerger.getBarcodesFile(external).toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedMatrix() throws IOException {
+
+        final String filesPath = "src/test/files/";
+        final File chunked = folder.newFile("mergingResult.scm");
+
+        List<File> files = new ArrayList<>();
+        for (int k = 0; k < 3; k++) {
+            for (int i = 1; i <= 4; i++) {
+                files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+            }
+        }
+
+        final CountMatrix matrix = new MatrixMerger().createMatrix(files);
+
+        // Small chunks give several chunks in both layouts
+        ChunkedMatrixWriter.write(matrix, chunked, 3);
+
+        try (ChunkedMatrixReader reader = new ChunkedMatrixReader(chunked)) {
+
+            Assert.assertEquals(matrix.getDetectedGeneCount(), reader.getGeneCount());
+            Assert.assertEquals(matrix.getCellCount(), reader.getCellCount());
+            Assert.assertEquals(matrix.getNonZeroCount(), reader.getNonZeroCount());
+
+            // Columns, in random order to reload chunks
+            for (int j : new int[] {5, 0, 11, 6, 3}) {
+                Assert.assertEquals(matrix.getCell(j), reader.getCells().get(j));
+                final int[] expected = matrix.getColumn(j);
+                final int[] column = reader.getColumn(j);
+                for (int i = 0; i < reader.getGeneCount(); i++) {
+                    final String gene = reader.getGeneDictionary().getId(i);
+                    Assert.assertEquals(expected[matrix.getGeneIndex(gene)], column[i]);
+                }
+            }
+
+            // Rows
+            for (int i = matrix.getGeneCount() - 1; i >= 0; i--) {
+                final int[] row = reader.getRow(matrix.getGene(i));
+                if (matrix.getRowSum(i) == 0) {
+                    Assert.assertNull(row);
+                    continue;
+                }
+                for (int j = 0; j < matrix.getCellCount(); j++) {
+                    Assert.assertEquals(matrix.getColumn(j)[i], row[j]);
+                }
+            }
+        }
+
+        // Chunked output of the merger
+        final File merged = folder.newFile("mergingResultMerger.scm");
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setFormat(MatrixCreatorModule.MatrixFormat.CHUNKED);
+        merger.merge(files, merged);
+
+        try (ChunkedMatrixReader reader = new ChunkedMatrixReader(merged);
+             ChunkedMatrixReader smallChunksReader = new ChunkedMatrixReader(chunked)) {
+            Assert.assertEquals(matrix.getCellCount(), reader.getCellCount());
+            for (int i = 0; i < reader.getGeneCount(); i++) {
+                Assert.assertArrayEquals(smallChunksReader.getRow(i), reader.getRow(i));
+            }
+        }
+    }
+
+    @Test
+    public void testCellMetrics() throws IOException {
+
+        final String filesPath = "src/test/files/";
+        final File metadata = folder.newFile("genesMetadata.tsv");
+        final File metricsFile = folder.newFile("cellsMetrics.tsv");
+        final File merged = folder.newFile("mergingResult.tsv");
+
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+        }
+
+        // First gene is mitochondrial, second one a spike-in
+        final List<String> genes = MatrixMerger.readGenes(files.get(0));
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(metadata))) {
+            out.write("Type\tLength\n");
+            out.write(genes.get(0) + "\tmitochondrial\t100\n");
+            out.write(genes.get(1) + "\tspike\t100\n");
+            for (int i = 2; i < genes.size(); i++) {
+                out.write(genes.get(i) + "\tother\t100\n");
+            }
+        }
+
+        final MatrixMerger merger = new MatrixMerger();
+        merger.setCellMetricsFile(metricsFile);
+        merger.setGenesMetadataFile(metadata);
+        merger.setDetectionThreshold(1);
+        merger.setThreadCount(2);
+        merger.merge(files, merged);
+
+        final CountMatrix matrix = new MatrixMerger().createMatrix(files);
+        final List<String> lines = Files.readAllLines(metricsFile.toPath());
+        Assert.assertEquals(files.size() + 1, lines.size());
+        Assert.assertTrue(lines.get(0).startsWith("Nb_reads\tNb_features"));
+
+        for (int j = 0; j < matrix.getCellCount(); j++) {
+
+            final int[] column = matrix.getColumn(j);
+            long reads = 0;
+            long features = 0;
+            for (int count : column) {
+                reads += count;
+                features += count > 1 ? 1 : 0;
+            }
+
+            final String[] fields = lines.get(j + 1).split("\t");
+            Assert.assertEquals(matrix.getCell(j), fields[0]);
+            Assert.assertEquals(reads, Long.parseLong(fields[1]));
+            Assert.assertEquals(features, Long.parseLong(fields[2]));
+            Assert.assertEquals(column[0], Long.parseLong(fields[3]));
+            Assert.assertEquals(column[1], Long.parseLong(fields[5]));
+            Assert.assertEquals((double) column[0] / reads, Double.parseDouble(fields[7]), 1e-9);
+            Assert.assertEquals((double) column[1] / reads, Double.parseDouble(fields[8]), 1e-9);
+        }
+    }
+
+    @Test
+    public void testGeneFilter() throws IOException {
+
+        final String filesPath = "src/test/files/";
+
+        List<File> files = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            files.add(new File(filesPath + "expressionstep_output_expression_cell" + i + ".tsv"));
+        }
+
+        // Genes with counts in all cells and 300 reads overall
+        final CountMatrix matrix = new MatrixMerger().createMatrix(files);
+        final List<String> expectedGenes = new ArrayList<>();
+        long expectedNonZero = 0;
+        for (int i = 0; i < matrix.getGeneCount(); i++) {
+            if (matrix.getRowCellCount(i) >= 4 && matrix.getRowSum(i) >= 300) {
+                expectedGenes.add(matrix.getGene(i));
+                expectedNonZero += matrix.getRowCellCount(i);
+            }
+        }
+        Assert.assertTrue(expectedGenes.size() > 0);
+        Assert.assertTrue(expectedGenes.size() < matrix.getDetectedGeneCount());
+
+        for (MatrixCreatorModule.MatrixFormat format : MatrixCreatorModule.MatrixFormat.values()) {
+
+            final String extension = "." + format.name().toLowerCase();
+            final File inMemory = folder.newFile("filteredInMemory" + extension);
+            final File external = folder.newFile("filteredExternal" + extension);
+
+            final MatrixMerger merger = new MatrixMerger();
+            merger.setFormat(format);
+            merger.setMinCells(4);
+            merger.setMinCounts(300);
+            merger.setIncremental(true);
+            merger.merge(files, inMemory);
+
+            // No manifest is written for a filtered matrix
+            Assert.assertFalse(MatrixMerger.getManifestFile(inMemory).exists());
+
+            if (format == MatrixCreatorModule.MatrixFormat.CHUNKED) {
+                try (ChunkedMatrixReader reader = new ChunkedMatrixReader(inMemory)) {
+                    Assert.assertEquals(expectedGenes.size(), reader.getGeneCount());
+                    Assert.assertEquals(expectedNonZero, reader.getNonZeroCount());
+                    for (int i = 0; i < reader.getGeneCount(); i++) {
+                        final String gene = reader.getGeneDictionary().getId(i);
+                        Assert.assertEquals(expectedGenes.get(i), gene);
+                        final int[] row = reader.getRow(i);
+                        for (int j = 0; j < matrix.getCellCount(); j++) {
+                            Assert.assertEquals(matrix.getColumn(j)[matrix.getGeneIndex(gene)], row[j]);
+                        }
+                        Assert.assertArrayEquals(row, reader.getRow(gene));
+                    }
+                    for (int j = 0; j < reader.getCellCount(); j++) {
+                        final int[] column = reader.getColumn(j);
+                        for (int i = 0; i < reader.getGeneCount(); i++) {
+                            Assert.assertEquals(matrix.getColumn(j)[matrix.getGeneIndex(expectedGenes.get(i))],
+                                    column[i]);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            // Spilled chunks give the same matrix
+            merger.setMemoryBudget(512);
+            merger.setTempDirectory(folder.newFolder("filteredChunks" + format));
+            merger.merge(files, external);
+            Assert.assertEquals(Files.readAllLines(inMemory.toPath()), Files.readAllLines(external.toPath()));
+
+            final List<String> lines = Files.readAllLines(inMemory.toPath());
+            if (format == MatrixCreatorModule.MatrixFormat.TSV) {
+                Assert.assertEquals(expectedGenes.size() + 1, lines.size());
+                for (int i = 0; i < expectedGenes.size(); i++) {
+                    final String[] fields = lines.get(i + 1).split("\t");
+                    Assert.assertEquals(expectedGenes.get(i), fields[0]);
+                    final int row = matrix.getGeneIndex(fields[0]);
+                    for (int j = 0; j < matrix.getCellCount(); j++) {
+                        Assert.assertEquals(matrix.getColumn(j)[row], Integer.parseInt(fields[j + 1]));
+                    }
+                }
+            } else {
+                Assert.assertEquals(expectedGenes, Files.readAllLines(MatrixMerger.getGenesFile(inMemory).toPath()));
+                Assert.assertEquals(expectedGenes.size() + " " + matrix.getCellCount() + " " + expectedNonZero,
+                        lines.get(1));
+                Assert.assertEquals(expectedNonZero + 2, lines.size());
+                for (String line : lines.subList(2, lines.size())) {
+                    final String[] fields = line.split(" ");
+                    final int row = matrix.getGeneIndex(expectedGenes.get(Integer.parseInt(fields[0]) - 1));
+                    Assert.assertEquals(matrix.getColumn(Integer.parseInt(fields[1]) - 1)[row],
+                            Integer.parseInt(fields[2]));
+                }
+            }
+        }
+    }
 }
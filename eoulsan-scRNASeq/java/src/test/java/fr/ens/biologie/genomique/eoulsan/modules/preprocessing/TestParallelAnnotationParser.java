@@ -0,0 +1,250 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import fr.ens.biologie.genomique.eoulsan.data.DataFile;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+
+public class TestParallelAnnotationParser {
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Generate a GTF where the exons of a transcript are spread over the file,
+     * so that their lengths and bounds are merged across chunks
+     */
+    private static String gtf() {
+
+        final StringBuilder result = new StringBuilder("#!genome-build test\n");
+        for (int g = 0; g < 300; g++) {
+            final String chromosome = g % 50 == 0 ? "MT" : Integer.toString(1 + g % 5);
+            final String gene = "gene_id \"G" + g + "\";";
+            result.append(chromosome).append("\thavana\ttranscript\t1\t9000\t.\t+\t.\t")
+                    .append(gene).append(" transcript_id \"T").append(g).append("\";\n");
+            for (int e = 0; e < 4; e++) {
+                final int start = 1 + 1000 * ((g * 7 + e * 3) % 9);
+                result.append(chromosome).append("\thavana\texon\t").append(start)
+                        .append('\t').append(start + 10 * e + g % 13).append("\t.\t+\t.\t")
+                        .append(gene).append(" transcript_id \"T").append(g % 40)
+                        .append("\"; exon_id \"E").append(g).append('_').append(e)
+                        .append("\";\n");
+            }
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Write a bgzip file: gzip members with a "BC" extra field giving their
+     * size, of at most blockSize uncompressed bytes
+     */
+    private File writeBgzip(final String name, final byte[] data,
+                            final int blockSize) throws IOException {
+
+        final File file = folder.newFile(name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int from = 0; from < data.length; from += blockSize) {
+
+                final int length = Math.min(blockSize, data.length - from);
+                final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                deflater.setInput(data, from, length);
+                deflater.finish();
+                final byte[] compressed = new byte[length + 1024];
+                final int size = deflater.deflate(compressed);
+                deflater.end();
+
+                final CRC32 crc = new CRC32();
+                crc.update(data, from, length);
+
+                final ByteBuffer block = ByteBuffer.allocate(18 + size + 8)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                block.put(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+                block.putShort((short) 6).put((byte) 'B').put((byte) 'C')
+                        .putShort((short) 2).putShort((short) (block.capacity() - 1));
+                block.put(compressed, 0, size);
+                block.putInt((int) crc.getValue()).putInt(length);
+                out.write(block.array());
+            }
+        }
+
+        return file;
+    }
+
+    private File write(final String name, final byte[] data) throws IOException {
+
+        final File file = folder.newFile(name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+
+        return file;
+    }
+
+    private static void assertSameFeatures(final FeatureTable expected,
+                                           final FeatureTable actual) {
+
+        Assert.assertEquals(expected.size(), actual.size());
+        Assert.assertEquals(expected.getRowCount(), actual.getRowCount());
+        for (int i = 0; i < expected.size(); i++) {
+            final String id = expected.getKey(i);
+            final int expectedRow = expected.getKeyRow(i);
+            final int row = actual.getKeyRow(i);
+
+            // Features are saved in file order
+            Assert.assertEquals(id, actual.getKey(i));
+            Assert.assertEquals(id, expected.getId(expectedRow), actual.getId(row));
+            Assert.assertEquals(id, expected.getLength(expectedRow), actual.getLength(row));
+            Assert.assertEquals(id, expected.getStart(expectedRow), actual.getStart(row));
+            Assert.assertEquals(id, expected.getEnd(expectedRow), actual.getEnd(row));
+            Assert.assertEquals(id, expected.getType(expectedRow), actual.getType(row));
+            Assert.assertEquals(id, expected.getChromosome(expectedRow),
+                    actual.getChromosome(row));
+            Assert.assertEquals(id, expected.getTranscript(expectedRow),
+                    actual.getTranscript(row));
+        }
+    }
+
+    private static void assertSameParse(final File file, final File plain,
+                                        final boolean gtfFormat,
+                                        final String attributeId)
+            throws IOException, EoulsanException {
+
+        final FeatureTable expected = new FeatureTable();
+        final Map<String, String> expectedParents = new HashMap<>();
+        FeaturesMetadataExtractorModule.scanFeatures(new DataFile(plain), "MT",
+                "ERCC", "exon", attributeId, gtfFormat, expected, expectedParents);
+
+        // Chunk sizes falling inside lines, on line starts and past the file
+        for (long chunkSize : new long[]{1, 97, 1000, 1 << 20}) {
+            for (int threads : new int[]{2, 3}) {
+
+                final ParallelAnnotationParser parser = new ParallelAnnotationParser(
+                        "MT", "ERCC", "exon", attributeId, gtfFormat, threads);
+                parser.setMinChunkSize(chunkSize);
+
+                final FeatureTable features = new FeatureTable();
+                final Map<String, String> parents = new HashMap<>();
+                parser.parse(file, features, parents);
+
+                assertSameFeatures(expected, features);
+                Assert.assertEquals(expectedParents, parents);
+            }
+        }
+    }
+
+    @Test
+    public void testUncompressed() throws IOException, EoulsanException {
+
+        final File file = write("annotations.gtf", gtf().getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertTrue(ParallelAnnotationParser.isSplittable(file));
+        assertSameParse(file, file, true, "transcript_id");
+    }
+
+    @Test
+    public void testBgzip() throws IOException, EoulsanException {
+
+        final byte[] data = gtf().getBytes(StandardCharsets.UTF_8);
+        final File plain = write("annotations.gtf", data);
+        final File file = writeBgzip("annotations.gtf.gz", data, 777);
+
+        Assert.assertTrue(ParallelAnnotationParser.isSplittable(file));
+        assertSameParse(file, plain, true, "transcript_id");
+
+        // Plain gzip files are parsed sequentially
+        final File gzip = folder.newFile("plain.gtf.gz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gzip))) {
+            out.write(data);
+        }
+        Assert.assertFalse(ParallelAnnotationParser.isSplittable(gzip));
+    }
+
+    @Test
+    public void testGffSequences() throws IOException, EoulsanException {
+
+        final String gff = "##gff-version 3\n"
+                + "6\tensembl\tmRNA\t1\t90\t.\t+\t.\tID=transcript:T1;Parent=gene:G1\n"
+                + "6\tensembl\texon\t1\t30\t.\t+\t.\tParent=transcript:T1,transcript:T2;Name=E1\n"
+                + "6\tensembl\texon\t61\t90\t.\t+\t.\tParent=transcript:T1;Name=E1\n"
+                + "##FASTA\n"
+                + ">6\nACGT\n"
+                + "6\tensembl\texon\t1\t30\t.\t+\t.\tParent=transcript:T3;Name=E3\n";
+
+        final File file = write("annotations.gff", gff.getBytes(StandardCharsets.UTF_8));
+        assertSameParse(file, file, false, "Name");
+    }
+
+    /**
+     * Check that a parallel parse raises the error of a sequential parse, for
+     * chunk sizes putting the invalid line in a later chunk
+     */
+    private static void assertSameError(final File file, final File plain,
+                                        final int line)
+            throws IOException, EoulsanException {
+
+        String expected = null;
+        try {
+            FeaturesMetadataExtractorModule.scanFeatures(new DataFile(plain),
+                    "MT", "ERCC", "exon", "transcript_id", true,
+                    new FeatureTable(), new HashMap<String, String>());
+            Assert.fail("Invalid line not detected");
+        } catch (IOException e) {
+            expected = e.getMessage();
+        }
+        Assert.assertTrue(expected, expected.contains("line " + line + ":"));
+
+        for (long chunkSize : new long[]{1, 97, 1000}) {
+
+            final ParallelAnnotationParser parser = new ParallelAnnotationParser(
+                    "MT", "ERCC", "exon", "transcript_id", true, 3);
+            parser.setMinChunkSize(chunkSize);
+            try {
+                parser.parse(file, new FeatureTable(), new HashMap<String, String>());
+                Assert.fail("Invalid line not detected");
+            } catch (IOException e) {
+                Assert.assertEquals(expected, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidLine() throws IOException, EoulsanException {
+
+        final String gtf = gtf();
+        final int line = gtf.split("\n").length + 1;
+
+        final byte[] columns = (gtf + "1\thavana\texon\t1\n" + gtf)
+                .getBytes(StandardCharsets.UTF_8);
+        final File file = write("annotations.gtf", columns);
+        assertSameError(file, file, line);
+        assertSameError(writeBgzip("annotations.gtf.gz", columns, 777), file, line);
+
+        final byte[] position = (gtf + gtf + "1\thavana\texon\t1\tx\t.\t+\t.\t"
+                + "gene_id \"G\"; transcript_id \"T\";\n" + gtf)
+                .getBytes(StandardCharsets.UTF_8);
+        final File positionFile = write("position.gtf", position);
+        assertSameError(positionFile, positionFile, 2 * line - 1);
+    }
+}
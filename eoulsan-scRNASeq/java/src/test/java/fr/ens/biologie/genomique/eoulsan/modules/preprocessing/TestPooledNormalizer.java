@@ -0,0 +1,201 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+
+public class TestPooledNormalizer {
+
+    private static final int GENES = 400;
+    private static final int CELLS = 200;
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int poisson(final Random random, final double lambda) {
+
+        final double limit = Math.exp(-lambda);
+        double product = random.nextDouble();
+        int result = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            result++;
+        }
+
+        return result;
+    }
+
+    /**
+     * Write a matrix of Poisson counts where cell j has size factor
+     * 0.5 + 1.5 * j / CELLS, the last cell being empty. Genes G0 to G19 are
+     * 20 times more expressed in odd cells, biasing their library sizes.
+     */
+    private File writeMatrix(final double[] sizeFactors) throws IOException {
+
+        final Random random = new Random(5);
+        final double[] means = new double[GENES];
+        for (int i = 0; i < GENES; i++) {
+            means[i] = 1 + random.nextInt(20);
+        }
+        for (int j = 0; j < CELLS; j++) {
+            sizeFactors[j] = 0.5 + 1.5 * j / CELLS;
+        }
+
+        final File matrix = folder.newFile("matrix.tsv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(matrix))) {
+            for (int j = 0; j < CELLS; j++) {
+                out.write((j > 0 ? "\t" : "") + "c" + j);
+            }
+            out.write("\n");
+            for (int i = 0; i < GENES; i++) {
+                out.write("G" + i);
+                for (int j = 0; j < CELLS; j++) {
+                    final double fold = i < 20 && j % 2 == 1 ? 20 : 1;
+                    out.write("\t" + (j == CELLS - 1 ? 0 :
+                            poisson(random, means[i] * fold * sizeFactors[j])));
+                }
+                out.write("\n");
+            }
+            out.write("ERCC1");
+            for (int j = 0; j < CELLS; j++) {
+                out.write("\t" + (j == CELLS - 1 ? 0 : 1000));
+            }
+            out.write("\n");
+        }
+
+        return matrix;
+    }
+
+    private File writeGenes() throws IOException {
+
+        final File genes = folder.newFile("genes.tsv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(genes))) {
+            out.write("Type\tLength\nERCC1\tspike\t500\n");
+        }
+
+        return genes;
+    }
+
+    /**
+     * Get the mean relative error of size factors of the non empty cells,
+     * centered on 1
+     */
+    private static double error(final List<String> lines,
+                                final double[] sizeFactors) {
+
+        double mean = 0;
+        for (int j = 0; j < CELLS - 1; j++) {
+            mean += sizeFactors[j] / (CELLS - 1);
+        }
+
+        double result = 0;
+        for (int j = 0; j < CELLS - 1; j++) {
+            final double factor =
+                    Double.parseDouble(lines.get(j + 1).split("\t")[2]);
+            result += Math.abs(factor / (sizeFactors[j] / mean) - 1) / (CELLS - 1);
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testSizeFactors() throws IOException {
+
+        final double[] sizeFactors = new double[CELLS];
+        final File matrix = writeMatrix(sizeFactors);
+        final File normalized = folder.newFile("normalized.tsv");
+        final File cells = folder.newFile("cells.tsv");
+
+        final PooledNormalizer normalizer = new PooledNormalizer();
+        normalizer.setGenesMetadataFile(writeGenes());
+        normalizer.normalize(matrix, normalized, cells);
+        Assert.assertEquals(1, normalizer.getClusterCount());
+        Assert.assertEquals(0, normalizer.getNegativeFactorCount());
+
+        final List<String> lines = Files.readAllLines(cells.toPath());
+        Assert.assertEquals(CELLS + 1, lines.size());
+        Assert.assertEquals("Library_size\tSize_factor", lines.get(0));
+        Assert.assertEquals("c199\t0.0\tNA", lines.get(CELLS));
+
+        // Pooled size factors are not biased by the expressed genes of odd
+        // cells, unlike library sizes
+        Assert.assertTrue(error(lines, sizeFactors) < 0.05);
+        double librarySize = 0;
+        double mean = 0;
+        for (int j = 0; j < CELLS - 1; j++) {
+            librarySize += Double.parseDouble(lines.get(j + 1).split("\t")[1]);
+            mean += sizeFactors[j] / (CELLS - 1);
+        }
+        final double oddFactor = Double.parseDouble(lines.get(2).split("\t")[2]);
+        final double oddLibrary = Double.parseDouble(lines.get(2).split("\t")[1])
+                / (librarySize / (CELLS - 1));
+        Assert.assertTrue(Math.abs(oddFactor / (sizeFactors[1] / mean) - 1)
+                < Math.abs(oddLibrary / (sizeFactors[1] / mean) - 1));
+
+        // Counts divided by size factors, spike-ins included
+        final List<String> rows = Files.readAllLines(normalized.toPath());
+        Assert.assertEquals(GENES + 2, rows.size());
+        final double factor = Double.parseDouble(lines.get(1).split("\t")[2]);
+        Assert.assertEquals(1000 / factor,
+                Double.parseDouble(rows.get(GENES + 1).split("\t")[1]), 1e-9);
+        Assert.assertTrue(rows.get(GENES + 1).endsWith("\t0"));
+    }
+
+    @Test
+    public void testClusters() throws IOException {
+
+        final double[] sizeFactors = new double[CELLS];
+        final File matrix = writeMatrix(sizeFactors);
+        final File cells = folder.newFile("cells.tsv");
+
+        // Clusters of similar library sizes are rescaled to each other
+        final PooledNormalizer normalizer = new PooledNormalizer();
+        normalizer.setGenesMetadataFile(writeGenes());
+        normalizer.setMaxClusterSize(50);
+        normalizer.normalize(matrix, folder.newFile("normalized.tsv"), cells);
+        Assert.assertEquals(4, normalizer.getClusterCount());
+
+        Assert.assertTrue(error(Files.readAllLines(cells.toPath()), sizeFactors) < 0.05);
+    }
+
+    @Test
+    public void testThreads() throws IOException {
+
+        final double[] sizeFactors = new double[CELLS];
+        final File matrix = writeMatrix(sizeFactors);
+        final File normalized = folder.newFile("normalized.tsv");
+        final File cells = folder.newFile("cells.tsv");
+        final File parallelNormalized = folder.newFile("parallelNormalized.tsv");
+        final File parallelCells = folder.newFile("parallelCells.tsv");
+
+        PooledNormalizer normalizer = new PooledNormalizer();
+        normalizer.setMaxClusterSize(60);
+        normalizer.normalize(matrix, normalized, cells);
+
+        // Each pool ratio and each cluster system is computed by one task
+        normalizer = new PooledNormalizer();
+        normalizer.setMaxClusterSize(60);
+        normalizer.setThreadCount(3);
+        normalizer.normalize(matrix, parallelNormalized, parallelCells);
+
+        Assert.assertEquals(Files.readAllLines(cells.toPath()),
+                Files.readAllLines(parallelCells.toPath()));
+        Assert.assertEquals(Files.readAllLines(normalized.toPath()),
+                Files.readAllLines(parallelNormalized.toPath()));
+    }
+}
@@ -0,0 +1,202 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class TestRandomizedPca {
+
+    private static final int GENES = 30;
+    private static final int CELLS = 40;
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Get a value of a sparse low rank matrix with two groups of cells
+     */
+    private static double value(final int gene, final int cell) {
+
+        if (gene < 10 && cell < 20) {
+            return 5 + (gene + cell) % 3;
+        }
+
+        return gene >= 20 && cell >= 20 ? 3 : 0;
+    }
+
+    private File writeMatrix() throws IOException {
+
+        final File matrix = folder.newFile("matrix.tsv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(matrix))) {
+            for (int j = 0; j < CELLS; j++) {
+                out.write((j > 0 ? "\t" : "") + "c" + j);
+            }
+            out.write("\n");
+            for (int i = 0; i < GENES; i++) {
+                out.write("G" + i);
+                for (int j = 0; j < CELLS; j++) {
+                    final double v = value(i, j);
+                    out.write(v == 0 ? "\t0" : "\t" + v);
+                }
+                out.write("\n");
+            }
+        }
+
+        return matrix;
+    }
+
+    @Test
+    public void testReduce() throws IOException {
+
+        final File matrix = writeMatrix();
+        final File embeddingFile = folder.newFile("embedding.tsv");
+        final File loadingsFile = folder.newFile("loadings.tsv");
+        final File binaryFile = folder.newFile("embedding.pcae");
+
+        final RandomizedPca pca = new RandomizedPca();
+        pca.setComponentCount(2);
+        pca.setLogTransform(false);
+        pca.setScale(false);
+        final CellEmbedding embedding =
+                pca.reduce(matrix, embeddingFile, loadingsFile, binaryFile);
+
+        Assert.assertEquals(CELLS, embedding.getCellCount());
+        Assert.assertEquals(2, embedding.getDimension());
+
+        // Dense centered matrix and its largest eigenvalue by power iteration
+        final double[][] centered = new double[GENES][CELLS];
+        for (int i = 0; i < GENES; i++) {
+            double mean = 0;
+            for (int j = 0; j < CELLS; j++) {
+                mean += value(i, j) / CELLS;
+            }
+            for (int j = 0; j < CELLS; j++) {
+                centered[i][j] = value(i, j) - mean;
+            }
+        }
+
+        double[] v = new double[GENES];
+        Arrays.fill(v, 1);
+        double lambda = 0;
+        for (int it = 0; it < 1000; it++) {
+            final double[] w = new double[GENES];
+            for (int i = 0; i < GENES; i++) {
+                for (int i2 = 0; i2 < GENES; i2++) {
+                    double c = 0;
+                    for (int j = 0; j < CELLS; j++) {
+                        c += centered[i][j] * centered[i2][j];
+                    }
+                    w[i] += c * v[i2];
+                }
+            }
+            double norm = 0;
+            for (double x : w) {
+                norm += x * x;
+            }
+            lambda = Math.sqrt(norm);
+            for (int i = 0; i < GENES; i++) {
+                v[i] = w[i] / lambda;
+            }
+        }
+
+        Assert.assertEquals(Math.sqrt(lambda / (CELLS - 1)),
+                embedding.getStandardDeviation(0), 1e-6);
+        Assert.assertTrue(embedding.getStandardDeviation(1)
+                <= embedding.getStandardDeviation(0));
+
+        // Coordinates are the projections of cells on the gene loadings
+        final List<String> loadings = Files.readAllLines(loadingsFile.toPath());
+        Assert.assertEquals(GENES + 1, loadings.size());
+        Assert.assertEquals("PC_1\tPC_2", loadings.get(0));
+        final double[][] l = new double[GENES][2];
+        for (int i = 0; i < GENES; i++) {
+            final String[] fields = loadings.get(i + 1).split("\t");
+            Assert.assertEquals("G" + i, fields[0]);
+            l[i][0] = Double.parseDouble(fields[1]);
+            l[i][1] = Double.parseDouble(fields[2]);
+        }
+        for (int j = 0; j < CELLS; j++) {
+            for (int c = 0; c < 2; c++) {
+                double projection = 0;
+                for (int i = 0; i < GENES; i++) {
+                    projection += centered[i][j] * l[i][c];
+                }
+                Assert.assertEquals(projection, embedding.getValue(j, c), 1e-4);
+            }
+        }
+
+        // The first component separates the two groups of cells
+        Assert.assertTrue(embedding.getValue(0, 0) * embedding.getValue(CELLS - 1, 0) < 0);
+
+        final List<String> lines = Files.readAllLines(embeddingFile.toPath());
+        Assert.assertEquals(CELLS + 1, lines.size());
+        Assert.assertEquals("c0\t" + embedding.getValue(0, 0) + "\t"
+                + embedding.getValue(0, 1), lines.get(1));
+    }
+
+    @Test
+    public void testBinaryEmbedding() throws IOException {
+
+        final File matrix = writeMatrix();
+        final File binaryFile = folder.newFile("embedding.pcae");
+
+        final RandomizedPca pca = new RandomizedPca();
+        pca.setComponentCount(3);
+        final CellEmbedding embedding = pca.reduce(matrix,
+                folder.newFile("embedding.tsv"), folder.newFile("loadings.tsv"),
+                binaryFile);
+
+        final CellEmbedding loaded = CellEmbedding.load(binaryFile);
+        Assert.assertEquals(embedding.getCellCount(), loaded.getCellCount());
+        Assert.assertEquals(3, loaded.getDimension());
+        for (int j = 0; j < CELLS; j++) {
+            Assert.assertEquals("c" + j, loaded.getCellName(j));
+            for (int c = 0; c < 3; c++) {
+                Assert.assertEquals(embedding.getValue(j, c), loaded.getValue(j, c), 0);
+            }
+        }
+        for (int c = 0; c < 3; c++) {
+            Assert.assertEquals(embedding.getStandardDeviation(c),
+                    loaded.getStandardDeviation(c), 0);
+        }
+    }
+
+    @Test
+    public void testThreads() throws IOException {
+
+        final File matrix = writeMatrix();
+        final File embedding = folder.newFile("embedding.tsv");
+        final File loadings = folder.newFile("loadings.tsv");
+        final File parallelEmbedding = folder.newFile("parallelEmbedding.tsv");
+        final File parallelLoadings = folder.newFile("parallelLoadings.tsv");
+
+        new RandomizedPca().reduce(matrix, embedding, loadings,
+                folder.newFile("embedding.pcae"));
+
+        // Each block of rows of a product is computed by a single task
+        final RandomizedPca pca = new RandomizedPca();
+        pca.setThreadCount(3);
+        pca.reduce(matrix, parallelEmbedding, parallelLoadings,
+                folder.newFile("parallelEmbedding.pcae"));
+
+        Assert.assertEquals(Files.readAllLines(embedding.toPath()),
+                Files.readAllLines(parallelEmbedding.toPath()));
+        Assert.assertEquals(Files.readAllLines(loadings.toPath()),
+                Files.readAllLines(parallelLoadings.toPath()));
+    }
+}
@@ -0,0 +1,106 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+
+
+public class TestSaturationAnalyzer {
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write a matrix where "deep" has 100 reads on each of 200 genes, "flat"
+     * one read on each of 4000 genes and "low" less reads than the rounding
+     */
+    private File writeMatrix() throws IOException {
+
+        final File matrix = folder.newFile("matrix.tsv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(matrix))) {
+            out.write("deep\tflat\tlow\n");
+            for (int i = 0; i < 4000; i++) {
+                out.write("G" + i + "\t" + (i < 200 ? 100 : 0) + "\t1\t"
+                        + (i < 500 ? 1 : 0) + "\n");
+            }
+        }
+
+        return matrix;
+    }
+
+    private SaturationAnalyzer createAnalyzer() {
+
+        final SaturationAnalyzer analyzer = new SaturationAnalyzer();
+        analyzer.setDetectionThreshold(1);
+        analyzer.setRounding(1000);
+        analyzer.setSeed(42);
+
+        return analyzer;
+    }
+
+    @Test
+    public void testSaturation() throws IOException {
+
+        final File matrix = writeMatrix();
+        final File curves = folder.newFile("curves.tsv");
+        final File cells = folder.newFile("cells.tsv");
+        final File filteredMatrix = folder.newFile("filteredMatrix.tsv");
+
+        Assert.assertEquals(1, createAnalyzer().analyze(matrix, curves, cells, filteredMatrix));
+
+        final List<String> lines = Files.readAllLines(cells.toPath());
+        Assert.assertEquals(4, lines.size());
+        Assert.assertTrue(lines.get(1).startsWith("deep\t200\t"));
+        Assert.assertTrue(lines.get(1).endsWith("\tTRUE"));
+        Assert.assertTrue(lines.get(2).endsWith("\tFALSE"));
+        Assert.assertEquals("low\t500\tNA\tNA\tNA\tNA\tFALSE", lines.get(3));
+
+        // Saturation of deep cell is close to 1
+        final double saturation = Double.parseDouble(lines.get(1).split("\t")[4]);
+        Assert.assertEquals(1, saturation, 0.1);
+
+        // Curves of deep and flat cells
+        final List<String> points = Files.readAllLines(curves.toPath());
+        Assert.assertEquals(1 + 2 * 21, points.size());
+        Assert.assertEquals("deep\t0\t0.0\t0.0", points.get(1));
+        Assert.assertEquals("deep\t20000\t200.0\t0.0", points.get(21));
+        Assert.assertEquals("flat\t4000\t4000.0\t0.0", points.get(42));
+
+        Assert.assertEquals("deep", Files.readAllLines(filteredMatrix.toPath()).get(0));
+    }
+
+    @Test
+    public void testThreads() throws IOException {
+
+        final File matrix = writeMatrix();
+        final File curves = folder.newFile("curves.tsv");
+        final File cells = folder.newFile("cells.tsv");
+        final File parallelCurves = folder.newFile("parallelCurves.tsv");
+        final File parallelCells = folder.newFile("parallelCells.tsv");
+
+        createAnalyzer().analyze(matrix, curves, cells, null);
+
+        final SaturationAnalyzer analyzer = createAnalyzer();
+        analyzer.setThreadCount(3);
+        analyzer.analyze(matrix, parallelCurves, parallelCells, null);
+
+        // Random streams do not depend on the number of threads
+        Assert.assertEquals(Files.readAllLines(curves.toPath()),
+                Files.readAllLines(parallelCurves.toPath()));
+        Assert.assertEquals(Files.readAllLines(cells.toPath()),
+                Files.readAllLines(parallelCells.toPath()));
+    }
+}
@@ -0,0 +1,99 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+
+
+public class TestSumNormalizer {
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeFile(String name, String content) throws IOException {
+
+        final File file = folder.newFile(name);
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            out.write(content);
+        }
+
+        return file;
+    }
+
+    private static double value(List<String> lines, int row, int column) {
+        return Double.parseDouble(lines.get(row).split("\t")[column]);
+    }
+
+    @Test
+    public void testCPM() throws IOException {
+
+        final File matrix = writeFile("matrix.tsv",
+                "c1\tc2\tc3\nG1\t10\t0\t0\nG2\t30\t50\t0\nERCC1\t60\t50\t0\n");
+        final File genes = writeFile("genes.tsv",
+                "Type\tLength\nG1\tother\t1000\nG2\tother\t2000\nERCC1\tspike\t500\n");
+        final File normalized = folder.newFile("normalized.tsv");
+        final File cells = folder.newFile("cells.tsv");
+
+        final SumNormalizer normalizer = new SumNormalizer();
+        normalizer.setGenesMetadataFile(genes);
+        normalizer.normalize(matrix, normalized, cells);
+
+        // Spike-ins are written but not counted in library sizes
+        final List<String> lines = Files.readAllLines(normalized.toPath());
+        Assert.assertEquals("c1\tc2\tc3", lines.get(0));
+        Assert.assertEquals(4, lines.size());
+        Assert.assertEquals(250000, value(lines, 1, 1), 1e-6);
+        Assert.assertEquals(750000, value(lines, 2, 1), 1e-6);
+        Assert.assertEquals(1500000, value(lines, 3, 1), 1e-6);
+        Assert.assertEquals(1000000, value(lines, 2, 2), 1e-6);
+        Assert.assertEquals("G1\t250000.0\t0\t0", lines.get(1));
+
+        final List<String> factors = Files.readAllLines(cells.toPath());
+        Assert.assertEquals("c1\t40.0\t25000.0", factors.get(1));
+        Assert.assertEquals("c3\t0.0\tNA", factors.get(3));
+
+        // All genes counted
+        normalizer.setGeneSelection(CellFilterModule.GeneSelection.ALL);
+        normalizer.normalize(matrix, normalized, cells);
+        Assert.assertEquals(100000, value(Files.readAllLines(normalized.toPath()), 1, 1), 1e-6);
+    }
+
+    @Test
+    public void testTPM() throws IOException {
+
+        final File matrix = writeFile("matrix.tsv",
+                "c1\tc2\nG1\t10\t20\nG2\t40\t0\nG3\t5\t5\n");
+        final File genes = writeFile("genes.tsv",
+                "Type\tLength\nG1\tother\t1000\nG2\tother\t2000\n");
+        final File normalized = folder.newFile("normalized.tsv");
+        final File cells = folder.newFile("cells.tsv");
+
+        final SumNormalizer normalizer = new SumNormalizer();
+        normalizer.setNormalization(SumNormalizationModule.Normalization.TPM);
+        normalizer.setGenesMetadataFile(genes);
+        normalizer.normalize(matrix, normalized, cells);
+
+        // G3 has no length
+        final List<String> lines = Files.readAllLines(normalized.toPath());
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals(1, normalizer.getSkippedGeneCount());
+
+        // Rates per kilobase: c1 = 10 and 20, c2 = 20 and 0
+        Assert.assertEquals(1e6 / 3, value(lines, 1, 1), 1e-6);
+        Assert.assertEquals(2e6 / 3, value(lines, 2, 1), 1e-6);
+        Assert.assertEquals(1e6, value(lines, 1, 2), 1e-6);
+    }
+}
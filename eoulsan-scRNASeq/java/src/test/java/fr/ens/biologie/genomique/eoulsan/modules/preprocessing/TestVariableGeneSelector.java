@@ -0,0 +1,144 @@
+package fr.ens.biologie.genomique.eoulsan.modules.preprocessing;
+
+import fr.ens.biologie.genomique.eoulsan.EoulsanException;
+import fr.ens.biologie.genomique.eoulsan.EoulsanRuntimeDebug;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+
+
+public class TestVariableGeneSelector {
+
+    @Before
+    public void setUp() throws Exception {
+
+        EoulsanRuntimeDebug.initDebugEoulsanRuntime();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write a matrix of 30 cells where G1 to G600 share the same dispersion,
+     * VAR is expressed in one cell only and ZERO is never expressed
+     */
+    private File writeMatrix() throws IOException {
+
+        final File matrix = folder.newFile("matrix.tsv");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(matrix))) {
+            for (int j = 0; j < 30; j++) {
+                out.write((j > 0 ? "\t" : "") + "c" + j);
+            }
+            out.write("\n");
+            for (int i = 1; i <= 600; i++) {
+                out.write("G" + i);
+                for (int j = 0; j < 30; j++) {
+                    out.write("\t" + (j % 3 + 1) + ".0");
+                }
+                out.write("\n");
+            }
+            out.write("VAR");
+            for (int j = 0; j < 30; j++) {
+                out.write(j == 0 ? "\t30.0" : "\t0");
+            }
+            out.write("\nZERO");
+            for (int j = 0; j < 30; j++) {
+                out.write("\t0");
+            }
+            out.write("\n");
+        }
+
+        return matrix;
+    }
+
+    @Test
+    public void testSelection() throws IOException, EoulsanException {
+
+        final File matrix = writeMatrix();
+        final File genes = folder.newFile("genes.tsv");
+        final File variableGenes = folder.newFile("variableGenes.tsv");
+
+        final VariableGeneSelector selector = new VariableGeneSelector();
+        selector.setBinCount(1);
+        Assert.assertEquals(1, selector.select(matrix, genes, variableGenes));
+
+        final List<String> lines = Files.readAllLines(genes.toPath());
+        Assert.assertEquals(603, lines.size());
+        Assert.assertEquals("Mean\tVariance\tDispersion\tNb_cells\tScaled_dispersion\tHighly_variable",
+                lines.get(0));
+
+        // Mean 2 and variance 20 / 29 for G genes, mean 1 and variance 30 for VAR
+        final String[] g1 = lines.get(1).split("\t");
+        Assert.assertEquals(2, Double.parseDouble(g1[1]), 1e-12);
+        Assert.assertEquals(20.0 / 29, Double.parseDouble(g1[2]), 1e-12);
+        Assert.assertEquals(10.0 / 29, Double.parseDouble(g1[3]), 1e-12);
+        Assert.assertEquals("30", g1[4]);
+        Assert.assertEquals("FALSE", g1[6]);
+
+        final String[] var = lines.get(601).split("\t");
+        Assert.assertEquals(1, Double.parseDouble(var[1]), 1e-12);
+        Assert.assertEquals(30, Double.parseDouble(var[2]), 1e-12);
+        Assert.assertEquals("1", var[4]);
+        Assert.assertEquals(600 / Math.sqrt(601), Double.parseDouble(var[5]), 1e-9);
+        Assert.assertEquals("TRUE", var[6]);
+
+        Assert.assertEquals("ZERO\t0.0\t0.0\tNA\t0\tNA\tFALSE", lines.get(602));
+
+        final List<String> rows = Files.readAllLines(variableGenes.toPath());
+        Assert.assertEquals(2, rows.size());
+        Assert.assertTrue(rows.get(0).startsWith("c0\tc1\t"));
+        Assert.assertTrue(rows.get(1).startsWith("VAR\t30.0\t0\t"));
+
+        // All genes are kept without selection
+        selector.setMethod(VariableGenesModule.SelectionMethod.NONE);
+        Assert.assertEquals(602, selector.select(matrix, genes, variableGenes));
+        Assert.assertEquals(603, Files.readAllLines(variableGenes.toPath()).size());
+
+        // Selection fails when no gene is variable, unless all genes are kept
+        selector.setMethod(VariableGenesModule.SelectionMethod.SEURAT);
+        selector.setDispersionThreshold(100);
+        try {
+            selector.select(matrix, genes, variableGenes);
+            Assert.fail("No variable gene not detected");
+        } catch (EoulsanException e) {
+            Assert.assertEquals(603, Files.readAllLines(genes.toPath()).size());
+        }
+
+        selector.setKeepAllGenes(true);
+        Assert.assertEquals(0, selector.select(matrix, genes, variableGenes));
+        Assert.assertEquals(Files.readAllLines(matrix.toPath()),
+                Files.readAllLines(variableGenes.toPath()));
+    }
+
+    @Test
+    public void testThreads() throws IOException, EoulsanException {
+
+        final File matrix = writeMatrix();
+        final File genes = folder.newFile("genes.tsv");
+        final File variableGenes = folder.newFile("variableGenes.tsv");
+        final File parallelGenes = folder.newFile("parallelGenes.tsv");
+        final File parallelVariableGenes = folder.newFile("parallelVariableGenes.tsv");
+
+        // No gene is variable with default bins, all genes are written
+        final VariableGeneSelector sequential = new VariableGeneSelector();
+        sequential.setKeepAllGenes(true);
+        sequential.select(matrix, genes, variableGenes);
+
+        // Blocks of rows are parsed in parallel and gathered in row order
+        final VariableGeneSelector selector = new VariableGeneSelector();
+        selector.setKeepAllGenes(true);
+        selector.setThreadCount(3);
+        selector.select(matrix, parallelGenes, parallelVariableGenes);
+
+        Assert.assertEquals(Files.readAllLines(genes.toPath()),
+                Files.readAllLines(parallelGenes.toPath()));
+        Assert.assertEquals(Files.readAllLines(variableGenes.toPath()),
+                Files.readAllLines(parallelVariableGenes.toPath()));
+    }
+}